@@ -125,6 +125,31 @@ public interface ODLComponent extends  net.xeoh.plugins.base.Plugin{
 	 */
 	public static final long FLAG_ALLOW_USER_INTERACTION_WHEN_RUNNING = 1<<2;
 	
+	/**
+	 * The component can be run on another thread at the same time as other work in the script,
+	 * i.e. for several batch keys at once or alongside other instructions which don't use its
+	 * output. Only return this flag if the component just reads its input datastore, only writes
+	 * to its output datastore, doesn't show modal panels and is safe to execute concurrently.
+	 * Control launchers it submits are still launched in script and batch key order.
+	 */
+	public static final long FLAG_CAN_RUN_IN_PARALLEL = 1<<3;
+	
+	/**
+	 * Return this with FLAG_CAN_RUN_IN_PARALLEL if the component also writes back to its input
+	 * datastore (e.g. a geocoder filling in latitudes and longitudes). The component can then run
+	 * alongside other instructions which don't use the datastores it reads, but its batch keys
+	 * are run one after another.
+	 */
+	public static final long FLAG_WRITES_TO_INPUT = 1<<4;
+	
+	/**
+	 * The component's output depends only on the input data it reads and its configuration, so
+	 * the output from an earlier execution can be reused whilst none of the tables it read have
+	 * changed. Only return this flag if the component writes nothing except its output datastore
+	 * (i.e. not its input or files) and doesn't use anything outside its input, such as the time.
+	 */
+	public static final long FLAG_OUTPUT_DEPENDS_ONLY_ON_INPUTS = 1<<5;
+	
 //	/**
 //	 * Get any default fixed IO structure configurations that the component defines
 //	 * @return
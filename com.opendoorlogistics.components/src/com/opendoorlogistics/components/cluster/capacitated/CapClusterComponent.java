@@ -20,6 +20,7 @@ import com.opendoorlogistics.api.components.ComponentConfigurationEditorAPI;
 import com.opendoorlogistics.api.components.ComponentExecutionApi;
 import com.opendoorlogistics.api.components.ODLComponent;
 import com.opendoorlogistics.api.distances.DistancesOutputConfiguration.OutputType;
+import com.opendoorlogistics.api.distances.ODLCostMatrix;
 import com.opendoorlogistics.api.scripts.ScriptTemplatesBuilder;
 import com.opendoorlogistics.api.tables.ODLDatastore;
 import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
@@ -27,10 +28,8 @@ import com.opendoorlogistics.api.tables.ODLTable;
 import com.opendoorlogistics.api.tables.ODLTableAlterable;
 import com.opendoorlogistics.api.tables.ODLTableDefinition;
 import com.opendoorlogistics.api.tables.ODLTableDefinitionAlterable;
-import com.opendoorlogistics.api.tables.ODLTableReadOnly;
 import com.opendoorlogistics.components.cluster.capacitated.data.Cluster;
 import com.opendoorlogistics.components.cluster.capacitated.data.Location;
-import com.opendoorlogistics.components.cluster.capacitated.data.Travel;
 import com.opendoorlogistics.components.cluster.capacitated.solver.ContinueCallback;
 import com.opendoorlogistics.components.cluster.capacitated.solver.EvaluatedSolution;
 import com.opendoorlogistics.components.cluster.capacitated.solver.FilterCallbackEvents;
@@ -38,13 +37,9 @@ import com.opendoorlogistics.components.cluster.capacitated.solver.Problem;
 import com.opendoorlogistics.components.cluster.capacitated.solver.Solver;
 import com.opendoorlogistics.components.cluster.capacitated.solver.Solver.HeuristicType;
 import com.opendoorlogistics.core.components.ODLWizardTemplateConfig;
-import com.opendoorlogistics.core.tables.ODLRowReadOnly;
 import com.opendoorlogistics.core.tables.beans.BeanMapping;
 import com.opendoorlogistics.core.tables.beans.BeanMapping.BeanDatastoreMapping;
-import com.opendoorlogistics.core.tables.utils.TableUtils;
-import com.opendoorlogistics.core.utils.ObjectConverter;
 import com.opendoorlogistics.core.utils.Time;
-import com.opendoorlogistics.core.utils.iterators.IterableAdapter;
 import com.opendoorlogistics.core.utils.strings.Strings;
 import com.opendoorlogistics.utils.ui.Icons;
 
@@ -128,29 +123,16 @@ final public class CapClusterComponent implements ODLComponent {
 			clusters = Problem.createClusters(config.getNumberClusters(), config.getClusterCapacity()).toArray(new Cluster[config.getNumberClusters()]);
 		}
 
-		// get travel table *using appended table*
+		// get travel costs *using appended table*
 		reporter.postStatusMessage("Generating distances");		
-		ODLTableReadOnly travelTable=reporter.calculateDistances(config.getDistancesConfig(), BeanMapping.convertToTable(locations, Location.class));
+		ODLCostMatrix costs=reporter.calculateDistances(config.getDistancesConfig(), BeanMapping.convertToTable(locations, Location.class));
 		if(reporter.isCancelled()){
 			return;
 		}
 		
-		// wrap travel table with an iterator which converts to travel object
-		Iterable<Travel> travel = new IterableAdapter<ODLRowReadOnly, Travel>( TableUtils.readOnlyIterable(travelTable),new ObjectConverter<ODLRowReadOnly, Travel>() {
-
-			@Override
-			public Travel convert(ODLRowReadOnly o) {
-				Travel travel = new Travel();
-				travel.setFromLocation(o.get(0).toString());
-				travel.setToLocation(o.get(1).toString());
-				travel.setCost((Double)o.get(2));
-				return travel;
-			}
-		}); 
-		
-		// create problem object
+		// create problem object, reading the requested cost (the first in the matrix) directly
 		reporter.postStatusMessage("Initialising clusterer");
-		Problem problem = new Problem(locations, Arrays.asList(clusters), travel);
+		Problem problem = new Problem(locations, Arrays.asList(clusters), costs, 0);
 		if(reporter.isCancelled()){
 			return;
 		}
@@ -195,6 +177,7 @@ final public class CapClusterComponent implements ODLComponent {
 			}
 		});
 		solver.setUseSwapMoves(config.isUseSwapMoves());
+		solver.setNbThreads(config.getNbThreads());
 		EvaluatedSolution sol = solver.run();
 
 		// update cluster objects with solution information
@@ -273,8 +256,8 @@ final public class CapClusterComponent implements ODLComponent {
 
 	@Override
 	public long getFlags(ODLApi api,int mode) {
-		// TODO Auto-generated method stub
-		return 0;
+		// cluster assignments are written back to the input tables
+		return ODLComponent.FLAG_CAN_RUN_IN_PARALLEL | ODLComponent.FLAG_WRITES_TO_INPUT;
 	}
 
 //	@Override
@@ -119,7 +119,7 @@ final public class CapClusterPanel extends VerticalLayoutPanel {
 		
 
 		JPanel optPanel = new JPanel();
-		optPanel.setLayout(new GridLayout(2, 3, 10, 2));
+		optPanel.setLayout(new GridLayout(3, 3, 10, 2));
 		optPanel.setBorder(BorderFactory.createTitledBorder("Clusterer options"));
 		
 		if(!isFixedIO){
@@ -189,9 +189,21 @@ final public class CapClusterPanel extends VerticalLayoutPanel {
 				conf.setUseSwapMoves(useSwapsCheck.isSelected());
 			}
 		});
+		IntegerEntryPanel nbThreads = new IntegerEntryPanel("Threads", conf.getNbThreads(),
+				"Number of searches to run in parallel. Using more threads than the computer's number of processors will slow the clusterer down.",
+				new IntChangedListener() {
+
+					@Override
+					public void intChange(int newInt) {
+						conf.setNbThreads(newInt);
+					}
+
+				});
+
 		optPanel.add(maxSecs);
 		optPanel.add(maxSteps);
 		optPanel.add(useSwapsCheck);
+		optPanel.add(nbThreads);
 		//maxSteps, useSwapsCheck);
 		addLine(optPanel);
 		
@@ -207,5 +207,41 @@ final public class ExampleClustererData {
 		solver.setUseSwapMoves(true);
 		EvaluatedSolution sol = solver.run();
 		System.out.println(sol);
+
+		// compare how the solution improves over time using one thread and all processors
+		problem = new ExampleClustererData(false).createProblem(1000, 20, 90);
+		int nbProcessors = Runtime.getRuntime().availableProcessors();
+		printQualityOverTime(problem, 1, 20);
+		if (nbProcessors > 1) {
+			printQualityOverTime(problem, nbProcessors, 20);
+		}
+	}
+
+	/**
+	 * Run the solver for a fixed time, printing the time and cost whenever the best solution improves
+	 * 
+	 * @param problem
+	 * @param nbThreads
+	 * @param seconds
+	 */
+	public static void printQualityOverTime(Problem problem, int nbThreads, final int seconds) {
+		System.out.println("Threads=" + nbThreads);
+		final long start = System.currentTimeMillis();
+		Solver solver = new Solver(problem, new ContinueCallback() {
+			private EvaluatedSolution last;
+
+			@Override
+			public ContinueOption continueOptimisation(int nbSteps, HeuristicType type, EvaluatedSolution best) {
+				long ms = System.currentTimeMillis() - start;
+				if (best != null && best != last) {
+					last = best;
+					System.out.println(ms + "\t" + nbSteps + "\t" + best.getCost().getCapacityViolation() + "\t" + best.getCost().getTravel());
+				}
+				return ms > seconds * 1000 ? ContinueOption.FINISH_NOW : ContinueOption.KEEP_GOING;
+			}
+		});
+		solver.setNbThreads(nbThreads);
+		EvaluatedSolution sol = solver.run();
+		System.out.println("Final after " + (System.currentTimeMillis() - start) + " ms: " + sol.getCost());
 	}
 }
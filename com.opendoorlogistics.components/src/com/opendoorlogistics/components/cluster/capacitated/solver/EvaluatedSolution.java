@@ -12,6 +12,8 @@ import java.util.ArrayList;
 
 /**
  * An evaluated solution which can be incrementally updated.
+ * Moves and swaps are evaluated from each cluster's cached quantity and travel sums without changing the solution,
+ * in constant time for clusters with immutable centres and in time linear in the cluster size otherwise.
  * @author Phil
  *
  */
@@ -174,6 +176,72 @@ final public class EvaluatedSolution extends HasCost implements Solution{
 			return problem.getCostPerUnitTravelled(beingServed.id)* problem.getTravel(cluster.id, beingServed.id);
 		}
 		
+		/**
+		 * Add the change in the cluster's cost from removing and / or adding a customer to the output,
+		 * without changing the cluster. The centre is chosen as {@link #updateCentreAndCost()} would.
+		 * @param removed Customer to remove or null
+		 * @param added Customer to add or null
+		 * @param out
+		 */
+		private void evaluateChange(CustomerRecord removed, CustomerRecord added, Cost out){
+			if(removed!=null && removed.cluster!=this){
+				throw new RuntimeException();
+			}
+			
+			double newQuantity = quantity;
+			if(removed!=null){
+				newQuantity -= removed.getQuantity();
+			}
+			if(added!=null){
+				newQuantity += added.getQuantity();
+			}
+			
+			double travel=0;
+			if(isImmutableCentre(id)){
+				// only the travel to the centre changes
+				if(centre==null || centre == removed){
+					throw new RuntimeException();
+				}
+				travel = centre.travelSumToSameClusterCustomers;
+				if(removed!=null){
+					travel -= getTravelCost(centre, removed);
+				}
+				if(added!=null){
+					travel += getTravelCost(centre, added);
+				}
+			}else{
+				// the best centre after the change, including the added customer as a candidate
+				boolean found=false;
+				double addedSum=0;
+				int n = assignedCustomers.size();
+				for(int i = 0 ; i < n ; i++){
+					CustomerRecord rec = assignedCustomers.get(i);
+					if(rec == removed){
+						continue;
+					}
+					double sum = rec.travelSumToSameClusterCustomers;
+					if(removed!=null){
+						sum -= getTravelCost(rec, removed);
+					}
+					if(added!=null){
+						sum += getTravelCost(rec, added);
+						addedSum += getTravelCost(added, rec);
+					}
+					if(!found || sum < travel){
+						travel = sum;
+						found = true;
+					}
+				}
+				if(added!=null && (!found || addedSum < travel)){
+					travel = addedSum;
+				}
+			}
+
+			double capacity = problem.getClusterCapacity(id);
+			out.setTravel(out.getTravel() + travel - cost.getTravel());
+			out.setCapacityViolation(out.getCapacityViolation() + (newQuantity > capacity ? newQuantity - capacity : 0) - cost.getCapacityViolation());
+		}
+		
 		private void remove(CustomerRecord customer){
 			if(!isValidState()){
 				throw new RuntimeException();
@@ -225,27 +293,29 @@ final public class EvaluatedSolution extends HasCost implements Solution{
 	public EvaluatedSolution( EvaluatedSolution solution){
 		this(solution.problem);
 
-		// set customers to clusters
+		// copy the cached sums and costs rather than recalculating them
 		int nc= getNbCustomers();
 		for(int i =0 ; i< nc ; i++){
-			int clusterIndx = solution.getClusterIndex(i);
-			if(clusterIndx!=-1){	
-				CustomerRecord customer = customers[i];
-				customer.cluster = clusters[clusterIndx];
-				customer.cluster.assignedCustomers.add(customer);
-			}
+			customers[i].travelSumToSameClusterCustomers = solution.customers[i].travelSumToSameClusterCustomers;
 		}
 		
-		// set cluster centres
 		for(int i =0 ; i<clusters.length;i++){
-			int customerIndx = solution.getClusterCentre(i);
-			if(customerIndx!=-1){
-				clusters[i].centre = customers[customerIndx];
+			ClusterRecord from = solution.clusters[i];
+			ClusterRecord to = clusters[i];
+			int n = from.assignedCustomers.size();
+			to.assignedCustomers.ensureCapacity(n);
+			for(int j = 0 ; j < n ; j++){
+				CustomerRecord customer = customers[from.assignedCustomers.get(j).id];
+				customer.cluster = to;
+				to.assignedCustomers.add(customer);
 			}
+			to.centre = from.centre!=null ? customers[from.centre.id] : null;
+			to.quantity = from.quantity;
+			to.cost.set(from.cost);
 		}
-
-		// update all counts etc
-		update();
+		
+		allCentresImmutable = solution.allCentresImmutable;
+		cost.set(solution.cost);
 	}
 	
 	/**
@@ -307,28 +377,29 @@ final public class EvaluatedSolution extends HasCost implements Solution{
 	 * @param out
 	 */
 	public void evaluateSet(int customerIndx , int newClusterIndx, Cost out){
-		assert saveCostChecker();
+		out.setZero();
 		
-		// set cost to minus the current cost
-		out.set(cost);
-		out.negate();
-		
-		// get the customer record
+		// get the customer record and original and destination records
 		CustomerRecord customer = customers[customerIndx];
+		ClusterRecord original = customer.cluster;
+		ClusterRecord destination = newClusterIndx==-1 ? null : clusters[newClusterIndx];
+		if(original==destination){
+			return;
+		}
 		
-		// save original cluster
-		int originalClusterIndx = customer.getInternalClusterIndx();
-
-		// set new position
-		setCustomerToCluster(customerIndx, newClusterIndx);
-		
-		// add new cost to the return object
-		out.add(cost);
+		// check we're not moving a fixed centre to a different cluster
+		int fixedClusterIndx = problem.getFixedClusterIndexByLocationIndex(customerIndx);
+		if(fixedClusterIndx!=-1 && fixedClusterIndx!=newClusterIndx){
+			throw new RuntimeException();
+		}
 		
-		// revert
-		setCustomerToCluster(customerIndx, originalClusterIndx);
-
-		assert isCostEqualToChecker();
+		// only the two involved clusters change cost
+		if(original!=null){
+			original.evaluateChange(customer, null, out);
+		}
+		if(destination!=null){
+			destination.evaluateChange(null, customer, out);
+		}
 	}
 
 	/**
@@ -338,17 +409,14 @@ final public class EvaluatedSolution extends HasCost implements Solution{
 	 * @param out
 	 */
 	public void evaluateSwap(int customerIndx1, int customerIndx2, Cost out){
-		assert saveCostChecker();
-		
-		// set cost to minus the current cost
-		out.set(cost);
-		out.negate();
+		out.setZero();
 
 		// get current clusters
-		int original1 = customers[customerIndx1].getInternalClusterIndx();	
-		int original2 = customers[customerIndx2].getInternalClusterIndx();	
+		CustomerRecord customer1 = customers[customerIndx1];
+		CustomerRecord customer2 = customers[customerIndx2];
+		int original1 = customer1.getInternalClusterIndx();	
+		int original2 = customer2.getInternalClusterIndx();	
 		if(original1==original2){
-			out.setZero();
 			return;
 		}
 		
@@ -356,18 +424,14 @@ final public class EvaluatedSolution extends HasCost implements Solution{
 			throw new RuntimeException();
 		}
 		
-		// swap
-		setCustomerToCluster(customerIndx1, original2);
-		setCustomerToCluster(customerIndx2, original1);
-		
-		// add new cost to the return object
-		out.add(cost);
+		// check we're not moving fixed centres
+		if(problem.getFixedClusterIndexByLocationIndex(customerIndx1)!=-1 || problem.getFixedClusterIndexByLocationIndex(customerIndx2)!=-1){
+			throw new RuntimeException();
+		}
 		
-		// finally revert
-		setCustomerToCluster(customerIndx1, original1);
-		setCustomerToCluster(customerIndx2, original2);
-						
-		assert isCostEqualToChecker();
+		// each cluster loses one customer and gains the other
+		clusters[original1].evaluateChange(customer1, customer2, out);
+		clusters[original2].evaluateChange(customer2, customer1, out);
 	}
 
 
@@ -12,6 +12,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import com.opendoorlogistics.api.distances.ODLCostMatrix;
 import com.opendoorlogistics.components.cluster.capacitated.data.Cluster;
 import com.opendoorlogistics.components.cluster.capacitated.data.Location;
 import com.opendoorlogistics.components.cluster.capacitated.data.Travel;
@@ -27,6 +28,7 @@ final public class Problem {
 	//private final int [] matrixIdByCustomerIndex;
 	private final int [] fixedClusterLocations;
 	private final int [] fixedClusterIndexByLocationIndex;
+	private final TObjectIntHashMap<String> externalToInternal = new TObjectIntHashMap<>();
 	
 	public static List<Cluster> createClusters(int nbClusters, double capacity){
 		List<Cluster>  clusters = new ArrayList<>(nbClusters);
@@ -57,13 +59,110 @@ final public class Problem {
 	 * @param travel
 	 */
 	public Problem(Iterable<Location> customers,Iterable<Cluster> clusters,Iterable<Travel> travel){
+		this(customers, clusters);
+		
+		// get maximum non-infinite travel cost
+		double maxTravelCost = 0;
+		for(Travel t : travel){
+			double c= t.getCost();
+			if(!isInfiniteCost(c)){
+				maxTravelCost = Math.max(maxTravelCost, c);
+			}
+		}
+		maxTravelCost *= MAX_TRAVEL_COST_MULTIPLIER;
+		
+		// copy matrix across, saving the standardised form of all strings to speed things up
+		StandardisedCache stdCache = new StandardisedCache();
+		for(Travel t : travel){
+			// get from and to locations
+			String from = t.getFromLocation();
+			String to = t.getToLocation();
+			if(from == null || to==null){
+				continue;
+			}
+			from = stdCache.std(from);
+			to = stdCache.std(to);
+			
+			// ensure both from and to are known
+			if(externalToInternal.contains(from)==false || externalToInternal.contains(to)==false){
+				continue;
+			}
+			int internalFrom = externalToInternal.get(from);
+			int internalTo = externalToInternal.get(to);
+			
+			// road network graphs can be unconnected, giving an infinite travel cost; convert
+			// to our maximum cost so the algorithm can still cope with it...
+			double c = t.getCost();
+			if(isInfiniteCost(c)){
+				c = maxTravelCost;
+			}
+			matrix[internalFrom][internalTo] = c;
+		}
+	}
+	
+	/**
+	 * Create problem reading the travel costs straight from a cost matrix (e.g. as calculated by the distances api).
+	 * Each location is matched to its index in the matrix once, so no travel objects or id lookups are
+	 * needed for each pair of locations. Pairs not in the matrix have zero cost, as they do for a travel table.
+	 * @param customers
+	 * @param clusters
+	 * @param costs
+	 * @param costIndex The index of the cost in the matrix to cluster by
+	 */
+	public Problem(Iterable<Location> customers,Iterable<Cluster> clusters,ODLCostMatrix costs, int costIndex){
+		this(customers, clusters);
+		
+		int n = locations.size();
+		int [] matrixIndices = new int[n];
+		for(int i =0 ; i < n ; i++){
+			matrixIndices[i] = costs.getIndex(locations.get(i).getId());
+		}
+		
+		// get maximum non-infinite travel cost
+		double maxTravelCost = 0;
+		for(int i =0 ; i < n ; i++){
+			if(matrixIndices[i]!=-1){
+				for(int j =0 ; j < n ; j++){
+					if(matrixIndices[j]!=-1){
+						double c = costs.get(matrixIndices[i], matrixIndices[j], costIndex);
+						if(!isInfiniteCost(c)){
+							maxTravelCost = Math.max(maxTravelCost, c);
+						}
+					}
+				}
+			}
+		}
+		maxTravelCost *= MAX_TRAVEL_COST_MULTIPLIER;
+
+		// copy matrix across, converting infinite costs as for the travel table
+		for(int i =0 ; i < n ; i++){
+			if(matrixIndices[i]!=-1){
+				double [] row = matrix[i];
+				for(int j =0 ; j < n ; j++){
+					if(matrixIndices[j]!=-1){
+						double c = costs.get(matrixIndices[i], matrixIndices[j], costIndex);
+						if(isInfiniteCost(c)){
+							c = maxTravelCost;
+						}
+						row[j] = c;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Create the problem with zero travel costs
+	 * @param customers
+	 * @param clusters
+	 */
+	private Problem(Iterable<Location> customers,Iterable<Cluster> clusters){
 		this.locations= IteratorUtils.toList(customers);
 		this.clusters = IteratorUtils.toList(clusters);
 		this.fixedClusterIndexByLocationIndex  = new int[locations.size()];
 		Arrays.fill(fixedClusterIndexByLocationIndex, -1);
 		
 		// turn external location ids into internal
-		TObjectIntHashMap<String> externalToInternal = 	new TObjectIntHashMap<>();
 		int n =locations.size();
 		for(int i =0 ; i < n ; i++){
 			Location customer =locations.get(i);
@@ -111,44 +210,6 @@ final public class Problem {
 		for(int i = 0 ; i < n ; i++){
 			matrix[i] = new double[n];
 		}
-		
-		// get maximum non-infinite travel cost
-		double maxTravelCost = 0;
-		for(Travel t : travel){
-			double c= t.getCost();
-			if(!isInfiniteCost(c)){
-				maxTravelCost = Math.max(maxTravelCost, c);
-			}
-		}
-		maxTravelCost *= MAX_TRAVEL_COST_MULTIPLIER;
-		
-		// copy matrix across, saving the standardised form of all strings to speed things up
-		StandardisedCache stdCache = new StandardisedCache();
-		for(Travel t : travel){
-			// get from and to locations
-			String from = t.getFromLocation();
-			String to = t.getToLocation();
-			if(from == null || to==null){
-				continue;
-			}
-			from = stdCache.std(from);
-			to = stdCache.std(to);
-			
-			// ensure both from and to are known
-			if(externalToInternal.contains(from)==false || externalToInternal.contains(to)==false){
-				continue;
-			}
-			int internalFrom = externalToInternal.get(from);
-			int internalTo = externalToInternal.get(to);
-			
-			// road network graphs can be unconnected, giving an infinite travel cost; convert
-			// to our maximum cost so the algorithm can still cope with it...
-			double c = t.getCost();
-			if(isInfiniteCost(c)){
-				c = maxTravelCost;
-			}
-			matrix[internalFrom][internalTo] = c;
-		}
 	}
 
 
@@ -189,6 +250,41 @@ final public class Problem {
 		return matrix[ customerId1] [ customerId2];
 	}
 	
+	/**
+	 * Get the k nearest other locations to each location by travel from it, nearest first.
+	 * Equal travel is ordered by location index so the lists are reproducible.
+	 * @param k
+	 * @return
+	 */
+	public int[][] getNearestLocations(int k){
+		int n = getNbLocations();
+		k = Math.max(0, Math.min(k, n - 1));
+		int[][] ret = new int[n][];
+		double[] travel = new double[k];
+		for(int i = 0 ; i < n ; i++){
+			int[] nearest = new int[k];
+			int size = 0;
+			for(int j = 0 ; j < n && k > 0 ; j++){
+				double d = matrix[i][j];
+				if(j == i || (size == k && d >= travel[k - 1])){
+					continue;
+				}
+
+				// insert into the sorted list, dropping the furthest if full
+				int pos = size < k ? size++ : k - 1;
+				while(pos > 0 && travel[pos - 1] > d){
+					travel[pos] = travel[pos - 1];
+					nearest[pos] = nearest[pos - 1];
+					pos--;
+				}
+				travel[pos] = d;
+				nearest[pos] = j;
+			}
+			ret[i] = nearest;
+		}
+		return ret;
+	}
+	
 	public double getCostPerUnitTravelled(int customerId){
 		return locations.get(customerId).getCostPerUnitTravel();
 	}
@@ -15,6 +15,14 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.opendoorlogistics.components.cluster.capacitated.solver.ContinueCallback.ContinueOption;
 import com.opendoorlogistics.core.utils.IntUtils;
@@ -40,18 +48,39 @@ import com.opendoorlogistics.core.utils.IntUtils;
  * The interpretation of MB1 is actually based on its description in 'A bionomic approach to the capacitated p-median problem' Maniezzo, Mingozzi and
  * Baldacci (didn't have access to the original Mulvey and Beck paper).
  * 
+ * With more than one thread, several independent searches run at once, each with its own random seed and solutions. The best solution
+ * over all searches is shared without locking, so the callback always sees it. The searches wait for each other at the end of every step
+ * and occasionally restart from the best solution at that point instead of their own. As the searches only exchange solutions at these
+ * points, a run limited by the number of steps gives the same result for the same seed and number of threads.
+ * 
+ * The local search only considers moves between neighbours, so its cost grows with the number of customers rather than its square. Each
+ * customer's nearest other customers are found once per run. Clusters are neighbours if any of their customers are, a customer is only
+ * moved to a cluster containing one of its nearest customers and only swapped with its nearest customers. A pair of clusters which gave no
+ * improving move isn't tried again until a move changes one of them.
+ * 
  * @author Phil
  * 
  */
 public class Solver {
 	private final Problem problem;
 	private final int interchangeNNearest = 5;
+	private int nbNearestLocations = 25;
+	private int[][] nearestLocations;
 	// private boolean logToConsole = false;
 	private final ContinueCallback cont;
-	private EvaluatedSolution best = null;
+	private final AtomicReference<EvaluatedSolution> best = new AtomicReference<>();
 	private boolean useSwapMoves = false;
 	private boolean useInsertionMoves = true;
-	private int step = 0;
+	private volatile int step = 0;
+	private final AtomicLong nbEvaluatedMoves = new AtomicLong();
+	private volatile ContinueOption stopOption;
+	private int nbThreads = 1;
+	private long randomSeed = 123;
+
+	/**
+	 * In parallel searches, one in this many steps restarts from the best solution over all searches
+	 */
+	private static final int RESTART_FROM_SHARED_BEST = 4;
 
 	public void setUseInsertionMoves(boolean useInsertionMoves) {
 		this.useInsertionMoves = useInsertionMoves;
@@ -61,6 +90,119 @@ public class Solver {
 		LOCAL_SEARCH, REGRET_REASSIGN, INITIAL_ASSIGN
 	}
 
+	/**
+	 * A single search, with its own random number generator and the best solution it has found
+	 */
+	private class Search {
+		private final Random random;
+		private EvaluatedSolution best;
+
+		private Search(long seed) {
+			this.random = new Random(seed);
+		}
+
+		/**
+		 * Run a single step of the search from new centres, either randomly chosen or mutated from a previous best solution
+		 * 
+		 * @param restartFrom
+		 *            Solution to mutate instead of the search's own best, or null
+		 * @return False if the search should stop
+		 */
+		private boolean runStep(EvaluatedSolution restartFrom) {
+			// get new centres from either mutation or random restart
+			int[] centres;
+			if (random.nextInt(3) == 0 || best == null) {
+				centres = generateRandomPMedians(random);
+			} else {
+				centres = mutatePMedians(random, Utils.getCentres(restartFrom != null ? restartFrom : best));
+			}
+
+			// create an initial assigned solution using regret
+			EvaluatedSolution assigned = regretBasedAssignment(centres, HeuristicType.INITIAL_ASSIGN);
+			if(assigned!=null){				
+				updateBest(assigned);
+			}
+			if (getContinue(HeuristicType.INITIAL_ASSIGN) != ContinueOption.KEEP_GOING) {
+				return false;
+			}
+
+			// then loop through cycles of choose centre, do regret based assignment
+			EvaluatedSolution localBest = regretReassignLoop(this, assigned);
+			if (getContinue(HeuristicType.REGRET_REASSIGN) != ContinueOption.KEEP_GOING) {
+				return false;
+			}
+
+			// now optimise using swaps and moves until the local search stagnates
+			if (useInsertionMoves || useSwapMoves) {
+				ClusterPairCache tried = new ClusterPairCache(problem.getNbClusters());
+				while (localSearchSingleStep(this, localBest, tried)) {
+					updateBest(localBest);
+					if (getContinue(HeuristicType.LOCAL_SEARCH) != ContinueOption.KEEP_GOING) {
+						break;
+					}
+				}
+			}
+
+			// check if we've beaten the best
+			updateBest(localBest);
+			return true;
+		}
+
+		private boolean updateBest(EvaluatedSolution sol) {
+			if (isImprovement(sol, best)) {
+
+				// deep copy
+				best = new EvaluatedSolution(sol);
+				if(Cost.isApproxEqual(best.getCost(), sol.getCost())==false){
+					throw new RuntimeException();
+				}
+
+				// share with the other searches; the copy is never modified
+				while (true) {
+					EvaluatedSolution shared = Solver.this.best.get();
+					if (!isImprovement(best, shared) || Solver.this.best.compareAndSet(shared, best)) {
+						break;
+					}
+				}
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Records the pairs of clusters the local search has tried without finding an improving move, so they are skipped until a move
+	 * changes either cluster. A cache is only valid for the solution it was used with.
+	 */
+	private static class ClusterPairCache {
+		private final int[] versions;
+		private final long[][] tried;
+
+		private ClusterPairCache(int p) {
+			versions = new int[p];
+			tried = new long[p][p];
+			for (int i = 0; i < p; i++) {
+				Arrays.fill(tried[i], -1);
+			}
+		}
+
+		private long getStamp(int clusteri, int clusterj) {
+			return ((long) versions[clusteri] << 32) | (versions[clusterj] & 0xFFFFFFFFL);
+		}
+
+		private boolean isTried(int clusteri, int clusterj) {
+			return tried[clusteri][clusterj] == getStamp(clusteri, clusterj);
+		}
+
+		private void setTried(int clusteri, int clusterj) {
+			tried[clusteri][clusterj] = getStamp(clusteri, clusterj);
+		}
+
+		private void changed(int cluster) {
+			versions[cluster]++;
+		}
+	}
+
 	public Solver(Problem problem, ContinueCallback cont) {
 		this.problem = problem;
 		this.cont = cont;
@@ -297,10 +439,11 @@ public class Solver {
 		return evaluated;
 	}
 
-	private boolean localSearchSingleStep(Random random, EvaluatedSolution solution) {
+	private boolean localSearchSingleStep(Search search, EvaluatedSolution solution, ClusterPairCache tried) {
+		Random random = search.random;
 
 		// calculate a cluster to cluster distance matrix using the minimum distance to
-		// a point in another cluster
+		// a neighbouring point in another cluster; clusters without neighbouring points stay at max
 		int p = problem.getNbClusters();
 		final double[][] matrix = new double[p][p];
 		for (int i = 0; i < p; i++) {
@@ -312,7 +455,7 @@ public class Solver {
 		for (int i = 0; i < nc; i++) {
 			int ci = solution.getClusterIndex(i);
 			if (ci != -1) {
-				for (int j = 0; j < nc; j++) {
+				for (int j : nearestLocations[i]) {
 					int cj = solution.getClusterIndex(j);
 					if (cj != -1) {
 						double distance = problem.getTravel(i, j);
@@ -375,31 +518,41 @@ public class Solver {
 					throw new RuntimeException();
 				}
 
+				if (tried.isTried(cli, clj)) {
+					continue;
+				}
+
+				boolean changed = false;
 				if (random.nextBoolean()) {
 					if (useInsertionMoves) {
-						interclusterMoves(cli, clj, solution);
+						changed |= interclusterMoves(cli, clj, solution, tried);
 					}
 
 					if (useSwapMoves) {
-						interclusterSwaps(cli, clj, solution);
+						changed |= interclusterSwaps(cli, clj, solution, tried);
 					}
 
 				} else {
 					if (useSwapMoves) {
-						interclusterSwaps(cli, clj, solution);
+						changed |= interclusterSwaps(cli, clj, solution, tried);
 					}
 
 					if (useInsertionMoves) {
-						interclusterMoves(cli, clj, solution);
+						changed |= interclusterMoves(cli, clj, solution, tried);
 					}
 				}
+
+				// a pair which changed may have further improving moves next time
+				if (!changed) {
+					tried.setTried(cli, clj);
+				}
 			}
 
 			// refresh solution after processing each cluster to help prevent round-off
 			solution.update();
 
 			// check for quitting
-			updateGlobalBest(solution);
+			search.updateBest(solution);
 			if (getContinue(HeuristicType.LOCAL_SEARCH) != ContinueOption.KEEP_GOING) {
 				break;
 			}
@@ -415,14 +568,19 @@ public class Solver {
 	}
 
 	/**
-	 * Try moving each location in cluster i to cluster j; take any improving moves
+	 * Try moving each location in cluster i to cluster j; take any improving moves.
+	 * Only locations with a neighbour in cluster j (or any location if j is empty) are tried.
 	 * 
 	 * @param clusteri
 	 * @param clusterj
 	 * @param solution
+	 * @param tried
+	 * @return True if any location was moved
 	 */
-	private void interclusterMoves(int clusteri, int clusterj, EvaluatedSolution solution) {
+	private boolean interclusterMoves(int clusteri, int clusterj, EvaluatedSolution solution, ClusterPairCache tried) {
 
+		boolean changed = false;
+		boolean emptyj = solution.getClusterSize(clusterj) == 0;
 		Cost cost = new Cost();
 		TIntArrayList customersi = new TIntArrayList();
 		solution.getCustomers(clusteri, customersi);
@@ -430,26 +588,49 @@ public class Solver {
 		int fixedCentre = problem.getFixedLocation(clusteri);
 
 		// loop over each customer in cluster i
+		int nbEvaluated = 0;
 		for (int i = 0; i < n; i++) {
 			// check we're not moving the fixed centre
 			int customeri = customersi.get(i);
-			if (customeri != fixedCentre) {
+			if (customeri != fixedCentre && (emptyj || hasNeighbourInCluster(customeri, clusterj, solution))) {
 				solution.evaluateSet(customeri, clusterj, cost);
+				nbEvaluated++;
 				if (cost.getCapacityViolation() <= 0 && cost.getTravel() <= 0) {
 					solution.setCustomerToCluster(customeri, clusterj);
+					tried.changed(clusteri);
+					tried.changed(clusterj);
+					changed = true;
 				}
 			}
 		}
+		nbEvaluatedMoves.addAndGet(nbEvaluated);
+		return changed;
 	}
 
-	private void interclusterSwaps(int clusteri, int clusterj, EvaluatedSolution solution) {
+	private boolean hasNeighbourInCluster(int customer, int cluster, EvaluatedSolution solution) {
+		for (int neighbour : nearestLocations[customer]) {
+			if (solution.getClusterIndex(neighbour) == cluster) {
+				return true;
+			}
+		}
+		return false;
+	}
 
+	/**
+	 * Try swapping each location in cluster i with its neighbours in cluster j; take the best swap for each location if it improves
+	 * 
+	 * @param clusteri
+	 * @param clusterj
+	 * @param solution
+	 * @param tried
+	 * @return True if any locations were swapped
+	 */
+	private boolean interclusterSwaps(int clusteri, int clusterj, EvaluatedSolution solution, ClusterPairCache tried) {
+
+		boolean changed = false;
 		TIntArrayList customersi = new TIntArrayList();
 		solution.getCustomers(clusteri, customersi);
 
-		TIntArrayList customersj = new TIntArrayList();
-		solution.getCustomers(clusterj, customersj);
-
 		Cost cost = new Cost();
 		Cost bestSwap = new Cost();
 
@@ -457,20 +638,20 @@ public class Solver {
 		int fixedCentrej = problem.getFixedLocation(clusterj);
 
 		int ni = customersi.size();
-		int nj = customersj.size();
+		int nbEvaluated = 0;
 		for (int i = 0; i < ni; i++) {
 
 			int customeri = customersi.get(i);
 			if (customeri != fixedCentrei) {
 				bestSwap.setMax();
 				int bestSwapCustomerIndx = -1;
-				for (int j = 0; j < nj; j++) {
-					// check still assigned to j before evaluating swap
-					int customerj = customersj.get(j);
+				for (int customerj : nearestLocations[customeri]) {
+					// check assigned to j before evaluating swap
 					if (customerj != fixedCentrej) {
 						if (solution.getClusterIndex(customerj) == clusterj) {
 
 							solution.evaluateSwap(customeri, customerj, cost);
+							nbEvaluated++;
 							if (cost.compareTo(bestSwap) < 0) {
 								bestSwap.set(cost);
 								bestSwapCustomerIndx = customerj;
@@ -480,91 +661,157 @@ public class Solver {
 				}
 
 				// do swap if profitable
-				if (bestSwap.getCapacityViolation() <= 0 && bestSwap.getTravel() <= 0) {
+				if (bestSwapCustomerIndx != -1 && bestSwap.getCapacityViolation() <= 0 && bestSwap.getTravel() <= 0) {
 					solution.setCustomerToCluster(customeri, clusterj);
 					solution.setCustomerToCluster(bestSwapCustomerIndx, clusteri);
+					tried.changed(clusteri);
+					tried.changed(clusterj);
+					changed = true;
 				}
 			}
 
 		}
+		nbEvaluatedMoves.addAndGet(nbEvaluated);
+		return changed;
 	}
 
 	private ContinueOption getContinue(HeuristicType currentHeuristic) {
 
-		// always call the callback even on step 0 as it also reports cost
-		ContinueOption ret = cont.continueOptimisation(step, currentHeuristic, best);
+		// once any search has been told to stop, all searches stop without asking again
+		ContinueOption ret = stopOption;
+		if (ret != null) {
+			return ret;
+		}
+
+		// always call the callback even on step 0 as it also reports cost;
+		// only one search calls it at a time so it needn't be thread safe
+		EvaluatedSolution currentBest = best.get();
+		synchronized (cont) {
+			ret = cont.continueOptimisation(step, currentHeuristic, currentBest);
+		}
 
 		// always ensure we have a solution if the user hasn't cancelled
-		if (best == null && ret == ContinueOption.FINISH_NOW) {
+		if (currentBest == null && ret == ContinueOption.FINISH_NOW) {
 			return ContinueOption.KEEP_GOING;
 		}
 
+		if (ret != ContinueOption.KEEP_GOING) {
+			stopOption = ret;
+		}
 		return ret;
 	}
 
 	public synchronized EvaluatedSolution run() {
-		Random random = new Random(123);
-
 		// reset
-		best = null;
+		best.set(null);
 		step = 0;
+		nbEvaluatedMoves.set(0);
+		stopOption = null;
+		nearestLocations = problem.getNearestLocations(nbNearestLocations);
 
-		while (true) {
-			// get new centres from either mutation or random restart
-			int[] centres;
-			if (random.nextInt(3) == 0 || best == null) {
-				centres = generateRandomPMedians(random);
-			} else {
-				centres = mutatePMedians(random, Utils.getCentres(best));
-			}
+		if (nbThreads > 1) {
+			return runParallel();
+		}
 
-			// create an initial assigned solution using regret
-			EvaluatedSolution assigned = regretBasedAssignment(centres, HeuristicType.INITIAL_ASSIGN);
-			if(assigned!=null){				
-				updateGlobalBest(assigned);
-			}
-			if (getContinue(HeuristicType.INITIAL_ASSIGN) != ContinueOption.KEEP_GOING) {
-				break;
-			}
+		Search search = new Search(randomSeed);
+		while (search.runStep(null)) {
+			step++;
+		}
 
-			// then loop through cycles of choose centre, do regret based assignment
-			EvaluatedSolution localBest = regretReassignLoop(assigned);
-			if (getContinue(HeuristicType.REGRET_REASSIGN) != ContinueOption.KEEP_GOING) {
-				break;
+		return search.best;
+	}
+
+	private EvaluatedSolution runParallel() {
+		final Search[] searches = new Search[nbThreads];
+		for (int i = 0; i < nbThreads; i++) {
+			searches[i] = new Search(randomSeed + i);
+		}
+
+		// at the end of each step, count the steps of all searches and take the best solution, choosing
+		// between searches in a fixed order so the solution searches restart from is reproducible.
+		// The decision to stop is also taken here, as a search released from the phaser may set the
+		// stop option before the others have checked it. A search always deregisters when it finishes,
+		// so a failed search can never leave the others waiting for it
+		final EvaluatedSolution[] sharedBest = new EvaluatedSolution[1];
+		final boolean[] stopped = new boolean[1];
+		final Phaser phaser = new Phaser(nbThreads) {
+
+			@Override
+			protected boolean onAdvance(int phase, int registeredParties) {
+				step += registeredParties;
+				sharedBest[0] = getBest(searches);
+				stopped[0] = stopOption != null;
+				return registeredParties == 0;
+			}
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+		try {
+			ArrayList<Future<Void>> futures = new ArrayList<>(nbThreads);
+			for (final Search search : searches) {
+				futures.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						try {
+							while (true) {
+								EvaluatedSolution restartFrom = null;
+								if (sharedBest[0] != null && search.random.nextInt(RESTART_FROM_SHARED_BEST) == 0) {
+									restartFrom = sharedBest[0];
+								}
+								search.runStep(restartFrom);
+
+								// a search which stops has set the stop option, so all searches stop after the same step
+								phaser.arriveAndAwaitAdvance();
+								if (stopped[0]) {
+									return null;
+								}
+							}
+						} catch (RuntimeException | Error e) {
+							// stop the other searches after their current step
+							stopOption = ContinueOption.USER_CANCELLED;
+							throw e;
+						} finally {
+							phaser.arriveAndDeregister();
+						}
+					}
+				}));
 			}
 
-			// now optimise using swaps and moves until the local search stagnates
-			if (useInsertionMoves || useSwapMoves) {
-				while (localSearchSingleStep(random, localBest)) {
-					updateGlobalBest(localBest);
-					if (getContinue(HeuristicType.LOCAL_SEARCH) != ContinueOption.KEEP_GOING) {
-						break;
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				} catch (ExecutionException e) {
+					if (RuntimeException.class.isInstance(e.getCause())) {
+						throw (RuntimeException) e.getCause();
 					}
+					throw new RuntimeException(e.getCause());
 				}
 			}
-
-			// check if we've beaten the best
-			updateGlobalBest(localBest);
-			step++;
+		} finally {
+			executor.shutdownNow();
 		}
 
-		return best;
+		return getBest(searches);
 	}
 
-	private boolean updateGlobalBest(EvaluatedSolution sol) {
-		if (best == null || (Cost.isApproxEqual(sol.getCost(), best.getCost()) == false && sol.getCost().compareTo(best.getCost()) <= 0)) {
-
-			// deep copy
-			best = new EvaluatedSolution(sol);
-			if(Cost.isApproxEqual(best.getCost(), sol.getCost())==false){
-				throw new RuntimeException();
+	private static EvaluatedSolution getBest(Search[] searches) {
+		EvaluatedSolution ret = null;
+		for (Search search : searches) {
+			if (search.best != null && isImprovement(search.best, ret)) {
+				ret = search.best;
 			}
-			return true;
 		}
-		return false;
+		return ret;
+	}
+
+	private static boolean isImprovement(EvaluatedSolution sol, EvaluatedSolution best) {
+		return best == null || (Cost.isApproxEqual(sol.getCost(), best.getCost()) == false && sol.getCost().compareTo(best.getCost()) <= 0);
 	}
 
-	private EvaluatedSolution regretReassignLoop(EvaluatedSolution initial) {
+	private EvaluatedSolution regretReassignLoop(Search search, EvaluatedSolution initial) {
 
 		// continue looping until no improvement
 		EvaluatedSolution localBest = new EvaluatedSolution(initial);
@@ -588,7 +835,7 @@ public class Solver {
 			}
 
 			// update global best and check for quitting
-			updateGlobalBest(localBest);
+			search.updateBest(localBest);
 			if (getContinue(HeuristicType.REGRET_REASSIGN) != ContinueOption.KEEP_GOING) {
 				break;
 			}
@@ -602,4 +849,38 @@ public class Solver {
 		this.useSwapMoves = doSwaps;
 	}
 
+	/**
+	 * @return Number of local search moves and swaps evaluated by all searches in the last run
+	 */
+	public long getNbEvaluatedMoves() {
+		return nbEvaluatedMoves.get();
+	}
+
+	/**
+	 * Set the number of searches to run in parallel, each on its own thread
+	 * 
+	 * @param nbThreads
+	 */
+	public void setNbThreads(int nbThreads) {
+		this.nbThreads = Math.max(1, nbThreads);
+	}
+
+	/**
+	 * Set the random seed. With several threads, each search uses the seed plus its index.
+	 * 
+	 * @param randomSeed
+	 */
+	public void setRandomSeed(long randomSeed) {
+		this.randomSeed = randomSeed;
+	}
+
+	/**
+	 * Set how many nearest customers of each customer the local search considers moving it towards or swapping it with
+	 * 
+	 * @param nbNearestLocations
+	 */
+	void setNbNearestLocations(int nbNearestLocations) {
+		this.nbNearestLocations = nbNearestLocations;
+	}
+
 }
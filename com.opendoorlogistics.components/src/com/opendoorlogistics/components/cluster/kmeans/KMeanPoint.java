@@ -11,6 +11,12 @@ public abstract class KMeanPoint {
 	public int id;
 	public int clusterNumber;
 	
+	/**
+	 * Get the distance to the other point. This must satisfy the triangle inequality,
+	 * as k-means uses it to bound the distances it doesn't calculate.
+	 * @param km
+	 * @return
+	 */
 	public abstract double distance(KMeanPoint km);
 
 }
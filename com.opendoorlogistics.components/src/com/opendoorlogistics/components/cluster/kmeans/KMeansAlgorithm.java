@@ -7,84 +7,658 @@
 package com.opendoorlogistics.components.cluster.kmeans;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import com.opendoorlogistics.api.components.ComponentExecutionApi;
+import com.opendoorlogistics.api.components.ProcessingApi;
 
+/**
+ * K-means with k-means++ seeding. Each iteration uses Hamerly's bounds to skip the distance calculations
+ * which can't change a point's assignment: an upper bound on the distance to its own mean and a lower bound
+ * on the distance to any other mean, both kept up to date using how far the means move. This needs the
+ * distance to satisfy the triangle inequality.<br>
+ * Points can be given either as {@link KMeanPoint} objects or as primitive coordinates with a Euclidean
+ * distance. Primitive coordinates are assigned and averaged in parallel over large point sets.<br>
+ * For point sets too large to iterate over, mini-batch k-means (Sculley 2010) moves the means using small random
+ * samples of the points, each mean moving towards its sampled points at a rate decreasing with the number it has seen.
+ *
+ * @author Phil
+ *
+ */
 final public class KMeansAlgorithm {
+	private static final int MIN_POINTS_PER_CHUNK = 10000;
+
 	public interface CreateMean <T extends KMeanPoint>{
 		Mean<T> createMean(T copyThis);
 	}
-	
-	public <T extends KMeanPoint> List<Mean<T>> execute(int k, int randomseed,CreateMean<T>createMean, List<T> points,  ComponentExecutionApi reporter){
+
+	/**
+	 * Adjusts a mean after it is set to the average coordinates of its points, e.g. to project it back onto a surface
+	 */
+	public interface AdjustMean {
+		void adjust(double[] mean);
+	}
+
+	/**
+	 * Reads points' coordinates on demand, so mini-batches can be sampled without holding all the points
+	 */
+	public interface PointSource {
+		int size();
+
+		/**
+		 * @param index
+		 * @param out
+		 * @return False if the point has no coordinates
+		 */
+		boolean getCoordinates(int index, double[] out);
+	}
+
+	private interface ChunkTask {
+		long run(int chunk, int from, int to);
+	}
+
+	/**
+	 * Runs a task over ranges of point indices, in parallel if there are enough points
+	 */
+	private static class Chunks {
+		private final int[] starts;
+		private final ExecutorService executor;
+
+		private Chunks(int nbPoints, int nbThreads) {
+			int nbChunks = Math.max(1, Math.min(nbThreads, nbPoints / MIN_POINTS_PER_CHUNK));
+			starts = new int[nbChunks + 1];
+			for (int i = 0; i <= nbChunks; i++) {
+				starts[i] = (int) ((long) nbPoints * i / nbChunks);
+			}
+			executor = nbChunks > 1 ? Executors.newFixedThreadPool(nbChunks) : null;
+		}
+
+		private int size() {
+			return starts.length - 1;
+		}
+
+		/**
+		 * Run the task on all chunks, returning the sum of their results
+		 */
+		private long run(final ChunkTask task) {
+			if (executor == null) {
+				return task.run(0, starts[0], starts[1]);
+			}
+
+			ArrayList<Future<Long>> futures = new ArrayList<>(size());
+			for (int i = 0; i < size(); i++) {
+				final int chunk = i;
+				futures.add(executor.submit(new Callable<Long>() {
+
+					@Override
+					public Long call() throws Exception {
+						return task.run(chunk, starts[chunk], starts[chunk + 1]);
+					}
+				}));
+			}
+
+			long ret = 0;
+			for (Future<Long> future : futures) {
+				try {
+					ret += future.get();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				} catch (ExecutionException e) {
+					if (RuntimeException.class.isInstance(e.getCause())) {
+						throw (RuntimeException) e.getCause();
+					}
+					throw new RuntimeException(e.getCause());
+				}
+			}
+			return ret;
+		}
+
+		private void shutdown() {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * The points and means being clustered, accessed by index
+	 */
+	private static abstract class Space {
+		abstract int size();
+
+		abstract void setMeanToPoint(int mean, int point);
+
+		abstract double distanceToMean(int point, int mean);
+
+		abstract double distanceBetweenMeans(int mean1, int mean2);
+
+		/**
+		 * Set each mean with assigned points to their average, leaving the others unchanged
+		 *
+		 * @return The distance each mean moved
+		 */
+		abstract double[] updateMeans(int[] assignments, Chunks chunks);
+	}
+
+	/**
+	 * Cluster the points. On return each point's cluster number is set to the index of its mean.
+	 *
+	 * @param k
+	 * @param randomseed
+	 * @param createMean
+	 * @param points
+	 * @param reporter
+	 * @return
+	 */
+	public <T extends KMeanPoint> List<Mean<T>> execute(int k, int randomseed,final CreateMean<T>createMean, final List<T> points,  ProcessingApi reporter){
 		if(k > points.size()){
 			k = points.size();
 		}
-		
-		ArrayList<Mean<T>> means = new ArrayList<>(k);
+
+		final ArrayList<Mean<T>> means = new ArrayList<>(k);
 		if(k==0){
 			return means;
 		}
-		
-		// random choose k centres
-		Random random = new Random(randomseed);
-		ArrayList<T> tmp = new ArrayList<>(points);
-		Collections.shuffle(tmp, random);
-		for(int i=0 ;i < k ; i++){
-			means.add(createMean.createMean(tmp.get(i)));
-		}
-		
-		// reset all cluster numbers
-		for(T point : points){
-			point.clusterNumber = -1;
-		}
-		
-		int nbChanges;
-		int stepNb=0;
-		do{
-		
-			// clear all assignments from the means
-			for(Mean<T> mean : means){
-				mean.clearAssigned();
-			}
-			
-			// assign everything
-			nbChanges=0;
-			for(T pnt : points){
-				int closest=-1;
-				double closestDist = Double.MAX_VALUE;
-				for(int i=0 ;i < k ; i++){
+		for (int i = 0; i < k; i++) {
+			means.add(null);
+		}
+
+		// the point and mean classes aren't required to be thread safe
+		Space space = new Space() {
+
+			@Override
+			int size() {
+				return points.size();
+			}
+
+			@Override
+			void setMeanToPoint(int mean, int point) {
+				means.set(mean, createMean.createMean(points.get(point)));
+			}
+
+			@Override
+			double distanceToMean(int point, int mean) {
+				return means.get(mean).getMean().distance(points.get(point));
+			}
+
+			@Override
+			double distanceBetweenMeans(int mean1, int mean2) {
+				return means.get(mean1).getMean().distance(means.get(mean2).getMean());
+			}
+
+			@Override
+			double[] updateMeans(int[] assignments, Chunks chunks) {
+				for(Mean<T> mean : means){
+					mean.clearAssigned();
+				}
+				for (int i = 0; i < assignments.length; i++) {
+					means.get(assignments[i]).addAssigned(points.get(i));
+				}
+
+				double[] moved = new double[means.size()];
+				for (int i = 0; i < moved.length; i++) {
 					Mean<T> mean = means.get(i);
-					double dist = mean.getMean().distance(pnt);
-					if(dist < closestDist){
-						closestDist = dist;
-						closest = i;
+					if(mean.size()>0){
+						T old = createMean.createMean(mean.getMean()).getMean();
+						mean.updateMean();
+						moved[i] = old.distance(mean.getMean());
 					}
-				}	
-				
-				// count changes
-				if(pnt.clusterNumber != closest){
-					nbChanges++;
-				}
-				
-				// do assignment
-				pnt.clusterNumber = closest;
-				means.get(closest).addAssigned(pnt);
-			}
-			
-			// update means
-			for(Mean<T> mean : means){
-				if(mean.size()>0){
-					mean.updateMean();
-				}
-			}
-			
-			reporter.postStatusMessage("K means step " + (stepNb+1));
-			stepNb++;
-		}while(nbChanges>0 && reporter.isCancelled()==false && reporter.isFinishNow()==false);
+				}
+				return moved;
+			}
+		};
 
+		Chunks chunks = new Chunks(points.size(), 1);
+		int[] assignments = cluster(space, k, new Random(randomseed), chunks, reporter);
+		for (int i = 0; i < assignments.length; i++) {
+			points.get(i).clusterNumber = assignments[i];
+		}
 		return means;
 	}
+
+	/**
+	 * Cluster points given as primitive coordinates using the Euclidean distance
+	 *
+	 * @param k
+	 * @param randomseed
+	 * @param dimensions
+	 * @param coordinates
+	 *            The coordinates of point i are at i * dimensions to (i+1) * dimensions - 1
+	 * @param adjustMean
+	 *            Applied to each mean after averaging, or null
+	 * @param nbThreads
+	 * @param clusterNumbers
+	 *            Output array of the index of each point's mean
+	 * @param reporter
+	 * @return The coordinates of the means, in the same layout as the points
+	 */
+	public double[] execute(int k, int randomseed, final int dimensions, final double[] coordinates, final AdjustMean adjustMean, int nbThreads,
+			int[] clusterNumbers, ProcessingApi reporter) {
+		final int n = coordinates.length / dimensions;
+		k = Math.min(k, n);
+		final double[] means = new double[k * dimensions];
+		if (k == 0) {
+			return means;
+		}
+
+		final int nbMeans = k;
+		Space space = new Space() {
+
+			@Override
+			int size() {
+				return n;
+			}
+
+			@Override
+			void setMeanToPoint(int mean, int point) {
+				System.arraycopy(coordinates, point * dimensions, means, mean * dimensions, dimensions);
+			}
+
+			@Override
+			double distanceToMean(int point, int mean) {
+				return distance(coordinates, point * dimensions, means, mean * dimensions);
+			}
+
+			@Override
+			double distanceBetweenMeans(int mean1, int mean2) {
+				return distance(means, mean1 * dimensions, means, mean2 * dimensions);
+			}
+
+			private double distance(double[] a, int offsetA, double[] b, int offsetB) {
+				double sum = 0;
+				for (int i = 0; i < dimensions; i++) {
+					double diff = a[offsetA + i] - b[offsetB + i];
+					sum += diff * diff;
+				}
+				return Math.sqrt(sum);
+			}
+
+			@Override
+			double[] updateMeans(final int[] assignments, Chunks chunks) {
+				// sum each chunk's points separately then add the chunks together
+				final double[][] sums = new double[chunks.size()][nbMeans * dimensions];
+				final int[][] counts = new int[chunks.size()][nbMeans];
+				chunks.run(new ChunkTask() {
+
+					@Override
+					public long run(int chunk, int from, int to) {
+						double[] sum = sums[chunk];
+						int[] count = counts[chunk];
+						for (int i = from; i < to; i++) {
+							int mean = assignments[i];
+							count[mean]++;
+							for (int j = 0; j < dimensions; j++) {
+								sum[mean * dimensions + j] += coordinates[i * dimensions + j];
+							}
+						}
+						return 0;
+					}
+				});
+
+				double[] moved = new double[nbMeans];
+				double[] mean = new double[dimensions];
+				for (int m = 0; m < nbMeans; m++) {
+					int count = 0;
+					Arrays.fill(mean, 0);
+					for (int chunk = 0; chunk < sums.length; chunk++) {
+						count += counts[chunk][m];
+						for (int j = 0; j < dimensions; j++) {
+							mean[j] += sums[chunk][m * dimensions + j];
+						}
+					}
+
+					if (count > 0) {
+						for (int j = 0; j < dimensions; j++) {
+							mean[j] /= count;
+						}
+						if (adjustMean != null) {
+							adjustMean.adjust(mean);
+						}
+						moved[m] = distance(mean, 0, means, m * dimensions);
+						System.arraycopy(mean, 0, means, m * dimensions, dimensions);
+					}
+				}
+				return moved;
+			}
+		};
+
+		Chunks chunks = new Chunks(n, nbThreads);
+		try {
+			int[] assignments = cluster(space, k, new Random(randomseed), chunks, reporter);
+			System.arraycopy(assignments, 0, clusterNumbers, 0, n);
+		} finally {
+			chunks.shutdown();
+		}
+		return means;
+	}
+
+	/**
+	 * Cluster points using mini-batch k-means with the Euclidean distance. The means are seeded by k-means on a
+	 * first sample of the points; points are not assigned to the means, as the caller can do this in a single pass
+	 * using {@link #getNearestMean(double[], int, double[])}. If no more than a batch of points have coordinates,
+	 * full k-means is run on them instead, so fewer than k means are only returned if there are fewer than k points.
+	 *
+	 * @param k
+	 * @param randomseed
+	 * @param dimensions
+	 * @param source
+	 * @param batchSize
+	 *            Number of points sampled in each batch
+	 * @param nbBatches
+	 * @param adjustMean
+	 *            Applied to each mean after each batch, or null
+	 * @param nbThreads
+	 * @param reporter
+	 * @return The coordinates of the means
+	 */
+	public double[] executeMiniBatch(int k, int randomseed, int dimensions, PointSource source, int batchSize, int nbBatches, AdjustMean adjustMean,
+			int nbThreads, ProcessingApi reporter) {
+		Random random = new Random(randomseed);
+		batchSize = Math.max(batchSize, k);
+
+		// seed
+		double[] sample = source.size() > batchSize ? sample(source, dimensions, batchSize, random) : null;
+		if (sample == null || sample.length < batchSize * dimensions) {
+			// random draws are missing points without coordinates (or there are few points), so find those with coordinates
+			int[] indices = findPointsWithCoordinates(source, dimensions);
+			if (indices.length <= batchSize) {
+				// few enough for full k-means
+				double[] coordinates = new double[indices.length * dimensions];
+				double[] point = new double[dimensions];
+				for (int i = 0; i < indices.length; i++) {
+					source.getCoordinates(indices[i], point);
+					System.arraycopy(point, 0, coordinates, i * dimensions, dimensions);
+				}
+				return execute(k, random.nextInt(), dimensions, coordinates, adjustMean, nbThreads, new int[indices.length], reporter);
+			}
+
+			source = restrictTo(source, indices);
+			sample = sample(source, dimensions, batchSize, random);
+		}
+		int[] sampleClusters = new int[sample.length / dimensions];
+		double[] means = execute(k, random.nextInt(), dimensions, sample, adjustMean, nbThreads, sampleClusters, reporter);
+		k = means.length / dimensions;
+
+		// each mean's rate of moving is one over the number of points it has seen, starting with the seeding sample
+		int[] counts = new int[k];
+		for (int cluster : sampleClusters) {
+			counts[cluster]++;
+		}
+
+		double[] mean = new double[dimensions];
+		boolean[] changed = new boolean[k];
+		for (int batchNb = 0; batchNb < nbBatches && k > 0 && !reporter.isCancelled() && !reporter.isFinishNow(); batchNb++) {
+			double[] batch = sample(source, dimensions, batchSize, random);
+			int n = batch.length / dimensions;
+
+			// assign the whole batch before moving any means
+			int[] nearest = new int[n];
+			for (int i = 0; i < n; i++) {
+				nearest[i] = getNearestMean(means, dimensions, batch, i * dimensions);
+			}
+
+			Arrays.fill(changed, false);
+			for (int i = 0; i < n; i++) {
+				int m = nearest[i];
+				if (m == -1) {
+					// coordinates which aren't numbers
+					continue;
+				}
+				counts[m]++;
+				double rate = 1.0 / counts[m];
+				for (int j = 0; j < dimensions; j++) {
+					means[m * dimensions + j] += rate * (batch[i * dimensions + j] - means[m * dimensions + j]);
+				}
+				changed[m] = true;
+			}
+
+			if (adjustMean != null) {
+				for (int m = 0; m < k; m++) {
+					if (changed[m]) {
+						System.arraycopy(means, m * dimensions, mean, 0, dimensions);
+						adjustMean.adjust(mean);
+						System.arraycopy(mean, 0, means, m * dimensions, dimensions);
+					}
+				}
+			}
+
+			reporter.postStatusMessage("K means mini-batch " + (batchNb + 1) + " of " + nbBatches);
+		}
+		return means;
+	}
+
+	/**
+	 * Sample points at random, with replacement
+	 */
+	private static double[] sample(PointSource source, int dimensions, int count, Random random) {
+		int n = source.size();
+		double[] ret = new double[count * dimensions];
+		double[] point = new double[dimensions];
+		int nb = 0;
+
+		// give up on points without coordinates after a while, in case few have them
+		for (int attempt = 0; attempt < 10 * count && nb < count && n > 0; attempt++) {
+			if (source.getCoordinates(random.nextInt(n), point)) {
+				System.arraycopy(point, 0, ret, nb * dimensions, dimensions);
+				nb++;
+			}
+		}
+		return Arrays.copyOf(ret, nb * dimensions);
+	}
+
+	private static int[] findPointsWithCoordinates(PointSource source, int dimensions) {
+		int n = source.size();
+		int[] ret = new int[n];
+		double[] point = new double[dimensions];
+		int nb = 0;
+		for (int i = 0; i < n; i++) {
+			if (source.getCoordinates(i, point)) {
+				ret[nb++] = i;
+			}
+		}
+		return Arrays.copyOf(ret, nb);
+	}
+
+	/**
+	 * Get a source of only the points with the indices
+	 */
+	private static PointSource restrictTo(final PointSource source, final int[] indices) {
+		return new PointSource() {
+
+			@Override
+			public int size() {
+				return indices.length;
+			}
+
+			@Override
+			public boolean getCoordinates(int index, double[] out) {
+				return source.getCoordinates(indices[index], out);
+			}
+		};
+	}
+
+	/**
+	 * Get the index of the nearest mean to the point by Euclidean distance
+	 *
+	 * @param means
+	 * @param dimensions
+	 * @param point
+	 * @return The index or -1 if there are no means or the point's coordinates aren't numbers
+	 */
+	public static int getNearestMean(double[] means, int dimensions, double[] point) {
+		return getNearestMean(means, dimensions, point, 0);
+	}
+
+	private static int getNearestMean(double[] means, int dimensions, double[] points, int offset) {
+		int k = means.length / dimensions;
+		int closest = -1;
+		double closestDist = Double.MAX_VALUE;
+		for (int m = 0; m < k; m++) {
+			double dist = 0;
+			for (int j = 0; j < dimensions; j++) {
+				double diff = points[offset + j] - means[m * dimensions + j];
+				dist += diff * diff;
+			}
+			if (dist < closestDist) {
+				closestDist = dist;
+				closest = m;
+			}
+		}
+		return closest;
+	}
+
+	private static int[] cluster(final Space space, final int k, Random random, Chunks chunks, ProcessingApi reporter) {
+		final int n = space.size();
+
+		// k-means++ seeding; each mean is a point chosen with probability proportional to its squared distance from the nearest mean so far
+		final double[] distanceSqd = new double[n];
+		Arrays.fill(distanceSqd, Double.MAX_VALUE);
+		space.setMeanToPoint(0, random.nextInt(n));
+		for (int m = 1; m < k; m++) {
+			final int last = m - 1;
+			chunks.run(new ChunkTask() {
+
+				@Override
+				public long run(int chunk, int from, int to) {
+					for (int i = from; i < to; i++) {
+						double d = space.distanceToMean(i, last);
+						distanceSqd[i] = Math.min(distanceSqd[i], d * d);
+					}
+					return 0;
+				}
+			});
+
+			double total = 0;
+			for (int i = 0; i < n; i++) {
+				total += distanceSqd[i];
+			}
+
+			// if every point is on a mean, any point will do
+			int chosen = random.nextInt(n);
+			if (total > 0) {
+				double target = random.nextDouble() * total;
+				for (int i = 0; i < n; i++) {
+					target -= distanceSqd[i];
+					if (target < 0 && distanceSqd[i] > 0) {
+						chosen = i;
+						break;
+					}
+				}
+			}
+			space.setMeanToPoint(m, chosen);
+		}
+
+		// assign every point, recording the distance to its mean and to the next nearest
+		final int[] assignments = new int[n];
+		final double[] upper = new double[n];
+		final double[] lower = new double[n];
+		chunks.run(new ChunkTask() {
+
+			@Override
+			public long run(int chunk, int from, int to) {
+				for (int i = from; i < to; i++) {
+					assignToNearest(space, k, i, assignments, upper, lower);
+				}
+				return 0;
+			}
+		});
+
+		long nbChanges = n;
+		int stepNb = 0;
+		final double[] halfNearestMean = new double[k];
+		while (true) {
+			final double[] moved = space.updateMeans(assignments, chunks);
+
+			reporter.postStatusMessage("K means step " + (stepNb + 1));
+			stepNb++;
+			if (nbChanges == 0 || reporter.isCancelled() || reporter.isFinishNow()) {
+				break;
+			}
+
+			// get the furthest and second furthest any mean moved
+			int furthest = 0;
+			for (int m = 1; m < k; m++) {
+				if (moved[m] > moved[furthest]) {
+					furthest = m;
+				}
+			}
+			double secondFurthestMove = 0;
+			for (int m = 0; m < k; m++) {
+				if (m != furthest) {
+					secondFurthestMove = Math.max(secondFurthestMove, moved[m]);
+				}
+			}
+			final int furthestMean = furthest;
+			final double furthestMove = moved[furthest];
+			final double otherMove = secondFurthestMove;
+
+			// a point can't be closer to another mean than half the distance between its mean and the nearest other
+			for (int m = 0; m < k; m++) {
+				double nearest = Double.MAX_VALUE;
+				for (int other = 0; other < k; other++) {
+					if (other != m) {
+						nearest = Math.min(nearest, space.distanceBetweenMeans(m, other));
+					}
+				}
+				halfNearestMean[m] = 0.5 * nearest;
+			}
+
+			nbChanges = chunks.run(new ChunkTask() {
+
+				@Override
+				public long run(int chunk, int from, int to) {
+					long changes = 0;
+					for (int i = from; i < to; i++) {
+						int mean = assignments[i];
+						upper[i] += moved[mean];
+						lower[i] -= mean == furthestMean ? otherMove : furthestMove;
+
+						double bound = Math.max(halfNearestMean[mean], lower[i]);
+						if (upper[i] <= bound) {
+							continue;
+						}
+
+						// tighten the upper bound and test again before checking all means
+						upper[i] = space.distanceToMean(i, mean);
+						if (upper[i] <= bound) {
+							continue;
+						}
+
+						assignToNearest(space, k, i, assignments, upper, lower);
+						if (assignments[i] != mean) {
+							changes++;
+						}
+					}
+					return changes;
+				}
+			});
+		}
+
+		return assignments;
+	}
+
+	private static void assignToNearest(Space space, int k, int point, int[] assignments, double[] upper, double[] lower) {
+		int closest = -1;
+		double closestDist = Double.MAX_VALUE;
+		double nextClosestDist = Double.MAX_VALUE;
+		for (int m = 0; m < k; m++) {
+			double dist = space.distanceToMean(point, m);
+			if (dist < closestDist) {
+				nextClosestDist = closestDist;
+				closestDist = dist;
+				closest = m;
+			} else if (dist < nextClosestDist) {
+				nextClosestDist = dist;
+			}
+		}
+		assignments[point] = closest;
+		upper[point] = closestDist;
+		lower[point] = nextClosestDist;
+	}
 }
@@ -31,6 +31,8 @@ final public class KMeansConfig implements Serializable{
 	private static final long serialVersionUID = 1L;
 	private int k=10;
 	private int randomSeed=1;
+	private int miniBatchSize=0;
+	private int nbMiniBatches=100;
 
 	public int getK() {
 		return k;
@@ -50,6 +52,28 @@ final public class KMeansConfig implements Serializable{
 		this.randomSeed = randomSeed;
 	}
 	
+	public int getMiniBatchSize() {
+		return miniBatchSize;
+	}
+
+	/**
+	 * Set the number of points sampled in each mini-batch, or 0 to run k-means on all the points
+	 * @param miniBatchSize
+	 */
+	@XmlAttribute
+	public void setMiniBatchSize(int miniBatchSize) {
+		this.miniBatchSize = miniBatchSize;
+	}
+
+	public int getNbMiniBatches() {
+		return nbMiniBatches;
+	}
+
+	@XmlAttribute
+	public void setNbMiniBatches(int nbMiniBatches) {
+		this.nbMiniBatches = nbMiniBatches;
+	}
+	
 	public static JPanel createConfigEditorPanel(final KMeansConfig config) {
 		VerticalLayoutPanel panel = new VerticalLayoutPanel();
 
@@ -83,6 +107,36 @@ final public class KMeansConfig implements Serializable{
 		panel.add(seedField);
 		panel.addWhitespace();
 		
+		panel.add(new JLabel("Mini-batch size (0 to use all points):"));
+		final JFormattedTextField batchSizeField = new JFormattedTextField();
+		batchSizeField.setValue(new Integer(config.getMiniBatchSize()));
+		batchSizeField.setColumns(10);
+		batchSizeField.addPropertyChangeListener("value", new PropertyChangeListener() {
+			
+			@Override
+			public void propertyChange(PropertyChangeEvent evt) {
+			     int size = ((Number)batchSizeField.getValue()).intValue();
+			     config.setMiniBatchSize(size);
+			}
+		});
+		panel.add(batchSizeField);
+		panel.addWhitespace();
+		
+		panel.add(new JLabel("Number of mini-batches:"));
+		final JFormattedTextField nbBatchesField = new JFormattedTextField();
+		nbBatchesField.setValue(new Integer(config.getNbMiniBatches()));
+		nbBatchesField.setColumns(10);
+		nbBatchesField.addPropertyChangeListener("value", new PropertyChangeListener() {
+			
+			@Override
+			public void propertyChange(PropertyChangeEvent evt) {
+			     int nb = ((Number)nbBatchesField.getValue()).intValue();
+			     config.setNbMiniBatches(nb);
+			}
+		});
+		panel.add(nbBatchesField);
+		panel.addWhitespace();
+		
 		return panel;
 	}
 
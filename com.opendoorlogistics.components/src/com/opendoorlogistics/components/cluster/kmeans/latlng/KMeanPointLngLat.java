@@ -33,15 +33,23 @@ final public class KMeanPointLngLat extends KMeanPoint implements LatLong{
 	 * @return
 	 */
 	public double [] toUnitCartesian(){
-		// see http://www.math.montana.edu/frankw/ccp/multiworld/multipleIVP/spherical/learn.htm
 		double [] ret = new double[3];
+		toUnitCartesian(ret, 0);
+		return ret;
+	}
+
+	/**
+	 * Convert long/lat to cartesian with circle radius=1, writing x, y and z from the offset
+	 * @param out
+	 * @param offset
+	 */
+	public void toUnitCartesian(double [] out, int offset){
+		// see http://www.math.montana.edu/frankw/ccp/multiworld/multipleIVP/spherical/learn.htm
 		double latr =latAsRadians();
 		double lngr =lngAsRadians();
-		ret[0] = sin(latr) * cos(lngr);
-		ret[1] = sin(latr) * sin(lngr);
-		ret[2] = cos(latr);
-
-		return ret;
+		out[offset] = sin(latr) * cos(lngr);
+		out[offset+1] = sin(latr) * sin(lngr);
+		out[offset+2] = cos(latr);
 	}
 
 	@Override
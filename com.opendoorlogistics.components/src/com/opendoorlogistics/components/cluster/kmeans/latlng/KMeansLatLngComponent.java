@@ -6,10 +6,10 @@
  ******************************************************************************/
 package com.opendoorlogistics.components.cluster.kmeans.latlng;
 
+import gnu.trove.list.array.TIntArrayList;
+
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
 import javax.swing.Icon;
 import javax.swing.JPanel;
@@ -28,9 +28,9 @@ import com.opendoorlogistics.api.tables.ODLTableDefinition;
 import com.opendoorlogistics.api.tables.ODLTableDefinitionAlterable;
 import com.opendoorlogistics.components.cluster.BasicCluster;
 import com.opendoorlogistics.components.cluster.kmeans.KMeansAlgorithm;
-import com.opendoorlogistics.components.cluster.kmeans.KMeansAlgorithm.CreateMean;
+import com.opendoorlogistics.components.cluster.kmeans.KMeansAlgorithm.AdjustMean;
+import com.opendoorlogistics.components.cluster.kmeans.KMeansAlgorithm.PointSource;
 import com.opendoorlogistics.components.cluster.kmeans.KMeansConfig;
-import com.opendoorlogistics.components.cluster.kmeans.Mean;
 import com.opendoorlogistics.core.components.ODLWizardTemplateConfig;
 import com.opendoorlogistics.core.tables.ODLFactory;
 import com.opendoorlogistics.core.tables.beans.BeanMapping;
@@ -80,71 +80,123 @@ final public class KMeansLatLngComponent implements ODLComponent {
 	@SuppressWarnings("unchecked")
 	@Override
 	public void execute(ComponentExecutionApi reporter,int mode,Object configuration, ODLDatastore<? extends ODLTable> input, ODLDatastoreAlterable<? extends ODLTableAlterable> output) {
-		ODLTable tbl = input.getTableAt(0);
-		int nr = tbl.getRowCount();
-
-		// convert to our internal points class
-		ArrayList<KMeanPointLngLat> lngLats = new ArrayList<>();
-		for (int row = 0; row < nr; row++) {
-			Double lat = (Double) tbl.getValueAt(row, 0);
-			Double lng = (Double) tbl.getValueAt(row, 1);
-			if (lat != null && lng != null) {
-				KMeanPointLngLat lnglat = new KMeanPointLngLat();
-				lnglat.id = row;
-				lnglat.latitude = lat;
-				lnglat.longitude = lng;
-				lngLats.add(lnglat);
-			}
-		}
-
-		reporter.postStatusMessage("Starting k-means on " + lngLats.size() + " points");
-
-		// run algorithm
+		final ODLTable tbl = input.getTableAt(0);
+		final int nr = tbl.getRowCount();
 		KMeansConfig kc = (KMeansConfig) configuration;
 		KMeansAlgorithm algorithm = new KMeansAlgorithm();
-		List<Mean<KMeanPointLngLat>> means = algorithm.execute(kc.getK(), kc.getRandomSeed(), new CreateMean<KMeanPointLngLat>() {
+		AdjustMean adjustMean = new AdjustMean() {
 
 			@Override
-			public Mean<KMeanPointLngLat> createMean(KMeanPointLngLat copyThis) {
-				MeanLngLat mean = new MeanLngLat();
-				mean.getMean().latitude = copyThis.latitude;
-				mean.getMean().longitude = copyThis.longitude;
-				return mean;
+			public void adjust(double[] mean) {
+				MeanLngLat.projectCartesianMean(mean);
+			}
+		};
+
+		// use unit cartesian coordinates, as the nearest point by straight line is also the nearest by great circle
+		double[] means;
+		int[] counts;
+		if (kc.getMiniBatchSize() > 0) {
+			// sample the table directly
+			PointSource source = new PointSource() {
+				private final KMeanPointLngLat lnglat = new KMeanPointLngLat();
+
+				@Override
+				public int size() {
+					return nr;
+				}
+
+				@Override
+				public boolean getCoordinates(int row, double[] out) {
+					return readUnitCartesian(tbl, row, lnglat, out, 0);
+				}
+			};
+
+			reporter.postStatusMessage("Starting mini-batch k-means on " + nr + " rows");
+			means = algorithm.executeMiniBatch(kc.getK(), kc.getRandomSeed(), 3, source, kc.getMiniBatchSize(), kc.getNbMiniBatches(), adjustMean, Runtime
+					.getRuntime().availableProcessors(), reporter);
+			if (reporter.isCancelled()) {
+				return;
 			}
-		}, lngLats, reporter);
 
-		if (!reporter.isCancelled()) {
-			reporter.postStatusMessage("Writing results to table");
+			// assign all points in a single pass
+			reporter.postStatusMessage("Assigning points to clusters");
+			counts = new int[means.length / 3];
+			double[] xyz = new double[3];
+			for (int row = 0; row < nr; row++) {
+				if (source.getCoordinates(row, xyz)) {
+					int cluster = KMeansAlgorithm.getNearestMean(means, 3, xyz);
+					if (cluster != -1) {
+						tbl.setValueAt(cluster + 1, row, 2);
+						counts[cluster]++;
+					}
+				}
+			}
+		} else {
+			TIntArrayList rows = new TIntArrayList(nr);
+			double[] coords = new double[nr * 3];
+			KMeanPointLngLat lnglat = new KMeanPointLngLat();
+			for (int row = 0; row < nr; row++) {
+				if (readUnitCartesian(tbl, row, lnglat, coords, rows.size() * 3)) {
+					rows.add(row);
+				}
+			}
+			int n = rows.size();
+			coords = Arrays.copyOf(coords, n * 3);
+
+			reporter.postStatusMessage("Starting k-means on " + n + " points");
+			int[] clusterNumbers = new int[n];
+			means = algorithm.execute(kc.getK(), kc.getRandomSeed(), 3, coords, adjustMean, Runtime.getRuntime().availableProcessors(), clusterNumbers,
+					reporter);
+			if (reporter.isCancelled()) {
+				return;
+			}
 
 			// write results back to input table
-			for (KMeanPointLngLat latLng : lngLats) {
-				tbl.setValueAt(latLng.clusterNumber + 1, latLng.id, 2);
+			reporter.postStatusMessage("Writing results to table");
+			counts = new int[means.length / 3];
+			for (int i = 0; i < n; i++) {
+				tbl.setValueAt(clusterNumbers[i] + 1, rows.get(i), 2);
+				counts[clusterNumbers[i]]++;
 			}
+		}
 
-			// also output cluster table
-			BasicCluster[] clusters = new BasicCluster[means.size()];
-			for (int i = 0; i < clusters.length; i++) {
-				clusters[i] = new BasicCluster();
-				BasicCluster c = clusters[i];
-				c.setClusterId(Integer.toString(i + 1));
-				c.setLatitude(means.get(i).getMean().latitude);
-				c.setLongitude(means.get(i).getMean().longitude);
-				c.setAssignedLocationsCount(0);
-			}
-			for (KMeanPointLngLat latLng : lngLats) {
-				int cIndex = latLng.clusterNumber;
-				BasicCluster c = clusters[cIndex];
-				c.setAssignedLocationsCount(c.getAssignedLocationsCount() + 1);
-			}
-			BeanMapping.buildDatastore(BasicCluster.class).getTableMapping(0).writeObjectsToTable(clusters, output.getTableAt(0));
+		if (counts.length < kc.getK()) {
+			reporter.logWarning("Only " + counts.length + " clusters were created as only " + counts.length + " rows have a latitude and longitude.");
+		}
+
+		// also output cluster table
+		KMeanPointLngLat lnglat = new KMeanPointLngLat();
+		BasicCluster[] clusters = new BasicCluster[counts.length];
+		for (int i = 0; i < clusters.length; i++) {
+			MeanLngLat.setFromCartesian(means, i * 3, lnglat);
+			clusters[i] = new BasicCluster();
+			BasicCluster c = clusters[i];
+			c.setClusterId(Integer.toString(i + 1));
+			c.setLatitude(lnglat.latitude);
+			c.setLongitude(lnglat.longitude);
+			c.setAssignedLocationsCount(counts[i]);
+		}
+		BeanMapping.buildDatastore(BasicCluster.class).getTableMapping(0).writeObjectsToTable(clusters, output.getTableAt(0));
+
+		reporter.postStatusMessage("Finished k-means");
+	}
 
-			reporter.postStatusMessage("Finished k-means");
+	private static boolean readUnitCartesian(ODLTable tbl, int row, KMeanPointLngLat lnglat, double[] out, int offset) {
+		Double lat = (Double) tbl.getValueAt(row, 0);
+		Double lng = (Double) tbl.getValueAt(row, 1);
+		if (lat == null || lng == null) {
+			return false;
 		}
+		lnglat.latitude = lat;
+		lnglat.longitude = lng;
+		lnglat.toUnitCartesian(out, offset);
+		return true;
 	}
 
 	@Override
 	public long getFlags(ODLApi api,int mode) {
-		return 0;
+		// cluster numbers are written back to the input table
+		return ODLComponent.FLAG_CAN_RUN_IN_PARALLEL | ODLComponent.FLAG_WRITES_TO_INPUT;
 	}
 
 //	@Override
@@ -30,9 +30,30 @@ final public class MeanLngLat extends Mean<KMeanPointLngLat>{
 			tmp[i] /= assigned.size();
 		}
 		
-		// convert back to angles
-		mean.latitude = 90 -Math.toDegrees(Math.acos(tmp[2]) );
-		mean.longitude =Math.toDegrees (Math.atan2(tmp[1], tmp[0]));
+		setFromCartesian(tmp, 0, mean);
+	}
+	
+	/**
+	 * Convert cartesian coordinates (e.g. the average of points' unit cartesian coordinates) back to angles
+	 * @param xyz
+	 * @param offset
+	 * @param out
+	 */
+	public static void setFromCartesian(double [] xyz, int offset, KMeanPointLngLat out){
+		double z = Math.max(-1, Math.min(1, xyz[offset+2]));
+		out.latitude = 90 -Math.toDegrees(Math.acos(z) );
+		out.longitude =Math.toDegrees (Math.atan2(xyz[offset+1], xyz[offset]));
+	}
+	
+	/**
+	 * Convert the average of points' unit cartesian coordinates to angles in the same way as {@link #updateMean()},
+	 * then back to unit cartesian coordinates. This gives the same means as k-means on {@link KMeanPointLngLat} objects.
+	 * @param xyz
+	 */
+	public static void projectCartesianMean(double [] xyz){
+		KMeanPointLngLat pnt = new KMeanPointLngLat();
+		setFromCartesian(xyz, 0, pnt);
+		pnt.toUnitCartesian(xyz, 0);
 	}
 
 	@Override
@@ -234,7 +234,8 @@ public class PCGeocoderComponent implements ODLComponent {
 
 	@Override
 	public long getFlags(ODLApi api,int mode) {
-		return 0;
+		// the postcode database is opened read-only for each execution, but matches are written back to the input table
+		return ODLComponent.FLAG_CAN_RUN_IN_PARALLEL | ODLComponent.FLAG_WRITES_TO_INPUT;
 	}
 
 //	@Override
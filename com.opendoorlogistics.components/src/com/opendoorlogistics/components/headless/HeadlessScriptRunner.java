@@ -0,0 +1,316 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.components.headless;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.opendoorlogistics.api.ExecutionReport;
+import com.opendoorlogistics.api.ODLApi;
+import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
+import com.opendoorlogistics.api.tables.ODLTableAlterable;
+import com.opendoorlogistics.components.InitialiseComponents;
+import com.opendoorlogistics.core.api.impl.ODLApiImpl;
+import com.opendoorlogistics.core.scripts.elements.Script;
+import com.opendoorlogistics.core.scripts.execution.ExecutionReportImpl;
+import com.opendoorlogistics.core.scripts.execution.OptionsSubpath;
+import com.opendoorlogistics.core.scripts.execution.ScriptExecutor;
+import com.opendoorlogistics.core.scripts.execution.dependencyinjection.AbstractDependencyInjector;
+import com.opendoorlogistics.core.scripts.io.ScriptIO;
+import com.opendoorlogistics.core.tables.io.PoiIO;
+import com.opendoorlogistics.core.tables.io.SupportedFileType;
+import com.opendoorlogistics.core.tables.io.TableIOUtils;
+import com.opendoorlogistics.core.utils.strings.Strings;
+
+/**
+ * Runs a script against many data files without the studio, e.g. on a server. Each job loads its data file into its own datastore, runs
+ * the script on it and saves the datastore (including any tables the script output to it) as an Excel file. Jobs are independent and run
+ * concurrently on a fixed pool of threads.<br>
+ * Components which need a user interface cannot run headless; a modal dialog is treated as cancelled and controls are never shown.
+ *
+ * @author Phil
+ *
+ */
+final public class HeadlessScriptRunner {
+	private final File scriptFile;
+	private final String[] optionIds;
+	private final int nbThreads;
+	private final ODLApi api = new ODLApiImpl();
+
+	/**
+	 * A data file to run the script against and the file to save the result to
+	 */
+	public static class Job {
+		private final File input;
+		private final File output;
+
+		public Job(File input, File output) {
+			this.input = input;
+			this.output = output;
+		}
+
+		public File getInput() {
+			return input;
+		}
+
+		public File getOutput() {
+			return output;
+		}
+	}
+
+	/**
+	 * The outcome of a job and the time spent in each stage
+	 */
+	public static class JobResult {
+		private final Job job;
+		private final ExecutionReport report;
+		private long loadMillis;
+		private long executeMillis;
+		private long saveMillis;
+
+		private JobResult(Job job, ExecutionReport report) {
+			this.job = job;
+			this.report = report;
+		}
+
+		public Job getJob() {
+			return job;
+		}
+
+		public ExecutionReport getReport() {
+			return report;
+		}
+
+		public boolean isFailed() {
+			return report.isFailed();
+		}
+
+		public long getLoadMillis() {
+			return loadMillis;
+		}
+
+		public long getExecuteMillis() {
+			return executeMillis;
+		}
+
+		public long getSaveMillis() {
+			return saveMillis;
+		}
+
+		public long getTotalMillis() {
+			return loadMillis + executeMillis + saveMillis;
+		}
+
+		@Override
+		public String toString() {
+			return job.getInput().getName() + (isFailed() ? " FAILED" : " OK") + " load=" + loadMillis + " ms, execute=" + executeMillis
+					+ " ms, save=" + saveMillis + " ms, total=" + getTotalMillis() + " ms";
+		}
+	}
+
+	/**
+	 * @param scriptFile
+	 * @param optionIds
+	 *            Options to run or null to run the script's root option
+	 * @param nbThreads
+	 *            Number of jobs to run at once
+	 */
+	public HeadlessScriptRunner(File scriptFile, String[] optionIds, int nbThreads) {
+		this.scriptFile = scriptFile;
+		this.optionIds = optionIds;
+		this.nbThreads = Math.max(1, nbThreads);
+	}
+
+	/**
+	 * Run all the jobs, returning when they have all finished. Failures are reported in the results and do not stop other jobs.
+	 *
+	 * @param jobs
+	 * @return Results in the same order as the jobs
+	 */
+	public List<JobResult> run(List<Job> jobs) {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(nbThreads, Math.max(1, jobs.size())));
+		try {
+			ArrayList<Future<JobResult>> futures = new ArrayList<>(jobs.size());
+			for (final Job job : jobs) {
+				futures.add(executor.submit(new Callable<JobResult>() {
+
+					@Override
+					public JobResult call() throws Exception {
+						return runJob(job);
+					}
+				}));
+			}
+
+			ArrayList<JobResult> ret = new ArrayList<>(jobs.size());
+			for (int i = 0; i < jobs.size(); i++) {
+				try {
+					ret.add(futures.get(i).get());
+				} catch (InterruptedException | ExecutionException e) {
+					ExecutionReportImpl report = new ExecutionReportImpl();
+					report.setFailed(e);
+					ret.add(new JobResult(jobs.get(i), report));
+				}
+			}
+			return ret;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Run a single job on the calling thread
+	 *
+	 * @param job
+	 * @return
+	 */
+	public JobResult runJob(Job job) {
+		ExecutionReportImpl report = new ExecutionReportImpl();
+		JobResult ret = new JobResult(job, report);
+
+		// load the script and data, each job using its own copies
+		long start = System.currentTimeMillis();
+		ODLDatastoreAlterable<ODLTableAlterable> ds = null;
+		Script script = null;
+		try {
+			script = OptionsSubpath.getSubpathScript(new ScriptIO().fromFile(scriptFile), optionIds, report);
+			if (script == null) {
+				report.setFailed("Could not load options from script " + scriptFile.getName() + ".");
+			} else {
+				SupportedFileType type = getFileType(job.getInput());
+				if (type == null) {
+					report.setFailed("Unsupported data file type: " + job.getInput().getName());
+				} else {
+					ds = TableIOUtils.importFile(job.getInput(), type, report);
+					if (ds == null && !report.isFailed()) {
+						report.setFailed("Could not load data file " + job.getInput().getName() + ".");
+					}
+				}
+			}
+		} catch (Throwable e) {
+			report.setFailed(e);
+		}
+		ret.loadMillis = System.currentTimeMillis() - start;
+		if (report.isFailed()) {
+			return ret;
+		}
+
+		// execute
+		start = System.currentTimeMillis();
+		ExecutionReport result = new ScriptExecutor(api, false, new AbstractDependencyInjector(api)).execute(script, ds);
+		ret.executeMillis = System.currentTimeMillis() - start;
+		if (result.isFailed()) {
+			report.add(result);
+			return ret;
+		}
+
+		// save the datastore with the script's outputs
+		start = System.currentTimeMillis();
+		try {
+			if (!PoiIO.exportDatastore(ds, job.getOutput(), !job.getOutput().getName().toLowerCase(Locale.ENGLISH).endsWith(".xls"), report)) {
+				report.setFailed("Could not save the result to " + job.getOutput().getName() + ".");
+			}
+		} catch (Throwable e) {
+			report.setFailed(e);
+			report.setFailed("Could not save the result to " + job.getOutput().getName() + ".");
+		}
+		ret.saveMillis = System.currentTimeMillis() - start;
+		return ret;
+	}
+
+	private static SupportedFileType getFileType(File file) {
+		String name = file.getName().toLowerCase(Locale.ENGLISH);
+		if (name.endsWith(".xls") || name.endsWith(".xlsx")) {
+			return SupportedFileType.EXCEL;
+		}
+		if (name.endsWith(".csv")) {
+			return SupportedFileType.CSV;
+		}
+		if (name.endsWith(".txt")) {
+			return SupportedFileType.TABBED;
+		}
+		if (name.endsWith(".shp")) {
+			return SupportedFileType.SHAPEFILE_COPIED_GEOM;
+		}
+		return null;
+	}
+
+	/**
+	 * Run a script against data files from the command line. Usage:<br>
+	 * HeadlessScriptRunner [-threads n] [-option optionId]... scriptfile outputdir datafile...<br>
+	 * Each result is saved to the output directory as the data file's name with the suffix -result.xlsx. Per-job timings and a summary
+	 * are written to standard out.
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int nbThreads = Runtime.getRuntime().availableProcessors();
+		ArrayList<String> optionIds = new ArrayList<>();
+		ArrayList<String> files = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (Strings.equalsStd(args[i], "-threads") && i < args.length - 1) {
+				nbThreads = Integer.parseInt(args[++i]);
+			} else if (Strings.equalsStd(args[i], "-option") && i < args.length - 1) {
+				optionIds.add(args[++i]);
+			} else {
+				files.add(args[i]);
+			}
+		}
+
+		if (files.size() < 3) {
+			System.out.println("Usage: HeadlessScriptRunner [-threads n] [-option optionId]... scriptfile outputdir datafile...");
+			System.exit(1);
+		}
+
+		InitialiseComponents.initialise();
+
+		// data files can be given directly or as directories of files
+		File outputDir = new File(files.get(1));
+		outputDir.mkdirs();
+		ArrayList<Job> jobs = new ArrayList<>();
+		for (int i = 2; i < files.size(); i++) {
+			File file = new File(files.get(i));
+			File[] inputs = file.isDirectory() ? file.listFiles() : new File[] { file };
+			for (File input : inputs) {
+				if (input.isFile() && getFileType(input) != null) {
+					String name = input.getName();
+					int dot = name.lastIndexOf('.');
+					if (dot != -1) {
+						name = name.substring(0, dot);
+					}
+					jobs.add(new Job(input, new File(outputDir, name + "-result.xlsx")));
+				}
+			}
+		}
+
+		HeadlessScriptRunner runner = new HeadlessScriptRunner(new File(files.get(0)), optionIds.size() > 0 ? optionIds.toArray(new String[optionIds
+				.size()]) : null, nbThreads);
+		long start = System.currentTimeMillis();
+		List<JobResult> results = runner.run(jobs);
+		long wallMillis = System.currentTimeMillis() - start;
+
+		int nbFailed = 0;
+		long totalMillis = 0;
+		for (JobResult result : results) {
+			System.out.println(result);
+			if (result.isFailed()) {
+				nbFailed++;
+				System.out.println(Strings.getTabIndented(result.getReport().getReportString(true, false), 1));
+			}
+			totalMillis += result.getTotalMillis();
+		}
+		System.out.println("Ran " + results.size() + " jobs on " + nbThreads + " threads in " + wallMillis + " ms (" + totalMillis
+				+ " ms total job time), " + nbFailed + " failed.");
+		System.exit(nbFailed > 0 ? 1 : 0);
+	}
+}
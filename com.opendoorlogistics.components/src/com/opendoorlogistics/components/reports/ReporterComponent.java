@@ -51,6 +51,7 @@ import com.opendoorlogistics.api.tables.TableFlags;
 import com.opendoorlogistics.api.ui.Disposable;
 import com.opendoorlogistics.components.reports.builder.SubreportsWithProviderBuilder;
 import com.opendoorlogistics.components.reports.builder.SubreportsWithProviderBuilder.BuildResult;
+import com.opendoorlogistics.core.tables.decorators.datastores.AdaptedDecorator;
 import com.opendoorlogistics.core.tables.memory.ODLDatastoreImpl;
 import com.opendoorlogistics.core.utils.strings.Strings;
 import com.opendoorlogistics.utils.ui.Icons;
@@ -123,6 +124,8 @@ final public class ReporterComponent implements Reporter {
 			}
 		}
 		
+		// subreports and groups can read the same adapted cells several times whilst filling
+		AdaptedDecorator.enableValueCacheForView(ioDb);
 		try {
 			switch(mode){
 			case VIEW_BASIC_LANDSCAPE:
@@ -184,6 +187,9 @@ final public class ReporterComponent implements Reporter {
 
 		} catch (Throwable e) {
 			throw new RuntimeException(e);
+		} finally {
+			// the filled report no longer reads the datastore
+			AdaptedDecorator.disableValueCacheForView(ioDb);
 		}
 	}
 
@@ -278,7 +284,8 @@ final public class ReporterComponent implements Reporter {
 
 	@Override
 	public long getFlags(ODLApi api,int mode) {
-		return ODLComponent.FLAG_ALLOW_USER_INTERACTION_WHEN_RUNNING;
+		// reports only read their input and export to files named by batch key, so can run in parallel
+		return ODLComponent.FLAG_ALLOW_USER_INTERACTION_WHEN_RUNNING | ODLComponent.FLAG_CAN_RUN_IN_PARALLEL;
 	}
 
 //	public static void main(String[] args) {
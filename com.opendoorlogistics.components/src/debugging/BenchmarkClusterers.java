@@ -0,0 +1,355 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package debugging;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.Random;
+
+import com.opendoorlogistics.api.ODLApi;
+import com.opendoorlogistics.api.components.ProcessingApi;
+import com.opendoorlogistics.components.cluster.capacitated.data.ExampleClustererData;
+import com.opendoorlogistics.components.cluster.capacitated.solver.ContinueCallback;
+import com.opendoorlogistics.components.cluster.capacitated.solver.EvaluatedSolution;
+import com.opendoorlogistics.components.cluster.capacitated.solver.Problem;
+import com.opendoorlogistics.components.cluster.capacitated.solver.Solver;
+import com.opendoorlogistics.components.cluster.capacitated.solver.Solver.HeuristicType;
+import com.opendoorlogistics.components.cluster.kmeans.KMeansAlgorithm;
+import com.opendoorlogistics.components.cluster.kmeans.KMeansAlgorithm.AdjustMean;
+import com.opendoorlogistics.components.cluster.kmeans.KMeansAlgorithm.PointSource;
+import com.opendoorlogistics.components.cluster.kmeans.latlng.KMeanPointLngLat;
+import com.opendoorlogistics.components.cluster.kmeans.latlng.MeanLngLat;
+import com.opendoorlogistics.core.api.impl.ODLApiImpl;
+
+/**
+ * Run the capacitated clusterer and k-means on seeded synthetic instances of several sizes, each for a fixed time, recording the cost, the
+ * steps per second and the peak heap use. A step is a local search move evaluated by the capacitated clusterer, or an iteration or mini-batch
+ * of k-means. The results can be saved and later runs compared against them, failing if any case's cost, speed or peak heap is worse by more
+ * than the tolerance. Usage:<br>
+ * BenchmarkClusterers [-seconds n] [-threads n] [-save file] [-baseline file] [-costTolerance fraction] [-speedTolerance fraction]
+ * [-heapTolerance fraction]<br>
+ * The capacitated clusterer holds a dense travel matrix, so its instances stop at a few thousand locations.
+ */
+public class BenchmarkClusterers {
+	private static final int[] CAPACITATED_SIZES = new int[] { 1000, 2000 };
+	private static final int[] KMEANS_SIZES = new int[] { 1000, 10000, 100000 };
+	private static final double EARTH_RADIUS_KM = 6371;
+
+	private int seconds = 10;
+	private int nbThreads = 1;
+
+	/**
+	 * The measurements for a single instance
+	 */
+	private static class Result {
+		final String name;
+		double cost;
+		long steps;
+		long millis;
+		long peakHeapBytes;
+
+		Result(String name) {
+			this.name = name;
+		}
+
+		double getStepsPerSecond() {
+			return millis > 0 ? 1000.0 * steps / millis : 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-28s cost=%14.4f steps=%7d ms=%7d steps/s=%10.2f peakHeapMB=%8.1f", name, cost, steps, millis, getStepsPerSecond(),
+					peakHeapBytes / (1024.0 * 1024.0));
+		}
+	}
+
+	/**
+	 * Reports k-means status messages as steps and stops it when the time is up
+	 */
+	private class KMeansReporter implements ProcessingApi {
+		private final long start = System.currentTimeMillis();
+		private long steps;
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isFinishNow() {
+			return System.currentTimeMillis() - start > seconds * 1000L;
+		}
+
+		@Override
+		public ODLApi getApi() {
+			return new ODLApiImpl();
+		}
+
+		@Override
+		public void postStatusMessage(String s) {
+			steps++;
+		}
+
+		@Override
+		public void logWarning(String warning) {
+		}
+	}
+
+	private Result runCapacitated(int nbLocations) {
+		int nbClusters = Math.max(10, nbLocations / 50);
+		Problem problem = new ExampleClustererData(false).createProblem(nbLocations, nbClusters, 90);
+
+		Result result = new Result("capacitated-" + nbLocations);
+		final long start = startMeasuring();
+		Solver solver = new Solver(problem, new ContinueCallback() {
+
+			@Override
+			public ContinueOption continueOptimisation(int nbSteps, HeuristicType type, EvaluatedSolution best) {
+				return System.currentTimeMillis() - start > seconds * 1000L ? ContinueOption.FINISH_NOW : ContinueOption.KEEP_GOING;
+			}
+		});
+		solver.setNbThreads(nbThreads);
+		EvaluatedSolution sol = solver.run();
+		stopMeasuring(result, start);
+
+		// any capacity violation outweighs travel
+		result.cost = sol.getCost().getTravel() + 1000000 * sol.getCost().getCapacityViolation();
+		// full solver steps are too few to time, so count the moves evaluated
+		result.steps = solver.getNbEvaluatedMoves();
+		return result;
+	}
+
+	/**
+	 * Create points clumped around a few towns, as addresses usually are, in unit cartesian coordinates
+	 *
+	 * @param n
+	 * @return
+	 */
+	private static double[] createLngLatPoints(int n) {
+		Random random = new Random(123);
+		int nbTowns = 20;
+		double[] townLats = new double[nbTowns];
+		double[] townLngs = new double[nbTowns];
+		for (int i = 0; i < nbTowns; i++) {
+			townLats[i] = 50 + 8 * random.nextDouble();
+			townLngs[i] = -5 + 7 * random.nextDouble();
+		}
+
+		double[] ret = new double[n * 3];
+		KMeanPointLngLat pnt = new KMeanPointLngLat();
+		for (int i = 0; i < n; i++) {
+			if (random.nextInt(4) == 0) {
+				// rural
+				pnt.latitude = 50 + 8 * random.nextDouble();
+				pnt.longitude = -5 + 7 * random.nextDouble();
+			} else {
+				int town = random.nextInt(nbTowns);
+				pnt.latitude = townLats[town] + 0.1 * random.nextGaussian();
+				pnt.longitude = townLngs[town] + 0.15 * random.nextGaussian();
+			}
+			pnt.toUnitCartesian(ret, i * 3);
+		}
+		return ret;
+	}
+
+	private static double getKMeansCost(double[] coords, double[] means, int[] clusterNumbers) {
+		double ret = 0;
+		for (int i = 0; i < clusterNumbers.length; i++) {
+			double sum = 0;
+			for (int j = 0; j < 3; j++) {
+				double diff = coords[i * 3 + j] - means[clusterNumbers[i] * 3 + j];
+				sum += diff * diff;
+			}
+			ret += EARTH_RADIUS_KM * Math.sqrt(sum);
+		}
+		return ret;
+	}
+
+	private static final AdjustMean ADJUST_LNG_LAT = new AdjustMean() {
+
+		@Override
+		public void adjust(double[] mean) {
+			MeanLngLat.projectCartesianMean(mean);
+		}
+	};
+
+	private Result runKMeans(int n, boolean miniBatch) {
+		final double[] coords = createLngLatPoints(n);
+		int k = Math.max(10, n / 500);
+
+		Result result = new Result((miniBatch ? "kmeans-minibatch-" : "kmeans-") + n);
+		KMeansReporter reporter = new KMeansReporter();
+		long start = startMeasuring();
+		int[] clusterNumbers = new int[n];
+		double[] means;
+		if (miniBatch) {
+			PointSource source = new PointSource() {
+
+				@Override
+				public int size() {
+					return coords.length / 3;
+				}
+
+				@Override
+				public boolean getCoordinates(int index, double[] out) {
+					System.arraycopy(coords, index * 3, out, 0, 3);
+					return true;
+				}
+			};
+			means = new KMeansAlgorithm().executeMiniBatch(k, 1, 3, source, 1000, 100, ADJUST_LNG_LAT, nbThreads, reporter);
+			double[] point = new double[3];
+			for (int i = 0; i < n; i++) {
+				source.getCoordinates(i, point);
+				clusterNumbers[i] = Math.max(0, KMeansAlgorithm.getNearestMean(means, 3, point));
+			}
+		} else {
+			means = new KMeansAlgorithm().execute(k, 1, 3, coords, ADJUST_LNG_LAT, nbThreads, clusterNumbers, reporter);
+		}
+		stopMeasuring(result, start);
+
+		result.cost = getKMeansCost(coords, means, clusterNumbers);
+		result.steps = reporter.steps;
+		return result;
+	}
+
+	private static long startMeasuring() {
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			pool.resetPeakUsage();
+		}
+		return System.currentTimeMillis();
+	}
+
+	private static void stopMeasuring(Result result, long start) {
+		result.millis = System.currentTimeMillis() - start;
+		result.peakHeapBytes = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+				result.peakHeapBytes += pool.getPeakUsage().getUsed();
+			}
+		}
+	}
+
+	private ArrayList<Result> runAll() {
+		ArrayList<Result> ret = new ArrayList<>();
+		for (int n : CAPACITATED_SIZES) {
+			ret.add(runCapacitated(n));
+			System.out.println(ret.get(ret.size() - 1));
+		}
+		for (int n : KMEANS_SIZES) {
+			ret.add(runKMeans(n, false));
+			System.out.println(ret.get(ret.size() - 1));
+		}
+		ret.add(runKMeans(KMEANS_SIZES[KMEANS_SIZES.length - 1], true));
+		System.out.println(ret.get(ret.size() - 1));
+		return ret;
+	}
+
+	private static Properties toProperties(ArrayList<Result> results) {
+		Properties ret = new Properties();
+		for (Result result : results) {
+			ret.setProperty(result.name + ".cost", Double.toString(result.cost));
+			ret.setProperty(result.name + ".stepsPerSecond", Double.toString(result.getStepsPerSecond()));
+			ret.setProperty(result.name + ".peakHeapBytes", Long.toString(result.peakHeapBytes));
+		}
+		return ret;
+	}
+
+	/**
+	 * Compare the results to the baseline, printing each regression
+	 *
+	 * @return The number of regressions
+	 */
+	private static int compare(ArrayList<Result> results, Properties baseline, double costTolerance, double speedTolerance, double heapTolerance) {
+		int ret = 0;
+		for (Result result : results) {
+			String cost = baseline.getProperty(result.name + ".cost");
+			if (cost != null && result.cost > Double.parseDouble(cost) * (1 + costTolerance)) {
+				System.out.println("REGRESSION " + result.name + ": cost " + result.cost + " is worse than baseline " + cost);
+				ret++;
+			}
+
+			// cases which finish quickly are timed too coarsely to compare their speed
+			String speed = baseline.getProperty(result.name + ".stepsPerSecond");
+			if (speed != null && result.millis >= 1000 && result.getStepsPerSecond() < Double.parseDouble(speed) * (1 - speedTolerance)) {
+				System.out.println("REGRESSION " + result.name + ": steps/s " + result.getStepsPerSecond() + " is slower than baseline " + speed);
+				ret++;
+			}
+
+			String heap = baseline.getProperty(result.name + ".peakHeapBytes");
+			if (heap != null && result.peakHeapBytes > Long.parseLong(heap) * (1 + heapTolerance)) {
+				System.out.println("REGRESSION " + result.name + ": peak heap " + result.peakHeapBytes + " bytes is more than baseline " + heap);
+				ret++;
+			}
+		}
+		return ret;
+	}
+
+	public static void main(String[] args) throws IOException {
+		BenchmarkClusterers benchmark = new BenchmarkClusterers();
+		String saveFile = null;
+		String baselineFile = null;
+		double costTolerance = 0.02;
+		double speedTolerance = 0.25;
+		double heapTolerance = 0.25;
+		for (int i = 0; i < args.length - 1; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "-seconds":
+				benchmark.seconds = Integer.parseInt(value);
+				break;
+			case "-threads":
+				benchmark.nbThreads = Integer.parseInt(value);
+				break;
+			case "-save":
+				saveFile = value;
+				break;
+			case "-baseline":
+				baselineFile = value;
+				break;
+			case "-costTolerance":
+				costTolerance = Double.parseDouble(value);
+				break;
+			case "-speedTolerance":
+				speedTolerance = Double.parseDouble(value);
+				break;
+			case "-heapTolerance":
+				heapTolerance = Double.parseDouble(value);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+
+		ArrayList<Result> results = benchmark.runAll();
+
+		if (saveFile != null) {
+			try (OutputStream out = new FileOutputStream(new File(saveFile))) {
+				toProperties(results).store(out, "Clusterer benchmark, " + benchmark.seconds + " seconds per case, " + benchmark.nbThreads + " threads");
+			}
+		}
+
+		if (baselineFile != null) {
+			Properties baseline = new Properties();
+			try (InputStream in = new FileInputStream(new File(baselineFile))) {
+				baseline.load(in);
+			}
+			int nbRegressions = compare(results, baseline, costTolerance, speedTolerance, heapTolerance);
+			System.out.println(nbRegressions == 0 ? "No regressions against " + baselineFile : nbRegressions + " regressions against " + baselineFile);
+			System.exit(nbRegressions == 0 ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.components.cluster.capacitated.solver;
+
+import static junit.framework.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.opendoorlogistics.components.cluster.capacitated.data.ExampleClustererData;
+
+/**
+ * Test the cost changes from evaluateSet and evaluateSwap equal the change in cost from applying the move or swap and recalculating the
+ * solution from scratch
+ * 
+ * @author Phil
+ *
+ */
+public class EvaluatedSolutionTest {
+	private static final int NB_LOCATIONS = 60;
+	private static final int NB_CLUSTERS = 6;
+	private static final int NB_MOVES = 500;
+
+	private static Problem createProblem(boolean fixedClusters, boolean heterogeneous) {
+		ExampleClustererData data = new ExampleClustererData(false);
+		data.setFixedClusterSubset(fixedClusters);
+		data.setHetereogenousClusterCapacity(heterogeneous);
+		data.setHeterogeneousCostPerUnitTravel(heterogeneous);
+		return data.createProblem(NB_LOCATIONS, NB_CLUSTERS, 90);
+	}
+
+	/**
+	 * Create a random solution with some customers left unassigned
+	 * 
+	 * @param problem
+	 * @param immutableCentres
+	 * @param random
+	 * @return
+	 */
+	private static EvaluatedSolution createSolution(Problem problem, boolean immutableCentres, Random random) {
+		int nbClusters = problem.getNbClusters();
+		int[] centres = new int[nbClusters];
+		boolean[] used = new boolean[problem.getNbLocations()];
+		for (int i = 0; i < nbClusters; i++) {
+			centres[i] = problem.getFixedLocation(i);
+			if (centres[i] != -1) {
+				used[centres[i]] = true;
+			}
+		}
+		for (int i = 0; i < nbClusters; i++) {
+			if (centres[i] == -1) {
+				int location;
+				do {
+					location = random.nextInt(problem.getNbLocations());
+				} while (used[location]);
+				centres[i] = location;
+				used[location] = true;
+			}
+		}
+
+		EvaluatedSolution ret = new EvaluatedSolution(problem, centres);
+		ret.setAllCentresImmutable(immutableCentres);
+		for (int location = 0; location < problem.getNbLocations(); location++) {
+			if (!used[location] && random.nextInt(5) > 0) {
+				ret.setCustomerToCluster(location, random.nextInt(nbClusters));
+			}
+		}
+		return ret;
+	}
+
+	private static boolean isMovable(Problem problem, EvaluatedSolution solution, int customer, boolean immutableCentres) {
+		if (problem.getFixedClusterIndexByLocationIndex(customer) != -1) {
+			return false;
+		}
+
+		// immutable centres stay in their cluster
+		int cluster = solution.getClusterIndex(customer);
+		return !immutableCentres || cluster == -1 || solution.getClusterCentre(cluster) != customer;
+	}
+
+	/**
+	 * Get the change in cost from applying the move to a copy of the solution and recalculating it
+	 */
+	private static Cost appliedDelta(EvaluatedSolution solution, int customer1, int customer2OrCluster, boolean swap) {
+		EvaluatedSolution copy = new EvaluatedSolution(solution);
+		copy.update();
+		Cost before = new Cost(copy.getCost());
+		if (swap) {
+			int cluster1 = copy.getClusterIndex(customer1);
+			int cluster2 = copy.getClusterIndex(customer2OrCluster);
+			copy.setCustomerToCluster(customer1, cluster2);
+			copy.setCustomerToCluster(customer2OrCluster, cluster1);
+		} else {
+			copy.setCustomerToCluster(customer1, customer2OrCluster);
+		}
+		copy.update();
+
+		Cost ret = new Cost(copy.getCost());
+		ret.subtract(before);
+		return ret;
+	}
+
+	private static void assertApproxEqual(String message, Cost expected, Cost actual) {
+		boolean equal = Cost.isApproxEqual(expected, actual)
+				|| (Math.abs(expected.getTravel() - actual.getTravel()) < 1e-6 && Math.abs(expected.getCapacityViolation()
+						- actual.getCapacityViolation()) < 1e-6);
+		assertTrue(message + ": expected " + expected + " but was " + actual, equal);
+	}
+
+	private static void checkMoves(boolean fixedClusters, boolean heterogeneous, boolean immutableCentres) {
+		Problem problem = createProblem(fixedClusters, heterogeneous);
+		Random random = new Random(123);
+		EvaluatedSolution solution = createSolution(problem, immutableCentres, random);
+		int n = problem.getNbLocations();
+		Cost delta = new Cost();
+
+		int nbMoves = 0;
+		int nbSwaps = 0;
+		for (int i = 0; i < NB_MOVES; i++) {
+			int customer = random.nextInt(n);
+			if (!isMovable(problem, solution, customer, immutableCentres)) {
+				continue;
+			}
+
+			// move to another cluster or unassign
+			int cluster = random.nextInt(problem.getNbClusters() + 1) - 1;
+			solution.evaluateSet(customer, cluster, delta);
+			assertApproxEqual("Move " + customer + " to " + cluster, appliedDelta(solution, customer, cluster, false), delta);
+			nbMoves++;
+
+			// swap with a customer in another cluster
+			int other = random.nextInt(n);
+			if (isMovable(problem, solution, other, immutableCentres) && solution.getClusterIndex(customer) != -1
+					&& solution.getClusterIndex(other) != -1) {
+				solution.evaluateSwap(customer, other, delta);
+				assertApproxEqual("Swap " + customer + " with " + other, appliedDelta(solution, customer, other, true), delta);
+				nbSwaps++;
+			}
+
+			// apply some of the moves so the solution changes as it would during the search
+			if (random.nextInt(3) == 0) {
+				solution.setCustomerToCluster(customer, cluster);
+			}
+		}
+		assertTrue(nbMoves > 0 && nbSwaps > 0);
+	}
+
+	@Test
+	public void testMutableCentres() {
+		checkMoves(false, false, false);
+		checkMoves(false, true, false);
+	}
+
+	@Test
+	public void testImmutableCentres() {
+		checkMoves(false, false, true);
+		checkMoves(false, true, true);
+	}
+
+	@Test
+	public void testFixedClusters() {
+		checkMoves(true, false, false);
+		checkMoves(true, true, true);
+	}
+}
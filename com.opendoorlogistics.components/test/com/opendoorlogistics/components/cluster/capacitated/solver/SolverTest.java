@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.components.cluster.capacitated.solver;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.opendoorlogistics.components.cluster.capacitated.data.ExampleClustererData;
+import com.opendoorlogistics.components.cluster.capacitated.solver.Solver.HeuristicType;
+
+/**
+ * Test a run limited by the number of steps gives the same solution each time for the same seed and number of threads,
+ * and that restricting the local search to each customer's nearest neighbours costs little solution quality
+ * 
+ * @author Phil
+ *
+ */
+public class SolverTest {
+	private static final int NB_LOCATIONS = 150;
+	private static final int NB_CLUSTERS = 10;
+	private static final int NB_STEPS = 8;
+
+	private static final int NB_NEAREST_LOCATIONS = 25;
+	private static final int NB_PRUNED_LOCATIONS = 300;
+	private static final int NB_PRUNED_CLUSTERS = 15;
+	private static final int NB_PRUNED_STEPS = 3;
+	private static final int NB_PRUNED_SEEDS = 30;
+
+	private static EvaluatedSolution runSteps(Problem problem, int nbThreads, long seed, int nbSteps) {
+		return runSteps(problem, nbThreads, seed, nbSteps, NB_NEAREST_LOCATIONS);
+	}
+
+	private static EvaluatedSolution runSteps(Problem problem, int nbThreads, long seed, final int nbSteps, int nbNearestLocations) {
+		Solver solver = new Solver(problem, new ContinueCallback() {
+
+			@Override
+			public ContinueOption continueOptimisation(int steps, HeuristicType currentHeuristic, EvaluatedSolution best) {
+				return steps >= nbSteps ? ContinueOption.FINISH_NOW : ContinueOption.KEEP_GOING;
+			}
+		});
+		solver.setNbThreads(nbThreads);
+		solver.setRandomSeed(seed);
+		solver.setNbNearestLocations(nbNearestLocations);
+		EvaluatedSolution ret = solver.run();
+		assertNotNull(ret);
+		return ret;
+	}
+
+	private static void checkReproducible(int nbThreads) {
+		Problem problem = new ExampleClustererData(false).createProblem(NB_LOCATIONS, NB_CLUSTERS, 90);
+		for (long seed = 1; seed <= 3; seed++) {
+			EvaluatedSolution first = runSteps(problem, nbThreads, seed, NB_STEPS);
+			EvaluatedSolution second = runSteps(problem, nbThreads, seed, NB_STEPS);
+			for (int i = 0; i < problem.getNbLocations(); i++) {
+				assertEquals("Customer " + i + " with seed " + seed, first.getClusterIndex(i), second.getClusterIndex(i));
+			}
+			assertEquals(first.getCost().getTravel(), second.getCost().getTravel(), 0);
+			assertEquals(first.getCost().getCapacityViolation(), second.getCost().getCapacityViolation(), 0);
+		}
+	}
+
+	@Test
+	public void testSingleThreadReproducible() {
+		checkReproducible(1);
+	}
+
+	@Test
+	public void testParallelReproducible() {
+		checkReproducible(4);
+	}
+
+	/**
+	 * Compare the search using the 25 nearest customers against the search using all customers. A single run can differ by a few
+	 * percent either way as the searches take different paths, so the total cost over many seeds is compared instead.
+	 */
+	@Test
+	public void testNearestNeighbourPruning() {
+		Problem problem = new ExampleClustererData(false).createProblem(NB_PRUNED_LOCATIONS, NB_PRUNED_CLUSTERS, 90);
+		Cost pruned = new Cost();
+		Cost unpruned = new Cost();
+		for (long seed = 1; seed <= NB_PRUNED_SEEDS; seed++) {
+			pruned.add(runSteps(problem, 1, seed, NB_PRUNED_STEPS, NB_NEAREST_LOCATIONS).getCost());
+			unpruned.add(runSteps(problem, 1, seed, NB_PRUNED_STEPS, NB_PRUNED_LOCATIONS).getCost());
+		}
+
+		assertEquals(unpruned.getCapacityViolation(), pruned.getCapacityViolation(), 1e-6);
+		double ratio = pruned.getTravel() / unpruned.getTravel();
+		assertTrue("Pruned cost is " + ratio + " times unpruned", Math.abs(ratio - 1) <= 0.005);
+	}
+}
@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.components.cluster.kmeans;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.opendoorlogistics.api.ODLApi;
+import com.opendoorlogistics.api.components.ProcessingApi;
+import com.opendoorlogistics.core.api.impl.ODLApiImpl;
+
+/**
+ * Test k-means using Hamerly's bounds gives the same clusters and means as plain Lloyd's iterations, which calculate
+ * the distance from every point to every mean, starting from the same k-means++ seeds
+ * 
+ * @author Phil
+ *
+ */
+public class KMeansAlgorithmTest {
+	private static final double TOLERANCE = 1e-9;
+
+	private static class Reporter implements ProcessingApi {
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isFinishNow() {
+			return false;
+		}
+
+		@Override
+		public ODLApi getApi() {
+			return new ODLApiImpl();
+		}
+
+		@Override
+		public void postStatusMessage(String s) {
+		}
+
+		@Override
+		public void logWarning(String warning) {
+		}
+	}
+
+	/**
+	 * Create points scattered around randomly placed centres
+	 */
+	private static double[] createPoints(int n, int dimensions, int nbBlobs, long seed) {
+		Random random = new Random(seed);
+		double[] centres = new double[nbBlobs * dimensions];
+		for (int i = 0; i < centres.length; i++) {
+			centres[i] = random.nextDouble() * 100;
+		}
+
+		double[] ret = new double[n * dimensions];
+		for (int i = 0; i < n; i++) {
+			int blob = random.nextInt(nbBlobs);
+			for (int j = 0; j < dimensions; j++) {
+				ret[i * dimensions + j] = centres[blob * dimensions + j] + random.nextGaussian() * 8;
+			}
+		}
+		return ret;
+	}
+
+	private static double distance(double[] a, int offsetA, double[] b, int offsetB, int dimensions) {
+		double sum = 0;
+		for (int i = 0; i < dimensions; i++) {
+			double diff = a[offsetA + i] - b[offsetB + i];
+			sum += diff * diff;
+		}
+		return Math.sqrt(sum);
+	}
+
+	/**
+	 * Plain Lloyd's k-means, using the same k-means++ seeding and random number draws as {@link KMeansAlgorithm}
+	 */
+	private static double[] lloyds(int k, int randomseed, int dimensions, double[] points, int[] clusterNumbers) {
+		int n = points.length / dimensions;
+		Random random = new Random(randomseed);
+		double[] means = new double[k * dimensions];
+
+		// seed
+		double[] distanceSqd = new double[n];
+		Arrays.fill(distanceSqd, Double.MAX_VALUE);
+		System.arraycopy(points, random.nextInt(n) * dimensions, means, 0, dimensions);
+		for (int m = 1; m < k; m++) {
+			double total = 0;
+			for (int i = 0; i < n; i++) {
+				double d = distance(points, i * dimensions, means, (m - 1) * dimensions, dimensions);
+				distanceSqd[i] = Math.min(distanceSqd[i], d * d);
+				total += distanceSqd[i];
+			}
+
+			int chosen = random.nextInt(n);
+			if (total > 0) {
+				double target = random.nextDouble() * total;
+				for (int i = 0; i < n; i++) {
+					target -= distanceSqd[i];
+					if (target < 0 && distanceSqd[i] > 0) {
+						chosen = i;
+						break;
+					}
+				}
+			}
+			System.arraycopy(points, chosen * dimensions, means, m * dimensions, dimensions);
+		}
+
+		// iterate until no point changes mean
+		Arrays.fill(clusterNumbers, -1);
+		while (true) {
+			int nbChanges = 0;
+			for (int i = 0; i < n; i++) {
+				int closest = -1;
+				double closestDist = Double.MAX_VALUE;
+				for (int m = 0; m < k; m++) {
+					double dist = distance(points, i * dimensions, means, m * dimensions, dimensions);
+					if (dist < closestDist) {
+						closestDist = dist;
+						closest = m;
+					}
+				}
+				if (closest != clusterNumbers[i]) {
+					clusterNumbers[i] = closest;
+					nbChanges++;
+				}
+			}
+
+			double[] sums = new double[k * dimensions];
+			int[] counts = new int[k];
+			for (int i = 0; i < n; i++) {
+				int m = clusterNumbers[i];
+				counts[m]++;
+				for (int j = 0; j < dimensions; j++) {
+					sums[m * dimensions + j] += points[i * dimensions + j];
+				}
+			}
+			for (int m = 0; m < k; m++) {
+				if (counts[m] > 0) {
+					for (int j = 0; j < dimensions; j++) {
+						means[m * dimensions + j] = sums[m * dimensions + j] / counts[m];
+					}
+				}
+			}
+
+			if (nbChanges == 0) {
+				return means;
+			}
+		}
+	}
+
+	private static void compare(int n, int dimensions, int nbBlobs, int k, int nbThreads, int randomseed) {
+		double[] points = createPoints(n, dimensions, nbBlobs, randomseed);
+
+		int[] expectedClusters = new int[n];
+		double[] expectedMeans = lloyds(k, randomseed, dimensions, points, expectedClusters);
+
+		int[] clusters = new int[n];
+		double[] means = new KMeansAlgorithm().execute(k, randomseed, dimensions, points, null, nbThreads, clusters, new Reporter());
+
+		assertEquals(expectedMeans.length, means.length);
+		for (int i = 0; i < means.length; i++) {
+			assertEquals(expectedMeans[i], means[i], TOLERANCE);
+		}
+		for (int i = 0; i < n; i++) {
+			assertEquals("Point " + i, expectedClusters[i], clusters[i]);
+		}
+	}
+
+	@Test
+	public void testSmall() {
+		for (int seed = 0; seed < 10; seed++) {
+			compare(200, 2, 5, 5, 1, seed);
+		}
+	}
+
+	@Test
+	public void testManyMeans() {
+		compare(3000, 2, 60, 60, 1, 1);
+		compare(3000, 3, 25, 25, 1, 2);
+	}
+
+	@Test
+	public void testMoreMeansThanBlobs() {
+		// overlapping clusters take more iterations, so the bounds are updated many times
+		compare(2000, 2, 3, 12, 1, 3);
+	}
+
+	@Test
+	public void testParallelChunks() {
+		// enough points to be split into chunks assigned and averaged on different threads
+		compare(45000, 2, 20, 20, 4, 4);
+	}
+}
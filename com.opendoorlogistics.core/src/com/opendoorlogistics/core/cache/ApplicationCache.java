@@ -25,6 +25,7 @@ public class ApplicationCache {
 	public static final String ROUTE_GEOMETRY_CACHE = "route-geometry-cache";
 	public static final String GEOMETRY_MERGER_CACHE = "geometry-merge-cache";
 	public static final String GEOMETRY_BORDER_CACHE = "geometry-border-cache";
+	public static final String COMPILED_FORMULA_CACHE = "compiled-formula-cache";
 	
 	public static ApplicationCache singleton(){
 		return singleton;
@@ -36,6 +37,7 @@ public class ApplicationCache {
 		create(ROUTE_GEOMETRY_CACHE, 64 *MB);
 		create(GEOMETRY_MERGER_CACHE, 64* MB);
 		create(GEOMETRY_BORDER_CACHE, 64* MB);
+		create(COMPILED_FORMULA_CACHE, 16* MB);
 	}
 	
 	public RecentlyUsedCache get(String cacheId){
@@ -47,7 +49,7 @@ public class ApplicationCache {
 			throw new RuntimeException("Cache already exists with id: " + cacheId);
 		}
 		
-		RecentlyUsedCache ret = new RecentlyUsedCache(maxSizeInBytes);
+		RecentlyUsedCache ret = new RecentlyUsedCache(cacheId, maxSizeInBytes);
 		caches.put(cacheId,ret );
 		return ret;
 	}
@@ -22,6 +22,8 @@ import com.opendoorlogistics.core.utils.Pair;
  *
  */
 final public class RecentlyUsedCache {
+	private static final ThreadLocal<LookupListener> lookupListener = new ThreadLocal<>();
+	private final String cacheId;
 	private long timeIndex=0;
 	private long totalBytes;
 	//private static long DEFAULT_BYTES_LIMIT = 64 * 1024 * 1024;
@@ -29,9 +31,40 @@ final public class RecentlyUsedCache {
 	private HashMap<Object, CacheEntry> cached = new HashMap<>();
 	
 	public RecentlyUsedCache(long bytesLimit){
+		this(null, bytesLimit);
+	}
+	
+	/**
+	 * @param cacheId Id reported to lookup listeners. Lookups in caches without an id are not reported.
+	 * @param bytesLimit
+	 */
+	public RecentlyUsedCache(String cacheId,long bytesLimit){
+		this.cacheId = cacheId;
 		this.bytesLimit = bytesLimit;
 	}
 	
+	/**
+	 * Told about each lookup made by the thread the listener is set on
+	 */
+	public interface LookupListener{
+		void onLookup(String cacheId, boolean hit);
+	}
+	
+	/**
+	 * Set the listener for lookups made by the calling thread
+	 * @param listener Listener or null to remove it
+	 * @return The previous listener, which should be restored afterwards
+	 */
+	public static LookupListener setLookupListener(LookupListener listener){
+		LookupListener ret = lookupListener.get();
+		if(listener!=null){
+			lookupListener.set(listener);
+		}else{
+			lookupListener.remove();
+		}
+		return ret;
+	}
+	
 //	public RecentlyUsedCache(){
 //		this(DEFAULT_BYTES_LIMIT);
 //	}
@@ -98,7 +131,18 @@ final public class RecentlyUsedCache {
 	}
 	
 	
-	public synchronized Object get(Object key){
+	public Object get(Object key){
+		Object ret = getEntry(key);
+		if(cacheId!=null){
+			LookupListener listener = lookupListener.get();
+			if(listener!=null){
+				listener.onLookup(cacheId, ret!=null);
+			}
+		}
+		return ret;
+	}
+	
+	private synchronized Object getEntry(Object key){
 		CacheEntry c = cached.get(key);
 		if(c!=null){
 			c.lastUsed = timeIndex;
@@ -0,0 +1,18 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.formulae;
+
+/**
+ * Marker interface for functions which hold references to the datastores, tables or rows of the adapter they were built for (e.g.
+ * lookups, aggregates and images). A formula containing one of these can't be reused by another adapter build.
+ *
+ * @author Phil
+ *
+ */
+public interface AdapterBoundFunction {
+
+}
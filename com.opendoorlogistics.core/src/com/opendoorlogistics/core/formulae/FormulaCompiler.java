@@ -0,0 +1,783 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.formulae;
+
+import java.awt.image.BufferedImage;
+
+import com.opendoorlogistics.core.formulae.Functions.Fm1DoubleParam;
+import com.opendoorlogistics.core.formulae.Functions.Fm1ParamBase;
+import com.opendoorlogistics.core.formulae.Functions.FmAnd;
+import com.opendoorlogistics.core.formulae.Functions.FmComparisonBase;
+import com.opendoorlogistics.core.formulae.Functions.FmConst;
+import com.opendoorlogistics.core.formulae.Functions.FmDivide;
+import com.opendoorlogistics.core.formulae.Functions.FmIfThenElse;
+import com.opendoorlogistics.core.formulae.Functions.FmMax;
+import com.opendoorlogistics.core.formulae.Functions.FmMin;
+import com.opendoorlogistics.core.formulae.Functions.FmMod;
+import com.opendoorlogistics.core.formulae.Functions.FmMultiply;
+import com.opendoorlogistics.core.formulae.Functions.FmOr;
+import com.opendoorlogistics.core.formulae.Functions.FmSubtract;
+import com.opendoorlogistics.core.formulae.Functions.FmSum;
+import com.opendoorlogistics.core.utils.Numbers;
+import com.opendoorlogistics.core.utils.images.ImageUtils;
+
+/**
+ * Optional compilation stage run after {@link FormulaParser#parse(String)}. The compiler turns the arithmetic, comparison and boolean parts of a
+ * function tree into typed nodes which evaluate directly to double or long values, so intermediate results are not boxed and no Object arrays are
+ * allocated per call. The and / or / if nodes short-circuit on the primitive value.<br>
+ * Functions the compiler doesn't understand are kept as interpreted functions, although their children are still compiled where possible. The
+ * returned function gives exactly the same results as the interpreted one, including {@link Functions#EXECUTION_ERROR}.<br>
+ * The input tree is adopted by the compiler and may have its children replaced, so callers should use the returned function instead.
+ *
+ * @author Phil
+ *
+ */
+public final class FormulaCompiler {
+	private static volatile boolean enabled = true;
+
+	private FormulaCompiler() {
+	}
+
+	/**
+	 * The type a compiled function always returns, unless it fails.
+	 */
+	public enum ResultType {
+		DOUBLE, LONG, OBJECT
+	}
+
+	/**
+	 * Thrown by the primitive evaluation methods when the interpreter would have returned {@link Functions#EXECUTION_ERROR}, or a null value was
+	 * found where a number was needed. A single instance without a stack trace is used so throwing is cheap.
+	 */
+	private static final class EvaluationFailedException extends RuntimeException {
+		private static final long serialVersionUID = -3851062241947301926L;
+
+		private EvaluationFailedException() {
+			super("Formula evaluation failed", null, false, false);
+		}
+	}
+
+	private static final EvaluationFailedException FAILED = new EvaluationFailedException();
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		FormulaCompiler.enabled = enabled;
+	}
+
+	/**
+	 * Compile the function tree if compilation is enabled, otherwise return it unchanged
+	 *
+	 * @param function
+	 * @return
+	 */
+	public static Function compileIfEnabled(Function function) {
+		if (enabled) {
+			return compile(function);
+		}
+		return function;
+	}
+
+	/**
+	 * Compile the function tree. The result should be used in place of the input function.
+	 *
+	 * @param function
+	 * @return
+	 */
+	public static Function compile(Function function) {
+		if (function == null || CompiledFunction.class.isInstance(function)) {
+			return function;
+		}
+
+		// constants
+		if (FmConst.class.isInstance(function)) {
+			Object val = ((FmConst) function).value();
+			if (val != null && val.getClass() == Long.class) {
+				return new ConstLong(function, (Long) val);
+			}
+			if (val != null && val.getClass() == Double.class) {
+				return new ConstDouble(function, (Double) val);
+			}
+			return function;
+		}
+
+		// compile all children first
+		int n = function.nbChildren();
+		Function[] children = new Function[n];
+		for (int i = 0; i < n; i++) {
+			children[i] = compile(function.child(i));
+		}
+
+		CompiledFunction ret = compileNode(function, children);
+		if (ret != null) {
+			return ret;
+		}
+
+		// keep as an interpreted function but use the compiled children
+		for (int i = 0; i < n; i++) {
+			if (children[i] != function.child(i) && CompiledFunction.class.isInstance(children[i])) {
+				function.replaceChild(i, children[i]);
+			}
+		}
+		return function;
+	}
+
+	/**
+	 * Create a typed node for the function or return null if the function should stay interpreted
+	 *
+	 * @param function
+	 * @param children
+	 * @return
+	 */
+	private static CompiledFunction compileNode(Function function, Function[] children) {
+		int n = children.length;
+		CompiledFunction[] compiled = new CompiledFunction[n];
+		for (int i = 0; i < n; i++) {
+			compiled[i] = toCompiled(children[i]);
+		}
+
+		if (FmSum.class.isInstance(function)) {
+			// the interpreter adds images together if the first value is an image,
+			// so we need a runtime check unless the first value is known to be a number
+			if (n == 0 || compiled[0].resultType() != ResultType.OBJECT) {
+				return new Sum(function, compiled);
+			}
+			return new SumOrAddImages(function, compiled);
+		}
+
+		if (FmMultiply.class.isInstance(function)) {
+			return new Multiply(function, compiled);
+		}
+
+		if (FmSubtract.class.isInstance(function) && n == 2) {
+			return new Subtract(function, compiled);
+		}
+
+		if (FmDivide.class.isInstance(function) && n == 2) {
+			return new Divide(function, compiled);
+		}
+
+		if (FmMod.class.isInstance(function) && n == 2) {
+			return new Mod(function, compiled);
+		}
+
+		if (FmComparisonBase.class.isInstance(function) && n == 2) {
+			return new Comparison((FmComparisonBase) function, compiled);
+		}
+
+		if (FmAnd.class.isInstance(function)) {
+			return new And(function, compiled);
+		}
+
+		if (FmOr.class.isInstance(function)) {
+			return new Or(function, compiled);
+		}
+
+		if (FmIfThenElse.class.isInstance(function) && n == 3) {
+			ResultType thenType = compiled[1].resultType();
+			if (thenType == ResultType.DOUBLE && compiled[2].resultType() == ResultType.DOUBLE) {
+				return new IfDouble(function, compiled);
+			}
+			if (thenType == ResultType.LONG && compiled[2].resultType() == ResultType.LONG) {
+				return new IfLong(function, compiled);
+			}
+			return new IfObject(function, compiled);
+		}
+
+		if (Fm1DoubleParam.class.isInstance(function) && n == 1) {
+			// always evaluated as a double
+			return new UnaryDouble((Fm1ParamBase) function, compiled);
+		}
+
+		if (Fm1ParamBase.class.isInstance(function) && n == 1) {
+			// the interpreter keeps integer values as longs, so we can only compile if we know the type of the child
+			switch (compiled[0].resultType()) {
+			case DOUBLE:
+				return new UnaryDouble((Fm1ParamBase) function, compiled);
+			case LONG:
+				return new UnaryLong((Fm1ParamBase) function, compiled);
+			default:
+				return null;
+			}
+		}
+
+		if ((FmMax.class.isInstance(function) || FmMin.class.isInstance(function)) && n > 0) {
+			// max and min return the original object so all children must have the same type
+			boolean isMax = FmMax.class.isInstance(function);
+			ResultType type = compiled[0].resultType();
+			for (int i = 1; i < n; i++) {
+				if (compiled[i].resultType() != type) {
+					return null;
+				}
+			}
+			switch (type) {
+			case DOUBLE:
+				return new MaxMinDouble(function, compiled, isMax);
+			case LONG:
+				return new MaxMinLong(function, compiled, isMax);
+			default:
+				return null;
+			}
+		}
+
+		return null;
+	}
+
+	private static CompiledFunction toCompiled(Function function) {
+		if (CompiledFunction.class.isInstance(function)) {
+			return (CompiledFunction) function;
+		}
+		return new Interpreted(function);
+	}
+
+	/**
+	 * Count the number of nodes in the tree which were compiled to typed nodes
+	 *
+	 * @param function
+	 * @return
+	 */
+	public static int countCompiledNodes(Function function) {
+		int ret = 0;
+		if (CompiledFunction.class.isInstance(function) && !Interpreted.class.isInstance(function)) {
+			ret++;
+		}
+		int n = function.nbChildren();
+		for (int i = 0; i < n; i++) {
+			ret += countCompiledNodes(function.child(i));
+		}
+		return ret;
+	}
+
+	/**
+	 * Base class for all compiled nodes. The primitive evaluation methods throw an {@link EvaluationFailedException} instead of returning
+	 * {@link Functions#EXECUTION_ERROR}; {@link #execute(FunctionParameters)} converts this back.
+	 */
+	public static abstract class CompiledFunction implements Function {
+		protected final Function source;
+		protected final CompiledFunction[] children;
+
+		protected CompiledFunction(Function source, CompiledFunction[] children) {
+			this.source = source;
+			this.children = children;
+		}
+
+		public abstract ResultType resultType();
+
+		/**
+		 * Evaluate as a double, using the same conversion as the interpreter's numeric functions.
+		 *
+		 * @param parameters
+		 * @return
+		 */
+		public double executeDouble(FunctionParameters parameters) {
+			Object o = execute(parameters);
+			if (o == null || o == Functions.EXECUTION_ERROR) {
+				throw FAILED;
+			}
+			Double d = Numbers.toDouble(o);
+			if (d == null) {
+				throw FAILED;
+			}
+			return d;
+		}
+
+		/**
+		 * Evaluate as a long
+		 *
+		 * @param parameters
+		 * @return
+		 */
+		public long executeLong(FunctionParameters parameters) {
+			Object o = execute(parameters);
+			if (o == null || o == Functions.EXECUTION_ERROR) {
+				throw FAILED;
+			}
+			Long l = Numbers.toLong(o);
+			if (l == null) {
+				throw FAILED;
+			}
+			return l;
+		}
+
+		@Override
+		public int nbChildren() {
+			return children != null ? children.length : 0;
+		}
+
+		@Override
+		public Function child(int i) {
+			return children[i];
+		}
+
+		@Override
+		public void replaceChild(int i, Function newChild) {
+			children[i] = toCompiled(newChild);
+		}
+
+		@Override
+		public Function deepCopy() {
+			return compile(source.deepCopy());
+		}
+
+		@Override
+		public boolean hasBrackets() {
+			return source.hasBrackets();
+		}
+
+		@Override
+		public String toString() {
+			return source.toString();
+		}
+
+		public Function getSource() {
+			return source;
+		}
+	}
+
+	/**
+	 * Wraps a function which is still interpreted so it can be used as the child of a compiled node
+	 */
+	private static final class Interpreted extends CompiledFunction {
+		Interpreted(Function source) {
+			super(source, null);
+		}
+
+		@Override
+		public ResultType resultType() {
+			return ResultType.OBJECT;
+		}
+
+		@Override
+		public Object execute(FunctionParameters parameters) {
+			return source.execute(parameters);
+		}
+
+		@Override
+		public int nbChildren() {
+			return source.nbChildren();
+		}
+
+		@Override
+		public Function child(int i) {
+			return source.child(i);
+		}
+
+		@Override
+		public void replaceChild(int i, Function newChild) {
+			source.replaceChild(i, newChild);
+		}
+
+		@Override
+		public Function deepCopy() {
+			return new Interpreted(source.deepCopy());
+		}
+	}
+
+	private static abstract class DoubleNode extends CompiledFunction {
+		DoubleNode(Function source, CompiledFunction[] children) {
+			super(source, children);
+		}
+
+		@Override
+		public abstract double executeDouble(FunctionParameters parameters);
+
+		@Override
+		public long executeLong(FunctionParameters parameters) {
+			return (long) executeDouble(parameters);
+		}
+
+		@Override
+		public ResultType resultType() {
+			return ResultType.DOUBLE;
+		}
+
+		@Override
+		public Object execute(FunctionParameters parameters) {
+			try {
+				return executeDouble(parameters);
+			} catch (EvaluationFailedException e) {
+				return Functions.EXECUTION_ERROR;
+			}
+		}
+	}
+
+	private static abstract class LongNode extends CompiledFunction {
+		LongNode(Function source, CompiledFunction[] children) {
+			super(source, children);
+		}
+
+		@Override
+		public abstract long executeLong(FunctionParameters parameters);
+
+		@Override
+		public double executeDouble(FunctionParameters parameters) {
+			return executeLong(parameters);
+		}
+
+		@Override
+		public ResultType resultType() {
+			return ResultType.LONG;
+		}
+
+		@Override
+		public Object execute(FunctionParameters parameters) {
+			try {
+				return executeLong(parameters);
+			} catch (EvaluationFailedException e) {
+				return Functions.EXECUTION_ERROR;
+			}
+		}
+	}
+
+	private static final class ConstDouble extends DoubleNode {
+		private final double val;
+		private final Double boxed;
+
+		ConstDouble(Function source, Double val) {
+			super(source, null);
+			this.val = val;
+			this.boxed = val;
+		}
+
+		@Override
+		public double executeDouble(FunctionParameters parameters) {
+			return val;
+		}
+
+		@Override
+		public Object execute(FunctionParameters parameters) {
+			return boxed;
+		}
+	}
+
+	private static final class ConstLong extends LongNode {
+		private final long val;
+		private final Long boxed;
+
+		ConstLong(Function source, Long val) {
+			super(source, null);
+			this.val = val;
+			this.boxed = val;
+		}
+
+		@Override
+		public long executeLong(FunctionParameters parameters) {
+			return val;
+		}
+
+		@Override
+		public Object execute(FunctionParameters parameters) {
+			return boxed;
+		}
+	}
+
+	private static final class Sum extends DoubleNode {
+		Sum(Function source, CompiledFunction[] children) {
+			super(source, children);
+		}
+
+		@Override
+		public double executeDouble(FunctionParameters parameters) {
+			double ret = 0;
+			for (CompiledFunction child : children) {
+				ret += child.executeDouble(parameters);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Sum where the first value could be an image, in which case all values are added together as images
+	 */
+	private static final class SumOrAddImages extends CompiledFunction {
+		SumOrAddImages(Function source, CompiledFunction[] children) {
+			super(source, children);
+		}
+
+		@Override
+		public ResultType resultType() {
+			return ResultType.OBJECT;
+		}
+
+		@Override
+		public Object execute(FunctionParameters parameters) {
+			Object first = children[0].execute(parameters);
+			if (first == null || first == Functions.EXECUTION_ERROR) {
+				return Functions.EXECUTION_ERROR;
+			}
+
+			if (BufferedImage.class.isInstance(first)) {
+				BufferedImage[] images = new BufferedImage[children.length];
+				images[0] = (BufferedImage) first;
+				for (int i = 1; i < children.length; i++) {
+					Object o = children[i].execute(parameters);
+					if (o == null || o == Functions.EXECUTION_ERROR) {
+						return Functions.EXECUTION_ERROR;
+					}
+					images[i] = (BufferedImage) o;
+				}
+				return ImageUtils.addImages(images);
+			}
+
+			Double d = Numbers.toDouble(first);
+			if (d == null) {
+				return Functions.EXECUTION_ERROR;
+			}
+
+			double ret = d;
+			try {
+				for (int i = 1; i < children.length; i++) {
+					ret += children[i].executeDouble(parameters);
+				}
+			} catch (EvaluationFailedException e) {
+				return Functions.EXECUTION_ERROR;
+			}
+			return ret;
+		}
+
+		@Override
+		public double executeDouble(FunctionParameters parameters) {
+			Object o = execute(parameters);
+			if (!Double.class.isInstance(o)) {
+				throw FAILED;
+			}
+			return (Double) o;
+		}
+	}
+
+	private static final class Multiply extends DoubleNode {
+		Multiply(Function source, CompiledFunction[] children) {
+			super(source, children);
+		}
+
+		@Override
+		public double executeDouble(FunctionParameters parameters) {
+			double ret = 1;
+			for (CompiledFunction child : children) {
+				ret *= child.executeDouble(parameters);
+			}
+			return ret;
+		}
+	}
+
+	private static final class Subtract extends DoubleNode {
+		Subtract(Function source, CompiledFunction[] children) {
+			super(source, children);
+		}
+
+		@Override
+		public double executeDouble(FunctionParameters parameters) {
+			return children[0].executeDouble(parameters) - children[1].executeDouble(parameters);
+		}
+	}
+
+	private static final class Divide extends DoubleNode {
+		Divide(Function source, CompiledFunction[] children) {
+			super(source, children);
+		}
+
+		@Override
+		public double executeDouble(FunctionParameters parameters) {
+			return children[0].executeDouble(parameters) / children[1].executeDouble(parameters);
+		}
+	}
+
+	private static final class Mod extends LongNode {
+		Mod(Function source, CompiledFunction[] children) {
+			super(source, children);
+		}
+
+		@Override
+		public long executeLong(FunctionParameters parameters) {
+			// the interpreter converts to double first and then takes the long value
+			long a = (long) children[0].executeDouble(parameters);
+			long b = (long) children[1].executeDouble(parameters);
+			if (b == 0) {
+				throw FAILED;
+			}
+			return a % b;
+		}
+	}
+
+	private static final class Comparison extends LongNode {
+		private final FmComparisonBase comparison;
+
+		Comparison(FmComparisonBase source, CompiledFunction[] children) {
+			super(source, children);
+			this.comparison = source;
+		}
+
+		@Override
+		public long executeLong(FunctionParameters parameters) {
+			double a = children[0].executeDouble(parameters);
+			double b = children[1].executeDouble(parameters);
+			return (Long) comparison.compare(a, b);
+		}
+	}
+
+	private static final class And extends LongNode {
+		And(Function source, CompiledFunction[] children) {
+			super(source, children);
+		}
+
+		@Override
+		public long executeLong(FunctionParameters parameters) {
+			for (CompiledFunction child : children) {
+				if (child.executeDouble(parameters) != 1) {
+					return 0;
+				}
+			}
+			return 1;
+		}
+	}
+
+	private static final class Or extends LongNode {
+		Or(Function source, CompiledFunction[] children) {
+			super(source, children);
+		}
+
+		@Override
+		public long executeLong(FunctionParameters parameters) {
+			for (CompiledFunction child : children) {
+				if (child.executeDouble(parameters) == 1) {
+					return 1;
+				}
+			}
+			return 0;
+		}
+	}
+
+	private static final class IfDouble extends DoubleNode {
+		IfDouble(Function source, CompiledFunction[] children) {
+			super(source, children);
+		}
+
+		@Override
+		public double executeDouble(FunctionParameters parameters) {
+			if (children[0].executeDouble(parameters) == 1) {
+				return children[1].executeDouble(parameters);
+			}
+			return children[2].executeDouble(parameters);
+		}
+	}
+
+	private static final class IfLong extends LongNode {
+		IfLong(Function source, CompiledFunction[] children) {
+			super(source, children);
+		}
+
+		@Override
+		public long executeLong(FunctionParameters parameters) {
+			if (children[0].executeDouble(parameters) == 1) {
+				return children[1].executeLong(parameters);
+			}
+			return children[2].executeLong(parameters);
+		}
+	}
+
+	/**
+	 * If with a compiled condition but branches of differing or unknown types
+	 */
+	private static final class IfObject extends CompiledFunction {
+		IfObject(Function source, CompiledFunction[] children) {
+			super(source, children);
+		}
+
+		@Override
+		public ResultType resultType() {
+			return ResultType.OBJECT;
+		}
+
+		@Override
+		public Object execute(FunctionParameters parameters) {
+			double condition;
+			try {
+				condition = children[0].executeDouble(parameters);
+			} catch (EvaluationFailedException e) {
+				return Functions.EXECUTION_ERROR;
+			}
+
+			if (condition == 1) {
+				return children[1].execute(parameters);
+			}
+			return children[2].execute(parameters);
+		}
+	}
+
+	private static final class UnaryDouble extends DoubleNode {
+		private final Fm1ParamBase function;
+
+		UnaryDouble(Fm1ParamBase source, CompiledFunction[] children) {
+			super(source, children);
+			this.function = source;
+		}
+
+		@Override
+		public double executeDouble(FunctionParameters parameters) {
+			return function.execute(children[0].executeDouble(parameters));
+		}
+	}
+
+	private static final class UnaryLong extends LongNode {
+		private final Fm1ParamBase function;
+
+		UnaryLong(Fm1ParamBase source, CompiledFunction[] children) {
+			super(source, children);
+			this.function = source;
+		}
+
+		@Override
+		public long executeLong(FunctionParameters parameters) {
+			return function.execute(children[0].executeLong(parameters));
+		}
+	}
+
+	private static final class MaxMinDouble extends DoubleNode {
+		private final boolean isMax;
+
+		MaxMinDouble(Function source, CompiledFunction[] children, boolean isMax) {
+			super(source, children);
+			this.isMax = isMax;
+		}
+
+		@Override
+		public double executeDouble(FunctionParameters parameters) {
+			double ret = children[0].executeDouble(parameters);
+			for (int i = 1; i < children.length; i++) {
+				double val = children[i].executeDouble(parameters);
+				if (isMax ? val > ret : val < ret) {
+					ret = val;
+				}
+			}
+			return ret;
+		}
+	}
+
+	private static final class MaxMinLong extends LongNode {
+		private final boolean isMax;
+
+		MaxMinLong(Function source, CompiledFunction[] children, boolean isMax) {
+			super(source, children);
+			this.isMax = isMax;
+		}
+
+		@Override
+		public long executeLong(FunctionParameters parameters) {
+			// compare as doubles, the same as the interpreter
+			long ret = children[0].executeLong(parameters);
+			for (int i = 1; i < children.length; i++) {
+				long val = children[i].executeLong(parameters);
+				if (isMax ? (double) val > (double) ret : (double) val < (double) ret) {
+					ret = val;
+				}
+			}
+			return ret;
+		}
+	}
+}
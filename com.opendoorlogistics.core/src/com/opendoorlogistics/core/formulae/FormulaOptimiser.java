@@ -0,0 +1,426 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.formulae;
+
+import java.awt.Color;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import com.opendoorlogistics.core.formulae.Functions.FmConst;
+
+/**
+ * Optimisation pass run over a function tree after {@link FormulaParser#parse(String)}. The pass:
+ * <ul>
+ * <li>Folds constant expressions into a single {@link FmConst}, e.g. colour arithmetic on constants.</li>
+ * <li>Shares identical sub-expressions, e.g. the same lookup repeated inside an if, so they are executed only once for each set of
+ * {@link FunctionParameters} (i.e. once per row evaluation).</li>
+ * </ul>
+ * Functions marked as {@link ImpureFunction} are never folded or shared. Only functions from the core {@link Functions} library are folded, as
+ * other functions (lookups, local elements etc) read from the tables and so are not constant even if all their inputs are.<br>
+ * The input tree may have its children replaced, so callers should use the returned function instead.
+ *
+ * @author Phil
+ *
+ */
+public final class FormulaOptimiser {
+	private static volatile boolean enabled = true;
+
+	private FormulaOptimiser() {
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		FormulaOptimiser.enabled = enabled;
+	}
+
+	/**
+	 * Result of the optimisation, including diagnostics
+	 */
+	public static final class OptimisedFunction {
+		private final Function function;
+		private final int sizeBefore;
+		private final int sizeAfter;
+		private final int nbFolded;
+		private final int nbShared;
+
+		private OptimisedFunction(Function function, int sizeBefore, int sizeAfter, int nbFolded, int nbShared) {
+			this.function = function;
+			this.sizeBefore = sizeBefore;
+			this.sizeAfter = sizeAfter;
+			this.nbFolded = nbFolded;
+			this.nbShared = nbShared;
+		}
+
+		public Function getFunction() {
+			return function;
+		}
+
+		/**
+		 * @return Number of function nodes before optimisation
+		 */
+		public int getSizeBefore() {
+			return sizeBefore;
+		}
+
+		/**
+		 * @return Number of distinct function nodes executed after optimisation; shared expressions are only counted once
+		 */
+		public int getSizeAfter() {
+			return sizeAfter;
+		}
+
+		public int getNbFolded() {
+			return nbFolded;
+		}
+
+		public int getNbShared() {
+			return nbShared;
+		}
+
+		@Override
+		public String toString() {
+			return "Tree size " + sizeBefore + " -> " + sizeAfter + ", folded " + nbFolded + " constant expression(s), shared " + nbShared
+					+ " sub-expression(s)";
+		}
+	}
+
+	/**
+	 * Optimise the function if optimisation is enabled, otherwise return it unchanged
+	 *
+	 * @param function
+	 * @return
+	 */
+	public static Function optimiseIfEnabled(Function function) {
+		if (enabled && function != null) {
+			return optimise(function).getFunction();
+		}
+		return function;
+	}
+
+	/**
+	 * Optimise the function tree
+	 *
+	 * @param function
+	 * @return
+	 */
+	public static OptimisedFunction optimise(Function function) {
+		int sizeBefore = treeSize(function);
+
+		Optimiser optimiser = new Optimiser();
+		function = optimiser.fold(function);
+		optimiser.buildKeys(function);
+		function = optimiser.share(function);
+
+		return new OptimisedFunction(function, sizeBefore, treeSize(function), optimiser.nbFolded, optimiser.shared.size());
+	}
+
+	/**
+	 * Get the number of distinct function nodes in the tree. A shared sub-expression is only counted once.
+	 *
+	 * @param function
+	 * @return
+	 */
+	public static int treeSize(Function function) {
+		return treeSize(function, new IdentityHashMap<Function, Boolean>());
+	}
+
+	private static int treeSize(Function function, IdentityHashMap<Function, Boolean> visited) {
+		if (function == null || visited.put(function, Boolean.TRUE) != null) {
+			return 0;
+		}
+
+		int ret = SharedFunction.class.isInstance(function) ? 0 : 1;
+		int n = function.nbChildren();
+		for (int i = 0; i < n; i++) {
+			ret += treeSize(function.child(i), visited);
+		}
+		return ret;
+	}
+
+	private static class Optimiser {
+		final IdentityHashMap<Function, String> keys = new IdentityHashMap<>();
+		final HashMap<String, Integer> keyCounts = new HashMap<>();
+		final HashMap<String, SharedFunction> shared = new HashMap<>();
+		int nbFolded;
+
+		/**
+		 * Fold constant expressions, working from the leaves upwards
+		 *
+		 * @param function
+		 * @return
+		 */
+		Function fold(Function function) {
+			int n = function.nbChildren();
+			boolean allConst = n > 0;
+			for (int i = 0; i < n; i++) {
+				Function child = function.child(i);
+				Function folded = fold(child);
+				if (folded != child) {
+					function.replaceChild(i, folded);
+				}
+				if (!FmConst.class.isInstance(folded)) {
+					allConst = false;
+				}
+			}
+
+			if (!allConst || !isFoldable(function)) {
+				return function;
+			}
+
+			Object value;
+			try {
+				value = function.execute(null);
+			} catch (Throwable e) {
+				// leave it to fail when it's executed properly
+				return function;
+			}
+
+			// only fold immutable values as the value will be returned for every row
+			if (value == null || value == Functions.EXECUTION_ERROR) {
+				return function;
+			}
+			if (!Number.class.isInstance(value) && !String.class.isInstance(value) && !Color.class.isInstance(value)
+					&& !Boolean.class.isInstance(value)) {
+				return function;
+			}
+
+			nbFolded++;
+			return new FmConst(value);
+		}
+
+		boolean isFoldable(Function function) {
+			Class<?> cls = function.getClass();
+			return cls.getEnclosingClass() == Functions.class && !FmConst.class.isInstance(function) && !ImpureFunction.class.isInstance(function);
+		}
+
+		/**
+		 * Build the structural keys for all pure, non-leaf nodes in the tree and count how many times each occurs
+		 *
+		 * @param function
+		 * @return The key or null if the function is impure
+		 */
+		String buildKeys(Function function) {
+			StringBuilder builder = new StringBuilder();
+			builder.append(function.getClass().getName());
+			builder.append('{');
+			appendState(function, builder);
+			builder.append('}');
+
+			int n = function.nbChildren();
+			boolean pure = !ImpureFunction.class.isInstance(function);
+			builder.append('(');
+			for (int i = 0; i < n; i++) {
+				String childKey = buildKeys(function.child(i));
+				if (childKey == null) {
+					pure = false;
+				} else if (pure) {
+					if (i > 0) {
+						builder.append(',');
+					}
+					builder.append(childKey);
+				}
+			}
+			builder.append(')');
+
+			if (!pure) {
+				return null;
+			}
+
+			String key = builder.toString();
+			if (n > 0) {
+				keys.put(function, key);
+				Integer count = keyCounts.get(key);
+				keyCounts.put(key, count != null ? count + 1 : 1);
+			}
+			return key;
+		}
+
+		/**
+		 * Append the values of the function's own fields, so functions of the same class which were built with different settings (e.g.
+		 * lookup type) are not treated as identical.
+		 *
+		 * @param function
+		 * @param builder
+		 */
+		void appendState(Function function, StringBuilder builder) {
+			if (FmConst.class.isInstance(function)) {
+				Object val = ((FmConst) function).value();
+				builder.append(val != null ? val.getClass().getName() + ":" + val.toString() : "null");
+				return;
+			}
+
+			Class<?> cls = function.getClass();
+			while (cls != null && cls != FunctionImpl.class && cls != Object.class) {
+				for (Field field : cls.getDeclaredFields()) {
+					if (Modifier.isStatic(field.getModifiers())) {
+						continue;
+					}
+					Object val;
+					try {
+						field.setAccessible(true);
+						val = field.get(function);
+					} catch (Exception e) {
+						val = function;
+					}
+					builder.append(field.getName());
+					builder.append('=');
+					builder.append(stateToString(val));
+					builder.append(';');
+				}
+				cls = cls.getSuperclass();
+			}
+		}
+
+		String stateToString(Object val) {
+			if (val == null) {
+				return "null";
+			}
+			if (Number.class.isInstance(val) || String.class.isInstance(val) || Boolean.class.isInstance(val) || Character.class.isInstance(val)
+					|| Enum.class.isInstance(val)) {
+				return val.getClass().getName() + ":" + val.toString();
+			}
+			if (int[].class.isInstance(val)) {
+				return Arrays.toString((int[]) val);
+			}
+			if (long[].class.isInstance(val)) {
+				return Arrays.toString((long[]) val);
+			}
+			if (double[].class.isInstance(val)) {
+				return Arrays.toString((double[]) val);
+			}
+			if (boolean[].class.isInstance(val)) {
+				return Arrays.toString((boolean[]) val);
+			}
+			if (Function.class.isInstance(val) || Function[].class.isInstance(val)) {
+				// child functions are already in the key
+				return "f";
+			}
+
+			// we don't know if other objects are equal, so compare by identity
+			return val.getClass().getName() + "@" + System.identityHashCode(val);
+		}
+
+		/**
+		 * Replace repeated sub-expressions with a single shared function, working from the root downwards
+		 *
+		 * @param function
+		 * @return
+		 */
+		Function share(Function function) {
+			String key = keys.get(function);
+			if (key != null && keyCounts.get(key) > 1) {
+				SharedFunction ret = shared.get(key);
+				if (ret == null) {
+					shareChildren(function);
+					ret = new SharedFunction(function);
+					shared.put(key, ret);
+				}
+				return ret;
+			}
+
+			shareChildren(function);
+			return function;
+		}
+
+		void shareChildren(Function function) {
+			int n = function.nbChildren();
+			for (int i = 0; i < n; i++) {
+				Function child = function.child(i);
+				Function newChild = share(child);
+				if (newChild != child) {
+					function.replaceChild(i, newChild);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A sub-expression used in more than one place in the tree. The last result is remembered together with the parameters it was calculated
+	 * for, so it is only executed once per row evaluation. The cached value is held in an immutable object so the function can still be
+	 * executed by several threads at once. The parameters are only held weakly, as they reference the datastores being read and the tree may
+	 * outlive them in the {@link com.opendoorlogistics.core.scripts.execution.adapters.CompiledFormulaCache}.
+	 */
+	public static final class SharedFunction implements Function {
+		private Function function;
+		private volatile CachedValue last;
+
+		private static final class CachedValue {
+			final WeakReference<FunctionParameters> parameters;
+			final Object value;
+
+			CachedValue(FunctionParameters parameters, Object value) {
+				this.parameters = new WeakReference<>(parameters);
+				this.value = value;
+			}
+		}
+
+		SharedFunction(Function function) {
+			this.function = function;
+		}
+
+		@Override
+		public Object execute(FunctionParameters parameters) {
+			if (parameters == null) {
+				return function.execute(parameters);
+			}
+
+			CachedValue cached = last;
+			if (cached != null && cached.parameters.get() == parameters) {
+				return cached.value;
+			}
+
+			Object ret = function.execute(parameters);
+			last = new CachedValue(parameters, ret);
+			return ret;
+		}
+
+		@Override
+		public int nbChildren() {
+			return 1;
+		}
+
+		@Override
+		public Function child(int i) {
+			if (i != 0) {
+				throw new IndexOutOfBoundsException();
+			}
+			return function;
+		}
+
+		@Override
+		public void replaceChild(int i, Function newChild) {
+			if (i != 0) {
+				throw new IndexOutOfBoundsException();
+			}
+			function = newChild;
+			last = null;
+		}
+
+		@Override
+		public Function deepCopy() {
+			// copies don't share, which is still correct
+			return function.deepCopy();
+		}
+
+		@Override
+		public boolean hasBrackets() {
+			return function.hasBrackets();
+		}
+
+		@Override
+		public String toString() {
+			return function.toString();
+		}
+	}
+}
@@ -6,8 +6,13 @@
  ******************************************************************************/
 package com.opendoorlogistics.core.formulae;
 
+import com.opendoorlogistics.core.formulae.FormulaCompiler.CompiledFunction;
+import com.opendoorlogistics.core.formulae.FormulaOptimiser.SharedFunction;
 import com.opendoorlogistics.core.formulae.Functions.FmConst;
 import com.opendoorlogistics.core.scripts.formulae.FmLocalElement;
+import com.opendoorlogistics.core.scripts.formulae.FmLookup;
+import com.opendoorlogistics.core.scripts.formulae.FmRow;
+import com.opendoorlogistics.core.scripts.formulae.FmRowId;
 
 public final class FunctionUtils {
 	/**
@@ -35,4 +40,39 @@ public final class FunctionUtils {
 		return ret;
 	}
 
+	/**
+	 * Test if the formula can be executed by several threads at once. Only functions known to hold no state between executions are accepted
+	 * (the core functions library, source fields, row ids and standard lookups); any other function (e.g. nearest lookups or images, which
+	 * build their own caches) makes the whole formula unsafe.
+	 * 
+	 * @param formula
+	 * @return
+	 */
+	public static boolean isThreadSafe(Function formula) {
+		if (formula == null) {
+			return true;
+		}
+
+		Function function = formula;
+		if (CompiledFunction.class.isInstance(function)) {
+			function = ((CompiledFunction) function).getSource();
+		}
+
+		boolean safe = function.getClass().getEnclosingClass() == Functions.class || SharedFunction.class.isInstance(function)
+				|| FmLocalElement.class.isInstance(function) || FmRow.class.isInstance(function) || FmRowId.class.isInstance(function)
+				|| FmLookup.class.isInstance(function);
+		if (!safe) {
+			return false;
+		}
+
+		// use the formula rather than its source here so we see compiled children
+		int n = formula.nbChildren();
+		for (int i = 0; i < n; i++) {
+			if (!isThreadSafe(formula.child(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 }
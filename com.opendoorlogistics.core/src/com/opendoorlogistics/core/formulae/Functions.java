@@ -63,7 +63,7 @@ public class Functions {
 		}
 	}
 
-	public static class FmTime extends FunctionImpl {
+	public static class FmTime extends FunctionImpl implements ImpureFunction {
 
 		public FmTime(Function... components) {
 			super(components);
@@ -194,7 +194,7 @@ public class Functions {
 		}
 	}
 
-	private static abstract class Fm1ParamBase extends FunctionImpl {
+	static abstract class Fm1ParamBase extends FunctionImpl {
 
 		public Fm1ParamBase(Function a) {
 			super(a);
@@ -328,7 +328,10 @@ public class Functions {
 			}
 			Double d = Numbers.toDouble(child);
 			if(d!=null){
-				return format.format(d);
+				// DecimalFormat is not thread-safe
+				synchronized (format) {
+					return format.format(d);					
+				}
 			}
 			return null;
 		}
@@ -1078,7 +1081,7 @@ public class Functions {
 
 	}
 
-	public static final class FmRand extends FunctionImpl {
+	public static final class FmRand extends FunctionImpl implements ImpureFunction {
 		private final Random random = new Random();
 
 		public FmRand() {
@@ -1101,7 +1104,7 @@ public class Functions {
 		}
 	}
 
-	public static final class FmRandomSymbol extends FunctionImpl {
+	public static final class FmRandomSymbol extends FunctionImpl implements ImpureFunction {
 		private final Random random = new Random();
 
 		public FmRandomSymbol() {
@@ -1710,7 +1713,7 @@ public class Functions {
 
 	}
 
-	public static final class FmRandColour extends FunctionImpl {
+	public static final class FmRandColour extends FunctionImpl implements ImpureFunction {
 		public FmRandColour(Function seed) {
 			super(seed);
 		}
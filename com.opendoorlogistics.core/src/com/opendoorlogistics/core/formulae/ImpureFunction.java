@@ -0,0 +1,18 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.formulae;
+
+/**
+ * Marker interface for functions which can return a different value each time they are executed with the same inputs (e.g. random numbers or
+ * the current time). The {@link FormulaOptimiser} never folds or shares these functions, or any expression containing them.
+ *
+ * @author Phil
+ *
+ */
+public interface ImpureFunction {
+
+}
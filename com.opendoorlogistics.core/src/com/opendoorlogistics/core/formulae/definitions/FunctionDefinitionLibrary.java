@@ -12,6 +12,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 
 import com.opendoorlogistics.core.formulae.Function;
 import com.opendoorlogistics.core.formulae.FunctionFactory;
@@ -85,6 +86,7 @@ import com.opendoorlogistics.core.utils.strings.StandardisedStringTreeMap;
 import com.opendoorlogistics.core.utils.strings.Strings;
 
 public final class FunctionDefinitionLibrary {
+	private static FunctionDefinitionLibrary standard;
 	private StandardisedStringTreeMap<List<FunctionDefinition>> map = new StandardisedStringTreeMap<>();
 	private int nextOperatorPrecedence = 0;
 
@@ -109,7 +111,34 @@ public final class FunctionDefinitionLibrary {
 		});
 	}
 
+	/**
+	 * Add the standard operators, functions and constants. A library is built for every formula in a script, so the standard definitions
+	 * are only created once and then copied into each empty library. The definitions are shared between the copies and must not be
+	 * modified.
+	 * 
+	 * @return
+	 */
 	public FunctionDefinitionLibrary build() {
+		if (map.size() > 0 || nextOperatorPrecedence > 0) {
+			return buildStandard();
+		}
+
+		FunctionDefinitionLibrary from = getStandard();
+		for (Map.Entry<String, List<FunctionDefinition>> entry : from.map.entrySet()) {
+			map.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+		}
+		nextOperatorPrecedence = from.nextOperatorPrecedence;
+		return this;
+	}
+
+	private static synchronized FunctionDefinitionLibrary getStandard() {
+		if (standard == null) {
+			standard = new FunctionDefinitionLibrary().buildStandard();
+		}
+		return standard;
+	}
+
+	private FunctionDefinitionLibrary buildStandard() {
 		// add operators IN ORDER OF PRECEDENCE
 		addVargsOperator(FmMultiply.class, "*", "Multiply values together.");
 		addStandardOperator(FmDivide.class, "/",  "Divide one value by the other.");
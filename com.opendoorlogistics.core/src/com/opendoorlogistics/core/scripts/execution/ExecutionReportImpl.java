@@ -11,9 +11,13 @@ import java.util.ArrayList;
 import com.opendoorlogistics.api.ExecutionReport;
 import com.opendoorlogistics.core.utils.strings.Strings;
 
+/**
+ * Report on the execution of a script. Methods are synchronised as instructions can run on different threads.
+ */
 public class ExecutionReportImpl implements ExecutionReport{
 	private boolean failed = false;
 	private ArrayList<LogEntry> logs = new ArrayList<>();
+	private ExecutionTrace trace;
 	
 	private class LogEntry{
 		final Throwable throwable;
@@ -28,12 +32,12 @@ public class ExecutionReportImpl implements ExecutionReport{
 	
 	
 	@Override
-	public void log(String s) {
+	public synchronized void log(String s) {
 		logs.add(new LogEntry(null, s));
 	}
 
 	@Override
-	public void setFailed(String reason) {
+	public synchronized void setFailed(String reason) {
 		failed = true;
 		if (reason != null) {
 			log(reason);
@@ -41,7 +45,7 @@ public class ExecutionReportImpl implements ExecutionReport{
 	}
 
 	@Override
-	public boolean isFailed() {
+	public synchronized boolean isFailed() {
 		return failed;
 	}
 
@@ -51,13 +55,13 @@ public class ExecutionReportImpl implements ExecutionReport{
 	}
 
 	@Override
-	public void setFailed(Throwable reason) {
+	public synchronized void setFailed(Throwable reason) {
 		logs.add(new LogEntry(reason, null));
 		setFailed((String)null);
 	}
 
 	@Override
-	public void add(ExecutionReport report) {
+	public synchronized void add(ExecutionReport report) {
 		if(ExecutionReportImpl.class.isInstance(report)==false){
 			throw new RuntimeException();
 		}
@@ -72,7 +76,7 @@ public class ExecutionReportImpl implements ExecutionReport{
 	}
 
 	@Override
-	public String getReportString(boolean includeExceptionTraces,boolean showSuccessFailureMessage) {
+	public synchronized String getReportString(boolean includeExceptionTraces,boolean showSuccessFailureMessage) {
 		
 		// build list of lines first
 		ArrayList<String> lines = new ArrayList<>();
@@ -116,23 +120,37 @@ public class ExecutionReportImpl implements ExecutionReport{
 	}
 
 	@Override
-	public void setFailed() {
+	public synchronized void setFailed() {
 		failed = true;
 	}
 
 	@Override
-	public ExecutionReport deepCopy() {
+	public synchronized ExecutionReport deepCopy() {
 		ExecutionReportImpl ret = new ExecutionReportImpl();
 		ret.failed = failed;
 		
 		// logs are immutable
 		ret.logs.addAll(logs);
+		ret.trace = trace;
 		return ret;
 	}
 
 	@Override
-	public int size() {
+	public synchronized int size() {
 		return logs.size();
 	}
 
+	/**
+	 * Get the timings of the execution's steps
+	 * 
+	 * @return The trace or null if the execution wasn't traced
+	 */
+	public synchronized ExecutionTrace getTrace() {
+		return trace;
+	}
+
+	public synchronized void setTrace(ExecutionTrace trace) {
+		this.trace = trace;
+	}
+
 }
@@ -0,0 +1,288 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.scripts.execution;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.opendoorlogistics.core.cache.RecentlyUsedCache;
+import com.opendoorlogistics.core.cache.RecentlyUsedCache.LookupListener;
+
+/**
+ * Records where the time went when executing a script. Each step (an instruction, building an adapter, splitting the batch keys, reading
+ * a column of the input, executing a component...) is timed as a span, nested inside the span which was open on the same thread when it
+ * started. Spans with the same path (e.g. the same instruction executed for many batch keys) are added together.<br>
+ * For each path the trace records the number of calls, the wall time, the rows in and out, the bytes allocated by the thread (where the JVM
+ * supports measuring it) and the hits and misses on the application caches (distance matrices, route geometries etc).<br>
+ * The trace can be written as a readable summary or as folded stacks, the format taken by flame graph tools.
+ *
+ * @author Phil
+ *
+ */
+public final class ExecutionTrace {
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	private final ThreadLocal<Span> current = new ThreadLocal<>();
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+	/**
+	 * Totals for all the spans with the same path
+	 */
+	private static class Entry {
+		final String name;
+		final int depth;
+		long calls;
+		long nanos;
+		long childNanos;
+		long rowsIn;
+		long rowsOut;
+		long allocatedBytes = -1;
+		final TreeMap<String, long[]> cacheLookups = new TreeMap<>();
+
+		Entry(String name, int depth) {
+			this.name = name;
+			this.depth = depth;
+		}
+	}
+
+	/**
+	 * A single timed step. A span must be stopped on the thread which started it.
+	 */
+	public final class Span implements LookupListener {
+		private final Span parent;
+		private final Span previous;
+		private final LookupListener previousListener;
+		private final String path;
+		private final Entry entry;
+		private final long startNanos;
+		private final long startAllocated;
+		private final TreeMap<String, long[]> cacheLookups = new TreeMap<>();
+		private long rowsIn;
+		private long rowsOut;
+		private boolean stopped;
+
+		private Span(Span parent, String name) {
+			this.parent = parent;
+			this.path = parent != null ? parent.path + ";" + name : name;
+			synchronized (ExecutionTrace.this) {
+				Entry e = entries.get(path);
+				if (e == null) {
+					e = new Entry(name, parent != null ? parent.entry.depth + 1 : 0);
+					entries.put(path, e);
+				}
+				entry = e;
+			}
+
+			previous = current.get();
+			current.set(this);
+			previousListener = RecentlyUsedCache.setLookupListener(this);
+			startAllocated = getAllocatedBytes();
+			startNanos = System.nanoTime();
+		}
+
+		public void addRowsIn(long n) {
+			rowsIn += n;
+		}
+
+		public void addRowsOut(long n) {
+			rowsOut += n;
+		}
+
+		@Override
+		public void onLookup(String cacheId, boolean hit) {
+			long[] counts = cacheLookups.get(cacheId);
+			if (counts == null) {
+				counts = new long[2];
+				cacheLookups.put(cacheId, counts);
+			}
+			counts[hit ? 0 : 1]++;
+		}
+
+		/**
+		 * Stop the span, adding it to the trace. Stopping more than once has no effect.
+		 */
+		public void stop() {
+			if (stopped) {
+				return;
+			}
+			stopped = true;
+
+			long nanos = System.nanoTime() - startNanos;
+			long allocated = startAllocated != -1 ? getAllocatedBytes() : -1;
+			RecentlyUsedCache.setLookupListener(previousListener);
+			if (previous != null) {
+				current.set(previous);
+			} else {
+				current.remove();
+			}
+
+			synchronized (ExecutionTrace.this) {
+				entry.calls++;
+				entry.nanos += nanos;
+				entry.rowsIn += rowsIn;
+				entry.rowsOut += rowsOut;
+				if (allocated != -1) {
+					entry.allocatedBytes = Math.max(entry.allocatedBytes, 0) + allocated - startAllocated;
+				}
+				for (Map.Entry<String, long[]> lookup : cacheLookups.entrySet()) {
+					long[] counts = entry.cacheLookups.get(lookup.getKey());
+					if (counts == null) {
+						counts = new long[2];
+						entry.cacheLookups.put(lookup.getKey(), counts);
+					}
+					counts[0] += lookup.getValue()[0];
+					counts[1] += lookup.getValue()[1];
+				}
+				if (parent != null) {
+					parent.entry.childNanos += nanos;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Start a span inside the span currently open on the calling thread
+	 *
+	 * @param name
+	 * @return
+	 */
+	public Span start(String name) {
+		return new Span(current.get(), sanitise(name));
+	}
+
+	/**
+	 * Start a span inside the parent span, e.g. for work the parent has passed to another thread
+	 *
+	 * @param parent
+	 *            Parent span or null to start a top-level span
+	 * @param name
+	 * @return
+	 */
+	public Span start(Span parent, String name) {
+		return new Span(parent, sanitise(name));
+	}
+
+	/**
+	 * Get the span currently open on the calling thread
+	 *
+	 * @return The span or null if none is open
+	 */
+	public Span getCurrent() {
+		return current.get();
+	}
+
+	public synchronized boolean isEmpty() {
+		return entries.size() == 0;
+	}
+
+	/**
+	 * Path separators would split the name into several frames in a flame graph
+	 */
+	private static String sanitise(String name) {
+		return name != null ? name.replace(';', ',').replace('\n', ' ').replace('\r', ' ') : "";
+	}
+
+	private static long getAllocatedBytes() {
+		try {
+			if (THREADS instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+				if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+					return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+				}
+			}
+		} catch (Throwable e) {
+			// not available on this JVM
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the trace as folded stacks, one line per path with the path's self time (i.e. excluding the time in its nested spans) in
+	 * microseconds, e.g. "line 1 (Vehicle routing);execute 5230". This is the input format of flame graph tools such as flamegraph.pl.
+	 * Nested spans which ran in parallel can take longer than their parent, in which case the parent's self time is zero.
+	 *
+	 * @return
+	 */
+	public synchronized String getFoldedStacks() {
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			long self = Math.max(0, e.getValue().nanos - e.getValue().childNanos) / 1000;
+			if (self > 0) {
+				builder.append(e.getKey());
+				builder.append(' ');
+				builder.append(self);
+				builder.append(System.lineSeparator());
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Get a readable summary of the trace, with each path on its own line indented under its parent
+	 *
+	 * @return
+	 */
+	public synchronized String getSummary() {
+		ArrayList<String[]> rows = new ArrayList<>();
+		rows.add(new String[] { "Step", "Calls", "Total ms", "Self ms", "Rows in", "Rows out", "Allocated MB", "Cache hits/misses" });
+		for (Entry e : entries.values()) {
+			StringBuilder name = new StringBuilder();
+			for (int i = 0; i < e.depth; i++) {
+				name.append("  ");
+			}
+			name.append(e.name);
+
+			StringBuilder lookups = new StringBuilder();
+			for (Map.Entry<String, long[]> lookup : e.cacheLookups.entrySet()) {
+				if (lookups.length() > 0) {
+					lookups.append(", ");
+				}
+				lookups.append(lookup.getKey() + " " + lookup.getValue()[0] + "/" + lookup.getValue()[1]);
+			}
+
+			rows.add(new String[] { name.toString(), Long.toString(e.calls), formatMillis(e.nanos), formatMillis(Math.max(0, e.nanos - e.childNanos)),
+					e.rowsIn > 0 ? Long.toString(e.rowsIn) : "", e.rowsOut > 0 ? Long.toString(e.rowsOut) : "",
+					e.allocatedBytes != -1 ? String.format("%.1f", e.allocatedBytes / (1024.0 * 1024.0)) : "", lookups.toString() });
+		}
+
+		// pad each column to its widest value
+		int nc = rows.get(0).length;
+		int[] widths = new int[nc];
+		for (String[] row : rows) {
+			for (int col = 0; col < nc; col++) {
+				widths[col] = Math.max(widths[col], row[col].length());
+			}
+		}
+
+		StringBuilder builder = new StringBuilder();
+		for (String[] row : rows) {
+			for (int col = 0; col < nc; col++) {
+				String value = row[col];
+				builder.append(value);
+				if (col < nc - 1) {
+					for (int i = value.length(); i < widths[col] + 2; i++) {
+						builder.append(' ');
+					}
+				}
+			}
+			builder.append(System.lineSeparator());
+		}
+		return builder.toString();
+	}
+
+	private static String formatMillis(long nanos) {
+		return String.format("%.1f", nanos / 1000000.0);
+	}
+
+	@Override
+	public String toString() {
+		return getSummary();
+	}
+}
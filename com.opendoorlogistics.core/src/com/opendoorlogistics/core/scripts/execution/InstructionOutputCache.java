@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.scripts.execution;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.opendoorlogistics.api.tables.ODLDatastore;
+import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
+import com.opendoorlogistics.api.tables.ODLTableAlterable;
+import com.opendoorlogistics.api.tables.ODLTableDefinition;
+import com.opendoorlogistics.api.tables.ODLTableReadOnly;
+import com.opendoorlogistics.core.tables.decorators.datastores.DataDependenciesRecorder.DataDependencies;
+import com.opendoorlogistics.core.tables.utils.DatastoreCopier;
+import com.opendoorlogistics.core.tables.utils.HasModificationCount;
+import com.opendoorlogistics.core.utils.strings.Strings;
+
+/**
+ * Outputs of a script's instructions saved from previous executions, so an instruction whose inputs haven't changed can reuse its previous
+ * output instead of running again (e.g. when refreshing a report after editing a table the report's optimisation doesn't read).<br>
+ * An output is saved together with the tables the instruction read from the external datastore and a stamp of each table (its modification
+ * count, name and columns) taken when the execution started. It is reused only whilst every read table still has the same stamp, and if
+ * the instruction read the set of tables (e.g. found a table by name), whilst the datastore still has the same tables.
+ *
+ * @author Phil
+ *
+ */
+public final class InstructionOutputCache {
+	private final String scriptSignature;
+	private final HashMap<String, CachedOutput> entries = new HashMap<>();
+
+	/**
+	 * A saved output and the external dependencies recorded when it was created
+	 */
+	public static final class CachedOutput {
+		private final ODLDatastore<? extends ODLTableReadOnly> output;
+		private final DataDependencies dependencies;
+		private final TIntObjectHashMap<String> stamps;
+		private final String tableSetStamp;
+
+		private CachedOutput(ODLDatastore<? extends ODLTableReadOnly> output, DataDependencies dependencies, TIntObjectHashMap<String> stamps,
+				String tableSetStamp) {
+			this.output = output;
+			this.dependencies = dependencies;
+			this.stamps = stamps;
+			this.tableSetStamp = tableSetStamp;
+		}
+
+		public ODLDatastore<? extends ODLTableReadOnly> getOutput() {
+			return output;
+		}
+
+		public DataDependencies getDependencies() {
+			return dependencies.deepCopy();
+		}
+	}
+
+	/**
+	 * @param scriptSignature
+	 *            Identifies the version of the script the outputs were created by (e.g. its XML)
+	 */
+	public InstructionOutputCache(String scriptSignature) {
+		this.scriptSignature = scriptSignature;
+	}
+
+	public String getScriptSignature() {
+		return scriptSignature;
+	}
+
+	/**
+	 * Start an execution of the script. This must be called when the datastore given to the script executor is copied from the external
+	 * datastore, so the stamps match the data the script will read.
+	 *
+	 * @param external
+	 * @param reuseOutputs
+	 *            If false, outputs are saved but not reused (e.g. when the user runs the script explicitly)
+	 * @return
+	 */
+	public Run startRun(ODLDatastore<? extends ODLTableDefinition> external, boolean reuseOutputs) {
+		TIntObjectHashMap<String> stamps = new TIntObjectHashMap<>();
+		StringBuilder tableSet = new StringBuilder();
+		for (int i = 0; i < external.getTableCount(); i++) {
+			ODLTableDefinition table = external.getTableAt(i);
+			String stamp = getStamp(table);
+			if (stamp != null) {
+				stamps.put(table.getImmutableId(), stamp);
+			}
+			tableSet.append(table.getImmutableId());
+			tableSet.append(':');
+			tableSet.append(table.getName());
+			tableSet.append('|');
+		}
+		return new Run(stamps, tableSet.toString(), reuseOutputs);
+	}
+
+	/**
+	 * Get a stamp which changes whenever the table's contents or structure change, or null if the table cannot report changes to its
+	 * contents
+	 *
+	 * @param table
+	 * @return
+	 */
+	private static String getStamp(ODLTableDefinition table) {
+		if (!HasModificationCount.class.isInstance(table)) {
+			return null;
+		}
+		long count = ((HasModificationCount) table).getModificationCount();
+		if (count == -1) {
+			return null;
+		}
+
+		StringBuilder builder = new StringBuilder();
+		builder.append(count);
+		builder.append('|');
+		builder.append(table.getName());
+		for (int col = 0; col < table.getColumnCount(); col++) {
+			builder.append('|');
+			builder.append(table.getColumnName(col));
+			builder.append(':');
+			builder.append(table.getColumnType(col));
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * A single execution of the script
+	 */
+	public final class Run {
+		private final TIntObjectHashMap<String> stamps;
+		private final String tableSetStamp;
+		private final boolean reuseOutputs;
+		private final HashSet<String> changedDatastoreIds = new HashSet<>();
+		private final HashSet<String> instructionsWithControls = new HashSet<>();
+
+		private Run(TIntObjectHashMap<String> stamps, String tableSetStamp, boolean reuseOutputs) {
+			this.stamps = stamps;
+			this.tableSetStamp = tableSetStamp;
+			this.reuseOutputs = reuseOutputs;
+		}
+
+		/**
+		 * Get the instruction's previous output if all the tables it read are unchanged
+		 *
+		 * @param instructionId
+		 * @return The output or null if the instruction must be executed
+		 */
+		public CachedOutput getOutput(String instructionId) {
+			if (!reuseOutputs) {
+				return null;
+			}
+
+			CachedOutput entry;
+			synchronized (InstructionOutputCache.this) {
+				entry = entries.get(instructionId);
+			}
+			if (entry == null) {
+				return null;
+			}
+
+			if (entry.tableSetStamp != null && !entry.tableSetStamp.equals(tableSetStamp)) {
+				return null;
+			}
+
+			for (int tableId : entry.stamps.keys()) {
+				if (!Strings.equals(entry.stamps.get(tableId), stamps.get(tableId))) {
+					return null;
+				}
+			}
+			return entry;
+		}
+
+		/**
+		 * Save a copy of the instruction's output. Nothing is saved if the instruction read data whose changes can't be detected.
+		 *
+		 * @param instructionId
+		 * @param output
+		 * @param dependencies
+		 *            The instruction's dependencies on the external datastore
+		 */
+		public void putOutput(String instructionId, ODLDatastore<? extends ODLTableReadOnly> output, DataDependencies dependencies) {
+			TIntObjectHashMap<String> entryStamps = null;
+			if (!dependencies.isWritten() && !dependencies.isReadRowFlags()) {
+				entryStamps = new TIntObjectHashMap<>();
+				for (int tableId : dependencies.getReadTableIds()) {
+					String stamp = stamps.get(tableId);
+					if (stamp == null) {
+						entryStamps = null;
+						break;
+					}
+					entryStamps.put(tableId, stamp);
+				}
+			}
+
+			CachedOutput entry = null;
+			if (entryStamps != null) {
+				ODLDatastoreAlterable<ODLTableAlterable> copy = DatastoreCopier.copyAll(output);
+				entry = new CachedOutput(copy, dependencies.deepCopy(), entryStamps, dependencies.isReadTableSet() ? tableSetStamp : null);
+			}
+
+			synchronized (InstructionOutputCache.this) {
+				if (entry != null) {
+					entries.put(instructionId, entry);
+				} else {
+					entries.remove(instructionId);
+				}
+			}
+		}
+
+		/**
+		 * Record that the datastore was changed by an instruction executed in this run (rather than reusing its previous output), so
+		 * instructions reading the datastore must also be executed
+		 *
+		 * @param datastoreId
+		 */
+		public synchronized void setExecuted(String datastoreId) {
+			if (!Strings.isEmpty(datastoreId)) {
+				changedDatastoreIds.add(Strings.std(datastoreId));
+			}
+		}
+
+		/**
+		 * Test if any of the datastores were changed by instructions executed in this run
+		 *
+		 * @param datastoreIds
+		 *            Standardised datastore ids
+		 * @return
+		 */
+		public synchronized boolean isAnyExecuted(Set<String> datastoreIds) {
+			for (String id : datastoreIds) {
+				if (changedDatastoreIds.contains(id)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public synchronized void setLaunchedControls(String instructionId) {
+			instructionsWithControls.add(instructionId);
+		}
+
+		public synchronized boolean isLaunchedControls(String instructionId) {
+			return instructionsWithControls.contains(instructionId);
+		}
+	}
+}
@@ -8,9 +8,11 @@ package com.opendoorlogistics.core.scripts.execution;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.TreeMap;
 
 import com.opendoorlogistics.api.ExecutionReport;
+import com.opendoorlogistics.api.components.ComponentControlLauncherApi.ControlLauncherCallback;
 import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
 import com.opendoorlogistics.api.tables.ODLTableAlterable;
 import com.opendoorlogistics.core.scripts.ScriptConstants;
@@ -22,14 +24,47 @@ import com.opendoorlogistics.core.utils.strings.StandardisedStringTreeMap;
 import com.opendoorlogistics.core.utils.strings.Strings;
 
 final public class ScriptExecutionBlackboard extends ExecutionReportImpl implements ExecutionReport{
-	private final TreeMap<String, SavedDatastore> datastoresByStringId = new TreeMap<>();
-	private final HashMap<InstructionConfig,SavedDatastore> outputDatastoreByInstruction = new HashMap<>();
-	private final ArrayList<SavedDatastore> datastoresList = new ArrayList<>();
-	private final StandardisedStringTreeMap<AdapterConfig> namedAdapterConfigs = new StandardisedStringTreeMap<>();
+	private final TreeMap<String, SavedDatastore> datastoresByStringId;
+	private final HashMap<InstructionConfig,SavedDatastore> outputDatastoreByInstruction;
+	private final ArrayList<SavedDatastore> datastoresList;
+	private final StandardisedStringTreeMap<AdapterConfig> namedAdapterConfigs;
 	private final boolean isCompileOnly;
+	private final ArrayList<ControlLauncherCallback> deferredControlLaunchers;
 	
 	public ScriptExecutionBlackboard( boolean isCompileOnly){
 		this.isCompileOnly = isCompileOnly;
+		this.datastoresByStringId = new TreeMap<>();
+		this.outputDatastoreByInstruction = new HashMap<>();
+		this.datastoresList = new ArrayList<>();
+		this.namedAdapterConfigs = new StandardisedStringTreeMap<>();
+		this.deferredControlLaunchers = null;
+	}
+
+	private ScriptExecutionBlackboard(ScriptExecutionBlackboard shared){
+		this.isCompileOnly = shared.isCompileOnly;
+		this.datastoresByStringId = shared.datastoresByStringId;
+		this.outputDatastoreByInstruction = shared.outputDatastoreByInstruction;
+		this.datastoresList = shared.datastoresList;
+		this.namedAdapterConfigs = shared.namedAdapterConfigs;
+		this.deferredControlLaunchers = new ArrayList<>();
+		setTrace(shared.getTrace());
+	}
+	
+	/**
+	 * Create a blackboard for an instruction running at the same time as others. It shares this blackboard's
+	 * datastores, adapters and trace but has its own report and keeps its own list of control launchers.
+	 * @return
+	 */
+	ScriptExecutionBlackboard createInstructionBlackboard(){
+		return new ScriptExecutionBlackboard(this);
+	}
+	
+	/**
+	 * Get the control launchers held back until the instruction's report is added to the script's report
+	 * @return The launchers or null if this is the script's own blackboard
+	 */
+	List<ControlLauncherCallback> getDeferredControlLaunchers(){
+		return deferredControlLaunchers;
 	}
 
 	public boolean isCompileOnly(){
@@ -6,11 +6,20 @@
  ******************************************************************************/
 package com.opendoorlogistics.core.scripts.execution;
 
+import gnu.trove.map.hash.TObjectIntHashMap;
+
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JPanel;
 
@@ -40,6 +49,7 @@ import com.opendoorlogistics.core.components.UpdateQueryComponent;
 import com.opendoorlogistics.core.scripts.ScriptConstants;
 import com.opendoorlogistics.core.scripts.TargetIODsInterpreter;
 import com.opendoorlogistics.core.scripts.elements.AdaptedTableConfig;
+import com.opendoorlogistics.core.scripts.elements.AdapterColumnConfig;
 import com.opendoorlogistics.core.scripts.elements.AdapterConfig;
 import com.opendoorlogistics.core.scripts.elements.ComponentConfig;
 import com.opendoorlogistics.core.scripts.elements.InstructionConfig;
@@ -61,6 +71,7 @@ import com.opendoorlogistics.core.tables.decorators.datastores.DataDependenciesR
 import com.opendoorlogistics.core.tables.decorators.datastores.RowFilterDecorator;
 import com.opendoorlogistics.core.tables.decorators.datastores.UndoRedoDecorator;
 import com.opendoorlogistics.core.tables.memory.ODLDatastoreImpl;
+import com.opendoorlogistics.core.tables.utils.DatastoreComparer;
 import com.opendoorlogistics.core.tables.utils.DatastoreCopier;
 import com.opendoorlogistics.core.tables.utils.TableUtils;
 import com.opendoorlogistics.core.utils.UpdateTimer;
@@ -68,11 +79,23 @@ import com.opendoorlogistics.core.utils.strings.StandardisedStringSet;
 import com.opendoorlogistics.core.utils.strings.Strings;
 
 final public class ScriptExecutor {
+	/**
+	 * Maximum number of batch keys run at once, for components which allow batch keys to run in parallel
+	 */
+	private static final int MAX_PARALLEL_BATCHES = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Maximum number of independent instructions run at once. This is at least two even on a single processor as
+	 * instructions often spend their time waiting (e.g. on geocoding or distance requests).
+	 */
+	private static final int MAX_PARALLEL_INSTRUCTIONS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
 	private final ODLDatastoreAlterableFactory<ODLTableAlterable> datastoreFactory;
 	private final DependencyInjector internalExecutionApi;
 	private final ODLComponentProvider components;
 	private final ODLApi api;
 	private boolean compileOnly = false;
+	private InstructionOutputCache.Run outputCache;
 
 	private ScriptExecutor(ODLApi api ,ODLDatastoreAlterableFactory<ODLTableAlterable> datastoreFactory, ODLComponentProvider components, DependencyInjector guiFascade, boolean compileOnly) {
 		this.api = api;
@@ -86,6 +109,15 @@ final public class ScriptExecutor {
 		this(api,ODLDatastoreImpl.alterableFactory, ODLGlobalComponents.getProvider(), reporter, compileOnly);
 	}
 
+	/**
+	 * Reuse the previous outputs of instructions whose inputs are unchanged and save the outputs of this execution
+	 * 
+	 * @param outputCache
+	 */
+	public void setOutputCache(InstructionOutputCache.Run outputCache) {
+		this.outputCache = outputCache;
+	}
+
 	/**
 	 * Execute the script.
 	 * This method will not throw exceptions - failure is reported in the return object 
@@ -95,10 +127,16 @@ final public class ScriptExecutor {
 	 */
 	public ExecutionReport execute(Script script, ODLDatastoreAlterable<ODLTableAlterable> externalDS) {
 		ScriptExecutionBlackboard bb = new ScriptExecutionBlackboard(compileOnly);
+		bb.setTrace(new ExecutionTrace());
 
 		try {
 			// execute main option
-			buildDatastores(externalDS, script, bb);
+			ExecutionTrace.Span span = bb.getTrace().start("build datastores");
+			try {
+				buildDatastores(externalDS, script, bb);
+			} finally {
+				span.stop();
+			}
 
 			if (!bb.isFailed()) {
 				initialiseAdapterRecords(script, bb);
@@ -135,40 +173,447 @@ final public class ScriptExecutor {
 	// }
 
 	private void executeAllInstructions(Option script, ScriptExecutionBlackboard result) {
+		// run instructions which don't depend on each other at the same time if possible
+		int nbInstructions = script.getInstructions().size();
+		if (!compileOnly && nbInstructions > 1 && MAX_PARALLEL_INSTRUCTIONS > 1) {
+			InstructionGraph graph = new InstructionGraph(script, result);
+			if (graph.hasIndependentInstructions()) {
+				executeInstructionsInParallel(script, graph, result);
+				return;
+			}
+		}
+
 		// execute all instructions
-		for (int i = 0; i < script.getInstructions().size(); i++) {
-			// check for cancelled
-			checkForUserCancellation(result);
+		for (int i = 0; i < nbInstructions; i++) {
+			if (!executeInstruction(script, i, result)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Execute the instruction
+	 * 
+	 * @param script
+	 * @param i
+	 * @param result
+	 * @return False if execution should stop
+	 */
+	private boolean executeInstruction(Option script, int i, ScriptExecutionBlackboard result) {
+		// check for cancelled
+		checkForUserCancellation(result);
+		if (result.isFailed()) {
+			return false;
+		}
+
+		InstructionConfig instruction = script.getInstructions().get(i);
+		ExecutionTrace.Span span = null;
+		try {
+			// check if we're doing an update query... this has special logic
+			ODLComponent component = getComponent(instruction, result);
 			if (result.isFailed()) {
-				return;
+				return false;
 			}
+			span = result.getTrace().start("line " + (i + 1) + " (" + component.getName() + ")");
+			if (UpdateQueryComponent.class.isInstance(component)) {
+				executeUpdateQueryInstruction(script,instruction, result);
 
-			InstructionConfig instruction = script.getInstructions().get(i);
-			try {
-				// check if we're doing an update query... this has special logic
-				ODLComponent component = getComponent(instruction, result);
-				if (result.isFailed()) {
-					break;
+			} else if (!reuseCachedOutput(script, instruction, component, result)) {
+				executeBatchedInstruction(script,instruction, result);
+				updateCachedOutput(script, instruction, component, result);
+			}
+
+			if (outputCache != null && UpdateQueryComponent.class.isInstance(component)) {
+				setExecuted(script, instruction, component, result);
+			}
+
+		} catch (Throwable e) {
+			result.setFailed(e);
+			result.setFailed("Exception occurred executing instruction.");
+		} finally {
+			if (span != null) {
+				span.stop();
+			}
+		}
+
+		if (result.isFailed() && script.getInstructions().size() > 1) {
+			result.log("Failed on instruction line " + (i + 1) + ".");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Only components whose output depends only on the inputs they read can have their output reused
+	 * 
+	 * @param instruction
+	 * @param component
+	 * @return
+	 */
+	private boolean canCacheOutput(InstructionConfig instruction, ODLComponent component) {
+		if (UpdateQueryComponent.class.isInstance(component)) {
+			return false;
+		}
+		long flags = component.getFlags(api, instruction.getExecutionMode());
+		return (flags & ODLComponent.FLAG_OUTPUT_DEPENDS_ONLY_ON_INPUTS) == ODLComponent.FLAG_OUTPUT_DEPENDS_ONLY_ON_INPUTS;
+	}
+
+	/**
+	 * Test if the component may write to the datastores it reads. This is assumed unless the component says its output only depends
+	 * on its inputs, or says it can run in parallel without saying it writes to its input.
+	 * 
+	 * @param instruction
+	 * @param component
+	 * @return
+	 */
+	private boolean isWritingInput(InstructionConfig instruction, ODLComponent component) {
+		if (component == null || UpdateQueryComponent.class.isInstance(component)) {
+			return true;
+		}
+		long flags = component.getFlags(api, instruction.getExecutionMode());
+		if ((flags & ODLComponent.FLAG_OUTPUT_DEPENDS_ONLY_ON_INPUTS) == ODLComponent.FLAG_OUTPUT_DEPENDS_ONLY_ON_INPUTS) {
+			return false;
+		}
+		return (flags & ODLComponent.FLAG_CAN_RUN_IN_PARALLEL) != ODLComponent.FLAG_CAN_RUN_IN_PARALLEL
+				|| (flags & ODLComponent.FLAG_WRITES_TO_INPUT) == ODLComponent.FLAG_WRITES_TO_INPUT;
+	}
+
+	/**
+	 * Fill the instruction's output datastore from the output cache if the instruction's inputs haven't changed since its output was cached
+	 * 
+	 * @param script
+	 * @param instruction
+	 * @param component
+	 * @param result
+	 * @return True if the cached output was used
+	 */
+	private boolean reuseCachedOutput(Option script, InstructionConfig instruction, ODLComponent component, ScriptExecutionBlackboard result) {
+		if (outputCache == null || compileOnly || !canCacheOutput(instruction, component)) {
+			return false;
+		}
+
+		// the output can't be reused if another instruction changed the datastores it reads in this execution
+		TreeSet<String> reads = new TreeSet<>();
+		addDatastoresRead(instruction.getDatastore(), getKnownDatastoreIds(script), result, reads);
+		if (outputCache.isAnyExecuted(reads)) {
+			return false;
+		}
+
+		ExecutionTrace.Span span = result.getTrace().start("reuse previous output");
+		try {
+			InstructionOutputCache.CachedOutput cached = outputCache.getOutput(instruction.getUuid());
+			if (cached == null) {
+				return false;
+			}
+
+			SavedDatastore outputDb = result.getDsByInstruction(instruction);
+			mergeBatchOutput(cached.getOutput(), outputDb.getDs(), result);
+			outputDb.getDependenciesOnExternal().add(cached.getDependencies());
+			span.addRowsOut(countRows(cached.getOutput()));
+			return true;
+		} finally {
+			span.stop();
+		}
+	}
+
+	/**
+	 * Save the output of the executed instruction in the output cache
+	 * 
+	 * @param script
+	 * @param instruction
+	 * @param component
+	 * @param result
+	 */
+	private void updateCachedOutput(Option script, InstructionConfig instruction, ODLComponent component, ScriptExecutionBlackboard result) {
+		if (outputCache == null || compileOnly || result.isFailed()) {
+			return;
+		}
+
+		setExecuted(script, instruction, component, result);
+
+		// instructions which launched controls must run again to relaunch them
+		if (canCacheOutput(instruction, component) && !outputCache.isLaunchedControls(instruction.getUuid())) {
+			SavedDatastore outputDb = result.getDsByInstruction(instruction);
+			outputCache.putOutput(instruction.getUuid(), outputDb.getDs(), outputDb.getDependenciesOnExternal());
+		}
+	}
+
+	/**
+	 * Record that the instruction was executed, and so its output datastore changed. Components which may write to their input are
+	 * assumed to change every datastore they read as well.
+	 * 
+	 * @param script
+	 * @param instruction
+	 * @param component
+	 * @param result
+	 */
+	private void setExecuted(Option script, InstructionConfig instruction, ODLComponent component, ScriptExecutionBlackboard result) {
+		outputCache.setExecuted(instruction.getOutputDatastore());
+		if (isWritingInput(instruction, component)) {
+			TreeSet<String> reads = new TreeSet<>();
+			addDatastoresRead(instruction.getDatastore(), getKnownDatastoreIds(script), result, reads);
+			for (String id : reads) {
+				outputCache.setExecuted(id);
+			}
+		}
+	}
+
+	/**
+	 * Dependencies between the script's instructions, based on the datastores each instruction reads and writes. An instruction depends
+	 * on an earlier instruction if either writes a datastore the other reads or writes. Components which don't say they can run in
+	 * parallel are assumed to write to every datastore they read and always run in script order relative to each other. Components
+	 * which can run in parallel but write to their input also write to every datastore they read.
+	 */
+	private class InstructionGraph {
+		final int n;
+		final boolean[][] dependsOn;
+		final String[] names;
+
+		InstructionGraph(Option script, ScriptExecutionBlackboard result) {
+			List<InstructionConfig> instructions = script.getInstructions();
+			n = instructions.size();
+			dependsOn = new boolean[n][n];
+			names = new String[n];
+
+			TreeSet<String> knownIds = getKnownDatastoreIds(script);
+			ArrayList<TreeSet<String>> reads = new ArrayList<>(n);
+			ArrayList<TreeSet<String>> writes = new ArrayList<>(n);
+			boolean[] parallel = new boolean[n];
+			for (int i = 0; i < n; i++) {
+				InstructionConfig instruction = instructions.get(i);
+				ODLComponent component = components.getComponent(instruction.getComponent());
+				names[i] = component != null ? component.getName() : instruction.getComponent();
+				parallel[i] = component != null && !UpdateQueryComponent.class.isInstance(component)
+						&& (component.getFlags(api, instruction.getExecutionMode()) & ODLComponent.FLAG_CAN_RUN_IN_PARALLEL) == ODLComponent.FLAG_CAN_RUN_IN_PARALLEL;
+				boolean writesInput = isWritingInput(instruction, component);
+
+				TreeSet<String> read = new TreeSet<>();
+				addDatastoresRead(instruction.getDatastore(), knownIds, result, read);
+				TreeSet<String> write = new TreeSet<>();
+				if (!Strings.isEmpty(instruction.getOutputDatastore())) {
+					write.add(Strings.std(instruction.getOutputDatastore()));
 				}
-				if (UpdateQueryComponent.class.isInstance(component)) {
-					executeUpdateQueryInstruction(script,instruction, result);
+				if (writesInput) {
+					write.addAll(read);
+				}
+				reads.add(read);
+				writes.add(write);
+			}
 
-				} else {
-					executeBatchedInstruction(script,instruction, result);
+			for (int j = 0; j < n; j++) {
+				for (int i = 0; i < j; i++) {
+					dependsOn[j][i] = (!parallel[i] && !parallel[j]) || intersects(writes.get(i), reads.get(j))
+							|| intersects(reads.get(i), writes.get(j)) || intersects(writes.get(i), writes.get(j));
 				}
+			}
+		}
 
-			} catch (Throwable e) {
-				result.setFailed(e);
-				result.setFailed("Exception occurred executing instruction.");
+		private boolean intersects(TreeSet<String> a, TreeSet<String> b) {
+			for (String s : a) {
+				if (b.contains(s)) {
+					return true;
+				}
 			}
+			return false;
+		}
 
-			if (result.isFailed() && script.getInstructions().size() > 1) {
-				result.log("Failed on instruction line " + (i + 1) + ".");
+		boolean hasIndependentInstructions() {
+			// instructions are independent unless one depends on the other directly or indirectly
+			boolean[][] closure = new boolean[n][];
+			for (int j = 0; j < n; j++) {
+				closure[j] = dependsOn[j].clone();
+				for (int i = 0; i < j; i++) {
+					if (dependsOn[j][i]) {
+						for (int k = 0; k < i; k++) {
+							closure[j][k] |= closure[i][k];
+						}
+					}
+				}
+				for (int i = 0; i < j; i++) {
+					if (!closure[j][i]) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Get the standardised ids of all datastores and adapters in the script, i.e. all ids a formula could refer to
+	 */
+	private static TreeSet<String> getKnownDatastoreIds(Option script) {
+		TreeSet<String> knownIds = new TreeSet<>();
+		knownIds.add(Strings.std(ScriptConstants.EXTERNAL_DS_NAME));
+		for (InstructionConfig instruction : script.getInstructions()) {
+			if (!Strings.isEmpty(instruction.getOutputDatastore())) {
+				knownIds.add(Strings.std(instruction.getOutputDatastore()));
+			}
+		}
+		for (AdapterConfig adapter : script.getAdapters()) {
+			if (!Strings.isEmpty(adapter.getId())) {
+				knownIds.add(Strings.std(adapter.getId()));
+			}
+		}
+		return knownIds;
+	}
+
+	/**
+	 * Add the datastore or adapter and (for an adapter) all datastores it reads from, including any referenced in its formulae
+	 */
+	private void addDatastoresRead(String id, TreeSet<String> knownIds, ScriptExecutionBlackboard result, TreeSet<String> reads) {
+		if (Strings.isEmpty(id) || !reads.add(Strings.std(id))) {
+			return;
+		}
+
+		AdapterConfig adapter = result.getAdapterConfig(id);
+		if (adapter == null) {
+			return;
+		}
+
+		for (AdaptedTableConfig table : adapter.getTables()) {
+			addDatastoresRead(table.getFromDatastore(), knownIds, result, reads);
+
+			// formulae (e.g. lookups) can refer to other datastores by name, so assume any id in the formula text is read
+			StringBuilder formulae = new StringBuilder();
+			if (table.getFilterFormula() != null) {
+				formulae.append(table.getFilterFormula());
+			}
+			for (AdapterColumnConfig column : table.getColumns()) {
+				if (column.isUseFormula() && column.getFormula() != null) {
+					formulae.append(' ');
+					formulae.append(column.getFormula());
+				}
+			}
+			String text = Strings.std(formulae.toString());
+			for (String known : knownIds) {
+				if (text.contains(known)) {
+					addDatastoresRead(known, knownIds, result, reads);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run the instructions on a bounded pool of threads, starting each instruction (in script order) as soon as all the instructions it
+	 * depends on have finished. No more instructions are started once one fails or the user cancels. Each instruction has its own report
+	 * and list of control launchers; these are added in script order once all instructions have finished, stopping at the first failed
+	 * instruction, as happens when the instructions are run one after another.
+	 * 
+	 * @param script
+	 * @param graph
+	 * @param result
+	 */
+	private void executeInstructionsInParallel(final Option script, InstructionGraph graph, final ScriptExecutionBlackboard result) {
+		final int n = graph.n;
+		final long[] durations = new long[n];
+		final ScriptExecutionBlackboard[] reports = new ScriptExecutionBlackboard[n];
+		boolean[] started = new boolean[n];
+		boolean[] finished = new boolean[n];
+		boolean stop = false;
+
+		long startTime = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(n, MAX_PARALLEL_INSTRUCTIONS));
+		ExecutorCompletionService<Integer> completion = new ExecutorCompletionService<>(pool);
+		try {
+			int nbRunning = 0;
+			int nbFinished = 0;
+			while (nbFinished < n) {
+				// start all instructions which are ready, in script order
+				for (int j = 0; j < n && !stop; j++) {
+					if (started[j]) {
+						continue;
+					}
+					boolean ready = true;
+					for (int i = 0; i < j && ready; i++) {
+						ready = !graph.dependsOn[j][i] || finished[i];
+					}
+					if (ready) {
+						started[j] = true;
+						reports[j] = result.createInstructionBlackboard();
+						nbRunning++;
+						final int index = j;
+						completion.submit(new Callable<Integer>() {
+
+							@Override
+							public Integer call() throws Exception {
+								long start = System.nanoTime();
+								try {
+									executeInstruction(script, index, reports[index]);
+								} finally {
+									durations[index] = System.nanoTime() - start;
+								}
+								return index;
+							}
+						});
+					}
+				}
+
+				if (nbRunning == 0) {
+					break;
+				}
+
+				// wait for the next instruction to finish
+				int index = completion.take().get();
+				finished[index] = true;
+				nbRunning--;
+				nbFinished++;
+				if (reports[index].isFailed() || internalExecutionApi.isCancelled()) {
+					stop = true;
+				}
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException(e);
+		} finally {
+			pool.shutdownNow();
+		}
+
+		for (int i = 0; i < n; i++) {
+			if (reports[i] == null) {
+				continue;
+			}
+			result.add(reports[i]);
+			if (result.isFailed()) {
 				break;
 			}
+			submitControlLaunchers(script.getInstructions().get(i), reports[i].getDeferredControlLaunchers(), result);
+		}
+
+		checkForUserCancellation(result);
+		if (!result.isFailed()) {
+			logCriticalPath(graph, durations, System.nanoTime() - startTime, result);
 		}
 	}
 
+	/**
+	 * Log the chain of dependent instructions which took the longest time to run, as this determines how long the script takes
+	 */
+	private static void logCriticalPath(InstructionGraph graph, long[] durations, long totalTime, ExecutionReport result) {
+		int n = graph.n;
+		long[] pathTime = new long[n];
+		int[] previous = new int[n];
+		int last = -1;
+		for (int j = 0; j < n; j++) {
+			previous[j] = -1;
+			for (int i = 0; i < j; i++) {
+				if (graph.dependsOn[j][i] && (previous[j] == -1 || pathTime[i] > pathTime[previous[j]])) {
+					previous[j] = i;
+				}
+			}
+			pathTime[j] = durations[j] + (previous[j] != -1 ? pathTime[previous[j]] : 0);
+			if (last == -1 || pathTime[j] > pathTime[last]) {
+				last = j;
+			}
+		}
+
+		StringBuilder builder = new StringBuilder();
+		for (int i = last; i != -1; i = previous[i]) {
+			String step = "line " + (i + 1) + " (" + graph.names[i] + ", " + (durations[i] / 1000000) + " ms)";
+			builder.insert(0, builder.length() > 0 ? step + " -> " : step);
+		}
+		result.log("Ran instructions in parallel in " + (totalTime / 1000000) + " ms. Critical path: " + builder.toString() + ".");
+	}
+
 	private void executeUpdateQueryInstruction(Option root,InstructionConfig instruction, ScriptExecutionBlackboard result) {
 		// check for buildable adapter
 		AdapterConfig adapterConfig = result.getAdapterConfig(instruction.getDatastore());
@@ -198,8 +643,10 @@ final public class ScriptExecutor {
 			// build it
 			ODLDatastore<? extends ODLTable> adapter = null;
 			if (!result.isFailed()) {
+				ExecutionTrace.Span span = result.getTrace().start("build adapter " + adapterConfig.getId());
 				AdapterBuilder builder = new AdapterBuilder(tmpAdapterConfig, new StandardisedStringSet(), result, internalExecutionApi, new BuiltAdapters());
 				adapter = builder.build();
+				span.stop();
 				if (adapter == null) {
 					result.setFailed();
 				}
@@ -236,12 +683,15 @@ final public class ScriptExecutor {
 			}
 
 			OutputConfig output = script.getOutputs().get(i);
+			ExecutionTrace.Span span = result.getTrace().start("output " + (i + 1) + " (" + output.getDatastore() + ")");
 			try {
 				executeOutput(output, result);
 
 			} catch (Throwable e) {
 				result.setFailed(e);
 				result.setFailed("Exception occurred.");
+			} finally {
+				span.stop();
 			}
 
 			if (result.isFailed()) {
@@ -366,14 +816,13 @@ final public class ScriptExecutor {
 		class BatchKeyInformation {
 			final List<String> values;
 			final int[] batchKeys;
+			long nbRows;
 
 			BatchKeyInformation(ODLDatastore<? extends ODLTableReadOnly> ds) {
 				int nt = ds.getTableCount();
 				batchKeys = new int[nt];
 				Arrays.fill(batchKeys, -1);
 
-				TreeSet<String> valueset = new TreeSet<>();
-
 				for (int tbl = 0; tbl < nt; tbl++) {
 					ODLTableReadOnly table = ds.getTableAt(tbl);
 					int nc = table.getColumnCount();
@@ -393,18 +842,21 @@ final public class ScriptExecutor {
 							}
 
 							batchKeys[tbl] = col;
+						}
+					}
+				}
 
-							if (!compileOnly) {
-								int nr = table.getRowCount();
-								for (int row = 0; row < nr; row++) {
-									Object val = table.getValueAt(row, col);
-									if (val != null) {
-										String s = (String) ColumnValueProcessor.convertToMe(ODLColumnType.STRING,val, type);
-										s = Strings.std(s);
-										valueset.add(s);
-									}
-								}
-
+				TreeSet<String> valueset = new TreeSet<>();
+				if (!compileOnly) {
+					for (int tbl = 0; tbl < nt; tbl++) {
+						ODLTableReadOnly table = ds.getTableAt(tbl);
+						int col = batchKeys[tbl];
+						int nr = table.getRowCount();
+						nbRows += nr;
+						for (int row = 0; row < nr && col != -1; row++) {
+							String s = getKey(table, row, col);
+							if (s != null) {
+								valueset.add(s);
 							}
 						}
 					}
@@ -412,6 +864,81 @@ final public class ScriptExecutor {
 
 				values = new ArrayList<>(valueset);
 			}
+
+			/**
+			 * Get the standardised batch key of the row, or null if it has none or it can't be converted
+			 */
+			String getKey(ODLTableReadOnly table, int row, int col) {
+				Object val = table.getValueAt(row, col);
+				if (val == null) {
+					return null;
+				}
+				String s = (String) ColumnValueProcessor.convertToMe(ODLColumnType.STRING, val, table.getColumnType(col));
+				return s != null ? Strings.std(s) : null;
+			}
+
+			/**
+			 * Rows with no key field or a null key value go in every batch
+			 */
+			boolean isInEveryBatch(ODLTableReadOnly table, int row, int col) {
+				return col == -1 || table.getValueAt(row, col) == null;
+			}
+
+			/**
+			 * Create the filtering adapter for the batch key value from the rows currently in the datastore, as a component writing to its
+			 * input may have inserted or deleted rows while running an earlier batch
+			 */
+			RowFilterDecorator<ODLTable> createFilter(ODLDatastore<? extends ODLTable> ds, String batchKey) {
+				RowFilterDecorator<ODLTable> filterDecorator = new RowFilterDecorator<ODLTable>(ds);
+				for (int tableIndex = 0; tableIndex < ds.getTableCount(); tableIndex++) {
+					ODLTableReadOnly table = ds.getTableAt(tableIndex);
+					int col = batchKeys[tableIndex];
+					int nr = table.getRowCount();
+					for (int row = 0; row < nr; row++) {
+						if (isInEveryBatch(table, row, col) || batchKey.equals(getKey(table, row, col))) {
+							filterDecorator.addRowToFilter(table.getImmutableId(), table.getRowId(row));
+						}
+					}
+				}
+				return filterDecorator;
+			}
+
+			/**
+			 * Create the filtering adapters for all batch key values in a single pass over the datastore, keeping the rows in their original
+			 * order. Only valid when no batch changes the input before the others have been created.
+			 */
+			List<RowFilterDecorator<ODLTable>> createFilters(ODLDatastore<? extends ODLTable> ds) {
+				int nbBatches = values.size();
+				ArrayList<RowFilterDecorator<ODLTable>> ret = new ArrayList<>(nbBatches);
+				TObjectIntHashMap<String> indexByValue = new TObjectIntHashMap<>(Math.max(10, nbBatches * 2), 0.5f, -1);
+				for (int i = 0; i < nbBatches; i++) {
+					ret.add(new RowFilterDecorator<ODLTable>(ds));
+					indexByValue.put(values.get(i), i);
+				}
+
+				for (int tableIndex = 0; tableIndex < ds.getTableCount(); tableIndex++) {
+					ODLTableReadOnly table = ds.getTableAt(tableIndex);
+					int tableId = table.getImmutableId();
+					int col = batchKeys[tableIndex];
+					int nr = table.getRowCount();
+					for (int row = 0; row < nr; row++) {
+						if (isInEveryBatch(table, row, col)) {
+							long rowId = table.getRowId(row);
+							for (RowFilterDecorator<ODLTable> filter : ret) {
+								filter.addRowToFilter(tableId, rowId);
+							}
+							continue;
+						}
+
+						String s = getKey(table, row, col);
+						int index = s != null ? indexByValue.get(s) : -1;
+						if (index != -1) {
+							ret.get(index).addRowToFilter(tableId, table.getRowId(row));
+						}
+					}
+				}
+				return ret;
+			}
 		}
 
 		// check if we're doing an update query... this has special logic
@@ -428,47 +955,36 @@ final public class ScriptExecutor {
 		// inspect the input data store for batch keys, getting values
 		BatchKeyInformation batchKeys = null;
 		if (availableIODS != null) {
+			ExecutionTrace.Span span = result.getTrace().start("batch keys");
 			batchKeys = new BatchKeyInformation(availableIODS);
+			span.addRowsIn(batchKeys.nbRows);
+			if (batchKeys.values != null) {
+				span.addRowsOut(batchKeys.values.size());
+			}
+			span.stop();
 			if (result.isFailed()) {
 				return;
 			}
 		}
 
-		if (batchKeys != null && batchKeys.values.size() > 0) {
+		if (batchKeys != null && batchKeys.values.size() > 1 && canRunBatchesInParallel(root, instruction, result)) {
 
-			// loop over each batch
-			for (final String batchKey : batchKeys.values) {
-				// create a filtering adapter...
-				RowFilterDecorator<ODLTable> filterDecorator = new RowFilterDecorator<ODLTable>(availableIODS);
-				for (int tableIndex = 0; tableIndex < availableIODS.getTableCount(); tableIndex++) {
-					int keyCol = batchKeys.batchKeys[tableIndex];
-					ODLTableReadOnly table = availableIODS.getTableAt(tableIndex);
-
-					// loop over each row of the source table
-					int nr = table.getRowCount();
-					for (int row = 0; row < nr; row++) {
+			// create all the filtering adapters first as building them reads the input datastore; the component doesn't write to its
+			// input so the rows can be split between the batches in a single pass
+			executeBatchesInParallel(root, instruction, batchKeys.values, batchKeys.createFilters(availableIODS), result);
 
-						// accept row if no key field
-						boolean accept = keyCol == -1;
+		} else if (batchKeys != null && batchKeys.values.size() > 0) {
 
-						// accept row if its keyfield value is null
-						if (!accept) {
-							accept = table.getValueAt(row, keyCol) == null;
-						}
-
-						// accept if strings the same
-						if (!accept) {
-							accept = Strings.equalsStd(batchKey, table.getValueAt(row, keyCol).toString());
-						}
+			// loop over each batch
+			for (final String batchKey : batchKeys.values) {
+				ExecutionTrace.Span span = result.getTrace().start("batch");
 
-						if (accept) {
-							filterDecorator.addRowToFilter(table.getImmutableId(), table.getRowId(row));
-						}
-					}
-				}
+				// create a filtering adapter from the current rows, as the last batch may have changed them...
+				RowFilterDecorator<ODLTable> filterDecorator = batchKeys.createFilter(availableIODS, batchKey);
 
 				// execute with filtered data
 				executeSingleInstruction(root,instruction, filterDecorator, batchKey, result);
+				span.stop();
 
 				checkForUserCancellation(result);
 				if (result.isFailed()) {
@@ -486,6 +1002,186 @@ final public class ScriptExecutor {
 
 	}
 
+	/**
+	 * Batches can only run in parallel if the component says it can do so safely and doesn't write to its input
+	 * 
+	 * @param root
+	 * @param instruction
+	 * @param result
+	 * @return
+	 */
+	private boolean canRunBatchesInParallel(Option root, InstructionConfig instruction, ScriptExecutionBlackboard result) {
+		if (compileOnly || MAX_PARALLEL_BATCHES < 2) {
+			return false;
+		}
+
+		ODLComponent component = getComponent(instruction, result);
+		if (component == null) {
+			return false;
+		}
+		long flags = component.getFlags(api, instruction.getExecutionMode());
+		return (flags & ODLComponent.FLAG_CAN_RUN_IN_PARALLEL) == ODLComponent.FLAG_CAN_RUN_IN_PARALLEL
+				&& (flags & ODLComponent.FLAG_WRITES_TO_INPUT) == 0;
+	}
+
+	/**
+	 * Run the component for each batch key on a bounded pool of threads. Each batch writes to its own copy of the output datastore
+	 * and has its own report and list of control launchers; these are merged in batch key order once all batches have finished, so
+	 * the result is the same as running the batches one after another. If any batch fails, the other batches are stopped.
+	 * 
+	 * @param root
+	 * @param instruction
+	 * @param batchKeys
+	 * @param filters
+	 * @param result
+	 */
+	private void executeBatchesInParallel(final Option root, final InstructionConfig instruction, List<String> batchKeys,
+			List<RowFilterDecorator<ODLTable>> filters, ScriptExecutionBlackboard result) {
+		final ExecutionTrace trace = result.getTrace();
+
+		class Batch implements Runnable {
+			final String batchKey;
+			final ODLDatastore<? extends ODLTable> ioDs;
+			final ODLDatastoreAlterable<ODLTableAlterable> outputDb = datastoreFactory.create();
+			final BatchReport report = new BatchReport();
+			final ArrayList<ControlLauncherCallback> launchers = new ArrayList<>();
+			final AtomicBoolean stopAll;
+			final ExecutionTrace.Span parentSpan = trace.getCurrent();
+			volatile boolean executed;
+
+			Batch(String batchKey, ODLDatastore<? extends ODLTable> ioDs, AtomicBoolean stopAll) {
+				this.batchKey = batchKey;
+				this.ioDs = ioDs;
+				this.stopAll = stopAll;
+			}
+
+			@Override
+			public void run() {
+				ExecutionTrace.Span span = trace.start(parentSpan, "batch");
+				try {
+					if (!stopAll.get()) {
+						executed = executeComponent(root, instruction, ioDs, batchKey, outputDb, stopAll, launchers, report, trace);
+					}
+				} catch (Throwable e) {
+					report.setFailed(e);
+					report.setFailed("Exception occurred executing batch key " + batchKey + ".");
+				} finally {
+					span.stop();
+				}
+
+				if (!executed) {
+					stopAll.set(true);
+				}
+			}
+		}
+
+		// take the structure of the output datastore for each batch's own copy
+		ODLDatastoreAlterable<? extends ODLTableAlterable> outputDb = result.getDsByInstruction(instruction).getDs();
+		int nbBatches = batchKeys.size();
+		AtomicBoolean stopAll = new AtomicBoolean(false);
+		ArrayList<Batch> batches = new ArrayList<>(nbBatches);
+		for (int i = 0; i < nbBatches; i++) {
+			Batch batch = new Batch(batchKeys.get(i), filters.get(i), stopAll);
+			DatastoreCopier.copyStructure(outputDb, batch.outputDb);
+			batches.add(batch);
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(nbBatches, MAX_PARALLEL_BATCHES));
+		try {
+			ArrayList<Future<?>> futures = new ArrayList<>(nbBatches);
+			for (Batch batch : batches) {
+				futures.add(pool.submit(batch));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException(e);
+		} finally {
+			pool.shutdownNow();
+		}
+
+		// merge in batch key order, stopping at the first batch which failed (ignoring batches which were only
+		// stopped because another batch failed) as happens when the batches are run one after another
+		boolean anyExecuted = false;
+		for (Batch batch : batches) {
+			if (!batch.executed) {
+				if (batch.report.isFailed() && !batch.report.isStoppedByOtherBatch()) {
+					result.add(batch.report);
+					break;
+				}
+				continue;
+			}
+
+			result.add(batch.report);
+			mergeBatchOutput(batch.outputDb, outputDb, result);
+			if (result.isFailed()) {
+				break;
+			}
+			submitControlLaunchers(instruction, batch.launchers, result);
+			anyExecuted = true;
+		}
+
+		// make sure we always report a failure if a batch failed
+		if (!result.isFailed() && stopAll.get()) {
+			checkForUserCancellation(result);
+			if (!result.isFailed()) {
+				result.setFailed("A batch failed to execute.");
+			}
+		}
+
+		// register the external datasource dependencies once for all batches
+		if (anyExecuted) {
+			internalExecutionApi.addInstructionDependencies(instruction.getUuid(), extractDependencies(result));
+		}
+	}
+
+	/**
+	 * Submit control launchers which were held back whilst the instruction or batch ran in parallel with others. If the instruction
+	 * itself is running in parallel with others, they are added to its own list instead.
+	 * 
+	 * @param instruction
+	 * @param launchers
+	 * @param result
+	 */
+	private void submitControlLaunchers(InstructionConfig instruction, List<ControlLauncherCallback> launchers, ScriptExecutionBlackboard result) {
+		for (ControlLauncherCallback cb : launchers) {
+			if (result.getDeferredControlLaunchers() != null) {
+				result.getDeferredControlLaunchers().add(cb);
+			} else {
+				internalExecutionApi.submitControlLauncher(instruction.getUuid(), cb);
+			}
+		}
+	}
+
+	/**
+	 * Append the rows of a batch's own output datastore to the instruction's output datastore, creating any tables the component
+	 * created whilst running the batch
+	 * 
+	 * @param batchOutput
+	 * @param outputDb
+	 * @param result
+	 */
+	private static void mergeBatchOutput(ODLDatastore<? extends ODLTableReadOnly> batchOutput, ODLDatastoreAlterable<? extends ODLTableAlterable> outputDb,
+			ExecutionReport result) {
+		for (int i = 0; i < batchOutput.getTableCount(); i++) {
+			ODLTableReadOnly from = batchOutput.getTableAt(i);
+			ODLTableAlterable to = TableUtils.findTable(outputDb, from.getName(), true);
+			if (to == null) {
+				to = DatastoreCopier.copyTable(from, outputDb);
+				if (to == null) {
+					result.setFailed("Failed to create output table '" + from.getName() + "'.");
+					return;
+				}
+			} else if (DatastoreComparer.isSameStructure(from, to, 0)) {
+				DatastoreCopier.copyData(from, to);
+			} else {
+				result.setFailed("Output table '" + from.getName() + "' had a different structure for different batch keys.");
+				return;
+			}
+		}
+	}
+
 	/**
 	 * Execute a single instruction once for a single batch key
 	 * 
@@ -496,11 +1192,65 @@ final public class ScriptExecutor {
 	 * @param result
 	 */
 	private void executeSingleInstruction(Option root,final InstructionConfig instruction, ODLDatastore<? extends ODLTable> availableIODS, final String batchKey, final ScriptExecutionBlackboard result) {
+		ODLDatastoreAlterable<? extends ODLTableAlterable> outputDb = result.getDsByInstruction(instruction).getDs();
+		if (executeComponent(root, instruction, availableIODS, batchKey, outputDb, null, result.getDeferredControlLaunchers(), result, result.getTrace())) {
+			// register or update the external datasource dependencies for any UI components that were created or updated
+			DataDependencies depends = extractDependencies(result);
+			internalExecutionApi.addInstructionDependencies(instruction.getUuid(), depends);
+		}
+	}
+
+	/**
+	 * Report used by a batch running in parallel, which records whether it was stopped because another batch failed
+	 */
+	private static class BatchReport extends ExecutionReportImpl {
+		private boolean stoppedByOtherBatch;
+
+		boolean isStoppedByOtherBatch() {
+			return stoppedByOtherBatch;
+		}
+	}
+
+	private boolean checkForCancellation(ExecutionReport report, AtomicBoolean stopAll) {
+		if (!checkForUserCancellation(report)) {
+			return false;
+		}
+		if (stopAll != null && stopAll.get()) {
+			report.setFailed("Stopped as another batch failed.");
+			if (BatchReport.class.isInstance(report)) {
+				((BatchReport) report).stoppedByOtherBatch = true;
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Execute the component for a single batch key
+	 * 
+	 * @param root
+	 * @param instruction
+	 * @param availableIODS
+	 * @param batchKey
+	 * @param outputDb
+	 * @param stopAll
+	 *            Set when batches are running in parallel and any batch fails, otherwise null
+	 * @param deferredLaunchers
+	 *            If not null, control launchers are added to this list instead of being submitted straight away, so launchers
+	 *            from instructions or batches running in parallel can be submitted in script and batch key order
+	 * @param result
+	 * @param trace
+	 * @return True if the component was executed without failing
+	 */
+	private boolean executeComponent(Option root, final InstructionConfig instruction, ODLDatastore<? extends ODLTable> availableIODS,
+			final String batchKey, ODLDatastoreAlterable<? extends ODLTableAlterable> outputDb, final AtomicBoolean stopAll,
+			final List<ControlLauncherCallback> deferredLaunchers, final ExecutionReport result, ExecutionTrace trace) {
 
 		// get the component
-		ODLComponent component = getComponent(instruction, result);
-		if (result.isFailed()) {
-			return;
+		ODLComponent component = components.getComponent(instruction.getComponent());
+		if (component == null) {
+			result.setFailed("Could not find component \"" + instruction.getComponent() + "\".");
+			return false;
 		}
 
 		// get the component's expected datastore
@@ -531,7 +1281,7 @@ final public class ScriptExecutor {
 			
 			@Override
 			public boolean isCancelled() {
-				return internalExecutionApi.isCancelled();
+				return internalExecutionApi.isCancelled() || (stopAll != null && stopAll.get());
 			}
 			
 			@Override
@@ -571,7 +1321,14 @@ final public class ScriptExecutor {
 
 			@Override
 			public void submitControlLauncher(ControlLauncherCallback cb) {
-				internalExecutionApi.submitControlLauncher(instruction.getUuid(),cb);
+				if (outputCache != null) {
+					outputCache.setLaunchedControls(instruction.getUuid());
+				}
+				if (deferredLaunchers != null) {
+					deferredLaunchers.add(cb);
+				} else {
+					internalExecutionApi.submitControlLauncher(instruction.getUuid(), cb);
+				}
 			}
 
 			@Override
@@ -585,44 +1342,70 @@ final public class ScriptExecutor {
 		if (!compileOnly) {
 			// read all input values to ensure that the data dependencies are registered properly when the component
 			// executes; for queries the input values can be read by the table component later as well...
+			// Each column is read in turn so the time spent calculating its values (e.g. an adapter formula) can be traced.
+			long nbInputRows = 0;
 			if (ioDS != null) {
 				externalApi.postStatusMessage("Validating input data" + (Strings.isEmpty(batchKey) ? "" : " (key=" + batchKey + ")"));
 				UpdateTimer timer = new UpdateTimer(250);
-				for (int i = 0; i < ioDS.getTableCount() && checkForUserCancellation(result); i++) {
-					ODLTableReadOnly table = ioDS.getTableAt(i);
-					int nrow = table.getRowCount();
-					int ncol = table.getColumnCount();
-					for (int row = 0; row < nrow && checkForUserCancellation(result); row++) {
-						for (int col = 0; col < ncol; col++) {
-							table.getValueAt(row, col);
-						}
-
-						if (timer.isUpdate()) {
-							externalApi.postStatusMessage("Validating input data" + (Strings.isEmpty(batchKey) ? "" : " (key=" + batchKey + ")") + ", table " + (i + 1) + "/" + ioDS.getTableCount() + ", row " + (row + 1) + "/" + nrow);
+				ExecutionTrace.Span readSpan = trace.start("read input");
+				try {
+					for (int i = 0; i < ioDS.getTableCount() && checkForCancellation(result, stopAll); i++) {
+						ODLTableReadOnly table = ioDS.getTableAt(i);
+						int nrow = table.getRowCount();
+						int ncol = table.getColumnCount();
+						nbInputRows += nrow;
+						ExecutionTrace.Span tableSpan = trace.start("table " + table.getName());
+						tableSpan.addRowsIn(nrow);
+						for (int col = 0; col < ncol && checkForCancellation(result, stopAll); col++) {
+							ExecutionTrace.Span columnSpan = trace.start("column " + table.getColumnName(col));
+							for (int row = 0; row < nrow && checkForCancellation(result, stopAll); row++) {
+								table.getValueAt(row, col);
+
+								if (timer.isUpdate()) {
+									externalApi.postStatusMessage("Validating input data" + (Strings.isEmpty(batchKey) ? "" : " (key=" + batchKey + ")") + ", table " + (i + 1) + "/"
+											+ ioDS.getTableCount() + ", column " + (col + 1) + "/" + ncol + ", row " + (row + 1) + "/" + nrow);
+								}
+							}
+							columnSpan.addRowsIn(nrow);
+							columnSpan.stop();
 						}
+						tableSpan.stop();
 					}
+					readSpan.addRowsIn(nbInputRows);
+				} finally {
+					readSpan.stop();
 				}
 			}
 
 			if (result.isFailed()) {
-				return;
+				return false;
 			}
 
+			ExecutionTrace.Span span = trace.start("execute");
+			span.addRowsIn(nbInputRows);
+			long nbOutputRows = countRows(outputDb);
 			try {
 				externalApi.postStatusMessage("Calling component: " + component.getName());
-				ODLDatastoreAlterable<? extends ODLTableAlterable> outputDb = result.getDsByInstruction(instruction).getDs();
 				component.execute(externalApi, instruction.getExecutionMode(), config, ioDS, outputDb);
 			} catch (Throwable e) {
 				result.setFailed(e);
 				result.setFailed("Component " + component.getId() + " threw an exception.");
-				return;
+				return false;
+			} finally {
+				span.addRowsOut(Math.max(0, countRows(outputDb) - nbOutputRows));
+				span.stop();
 			}
+			return !result.isFailed();
+		}
+		return false;
+	}
 
-			// register or update the external datasource dependencies for any UI components that were created or updated
-			DataDependencies depends = extractDependencies(result);
-			internalExecutionApi.addInstructionDependencies(instruction.getUuid(), depends);
-
+	private static long countRows(ODLDatastore<? extends ODLTableReadOnly> ds) {
+		long ret = 0;
+		for (int i = 0; i < ds.getTableCount(); i++) {
+			ret += ds.getTableAt(i).getRowCount();
 		}
+		return ret;
 	}
 
 	private ODLComponent getComponent(ComponentConfig instruction, ScriptExecutionBlackboard result) {
@@ -790,8 +1573,13 @@ final public class ScriptExecutor {
 		AdapterConfig adapterConfig = env.getAdapterConfig(id);
 		if (adapterConfig != null) {
 
+			ExecutionTrace.Span span = env.getTrace().start("build adapter " + id);
 			AdapterBuilder builder = new AdapterBuilder(id, new StandardisedStringSet(), env, internalExecutionApi, new BuiltAdapters());
 			ds = builder.build();
+			if (ds != null && !compileOnly) {
+				span.addRowsOut(countRows(ds));
+			}
+			span.stop();
 			if (ds != null) {
 				return ds;
 			}
@@ -8,14 +8,19 @@ package com.opendoorlogistics.core.scripts.execution.adapters;
 
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TIntObjectHashMap;
 import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
 import gnu.trove.set.hash.TIntHashSet;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import com.opendoorlogistics.api.components.ContinueProcessingCB;
 import com.opendoorlogistics.api.tables.ODLColumnType;
@@ -26,10 +31,14 @@ import com.opendoorlogistics.api.tables.ODLTableAlterable;
 import com.opendoorlogistics.api.tables.ODLTableDefinition;
 import com.opendoorlogistics.api.tables.ODLTableDefinitionAlterable;
 import com.opendoorlogistics.api.tables.ODLTableReadOnly;
+import com.opendoorlogistics.api.tables.ODLTime;
 import com.opendoorlogistics.api.tables.TableFlags;
+import com.opendoorlogistics.core.formulae.FormulaCompiler;
+import com.opendoorlogistics.core.formulae.FormulaOptimiser;
 import com.opendoorlogistics.core.formulae.FormulaParser;
 import com.opendoorlogistics.core.formulae.Function;
 import com.opendoorlogistics.core.formulae.FunctionParameters;
+import com.opendoorlogistics.core.formulae.FunctionUtils;
 import com.opendoorlogistics.core.formulae.Functions;
 import com.opendoorlogistics.core.formulae.UserVariableProvider;
 import com.opendoorlogistics.core.formulae.definitions.FunctionDefinitionLibrary;
@@ -39,6 +48,7 @@ import com.opendoorlogistics.core.scripts.elements.AdapterColumnConfig.SortField
 import com.opendoorlogistics.core.scripts.elements.AdapterConfig;
 import com.opendoorlogistics.core.scripts.execution.ScriptExecutionBlackboard;
 import com.opendoorlogistics.core.scripts.formulae.FmLocalElement;
+import com.opendoorlogistics.core.scripts.formulae.LookupAggregates;
 import com.opendoorlogistics.core.scripts.formulae.TableParameters;
 import com.opendoorlogistics.core.tables.ColumnValueProcessor;
 import com.opendoorlogistics.core.tables.decorators.datastores.AdaptedDecorator;
@@ -50,17 +60,32 @@ import com.opendoorlogistics.core.tables.utils.DatastoreCopier;
 import com.opendoorlogistics.core.tables.utils.TableUtils;
 import com.opendoorlogistics.core.utils.IntUtils;
 import com.opendoorlogistics.core.utils.Numbers;
+import com.opendoorlogistics.core.utils.ParallelMergeSort;
 import com.opendoorlogistics.core.utils.strings.StandardisedStringSet;
 import com.opendoorlogistics.core.utils.strings.StandardisedStringTreeMap;
 import com.opendoorlogistics.core.utils.strings.Strings;
 
 final public class AdapterBuilder {
+	/**
+	 * Filter and sort formulae are only evaluated in parallel on tables with at least this many rows
+	 */
+	private static final int PARALLEL_MIN_ROWS = 10000;
+	
+	/**
+	 * Number of rows each parallel filter or sort task evaluates without splitting further
+	 */
+	private static final int PARALLEL_TASK_ROWS = 2500;
+	
+	private static final ForkJoinPool PARALLEL_POOL = new ForkJoinPool();
+	
 	private final String id;
 	private final BuiltAdapters builtAdapters;
 	private final ScriptExecutionBlackboard env;
 	private final StandardisedStringSet callerAdapters;
 	private final StandardisedStringTreeMap<Integer> datasourceMap = new StandardisedStringTreeMap<>();
 	private final ArrayList<ODLDatastore<? extends ODLTable>> datasources = new ArrayList<>();
+	private final LookupAggregates.Registry lookupAggregates = new LookupAggregates.Registry();
+	private final TIntObjectHashMap<FunctionDefinitionLibrary> libraries = new TIntObjectHashMap<>();
 	private final AdapterConfig inputConfig;
 	private final ContinueProcessingCB continueCb;
 	private ODLDatastore<? extends ODLTableDefinition> destination;
@@ -334,6 +359,159 @@ final public class AdapterBuilder {
 		return ret.toArray();
 	}
 
+	/**
+	 * Evaluates the filter formula over a range of rows, returning the ids of the rows which pass in row order
+	 * or null if the formula fails. Large ranges are split and evaluated in parallel when the task is invoked
+	 * in a fork-join pool; the formula must be thread-safe in this case. Each row gets its own parameters object.
+	 */
+	private class FilterRowsTask extends RecursiveTask<TLongArrayList> {
+		private static final long serialVersionUID = 1L;
+		final Function formula;
+		final int dsIndex;
+		final ODLTableReadOnly srcTable;
+		final int fromRow;
+		final int toRow;
+
+		FilterRowsTask(Function formula, int dsIndex, ODLTableReadOnly srcTable, int fromRow, int toRow) {
+			this.formula = formula;
+			this.dsIndex = dsIndex;
+			this.srcTable = srcTable;
+			this.fromRow = fromRow;
+			this.toRow = toRow;
+		}
+
+		@Override
+		protected TLongArrayList compute() {
+			int nbRows = toRow - fromRow;
+			if (nbRows <= PARALLEL_TASK_ROWS) {
+				return filterRows();
+			}
+
+			int mid = fromRow + nbRows / 2;
+			FilterRowsTask left = new FilterRowsTask(formula, dsIndex, srcTable, fromRow, mid);
+			FilterRowsTask right = new FilterRowsTask(formula, dsIndex, srcTable, mid, toRow);
+			right.fork();
+			TLongArrayList ret = left.compute();
+			TLongArrayList rightRet = right.join();
+			if (ret == null || rightRet == null) {
+				return null;
+			}
+
+			// merge in order
+			ret.addAll(rightRet);
+			return ret;
+		}
+
+		/**
+		 * Filter the rows on the calling thread
+		 * 
+		 * @return
+		 */
+		TLongArrayList filterRows() {
+			TLongArrayList rowIds = new TLongArrayList(toRow - fromRow);
+			int tableId = srcTable.getImmutableId();
+			for (int row = fromRow; row < toRow; row++) {
+				long rowId = srcTable.getRowId(row);
+				FunctionParameters parameters = new TableParameters(datasources, dsIndex, tableId, rowId, row);
+				Object exec = formula.execute(parameters);
+				if (exec == Functions.EXECUTION_ERROR) {
+					return null;
+				}
+
+				if (exec != null) {
+					Long val = Numbers.toLong(exec);
+					if (val != null && val.intValue() == 1) {
+						rowIds.add(rowId);
+					}
+				}
+			}
+			return rowIds;
+		}
+	}
+
+	private static boolean areThreadSafe(Function[] formulae) {
+		for (Function formula : formulae) {
+			if (!FunctionUtils.isThreadSafe(formula)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sort keys for each sort column, held in primitive arrays so rows can be compared without boxing or conversion. Numbers and times are
+	 * stored as doubles; other values are compared as lower case strings, which are replaced by their rank once all rows are evaluated.
+	 */
+	private static class SortKeys {
+		final ODLColumnType[] types;
+		final double[][] values;
+		final boolean[][] empty;
+		final String[][] strings;
+
+		SortKeys(ODLColumnType[] types, int nbRows) {
+			int nbColumns = types.length;
+			this.types = types;
+			values = new double[nbColumns][nbRows];
+			empty = new boolean[nbColumns][nbRows];
+			strings = new String[nbColumns][];
+			for (int col = 0; col < nbColumns; col++) {
+				if (!ColumnValueProcessor.isNumeric(types[col]) && types[col] != ODLColumnType.TIME) {
+					strings[col] = new String[nbRows];
+				}
+			}
+		}
+
+		/**
+		 * Set the key from a value already converted to the column's type
+		 * 
+		 * @param col
+		 * @param row
+		 * @param value
+		 */
+		void set(int col, int row, Object value) {
+			if (value == null || value.toString().length() == 0) {
+				empty[col][row] = true;
+			} else if (strings[col] != null) {
+				strings[col][row] = value.toString().toLowerCase();
+			} else if (types[col] == ODLColumnType.TIME) {
+				values[col][row] = ((ODLTime) value).getTotalMilliseconds();
+			} else {
+				values[col][row] = ((Number) ColumnValueProcessor.convertToMe(ODLColumnType.DOUBLE, value)).doubleValue();
+			}
+		}
+
+		/**
+		 * Replace string values by their rank in the sorted set of distinct strings
+		 */
+		void rankStrings() {
+			for (int col = 0; col < strings.length; col++) {
+				String[] colStrings = strings[col];
+				if (colStrings == null) {
+					continue;
+				}
+
+				TreeSet<String> distinct = new TreeSet<>();
+				for (String s : colStrings) {
+					if (s != null) {
+						distinct.add(s);
+					}
+				}
+
+				HashMap<String, Integer> ranks = new HashMap<>(distinct.size() * 2);
+				for (String s : distinct) {
+					ranks.put(s, ranks.size());
+				}
+
+				for (int row = 0; row < colStrings.length; row++) {
+					if (colStrings[row] != null) {
+						values[col][row] = ranks.get(colStrings[row]);
+					}
+				}
+				strings[col] = null;
+			}
+		}
+	}
+
 	private class TableSorter {
 		final InternalTableRef sourceTableRef;
 		final TLongArrayList idsToSort;
@@ -348,6 +526,77 @@ final public class AdapterBuilder {
 			this.sortColumns = sortColumns;
 		}
 
+		/**
+		 * Evaluates the sort formulae over a range of rows into the sort keys. Large ranges are split and evaluated in parallel when the task is
+		 * invoked in a fork-join pool. Records the first row which failed, if any.
+		 */
+		class SortKeysTask extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+			final Function[] formulae;
+			final ODLTableReadOnly sourceTable;
+			final SortKeys keys;
+			final int fromRow;
+			final int toRow;
+			int failedRow = -1;
+			ODLColumnType failedConversionType;
+
+			SortKeysTask(Function[] formulae, ODLTableReadOnly sourceTable, SortKeys keys, int fromRow, int toRow) {
+				this.formulae = formulae;
+				this.sourceTable = sourceTable;
+				this.keys = keys;
+				this.fromRow = fromRow;
+				this.toRow = toRow;
+			}
+
+			@Override
+			protected void compute() {
+				int nbRows = toRow - fromRow;
+				if (nbRows <= PARALLEL_TASK_ROWS) {
+					evaluateRows();
+					return;
+				}
+
+				int mid = fromRow + nbRows / 2;
+				SortKeysTask left = new SortKeysTask(formulae, sourceTable, keys, fromRow, mid);
+				SortKeysTask right = new SortKeysTask(formulae, sourceTable, keys, mid, toRow);
+				invokeAll(left, right);
+
+				// report the first failure
+				SortKeysTask failed = left.failedRow != -1 ? left : right;
+				failedRow = failed.failedRow;
+				failedConversionType = failed.failedConversionType;
+			}
+
+			/**
+			 * Evaluate the rows on the calling thread
+			 */
+			void evaluateRows() {
+				int tableId = sourceTable.getImmutableId();
+				for (int row = fromRow; row < toRow; row++) {
+					FunctionParameters parameters = new TableParameters(datasources, sourceTableRef.dsIndex, tableId, idsToSort.get(row), -1);
+					for (int j = 0; j < formulae.length; j++) {
+						Object value = formulae[j].execute(parameters);
+						if (value == Functions.EXECUTION_ERROR) {
+							failedRow = row;
+							return;
+						}
+
+						// convert to the type so we do comparisons as string, number etc as needed
+						ODLColumnType type = keys.types[j];
+						if (value != null) {
+							value = ColumnValueProcessor.convertToMe(type, value);
+							if (value == null) {
+								failedRow = row;
+								failedConversionType = type;
+								return;
+							}
+						}
+						keys.set(j, row, value);
+					}
+				}
+			}
+		}
+
 		TLongArrayList sort() {
 			if (env.isFailed()) {
 				return null;
@@ -373,61 +622,61 @@ final public class AdapterBuilder {
 				}
 			}
 
-			class SortRow implements Comparable<SortRow> {
-				long id;
-				Object[] values;
+			// evaluate the sort keys for each row, in parallel for large tables if the formulae are thread-safe
+			int n = idsToSort.size();
+			ODLColumnType[] types = new ODLColumnType[formulae.length];
+			for (int j = 0; j < types.length; j++) {
+				types[j] = adaptedTableConfig.getColumnType(sortColumns[j]);
+			}
+			SortKeys keys = new SortKeys(types, n);
+			SortKeysTask keysTask = new SortKeysTask(formulae, sourceTable, keys, 0, n);
+			boolean parallel = n >= PARALLEL_MIN_ROWS;
+			if (parallel && areThreadSafe(formulae)) {
+				PARALLEL_POOL.invoke(keysTask);
+			} else {
+				keysTask.evaluateRows();
+			}
 
-				@Override
-				public int compareTo(SortRow o) {
-					int diff = 0;
-					for (int j = 0; j < values.length && diff == 0; j++) {
-						AdapterColumnConfig col = adaptedTableConfig.getColumn(sortColumns[j]);
-						diff = ColumnValueProcessor.compareValues(values[j], o.values[j], ColumnValueProcessor.isNumeric(col.getType()));
-
-						if (col.getSortField() != SortField.ASCENDING) {
-							diff = -diff;
-						}
-					}
-					return diff;
+			if (keysTask.failedRow != -1) {
+				if (keysTask.failedConversionType == null) {
+					env.setFailed("Failed to execute sort formula or read sort field number " + (keysTask.failedRow + 1));
+					env.setFailed("If you were doing a group-by, from the source table you can only sort on the group-by source field (and not a formula).");
+				} else {
+					env.setFailed("Failed to convert result of sort formula or read sort field to correct type: "
+							+ Strings.convertEnumToDisplayFriendly(keysTask.failedConversionType));
 				}
+				return null;
 			}
+			keys.rankStrings();
 
-			// execute each formula
-			int n = idsToSort.size();
-			ArrayList<SortRow> list = new ArrayList<>(n);
-			for (int i = 0; i < n; i++) {
-				SortRow row = new SortRow();
-				list.add(row);
-				row.id = idsToSort.get(i);
-				row.values = new Object[formulae.length];
-				FunctionParameters parameters = new TableParameters(datasources, sourceTableRef.dsIndex, sourceTable.getImmutableId(), row.id,-1);
-				for (int j = 0; j < row.values.length; j++) {
-					 row.values[j] = formulae[j].execute(parameters);
-					if (row.values[j] == Functions.EXECUTION_ERROR) {
-						env.setFailed("Failed to execute sort formula or read sort field number " + (i + 1));
-						env.setFailed("If you were doing a group-by, from the source table you can only sort on the group-by source field (and not a formula).");
-						return null;
-					}
+			// now sort based on the keys; the sort is stable so equal rows keep their order
+			final boolean[] descending = new boolean[formulae.length];
+			for (int j = 0; j < descending.length; j++) {
+				descending[j] = adaptedTableConfig.getColumn(sortColumns[j]).getSortField() != SortField.ASCENDING;
+			}
+			final double[][] values = keys.values;
+			final boolean[][] empty = keys.empty;
+			int[] order = ParallelMergeSort.sort(n, new ParallelMergeSort.IndexComparator() {
 
-					// convert to the type so we do comparisons as string, number etc as needed
-					if (row.values[j] != null) {
-						ODLColumnType type = adaptedTableConfig.getColumnType(sortColumns[j]);
-						row.values[j] = ColumnValueProcessor.convertToMe(type,row.values[j]);
-						if (row.values[j] == null) {
-							env.setFailed("Failed to convert result of sort formula or read sort field to correct type: " + Strings.convertEnumToDisplayFriendly(type));
-							return null;
+				@Override
+				public int compare(int indexA, int indexB) {
+					for (int j = 0; j < values.length; j++) {
+						// empty values go after non-empty values when ascending
+						int diff = Boolean.compare(empty[j][indexA], empty[j][indexB]);
+						if (diff == 0 && !empty[j][indexA]) {
+							diff = Double.compare(values[j][indexA], values[j][indexB]);
+						}
+						if (diff != 0) {
+							return descending[j] ? -diff : diff;
 						}
-
 					}
+					return 0;
 				}
-			}
-
-			// now sort based on the formula results
-			Collections.sort(list);
+			}, parallel ? PARALLEL_POOL : null);
 
 			TLongArrayList ret = new TLongArrayList(n);
 			for (int i = 0; i < n; i++) {
-				ret.add(list.get(i).id);
+				ret.add(idsToSort.get(order[i]));
 			}
 			return ret;
 		}
@@ -489,25 +738,19 @@ final public class AdapterBuilder {
 			}
 
 			if (!env.isCompileOnly()) {
-				// get all the row ids in the table which pass the filter
+				// get all the row ids in the table which pass the filter, in parallel for large tables if the formula is thread-safe
 				int nbRows = srcTable.getRowCount();
-				TLongArrayList rowIds = new TLongArrayList(nbRows);
-				for (int row = 0; row < nbRows; row++) {
-					FunctionParameters parameters = new TableParameters(datasources, tableRef.dsIndex, srcTable.getImmutableId(), srcTable.getRowId(row),row);
-					Object exec = formula.execute(parameters);
-					if (exec == Functions.EXECUTION_ERROR) {
-						env.setFailed("Failed to execute filter formula: " + filterFormula);
-						return;
-					}
-
-					if (exec != null) {
-						Long val = Numbers.toLong(exec);
-						if(val!=null && val.intValue()==1){
-							rowIds.add(srcTable.getRowId(row));							
-						}
-//						if (Number.class.isInstance(exec) && ((Number) exec).intValue() == 1) {
-//						}
-					}
+				FilterRowsTask filterTask = new FilterRowsTask(formula, tableRef.dsIndex, srcTable, 0, nbRows);
+				TLongArrayList rowIds;
+				if (nbRows >= PARALLEL_MIN_ROWS && FunctionUtils.isThreadSafe(formula)) {
+					rowIds = PARALLEL_POOL.invoke(filterTask);
+				} else {
+					rowIds = filterTask.filterRows();
+				}
+				
+				if (rowIds == null) {
+					env.setFailed("Failed to execute filter formula: " + filterFormula);
+					return;
 				}
 
 				// sort these row ids if sort columns are set
@@ -849,6 +1092,13 @@ final public class AdapterBuilder {
 
 	private Function buildFormulaWithTableVariables(final ODLTableDefinition srcTable, String formulaText, final int defaultDsIndx) {
 
+		// reuse the formula if it was compiled before against a table with the same columns
+		String key = CompiledFormulaCache.getKey(formulaText, srcTable);
+		Function ret = CompiledFormulaCache.get(key);
+		if (ret != null) {
+			return ret;
+		}
+
 		// create variable provider for the formula parser. variables come from source table
 		UserVariableProvider uvp = new UserVariableProvider() {
 			@Override
@@ -861,8 +1111,17 @@ final public class AdapterBuilder {
 			}
 		};
 
-		FunctionDefinitionLibrary library = buildFunctionLibrary(defaultDsIndx);
-		return buildFormula(formulaText, library, uvp);
+		// the library is only read by the parser, so is shared by all formulae with the same default datastore
+		FunctionDefinitionLibrary library = libraries.get(defaultDsIndx);
+		if (library == null) {
+			library = buildFunctionLibrary(defaultDsIndx);
+			libraries.put(defaultDsIndx, library);
+		}
+		ret = buildFormula(formulaText, library, uvp);
+		if (ret != null) {
+			CompiledFormulaCache.put(key, ret);
+		}
+		return ret;
 	}
 
 	private Function buildFormula(String formulaText, FunctionDefinitionLibrary library, UserVariableProvider uvp) {
@@ -879,7 +1138,10 @@ final public class AdapterBuilder {
 			if (formula == null) {
 				throw new RuntimeException();
 			}
-			return formula;
+
+			// fold constants and share repeated sub-expressions, then compile to typed nodes where possible
+			formula = FormulaOptimiser.optimiseIfEnabled(formula);
+			return FormulaCompiler.compileIfEnabled(formula);
 		} catch (Throwable e) {
 			env.setFailed(e);
 			env.setFailed("Failed building formula " + formulaText);
@@ -892,7 +1154,7 @@ final public class AdapterBuilder {
 	protected FunctionDefinitionLibrary buildFunctionLibrary(final int defaultDsIndx) {
 		FunctionDefinitionLibrary library = new FunctionDefinitionLibrary();
 		library.build();
-		FunctionsBuilder.buildNonAggregateFormulae(library, createIndexDatastoresWrapper(), defaultDsIndx, env);
+		FunctionsBuilder.buildNonAggregateFormulae(library, createIndexDatastoresWrapper(), defaultDsIndx, lookupAggregates, env);
 		return library;
 	}
 
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.scripts.execution.adapters;
+
+import com.opendoorlogistics.api.tables.ODLTableDefinition;
+import com.opendoorlogistics.core.cache.ApplicationCache;
+import com.opendoorlogistics.core.formulae.AdapterBoundFunction;
+import com.opendoorlogistics.core.formulae.FormulaCompiler;
+import com.opendoorlogistics.core.formulae.FormulaCompiler.CompiledFunction;
+import com.opendoorlogistics.core.formulae.FormulaOptimiser;
+import com.opendoorlogistics.core.formulae.Function;
+
+/**
+ * Formulae parsed, optimised and compiled by previous adapter builds, so refreshing a script whose formulae and source tables haven't
+ * changed doesn't compile them again. A formula is keyed by its text and the names and types of the columns of the table it was built
+ * against, as these decide which columns it reads.<br>
+ * Formulae containing an {@link AdapterBoundFunction} (lookups, images etc) are bound to the datastores of the adapter they were built for
+ * and so are never cached. A formula tree's structure is never changed once the optimiser and compiler have finished with it and it is
+ * safe to execute from several threads, so every build gets the same cached instance. Its only state is the last value of each shared
+ * sub-expression ({@link FormulaOptimiser.SharedFunction}), which holds the row parameters it was calculated for weakly so a cached formula
+ * doesn't keep the datastores it last read in memory.
+ * 
+ * @author Phil
+ *
+ */
+final public class CompiledFormulaCache {
+	private CompiledFormulaCache() {
+	}
+
+	/**
+	 * Get the key for the formula built against the source table
+	 * 
+	 * @param formulaText
+	 * @param srcTable
+	 * @return
+	 */
+	public static String getKey(String formulaText, ODLTableDefinition srcTable) {
+		StringBuilder builder = new StringBuilder();
+		builder.append(FormulaOptimiser.isEnabled() ? 'o' : '-');
+		builder.append(FormulaCompiler.isEnabled() ? 'c' : '-');
+		int nc = srcTable.getColumnCount();
+		for (int col = 0; col < nc; col++) {
+			builder.append('|');
+			builder.append(srcTable.getColumnName(col));
+			builder.append(':');
+			builder.append(srcTable.getColumnType(col).ordinal());
+		}
+		builder.append('|');
+		builder.append(formulaText);
+		return builder.toString();
+	}
+
+	/**
+	 * Get the cached formula
+	 * 
+	 * @param key
+	 * @return The shared formula or null if the formula isn't cached
+	 */
+	public static Function get(String key) {
+		return (Function) ApplicationCache.singleton().get(ApplicationCache.COMPILED_FORMULA_CACHE).get(key);
+	}
+
+	/**
+	 * Cache the formula, unless it's bound to the adapter it was built for
+	 * 
+	 * @param key
+	 * @param formula
+	 */
+	public static void put(String key, Function formula) {
+		if (formula != null && !isBoundToAdapter(formula)) {
+			// rough size of the tree, which is generally a few objects for every character of the formula
+			ApplicationCache.singleton().get(ApplicationCache.COMPILED_FORMULA_CACHE).put(key, formula, 256 + 64 * key.length());
+		}
+	}
+
+	/**
+	 * Test if the formula or any of its descendants is an {@link AdapterBoundFunction}
+	 * 
+	 * @param formula
+	 * @return
+	 */
+	public static boolean isBoundToAdapter(Function formula) {
+		if (AdapterBoundFunction.class.isInstance(formula)) {
+			return true;
+		}
+
+		// compiled nodes keep the interpreted function they replaced; their children are compiled too and are tested below
+		if (CompiledFunction.class.isInstance(formula) && AdapterBoundFunction.class.isInstance(((CompiledFunction) formula).getSource())) {
+			return true;
+		}
+
+		int n = formula.nbChildren();
+		for (int i = 0; i < n; i++) {
+			Function child = formula.child(i);
+			if (child != null && isBoundToAdapter(child)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -30,10 +30,12 @@ import com.opendoorlogistics.core.gis.map.data.DrawableObjectImpl;
 import com.opendoorlogistics.core.scripts.TableReference;
 import com.opendoorlogistics.core.scripts.elements.AdapterConfig;
 import com.opendoorlogistics.core.scripts.formulae.FmAggregate;
+import com.opendoorlogistics.core.scripts.formulae.GroupAggregates;
 import com.opendoorlogistics.core.scripts.formulae.FmAggregate.AggregateType;
 import com.opendoorlogistics.core.scripts.formulae.FmImage;
 import com.opendoorlogistics.core.scripts.formulae.FmLookup;
 import com.opendoorlogistics.core.scripts.formulae.FmLookup.LookupType;
+import com.opendoorlogistics.core.scripts.formulae.LookupAggregates;
 import com.opendoorlogistics.core.scripts.formulae.FmIsSelectedInMap;
 import com.opendoorlogistics.core.scripts.formulae.FmLookupGeomUnion;
 import com.opendoorlogistics.core.scripts.formulae.FmLookupNearest;
@@ -46,7 +48,16 @@ import com.opendoorlogistics.core.utils.strings.Strings;
 final public class FunctionsBuilder {
 	public static void buildNonAggregateFormulae(FunctionDefinitionLibrary library, final IndexedDatastores<? extends ODLTable> datastores,
 			final int defaultDatastoreIndex, final ExecutionReport result) {
-		buildLookups(library, datastores, defaultDatastoreIndex, result);
+		buildNonAggregateFormulae(library, datastores, defaultDatastoreIndex, null, result);
+	}
+
+	/**
+	 * Build the non-aggregate formulae. If a lookup aggregates registry is given, the numeric lookups built from the library share 
+	 * pre-aggregated results for each table and key column.
+	 */
+	public static void buildNonAggregateFormulae(FunctionDefinitionLibrary library, final IndexedDatastores<? extends ODLTable> datastores,
+			final int defaultDatastoreIndex, final LookupAggregates.Registry lookupAggregates, final ExecutionReport result) {
+		buildLookups(library, datastores, defaultDatastoreIndex, lookupAggregates, result);
 		buildImage(library, datastores, result);
 		for(FunctionDefinition dfn : FmLookupNearest.createDefinitions(datastores, defaultDatastoreIndex, result)){
 			library.add(dfn);
@@ -59,6 +70,9 @@ final public class FunctionsBuilder {
 
 	public static void buildAggregate(FunctionDefinitionLibrary library, final TLongObjectHashMap<TLongArrayList> groupRowIdToSourceRowIds,
 			final int srcDsIndex, final int srcTableId) {
+		// all aggregates built from the library are calculated together in one pass over the source rows
+		final GroupAggregates groupAggregates = groupRowIdToSourceRowIds != null ? new GroupAggregates(groupRowIdToSourceRowIds, srcDsIndex,
+				srcTableId) : null;
 		for (final AggregateType type : AggregateType.values()) {
 			FunctionDefinition dfn = new FunctionDefinition(FunctionType.FUNCTION, type.formulaName());
 			switch(type){
@@ -84,7 +98,8 @@ final public class FunctionsBuilder {
 
 					@Override
 					public Function createFunction(Function... children) {
-						FmAggregate ret = new FmAggregate(groupRowIdToSourceRowIds, srcDsIndex, srcTableId, type, children);
+						FmAggregate ret = new FmAggregate(groupRowIdToSourceRowIds, srcDsIndex, srcTableId, groupAggregates, type, children);
+						groupAggregates.register(ret);
 						return ret;
 					}
 				});
@@ -370,7 +385,7 @@ final public class FunctionsBuilder {
 	}
 
 	private static void buildLookups(FunctionDefinitionLibrary library, final IndexedDatastores<? extends ODLTableReadOnly> datastores,
-			final int defaultDatastoreIndex, final ExecutionReport result) {
+			final int defaultDatastoreIndex, final LookupAggregates.Registry lookupAggregates, final ExecutionReport result) {
 
 
 		// loop over every lookup type
@@ -405,8 +420,13 @@ final public class FunctionsBuilder {
 						ProcessedLookupReferences processed = processLookupReferenceNames(lookupType.getFormulaKeyword(), datastores,
 								defaultDatastoreIndex, toProcess, result);
 
-						return new FmLookup(children[0], processed.datastoreIndx, processed.tableId, processed.columnIndices[0],
-								(lookupType != LookupType.COUNT && lookupType!=LookupType.SEL_COUNT)? processed.columnIndices[1] : -1, lookupType);
+						int returnColumn = (lookupType != LookupType.COUNT && lookupType!=LookupType.SEL_COUNT)? processed.columnIndices[1] : -1;
+						LookupAggregates aggregates = null;
+						if (lookupAggregates != null && LookupAggregates.isSupported(lookupType)) {
+							aggregates = lookupAggregates.get(processed.datastoreIndx, processed.tableId, processed.columnIndices[0], returnColumn);
+						}
+						return new FmLookup(children[0], processed.datastoreIndx, processed.tableId, processed.columnIndices[0], returnColumn,
+								lookupType, aggregates);
 
 					}
 				};
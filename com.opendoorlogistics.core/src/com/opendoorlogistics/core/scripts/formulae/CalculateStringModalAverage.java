@@ -9,7 +9,6 @@
 package com.opendoorlogistics.core.scripts.formulae;
 
 import java.util.HashMap;
-import java.util.Map;
 
 import com.opendoorlogistics.api.tables.ODLColumnType;
 import com.opendoorlogistics.core.tables.ColumnValueProcessor;
@@ -22,8 +21,19 @@ import com.opendoorlogistics.core.utils.strings.Strings;
  *
  */
 class CalculateStringModalAverage {
-	private HashMap<String, Long> countByStringValue = new HashMap<>();
-	private HashMap<String, Object> firstOriginalValue = new HashMap<>();
+	private HashMap<String, Entry> entryByStringValue = new HashMap<>();
+	
+	/**
+	 * Count for a string value together with the first original value encountered for it
+	 */
+	private static class Entry{
+		long count;
+		final Object firstOriginalValue;
+		
+		Entry(Object firstOriginalValue) {
+			this.firstOriginalValue = firstOriginalValue;
+		}
+	}
 	
 	void addEntry(Object otherVal) {
 		// get canonical string value - null will give empty string
@@ -37,31 +47,25 @@ class CalculateStringModalAverage {
 		s = Strings.std(s);
 		
 		// save the first original value encountered for the string
-		if(!firstOriginalValue.containsKey(s)){
-			firstOriginalValue.put(s, otherVal);
-		}
-		
-		Long countForValue = countByStringValue.get(s);
-		if(countForValue==null){
-			countForValue = 0L;
+		Entry entry = entryByStringValue.get(s);
+		if(entry==null){
+			entry = new Entry(otherVal);
+			entryByStringValue.put(s, entry);
 		}
-		countForValue++;
-		countByStringValue.put(s, countForValue);
+		entry.count++;
 	}
 	
 	Object getModalAverage() {
-		String maxValue = null;
-		long maxCount=-1;
-		for(Map.Entry<String,Long> entry: countByStringValue.entrySet()){
-			if(entry.getValue()>maxCount){
-				maxCount =entry.getValue();
-				maxValue = entry.getKey();
+		Entry maxEntry = null;
+		for(Entry entry: entryByStringValue.values()){
+			if(maxEntry==null || entry.count>maxEntry.count){
+				maxEntry = entry;
 			}
 		}
 		
-		if(maxValue!=null){
+		if(maxEntry!=null){
 			// return the non-standardised input value
-			return firstOriginalValue.get(maxValue);
+			return maxEntry.firstOriginalValue;
 		}
 		
 		return null;
@@ -7,11 +7,12 @@
 package com.opendoorlogistics.core.scripts.formulae;
 
 import com.opendoorlogistics.api.tables.ODLTableReadOnly;
+import com.opendoorlogistics.core.formulae.AdapterBoundFunction;
 import com.opendoorlogistics.core.formulae.Function;
 import com.opendoorlogistics.core.formulae.FunctionImpl;
 import com.opendoorlogistics.core.formulae.FunctionParameters;
 
-public abstract class FmAbstractLookup extends FunctionImpl{
+public abstract class FmAbstractLookup extends FunctionImpl implements AdapterBoundFunction{
 	protected final int datastoreIndex;
 	protected final int otherTableId;
 	protected final int otherTableReturnKeyColummn;
@@ -29,6 +30,14 @@ public abstract class FmAbstractLookup extends FunctionImpl{
 	public Function deepCopy() {
 		throw new UnsupportedOperationException();
 	}
+
+	public int getDatastoreIndex() {
+		return datastoreIndex;
+	}
+
+	public int getOtherTableId() {
+		return otherTableId;
+	}
 	
 	/**
 	 * Get the foreign table which the lookup operates on
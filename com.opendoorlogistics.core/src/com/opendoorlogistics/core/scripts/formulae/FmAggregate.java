@@ -14,6 +14,7 @@ import java.util.ArrayList;
 import com.opendoorlogistics.api.geometry.ODLGeom;
 import com.opendoorlogistics.api.tables.ODLColumnType;
 import com.opendoorlogistics.api.tables.ODLTableReadOnly;
+import com.opendoorlogistics.core.formulae.AdapterBoundFunction;
 import com.opendoorlogistics.core.formulae.Function;
 import com.opendoorlogistics.core.formulae.FunctionImpl;
 import com.opendoorlogistics.core.formulae.FunctionParameters;
@@ -22,19 +23,35 @@ import com.opendoorlogistics.core.geometry.operations.GeomUnion;
 import com.opendoorlogistics.core.tables.ColumnValueProcessor;
 import com.opendoorlogistics.core.utils.Numbers;
 
-final public class FmAggregate extends FunctionImpl {
+final public class FmAggregate extends FunctionImpl implements AdapterBoundFunction {
 	private final AggregateType type;
 	private final TLongObjectHashMap<TLongArrayList> groupRowIdToSourceRowIds;
 	private final int srcDsIndex;
 	private final int srcTableId;
+	private final GroupAggregates groupAggregates;
 
 	
 	public FmAggregate(TLongObjectHashMap<TLongArrayList> groupRowIdToSourceRowIds, int srcDsIndex, int srcTableId, AggregateType type, Function... children) {
+		this(groupRowIdToSourceRowIds, srcDsIndex, srcTableId, null, type, children);
+	}
+
+	/**
+	 * Create the aggregate, reading its results from the group aggregates if they are available
+	 * (the caller should register the aggregate with them).
+	 * @param groupRowIdToSourceRowIds
+	 * @param srcDsIndex
+	 * @param srcTableId
+	 * @param groupAggregates Shared aggregates for the group-by query or null
+	 * @param type
+	 * @param children
+	 */
+	public FmAggregate(TLongObjectHashMap<TLongArrayList> groupRowIdToSourceRowIds, int srcDsIndex, int srcTableId, GroupAggregates groupAggregates, AggregateType type, Function... children) {
 		super(children);
 		this.groupRowIdToSourceRowIds = groupRowIdToSourceRowIds;
 		this.type = type;
 		this.srcDsIndex = srcDsIndex;
 		this.srcTableId = srcTableId;
+		this.groupAggregates = groupAggregates;
 	}
 
 	public enum AggregateType {
@@ -57,6 +74,10 @@ final public class FmAggregate extends FunctionImpl {
 			this.baseDescription = baseDescription;
 		}
 		
+		public boolean isNumeric(){
+			return numeric;
+		}
+		
 //		public int getNbArgs(){
 //			return nbArgs;
 //		}
@@ -79,6 +100,10 @@ final public class FmAggregate extends FunctionImpl {
 		}
 	}
 
+	public AggregateType getType() {
+		return type;
+	}
+
 	@Override
 	public Function deepCopy() {
 		throw new UnsupportedOperationException();
@@ -121,6 +146,14 @@ final public class FmAggregate extends FunctionImpl {
 			return (long) srcRowIds.size();
 		}
 
+		// use the results from the single pass over all the group's rows if we can
+		if (groupAggregates != null) {
+			Object ret = groupAggregates.get(this, p);
+			if (ret != GroupAggregates.NOT_AVAILABLE) {
+				return ret;
+			}
+		}
+
 		// get source table
 		ODLTableReadOnly srcTable = p.getTableById(srcDsIndex, srcTableId);
 		if (srcTable == null) {
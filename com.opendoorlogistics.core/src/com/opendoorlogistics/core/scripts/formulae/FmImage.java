@@ -12,6 +12,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import com.opendoorlogistics.api.tables.ODLTableReadOnly;
+import com.opendoorlogistics.core.formulae.AdapterBoundFunction;
 import com.opendoorlogistics.core.formulae.Function;
 import com.opendoorlogistics.core.formulae.FunctionImpl;
 import com.opendoorlogistics.core.formulae.FunctionParameters;
@@ -27,7 +28,7 @@ import com.opendoorlogistics.core.utils.Numbers;
 import com.opendoorlogistics.core.utils.SimpleSoftReferenceMap;
 import com.opendoorlogistics.core.utils.images.ImageUtils;
 
-final public class FmImage extends FunctionImpl {
+final public class FmImage extends FunctionImpl implements AdapterBoundFunction {
 	final private ODLTableReadOnly table;
 	final private int groupKeyIndx;
 	final private RenderProperties properties;
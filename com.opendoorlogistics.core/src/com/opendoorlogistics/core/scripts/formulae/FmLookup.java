@@ -22,13 +22,22 @@ import com.opendoorlogistics.core.utils.Numbers;
 final public class FmLookup extends FmAbstractLookup {
 	private final LookupType type;
 	private final int otherTablePrimaryKeyColumn;
+	private final LookupAggregates aggregates;
 
 	public FmLookup(Function foreignKeyValue, int datastoreIndex, int otherTableId, int otherTablePrimaryKeyColumn, int otherTableReturnKeyColummn,
 			LookupType type) {
+		this(foreignKeyValue, datastoreIndex, otherTableId, otherTablePrimaryKeyColumn, otherTableReturnKeyColummn, type, null);
+	}
+
+	/**
+	 * Create the lookup, using the pre-aggregated results when available (see {@link LookupAggregates})
+	 */
+	public FmLookup(Function foreignKeyValue, int datastoreIndex, int otherTableId, int otherTablePrimaryKeyColumn, int otherTableReturnKeyColummn,
+			LookupType type, LookupAggregates aggregates) {
 		super(datastoreIndex, otherTableId, otherTableReturnKeyColummn, foreignKeyValue);
 		this.type = type;
 		this.otherTablePrimaryKeyColumn = otherTablePrimaryKeyColumn;
-
+		this.aggregates = aggregates;
 	}
 
 	public enum LookupType {
@@ -75,6 +84,13 @@ final public class FmLookup extends FmAbstractLookup {
 			return null;
 		}
 		
+		if(aggregates!=null){
+			Object ret = aggregates.get(table, keyVal, type, otherTableReturnKeyColummn);
+			if(ret!=LookupAggregates.NOT_AVAILABLE){
+				return ret;
+			}
+		}
+		
 		// find matching value(s)
 		long count = 0;
 		long selCount=0;
@@ -18,6 +18,7 @@ import com.opendoorlogistics.api.ExecutionReport;
 import com.opendoorlogistics.api.geometry.LatLong;
 import com.opendoorlogistics.api.tables.ODLColumnType;
 import com.opendoorlogistics.api.tables.ODLTableReadOnly;
+import com.opendoorlogistics.core.formulae.AdapterBoundFunction;
 import com.opendoorlogistics.core.formulae.Function;
 import com.opendoorlogistics.core.formulae.FunctionFactory;
 import com.opendoorlogistics.core.formulae.FunctionImpl;
@@ -51,7 +52,7 @@ import com.vividsolutions.jts.geom.GeometryFactory;
  * @author Phil
  * 
  */
-final public class FmLookupNearest extends FunctionImpl {
+final public class FmLookupNearest extends FunctionImpl implements AdapterBoundFunction {
 	private final MathTransform transform;
 	private final String espg_srid;
 	private final Pair<Class<?>, String> cacheKey;
@@ -0,0 +1,368 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.scripts.formulae;
+
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import com.opendoorlogistics.api.geometry.ODLGeom;
+import com.opendoorlogistics.api.tables.ODLColumnType;
+import com.opendoorlogistics.api.tables.ODLTableReadOnly;
+import com.opendoorlogistics.core.formulae.Function;
+import com.opendoorlogistics.core.formulae.Functions;
+import com.opendoorlogistics.core.geometry.operations.GeomUnion;
+import com.opendoorlogistics.core.scripts.formulae.FmAggregate.AggregateType;
+import com.opendoorlogistics.core.tables.ColumnValueProcessor;
+import com.opendoorlogistics.core.utils.Numbers;
+
+/**
+ * Calculates the results of all the aggregate functions (groupsum, groupmax etc) in a group-by query together. The first time any aggregate
+ * is executed, every registered aggregate is accumulated for every group in a single pass over the source rows, so each source row is only
+ * visited once however many aggregate columns the query has. Each aggregate then just reads its result for the group.<br>
+ * An aggregate falls back to executing itself if its results are not available, e.g. if it contains another aggregate or its formula threw
+ * an exception during the pass.
+ *
+ * @author Phil
+ *
+ */
+public final class GroupAggregates {
+	/**
+	 * Returned when the aggregate should execute itself instead
+	 */
+	public static final Object NOT_AVAILABLE = new Object();
+
+	private final TLongObjectHashMap<TLongArrayList> groupRowIdToSourceRowIds;
+	private final int srcDsIndex;
+	private final int srcTableId;
+	private final long[] groupRowIds;
+	private final TLongIntHashMap slotByGroupRowId;
+	private final IdentityHashMap<FmAggregate, Boolean> pending = new IdentityHashMap<>();
+	private final IdentityHashMap<FmAggregate, Accumulator> results = new IdentityHashMap<>();
+
+	public GroupAggregates(TLongObjectHashMap<TLongArrayList> groupRowIdToSourceRowIds, int srcDsIndex, int srcTableId) {
+		this.groupRowIdToSourceRowIds = groupRowIdToSourceRowIds;
+		this.srcDsIndex = srcDsIndex;
+		this.srcTableId = srcTableId;
+		this.groupRowIds = groupRowIdToSourceRowIds.keys();
+		this.slotByGroupRowId = new TLongIntHashMap(Math.max(groupRowIds.length * 2, 16), 0.5f, -1, -1);
+		for (int i = 0; i < groupRowIds.length; i++) {
+			slotByGroupRowId.put(groupRowIds[i], i);
+		}
+	}
+
+	/**
+	 * Register the aggregate so it is included in the next pass over the source rows
+	 *
+	 * @param aggregate
+	 */
+	public synchronized void register(FmAggregate aggregate) {
+		// the group size doesn't need the source rows
+		if (aggregate.getType() == AggregateType.GROUPCOUNT) {
+			return;
+		}
+
+		// an aggregate inside another aggregate is executed against the source rows, not the groups,
+		// so neither can be calculated from the groups' accumulators
+		ArrayList<FmAggregate> nested = new ArrayList<>();
+		for (int i = 0; i < aggregate.nbChildren(); i++) {
+			findAggregates(aggregate.child(i), nested);
+		}
+		if (nested.size() > 0) {
+			for (FmAggregate other : nested) {
+				pending.remove(other);
+				results.remove(other);
+			}
+			return;
+		}
+
+		pending.put(aggregate, Boolean.TRUE);
+	}
+
+	private static void findAggregates(Function function, List<FmAggregate> out) {
+		if (function == null) {
+			return;
+		}
+		if (FmAggregate.class.isInstance(function)) {
+			out.add((FmAggregate) function);
+		}
+		int n = function.nbChildren();
+		for (int i = 0; i < n; i++) {
+			findAggregates(function.child(i), out);
+		}
+	}
+
+	/**
+	 * Get the aggregate's result for the grouped row in the parameters, running the pass over the source rows first if needed
+	 *
+	 * @param aggregate
+	 * @param parameters
+	 * @return The result or {@link #NOT_AVAILABLE}
+	 */
+	public Object get(FmAggregate aggregate, TableParameters parameters) {
+		Accumulator accumulator;
+		synchronized (this) {
+			accumulator = results.get(aggregate);
+			if (accumulator == null) {
+				if (!pending.containsKey(aggregate)) {
+					return NOT_AVAILABLE;
+				}
+				accumulate(parameters.getDatastores());
+				accumulator = results.get(aggregate);
+			}
+		}
+
+		if (accumulator == null || accumulator.unavailable || accumulator.datastores != parameters.getDatastores()) {
+			return NOT_AVAILABLE;
+		}
+
+		int slot = slotByGroupRowId.get(parameters.getRowId());
+		if (slot == -1) {
+			return NOT_AVAILABLE;
+		}
+		return accumulator.getResult(slot, groupRowIdToSourceRowIds.get(groupRowIds[slot]).size(), parameters);
+	}
+
+	/**
+	 * Accumulate all pending aggregates in a single pass over the source rows, visiting the groups and their rows in the same order as the
+	 * aggregates do when executed one at a time
+	 *
+	 * @param datastores
+	 */
+	private void accumulate(List<?> datastores) {
+		int nbAggregates = pending.size();
+		FmAggregate[] aggregates = pending.keySet().toArray(new FmAggregate[nbAggregates]);
+		pending.clear();
+
+		Accumulator[] accumulators = new Accumulator[nbAggregates];
+		for (int i = 0; i < nbAggregates; i++) {
+			accumulators[i] = new Accumulator(aggregates[i], groupRowIds.length, datastores);
+			results.put(aggregates[i], accumulators[i]);
+		}
+
+		ODLTableReadOnly srcTable = new TableParameters(datastores, srcDsIndex, srcTableId, -1, -1).getDefaultTable();
+		if (srcTable == null) {
+			for (Accumulator accumulator : accumulators) {
+				accumulator.unavailable = true;
+			}
+			return;
+		}
+
+		int nbGroups = groupRowIds.length;
+		for (int slot = 0; slot < nbGroups; slot++) {
+			TLongArrayList srcRowIds = groupRowIdToSourceRowIds.get(groupRowIds[slot]);
+			int nbSrcRows = srcRowIds.size();
+			for (int i = 0; i < nbSrcRows; i++) {
+				long srcRowId = srcRowIds.get(i);
+				if (srcTable.containsRowId(srcRowId) == false) {
+					for (Accumulator accumulator : accumulators) {
+						accumulator.failed[slot] = true;
+					}
+					break;
+				}
+
+				TableParameters unaggregateParams = new TableParameters(datastores, srcDsIndex, srcTableId, srcRowId, -1);
+				for (int j = 0; j < nbAggregates; j++) {
+					Accumulator accumulator = accumulators[j];
+					if (accumulator.unavailable || accumulator.failed[slot]) {
+						continue;
+					}
+
+					Object val;
+					try {
+						val = aggregates[j].child(0).execute(unaggregateParams);
+					} catch (RuntimeException e) {
+						// leave the aggregate to throw when it executes itself
+						accumulator.unavailable = true;
+						continue;
+					}
+
+					if (val == Functions.EXECUTION_ERROR) {
+						accumulator.failed[slot] = true;
+					} else {
+						accumulator.add(slot, i, nbSrcRows, val);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Per-group accumulator for one aggregate. Only the arrays needed by the aggregate's type are allocated.
+	 */
+	private static final class Accumulator {
+		final FmAggregate aggregate;
+		final AggregateType type;
+		final List<?> datastores;
+		final boolean[] failed;
+		boolean unavailable;
+		double[] sums;
+		double[] numbers;
+		Object[] values;
+		CalculateStringModalAverage[] modalAverages;
+		List<List<ODLGeom>> geoms;
+
+		@SuppressWarnings("unchecked")
+		Accumulator(FmAggregate aggregate, int nbGroups, List<?> datastores) {
+			this.aggregate = aggregate;
+			this.type = aggregate.getType();
+			this.datastores = datastores;
+			this.failed = new boolean[nbGroups];
+
+			switch (type) {
+			case GROUPSUM:
+			case GROUPAVG:
+				sums = new double[nbGroups];
+				break;
+
+			case GROUPMIN:
+			case GROUPMAX:
+				// preserve the object type by saving both the comparison number and the original object
+				numbers = new double[nbGroups];
+				values = new Object[nbGroups];
+				Arrays.fill(numbers, type == AggregateType.GROUPMIN ? Double.MAX_VALUE : -Double.MAX_VALUE);
+				break;
+
+			case GROUPFIRST:
+			case GROUPLAST:
+				values = new Object[nbGroups];
+				break;
+
+			case GROUPMODALAVG:
+				modalAverages = new CalculateStringModalAverage[nbGroups];
+				break;
+
+			case GROUPGEOMUNION:
+				geoms = new ArrayList<>(Collections.<List<ODLGeom>> nCopies(nbGroups, null));
+				break;
+
+			default:
+				unavailable = true;
+				break;
+			}
+		}
+
+		void add(int slot, int rowIndex, int nbSrcRows, Object val) {
+			if (type.isNumeric() && val != null) {
+				Double number = Numbers.toDouble(val);
+				if (number == null) {
+					failed[slot] = true;
+					return;
+				}
+
+				switch (type) {
+				case GROUPMIN:
+					if (number < numbers[slot]) {
+						numbers[slot] = number;
+						values[slot] = val;
+					}
+					break;
+
+				case GROUPMAX:
+					if (number > numbers[slot]) {
+						numbers[slot] = number;
+						values[slot] = val;
+					}
+					break;
+
+				default:
+					sums[slot] += number;
+					break;
+				}
+				return;
+			}
+
+			switch (type) {
+			case GROUPFIRST:
+				if (rowIndex == 0) {
+					values[slot] = val;
+				}
+				break;
+
+			case GROUPLAST:
+				if (rowIndex == nbSrcRows - 1) {
+					values[slot] = val;
+				}
+				break;
+
+			case GROUPMODALAVG:
+				if (modalAverages[slot] == null) {
+					modalAverages[slot] = new CalculateStringModalAverage();
+				}
+				modalAverages[slot].addEntry(val);
+				break;
+
+			case GROUPGEOMUNION:
+				List<ODLGeom> slotGeoms = geoms.get(slot);
+				if (slotGeoms == null) {
+					slotGeoms = new ArrayList<>(nbSrcRows);
+					geoms.set(slot, slotGeoms);
+				}
+				val = ColumnValueProcessor.convertToMe(ODLColumnType.GEOM, val);
+				if (val != null) {
+					slotGeoms.add((ODLGeom) val);
+				}
+				break;
+
+			default:
+				break;
+			}
+		}
+
+		Object getResult(int slot, int nbSrcRows, TableParameters parameters) {
+			// the union's projection is a formula on the grouped row, so is only known now
+			String espgCode = null;
+			if (type == AggregateType.GROUPGEOMUNION) {
+				Object child2Result = aggregate.child(1).execute(parameters);
+				if (child2Result == Functions.EXECUTION_ERROR) {
+					return Functions.EXECUTION_ERROR;
+				}
+				child2Result = ColumnValueProcessor.convertToMe(ODLColumnType.STRING, child2Result);
+				if (child2Result == null) {
+					return Functions.EXECUTION_ERROR;
+				}
+				espgCode = child2Result.toString();
+			}
+
+			if (failed[slot]) {
+				return Functions.EXECUTION_ERROR;
+			}
+
+			switch (type) {
+			case GROUPFIRST:
+			case GROUPLAST:
+			case GROUPMIN:
+			case GROUPMAX:
+				return values[slot];
+
+			case GROUPSUM:
+				return sums[slot];
+
+			case GROUPAVG:
+				if (nbSrcRows > 0) {
+					return sums[slot] / nbSrcRows;
+				}
+				return 0;
+
+			case GROUPMODALAVG:
+				return modalAverages[slot] != null ? modalAverages[slot].getModalAverage() : null;
+
+			case GROUPGEOMUNION:
+				return new GeomUnion().union(geoms.get(slot) != null ? geoms.get(slot) : new ArrayList<ODLGeom>(), espgCode);
+
+			default:
+				return NOT_AVAILABLE;
+			}
+		}
+	}
+}
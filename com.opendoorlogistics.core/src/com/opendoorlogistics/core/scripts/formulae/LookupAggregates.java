@@ -0,0 +1,375 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.scripts.formulae;
+
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import com.opendoorlogistics.api.tables.ODLColumnType;
+import com.opendoorlogistics.api.tables.ODLTableReadOnly;
+import com.opendoorlogistics.api.tables.TableFlags;
+import com.opendoorlogistics.core.formulae.Functions;
+import com.opendoorlogistics.core.scripts.formulae.FmLookup.LookupType;
+import com.opendoorlogistics.core.tables.ColumnValueProcessor;
+import com.opendoorlogistics.core.tables.utils.HasModificationCount;
+import com.opendoorlogistics.core.tables.utils.TableFlagUtils;
+import com.opendoorlogistics.core.utils.Numbers;
+import com.opendoorlogistics.core.utils.strings.Strings;
+
+/**
+ * Pre-aggregated results of the numeric lookups (lookupcount, lookupsum, lookupavg, lookupmin and lookupmax) for every key value in a column
+ * of another table. All lookups on the same table and key column share one instance, so every aggregate they need is calculated in a single
+ * pass over the table and each lookup is then a hash probe.<br>
+ * The aggregates are only used when the table reports modification counts (see {@link HasModificationCount}), and are rebuilt when the key
+ * column or a value column changes; edits to the table's other columns keep them. A table which changes between consecutive lookups is not
+ * aggregated; the lookup falls back to searching the table instead.
+ *
+ * @author Phil
+ *
+ */
+public final class LookupAggregates {
+	/**
+	 * Returned when the aggregates cannot be used and the lookup should search the table
+	 */
+	public static final Object NOT_AVAILABLE = new Object();
+
+	private final int keyColumn;
+	private volatile int[] valueColumns = new int[0];
+	private volatile Snapshot snapshot;
+	private volatile long lastSeenModificationCount = -1;
+
+	private LookupAggregates(int keyColumn) {
+		this.keyColumn = keyColumn;
+	}
+
+	/**
+	 * Holds the aggregates for each table and key column. One registry is used per adapter.
+	 */
+	public static final class Registry {
+		private final HashMap<String, LookupAggregates> aggregates = new HashMap<>();
+
+		/**
+		 * Get the aggregates for the table and key column, registering the value column so it is included in the aggregation
+		 *
+		 * @param datastoreIndex
+		 * @param tableId
+		 * @param keyColumn
+		 * @param valueColumn
+		 *            Value column or -1 if only counting
+		 * @return
+		 */
+		public synchronized LookupAggregates get(int datastoreIndex, int tableId, int keyColumn, int valueColumn) {
+			String key = datastoreIndex + ":" + tableId + ":" + keyColumn;
+			LookupAggregates ret = aggregates.get(key);
+			if (ret == null) {
+				ret = new LookupAggregates(keyColumn);
+				aggregates.put(key, ret);
+			}
+			ret.addValueColumn(valueColumn);
+			return ret;
+		}
+	}
+
+	/**
+	 * Test if the lookup type can be calculated from the aggregates
+	 *
+	 * @param type
+	 * @return
+	 */
+	public static boolean isSupported(LookupType type) {
+		switch (type) {
+		case COUNT:
+		case SUM:
+		case AVG:
+		case MIN:
+		case MAX:
+			return true;
+
+		default:
+			return false;
+		}
+	}
+
+	private synchronized void addValueColumn(int valueColumn) {
+		if (valueColumn == -1) {
+			return;
+		}
+		for (int col : valueColumns) {
+			if (col == valueColumn) {
+				return;
+			}
+		}
+
+		// copy on write so lookups can read the columns without locking
+		int[] copy = Arrays.copyOf(valueColumns, valueColumns.length + 1);
+		copy[valueColumns.length] = valueColumn;
+		valueColumns = copy;
+		snapshot = null;
+	}
+
+	/**
+	 * Aggregates calculated from the table when its key and value columns had the modification count
+	 */
+	private static final class Snapshot {
+		final long modificationCount;
+		final ODLColumnType keyType;
+		final TObjectIntHashMap<Object> slotByKey;
+		final int[] counts;
+		final int[] valueColumns;
+		final double[][] sums;
+		final double[][] mins;
+		final double[][] maxs;
+		final boolean[][] nonNumeric;
+
+		Snapshot(long modificationCount, ODLColumnType keyType, TObjectIntHashMap<Object> slotByKey, int[] counts, int[] valueColumns,
+				double[][] sums, double[][] mins, double[][] maxs, boolean[][] nonNumeric) {
+			this.modificationCount = modificationCount;
+			this.keyType = keyType;
+			this.slotByKey = slotByKey;
+			this.counts = counts;
+			this.valueColumns = valueColumns;
+			this.sums = sums;
+			this.mins = mins;
+			this.maxs = maxs;
+			this.nonNumeric = nonNumeric;
+		}
+
+		int indexOfValueColumn(int valueColumn) {
+			for (int i = 0; i < valueColumns.length; i++) {
+				if (valueColumns[i] == valueColumn) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Get the slot for the search value, converting it in the same way as the table's column index does, or -1 if there are no
+		 * matching rows
+		 *
+		 * @param value
+		 * @return
+		 */
+		int slot(Object value) {
+			Object converted = ColumnValueProcessor.convertToMe(keyType, value);
+			if (converted == null) {
+				return -1;
+			}
+			if (keyType == ODLColumnType.STRING) {
+				converted = Strings.std(converted.toString());
+			}
+			return slotByKey.get(converted);
+		}
+	}
+
+	/**
+	 * Get the lookup result from the aggregates
+	 *
+	 * @param table
+	 * @param keyValue
+	 *            Non-null search value
+	 * @param type
+	 * @param valueColumn
+	 * @return The result or {@link #NOT_AVAILABLE}
+	 */
+	public Object get(ODLTableReadOnly table, Object keyValue, LookupType type, int valueColumn) {
+		int[] cols = valueColumns;
+		long modificationCount = getModificationCount(table, cols);
+		if (modificationCount == -1) {
+			return NOT_AVAILABLE;
+		}
+
+		Snapshot s = snapshot;
+		if (s == null || s.modificationCount != modificationCount || s.valueColumns != cols) {
+			if (modificationCount != lastSeenModificationCount) {
+				// the table has changed since the last lookup; wait until it stops changing before aggregating
+				lastSeenModificationCount = modificationCount;
+				return NOT_AVAILABLE;
+			}
+
+			s = build(table, cols, modificationCount);
+			if (s == null) {
+				return NOT_AVAILABLE;
+			}
+		}
+
+		int col = -1;
+		if (type != LookupType.COUNT) {
+			col = s.indexOfValueColumn(valueColumn);
+			if (col == -1) {
+				return NOT_AVAILABLE;
+			}
+		}
+
+		// no matches behaves the same as the lookup does for an empty set of rows
+		int slot = s.slot(keyValue);
+		int count = slot != -1 ? s.counts[slot] : 0;
+		if (col != -1 && slot != -1 && s.nonNumeric[col][slot]) {
+			return Functions.EXECUTION_ERROR;
+		}
+
+		switch (type) {
+		case COUNT:
+			return (long) count;
+
+		case SUM:
+			return slot != -1 ? s.sums[col][slot] : 0.0;
+
+		case AVG:
+			if (count > 0) {
+				return s.sums[col][slot] / count;
+			}
+			return null;
+
+		case MIN:
+			if (slot != -1 && s.mins[col][slot] != Double.MAX_VALUE) {
+				return s.mins[col][slot];
+			}
+			return null;
+
+		case MAX:
+			if (slot != -1 && s.maxs[col][slot] != -Double.MAX_VALUE) {
+				return s.maxs[col][slot];
+			}
+			return null;
+
+		default:
+			return NOT_AVAILABLE;
+		}
+	}
+
+	/**
+	 * Get a count which changes whenever the key column or any of the value columns change. As all modification counts come from the same
+	 * increasing sequence, the greatest of the columns' counts changes when any of them do.
+	 *
+	 * @param table
+	 * @param cols
+	 *            Value columns
+	 * @return The count or -1 if not known
+	 */
+	private long getModificationCount(ODLTableReadOnly table, int[] cols) {
+		if (!HasModificationCount.class.isInstance(table)) {
+			return -1;
+		}
+		HasModificationCount counts = (HasModificationCount) table;
+		long ret = counts.getColumnModificationCount(keyColumn);
+		for (int i = 0; i < cols.length && ret != -1; i++) {
+			long count = counts.getColumnModificationCount(cols[i]);
+			ret = count != -1 ? Math.max(ret, count) : -1;
+		}
+		return ret;
+	}
+
+	/**
+	 * Aggregate all value columns for every key in a single pass over the table
+	 *
+	 * @param table
+	 * @param cols
+	 *            Value columns
+	 * @param modificationCount
+	 * @return The aggregates or null if they cannot be built
+	 */
+	private synchronized Snapshot build(ODLTableReadOnly table, int[] cols, long modificationCount) {
+		Snapshot s = snapshot;
+		if (s != null && s.modificationCount == modificationCount && s.valueColumns == cols) {
+			return s;
+		}
+
+		// a value column was registered since the lookup read them
+		if (cols != valueColumns) {
+			return null;
+		}
+
+		// only aggregate if the table's find would use a hash index on the key column, as we group the rows in the same way
+		int nbCols = table.getColumnCount();
+		if (keyColumn < 0 || keyColumn >= nbCols) {
+			return null;
+		}
+		ODLColumnType keyType = table.getColumnType(keyColumn);
+		if (keyType != ODLColumnType.DOUBLE && keyType != ODLColumnType.STRING && keyType != ODLColumnType.COLOUR && keyType != ODLColumnType.LONG) {
+			return null;
+		}
+		if (TableFlagUtils.hasFlag(table.getColumnFlags(keyColumn), TableFlags.FLAG_COLUMN_NOT_INDEXED)) {
+			return null;
+		}
+
+		for (int col : cols) {
+			if (col >= nbCols) {
+				return null;
+			}
+		}
+
+		int nv = cols.length;
+		int capacity = 16;
+		TObjectIntHashMap<Object> slotByKey = new TObjectIntHashMap<>(capacity, 0.5f, -1);
+		int[] counts = new int[capacity];
+		double[][] sums = new double[nv][capacity];
+		double[][] mins = new double[nv][capacity];
+		double[][] maxs = new double[nv][capacity];
+		boolean[][] nonNumeric = new boolean[nv][capacity];
+
+		int nbSlots = 0;
+		int nbRows = table.getRowCount();
+		for (int row = 0; row < nbRows; row++) {
+			Object key = table.getValueAt(row, keyColumn);
+			if (key == null) {
+				// never found by a non-null search value
+				continue;
+			}
+			if (keyType == ODLColumnType.STRING) {
+				key = Strings.std(key.toString());
+			}
+
+			int slot = slotByKey.get(key);
+			if (slot == -1) {
+				slot = nbSlots++;
+				slotByKey.put(key, slot);
+
+				if (slot == capacity) {
+					capacity *= 2;
+					counts = Arrays.copyOf(counts, capacity);
+					for (int j = 0; j < nv; j++) {
+						sums[j] = Arrays.copyOf(sums[j], capacity);
+						mins[j] = Arrays.copyOf(mins[j], capacity);
+						maxs[j] = Arrays.copyOf(maxs[j], capacity);
+						nonNumeric[j] = Arrays.copyOf(nonNumeric[j], capacity);
+					}
+				}
+
+				for (int j = 0; j < nv; j++) {
+					mins[j][slot] = Double.MAX_VALUE;
+					maxs[j][slot] = -Double.MAX_VALUE;
+				}
+			}
+
+			counts[slot]++;
+			for (int j = 0; j < nv; j++) {
+				Object value = table.getValueAt(row, cols[j]);
+				Double number = Numbers.toDouble(value);
+				if (number != null) {
+					sums[j][slot] += number;
+					mins[j][slot] = Math.min(mins[j][slot], number);
+					maxs[j][slot] = Math.max(maxs[j][slot], number);
+				} else if (value != null && value.toString().trim().length() > 0) {
+					// the lookup fails on any non-empty non-numeric value; empties are allowed
+					nonNumeric[j][slot] = true;
+				}
+			}
+		}
+
+		// don't keep the aggregates if the table was changed by another thread while we read it
+		if (getModificationCount(table, cols) != modificationCount) {
+			return null;
+		}
+
+		s = new Snapshot(modificationCount, keyType, slotByKey, counts, cols, sums, mins, maxs, nonNumeric);
+		snapshot = s;
+		return s;
+	}
+}
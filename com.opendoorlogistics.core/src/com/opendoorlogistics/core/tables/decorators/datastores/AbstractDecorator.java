@@ -13,6 +13,7 @@ import com.opendoorlogistics.api.tables.ODLColumnType;
 import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
 import com.opendoorlogistics.api.tables.ODLTableAlterable;
 import com.opendoorlogistics.api.tables.ODLTableDefinition;
+import com.opendoorlogistics.core.tables.utils.HasModificationCount;
 import com.opendoorlogistics.core.tables.utils.TableUtils;
 
 /**
@@ -23,9 +24,13 @@ import com.opendoorlogistics.core.tables.utils.TableUtils;
  * @param <T>
  */
 public abstract class AbstractDecorator<T extends ODLTableDefinition> implements ODLDatastoreAlterable<T> {
-	private final TIntObjectHashMap<TableDecorator> tableDecorators = new TIntObjectHashMap<>();
+	/**
+	 * Table decorators are created lazily. The map is copied on write so tables can be fetched from several threads at once (e.g. when
+	 * evaluating a filter formula in parallel) without locking.
+	 */
+	private volatile TIntObjectHashMap<TableDecorator> tableDecorators = new TIntObjectHashMap<>();
 
-	protected class TableDecorator implements ODLTableAlterable{
+	protected class TableDecorator implements ODLTableAlterable, HasModificationCount{
 		private final int tableId;
 		
 		TableDecorator(int id) {
@@ -220,6 +225,25 @@ public abstract class AbstractDecorator<T extends ODLTableDefinition> implements
 			AbstractDecorator.this.setRowFlags(tableId, flags, rowId);
 		}
 
+		@Override
+		public long getModificationCount() {
+			return AbstractDecorator.this.getModificationCount(tableId);
+		}
+
+		@Override
+		public long getColumnModificationCount(int col) {
+			return AbstractDecorator.this.getColumnModificationCount(tableId, col);
+		}
+
+		@Override
+		public long getRowBlockModificationCount(int block) {
+			return AbstractDecorator.this.getRowBlockModificationCount(tableId, block);
+		}
+
+		@Override
+		public long getRowModificationCount(long rowId) {
+			return AbstractDecorator.this.getRowModificationCount(tableId, rowId);
+		}
 
 
 	}
@@ -234,17 +258,67 @@ public abstract class AbstractDecorator<T extends ODLTableDefinition> implements
 		
 		// create one if needed
 		if(ret == null){
-			TableDecorator td = new TableDecorator(tableId);
-			tableDecorators.put(tableId, td);
-			ret = (T)td;
+			ret = (T)createTableDecorator(tableId);
 		}
 		
 		return ret;	
 	}
 
+	private synchronized TableDecorator createTableDecorator(int tableId){
+		// check again in case another thread created it
+		TableDecorator td = tableDecorators.get(tableId);
+		if(td==null){
+			td = new TableDecorator(tableId);
+			TIntObjectHashMap<TableDecorator> copy = new TIntObjectHashMap<>(tableDecorators);
+			copy.put(tableId, td);
+			tableDecorators = copy;			
+		}
+		return td;
+	}
+
 
 	protected abstract int getRowCount(int tableId) ;
 
+	/**
+	 * Get the modification count of the table, or -1 if unknown. Decorators which change
+	 * the rows or values of their source should leave this returning -1.
+	 * @param tableId
+	 * @return
+	 */
+	protected long getModificationCount(int tableId){
+		return -1;
+	}
+
+	/**
+	 * Get the modification count of the table's column, or -1 if unknown (see {@link #getModificationCount(int)})
+	 * @param tableId
+	 * @param col
+	 * @return
+	 */
+	protected long getColumnModificationCount(int tableId, int col){
+		return -1;
+	}
+
+	/**
+	 * Get the modification count of a block of the table's rows, or -1 if unknown (see {@link #getModificationCount(int)})
+	 * @param tableId
+	 * @param block
+	 * @return
+	 */
+	protected long getRowBlockModificationCount(int tableId, int block){
+		return -1;
+	}
+
+	/**
+	 * Get the modification count of the table's row, or -1 if unknown (see {@link #getModificationCount(int)})
+	 * @param tableId
+	 * @param rowId
+	 * @return
+	 */
+	protected long getRowModificationCount(int tableId, long rowId){
+		return -1;
+	}
+
 	protected abstract long[] find(int tableId,int col, Object value);
 
 	protected abstract Object getValueAt(int tableId,int rowIndex, int columnIndex);
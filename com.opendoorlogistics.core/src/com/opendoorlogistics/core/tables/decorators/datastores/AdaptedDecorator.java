@@ -7,8 +7,11 @@
 package com.opendoorlogistics.core.tables.decorators.datastores;
 
 import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TLongIntHashMap;
 
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 
@@ -20,16 +23,25 @@ import com.opendoorlogistics.api.tables.ODLTable;
 import com.opendoorlogistics.api.tables.ODLTableDefinition;
 import com.opendoorlogistics.api.tables.ODLTableReadOnly;
 import com.opendoorlogistics.api.tables.TableFlags;
+import com.opendoorlogistics.core.formulae.FormulaCompiler.CompiledFunction;
+import com.opendoorlogistics.core.formulae.FormulaOptimiser.SharedFunction;
 import com.opendoorlogistics.core.formulae.Function;
 import com.opendoorlogistics.core.formulae.FunctionParameters;
+import com.opendoorlogistics.core.formulae.FunctionUtils;
 import com.opendoorlogistics.core.formulae.Functions;
 import com.opendoorlogistics.core.formulae.Functions.FmConst;
+import com.opendoorlogistics.core.formulae.ImpureFunction;
 import com.opendoorlogistics.core.geometry.ODLGeomImpl;
 import com.opendoorlogistics.core.geometry.functions.FmLatitude;
 import com.opendoorlogistics.core.geometry.functions.FmLongitude;
+import com.opendoorlogistics.core.scripts.formulae.FmAbstractLookup;
+import com.opendoorlogistics.core.scripts.formulae.FmLocalElement;
+import com.opendoorlogistics.core.scripts.formulae.FmRow;
+import com.opendoorlogistics.core.scripts.formulae.FmRowId;
 import com.opendoorlogistics.core.scripts.formulae.TableParameters;
 import com.opendoorlogistics.core.scripts.wizard.TagUtils;
 import com.opendoorlogistics.core.tables.ColumnValueProcessor;
+import com.opendoorlogistics.core.tables.decorators.datastores.DataDependenciesRecorder.DataDependencies;
 import com.opendoorlogistics.core.tables.memory.ODLDatastoreImpl;
 import com.opendoorlogistics.core.tables.utils.TableFlagUtils;
 import com.opendoorlogistics.core.tables.utils.TableUtils;
@@ -43,6 +55,13 @@ import com.opendoorlogistics.core.tables.utils.TableUtils;
 final public class AdaptedDecorator<T extends ODLTableDefinition> extends AbstractDecorator<T> {
 	private final AdapterMapping mapping;
 	private final List<ODLDatastore<? extends T>> sources;
+	private volatile ValueCache valueCache;
+	private static volatile boolean viewValueCacheEnabled = true;
+
+	/**
+	 * Maximum number of cell values cached for a view
+	 */
+	public static final int VIEW_VALUE_CACHE_SIZE = 250000;
 
 	public static class AdapterMapping {
 		private final ODLDatastore<? extends ODLTableDefinition> destinationModel;
@@ -82,6 +101,7 @@ final public class AdaptedDecorator<T extends ODLTableDefinition> extends Abstra
 		public static class MappedField {
 			private int sourceColumnIndex;
 			private Function formula;
+			private boolean formulaThreadSafe = true;
 
 			public int getSourceColumnIndex() {
 				return sourceColumnIndex;
@@ -97,6 +117,14 @@ final public class AdaptedDecorator<T extends ODLTableDefinition> extends Abstra
 
 			public void setFormula(Function formula) {
 				this.formula = formula;
+				this.formulaThreadSafe = FunctionUtils.isThreadSafe(formula);
+			}
+
+			/**
+			 * @return False if the formula cannot be executed by several threads at once
+			 */
+			public boolean isFormulaThreadSafe() {
+				return formulaThreadSafe;
 			}
 
 		}
@@ -150,7 +178,7 @@ final public class AdaptedDecorator<T extends ODLTableDefinition> extends Abstra
 		}
 
 		public void setFieldFormula(int destinationTableId, int destinationFieldIndx, Function calc) {
-			mappedByDestTableId.get(destinationTableId).fields.get(destinationFieldIndx).formula = calc;
+			mappedByDestTableId.get(destinationTableId).fields.get(destinationFieldIndx).setFormula(calc);
 		}
 
 		public int getSourceDatasourceIndx(int destinationTableId) {
@@ -169,6 +197,10 @@ final public class AdaptedDecorator<T extends ODLTableDefinition> extends Abstra
 			return mappedByDestTableId.get(destinationTableId).fields.get(destinationColIndx).formula;
 		}
 
+		public boolean isFieldFormulaThreadSafe(int destinationTableId, int destinationColIndx) {
+			return mappedByDestTableId.get(destinationTableId).fields.get(destinationColIndx).formulaThreadSafe;
+		}
+
 		public ODLDatastore<? extends ODLTableDefinition> getDestinationModel() {
 			return destinationModel;
 		}
@@ -179,6 +211,441 @@ final public class AdaptedDecorator<T extends ODLTableDefinition> extends Abstra
 		this.sources = sources;
 	}
 
+	/**
+	 * Marks a cached null value
+	 */
+	private static final Object CACHED_NULL = new Object();
+
+	/**
+	 * Cached formula values for a single table. Each row id is given a slot and the values for each cached column are stored in an array by
+	 * slot.
+	 */
+	private static final class TableValues {
+		// slot + 1 so the default no entry value of 0 means not cached
+		private final TLongIntHashMap slotPlusOneByRowId = new TLongIntHashMap();
+		private final Object[][] valuesByColumn;
+		private int nbSlots;
+
+		TableValues(int nbColumns) {
+			valuesByColumn = new Object[nbColumns][];
+		}
+
+		Object get(long rowId, int col) {
+			Object[] values = valuesByColumn[col];
+			if (values == null) {
+				return null;
+			}
+			int slot = slotPlusOneByRowId.get(rowId) - 1;
+			return slot >= 0 ? values[slot] : null;
+		}
+
+		void put(long rowId, int col, Object value) {
+			int slot = slotPlusOneByRowId.get(rowId) - 1;
+			if (slot < 0) {
+				slot = nbSlots++;
+				slotPlusOneByRowId.put(rowId, slot + 1);
+			}
+
+			Object[] values = valuesByColumn[col];
+			if (values == null) {
+				values = new Object[Math.max(16, nbSlots)];
+				valuesByColumn[col] = values;
+			} else if (slot >= values.length) {
+				values = Arrays.copyOf(values, Math.max(slot + 1, values.length * 2));
+				valuesByColumn[col] = values;
+			}
+			values[slot] = value;
+		}
+	}
+
+	/**
+	 * Cache of formula column values, keyed by table, row id and column. Only formulae which read from known tables are cached (source
+	 * fields, lookups and the core functions). Listeners are registered on the source datastores for the tables each formula reads and the
+	 * table's cache is cleared when any of them change. The values are held by a soft reference so they can be reclaimed if memory is low.
+	 */
+	private final class ValueCache {
+		private final int maxCachedValues;
+		private final TIntObjectHashMap<boolean[]> cachedColumnsByTableId = new TIntObjectHashMap<>();
+		private final List<ODLDatastore<? extends T>> listenerDatastores = new ArrayList<>();
+		private final List<ODLListener> listeners = new ArrayList<>();
+		private SoftReference<TIntObjectHashMap<TableValues>> values = new SoftReference<>(null);
+		private int nbCachedValues;
+		private long generation;
+		private long nbHits;
+		private long nbMisses;
+
+		ValueCache(int maxCachedValues) {
+			this.maxCachedValues = maxCachedValues;
+		}
+
+		/**
+		 * Get the value or null if it is not cached
+		 * 
+		 * @param tableId
+		 * @param rowId
+		 * @param col
+		 * @return
+		 */
+		synchronized Object get(int tableId, long rowId, int col) {
+			boolean[] cachedCols = cachedColumnsByTableId.get(tableId);
+			if (cachedCols == null || !cachedCols[col]) {
+				return null;
+			}
+
+			Object ret = null;
+			TIntObjectHashMap<TableValues> map = values.get();
+			if (map != null) {
+				TableValues tableValues = map.get(tableId);
+				if (tableValues != null) {
+					ret = tableValues.get(rowId, col);
+				}
+			}
+
+			if (ret != null) {
+				nbHits++;
+			} else {
+				nbMisses++;
+			}
+			return ret;
+		}
+
+		synchronized long getGeneration() {
+			return generation;
+		}
+
+		/**
+		 * Store the value, unless the cache was invalidated since the value started being calculated
+		 * 
+		 * @param tableId
+		 * @param rowId
+		 * @param col
+		 * @param value
+		 * @param calculatedInGeneration
+		 */
+		synchronized void put(int tableId, long rowId, int col, Object value, long calculatedInGeneration) {
+			boolean[] cachedCols = cachedColumnsByTableId.get(tableId);
+			if (cachedCols == null || !cachedCols[col] || calculatedInGeneration != generation) {
+				return;
+			}
+
+			TIntObjectHashMap<TableValues> map = values.get();
+			if (map == null || nbCachedValues >= maxCachedValues) {
+				// start again if the soft reference was cleared or we're over the limit
+				map = new TIntObjectHashMap<>();
+				values = new SoftReference<>(map);
+				nbCachedValues = 0;
+			}
+
+			TableValues tableValues = map.get(tableId);
+			if (tableValues == null) {
+				tableValues = new TableValues(cachedCols.length);
+				map.put(tableId, tableValues);
+			}
+			tableValues.put(rowId, col, value != null ? value : CACHED_NULL);
+			nbCachedValues++;
+		}
+
+		synchronized void clear(int tableId) {
+			generation++;
+			TIntObjectHashMap<TableValues> map = values.get();
+			if (map != null) {
+				map.remove(tableId);
+			}
+		}
+
+		synchronized void clearAll() {
+			generation++;
+			values = new SoftReference<>(null);
+			nbCachedValues = 0;
+		}
+
+		void addListener(ODLDatastore<? extends T> ds, ODLListener listener, int... tableIds) {
+			ds.addListener(listener, tableIds);
+			listenerDatastores.add(ds);
+			listeners.add(listener);
+		}
+
+		void removeListeners() {
+			for (int i = 0; i < listeners.size(); i++) {
+				listenerDatastores.get(i).removeListener(listeners.get(i));
+			}
+			listeners.clear();
+			listenerDatastores.clear();
+		}
+	}
+
+	/**
+	 * Enable caching of formula column values, so repeated reads of the same cell (e.g. from repaints of a grid, map or report) don't
+	 * re-execute the formula. The cache is cleared when any table read by a cached formula changes, which relies on the source datastores
+	 * firing their listeners. Call {@link #disableValueCache()} when the decorator is no longer used, to remove the listeners.
+	 * 
+	 * @param maxCachedValues
+	 *            Maximum number of cell values to hold before the cache is cleared
+	 */
+	public synchronized void enableValueCache(int maxCachedValues) {
+		disableValueCache();
+
+		final ValueCache cache = new ValueCache(maxCachedValues);
+		int nbTables = mapping.getDestinationModel().getTableCount();
+		for (int i = 0; i < nbTables; i++) {
+			final int tableId = mapping.getDestinationModel().getTableAt(i).getImmutableId();
+			int srcDs = mapping.getSourceDatasourceIndx(tableId);
+			int srcTableId = mapping.getSourceTableId(tableId);
+			if (srcDs == -1 || srcTableId == -1) {
+				continue;
+			}
+
+			// get the tables read by each formula, by datastore
+			int nbCols = getColumnCount(tableId);
+			boolean[] cachedCols = new boolean[nbCols];
+			DataDependencies[] tableDependencies = new DataDependencies[sources.size()];
+			for (int col = 0; col < nbCols; col++) {
+				Function formula = mapping.getFieldFormula(tableId, col);
+				if (formula == null) {
+					continue;
+				}
+
+				DataDependencies[] formulaDependencies = new DataDependencies[sources.size()];
+				if (getFormulaReadTables(formula, srcDs, srcTableId, formulaDependencies)) {
+					cachedCols[col] = true;
+					for (int ds = 0; ds < formulaDependencies.length; ds++) {
+						if (formulaDependencies[ds] != null) {
+							if (tableDependencies[ds] == null) {
+								tableDependencies[ds] = new DataDependencies();
+							}
+							tableDependencies[ds].add(formulaDependencies[ds]);
+						}
+					}
+				}
+			}
+			cache.cachedColumnsByTableId.put(tableId, cachedCols);
+
+			// the source table controls the rows
+			if (tableDependencies[srcDs] == null) {
+				tableDependencies[srcDs] = new DataDependencies();
+			}
+			tableDependencies[srcDs].addReadTableId(srcTableId);
+
+			// clear this table's cache whenever any of the tables it reads change
+			for (int ds = 0; ds < tableDependencies.length; ds++) {
+				if (tableDependencies[ds] != null) {
+					cache.addListener(sources.get(ds), new ODLListener() {
+
+						@Override
+						public void tableChanged(int changedTableId, int firstRow, int lastRow) {
+							cache.clear(tableId);
+						}
+
+						@Override
+						public void datastoreStructureChanged() {
+						}
+
+						@Override
+						public ODLListenerType getType() {
+							return ODLListenerType.TABLE_CHANGED;
+						}
+					}, tableDependencies[ds].getReadTableIds());
+				}
+			}
+		}
+
+		// clear everything if any source datastore's structure changes
+		for (ODLDatastore<? extends T> ds : sources) {
+			cache.addListener(ds, new ODLListener() {
+
+				@Override
+				public void tableChanged(int tableId, int firstRow, int lastRow) {
+				}
+
+				@Override
+				public void datastoreStructureChanged() {
+					cache.clearAll();
+				}
+
+				@Override
+				public ODLListenerType getType() {
+					return ODLListenerType.DATASTORE_STRUCTURE_CHANGED;
+				}
+			});
+		}
+
+		valueCache = cache;
+	}
+
+	/**
+	 * Disable the value cache and remove its listeners from the source datastores
+	 */
+	public synchronized void disableValueCache() {
+		if (valueCache != null) {
+			valueCache.removeListeners();
+			valueCache = null;
+		}
+	}
+
+	public void clearValueCache() {
+		ValueCache cache = valueCache;
+		if (cache != null) {
+			cache.clearAll();
+		}
+	}
+
+	public boolean isValueCacheEnabled() {
+		return valueCache != null;
+	}
+
+	/**
+	 * @return Number of formula cell reads served from the value cache
+	 */
+	public long getValueCacheHits() {
+		ValueCache cache = valueCache;
+		if (cache != null) {
+			synchronized (cache) {
+				return cache.nbHits;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return Number of cacheable formula cell reads which had to execute the formula
+	 */
+	public long getValueCacheMisses() {
+		ValueCache cache = valueCache;
+		if (cache != null) {
+			synchronized (cache) {
+				return cache.nbMisses;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return True only if every source datastore fires its listeners, otherwise the value cache would never be cleared
+	 */
+	public boolean isValueCacheSupported() {
+		for (ODLDatastore<? extends T> ds : sources) {
+			if (!firesListeners(ds)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Plain datastores, adapters, unions and row filters accept listeners but never call them, so only a chain of simple decorators
+	 * ending in a listener decorator can be trusted.
+	 * 
+	 * @param ds
+	 * @return
+	 */
+	private static boolean firesListeners(ODLDatastore<?> ds) {
+		while (SimpleDecorator.class.isInstance(ds)) {
+			if (ListenerDecorator.class.isInstance(ds)) {
+				return true;
+			}
+			ds = ((SimpleDecorator<?>) ds).decorated;
+		}
+		return false;
+	}
+
+	public static boolean isViewValueCacheEnabled() {
+		return viewValueCacheEnabled;
+	}
+
+	public static void setViewValueCacheEnabled(boolean enabled) {
+		viewValueCacheEnabled = enabled;
+	}
+
+	/**
+	 * Enable the value cache of the datastore, and of any adapted datastores it reads, for a view such as a grid, map or report which
+	 * reads the same cells many times. Does nothing if the datastore isn't adapted or view caching is disabled. Call
+	 * {@link #disableValueCacheForView(ODLDatastore)} when the view is disposed.
+	 * 
+	 * @param ds
+	 */
+	public static void enableValueCacheForView(ODLDatastore<?> ds) {
+		if (viewValueCacheEnabled && AdaptedDecorator.class.isInstance(ds)) {
+			AdaptedDecorator<?> adapted = (AdaptedDecorator<?>) ds;
+			if (adapted.isValueCacheSupported()) {
+				adapted.enableValueCache(VIEW_VALUE_CACHE_SIZE);
+			}
+
+			for (ODLDatastore<?> source : adapted.sources) {
+				enableValueCacheForView(source);
+			}
+		}
+	}
+
+	/**
+	 * Disable the value caches enabled by {@link #enableValueCacheForView(ODLDatastore)}
+	 * 
+	 * @param ds
+	 */
+	public static void disableValueCacheForView(ODLDatastore<?> ds) {
+		if (AdaptedDecorator.class.isInstance(ds)) {
+			AdaptedDecorator<?> adapted = (AdaptedDecorator<?>) ds;
+			adapted.disableValueCache();
+			for (ODLDatastore<?> source : adapted.sources) {
+				disableValueCacheForView(source);
+			}
+		}
+	}
+
+	/**
+	 * Find the tables read by the formula. Returns false if the formula contains any function which could read other data (or is impure), in
+	 * which case its values cannot be cached.
+	 * 
+	 * @param formula
+	 * @param defaultDs
+	 * @param defaultTableId
+	 * @param readTables
+	 *            Tables read, indexed by datastore
+	 * @return
+	 */
+	private static boolean getFormulaReadTables(Function formula, int defaultDs, int defaultTableId, DataDependencies[] readTables) {
+		Function function = formula;
+		if (CompiledFunction.class.isInstance(function)) {
+			function = ((CompiledFunction) function).getSource();
+		}
+
+		if (ImpureFunction.class.isInstance(function)) {
+			return false;
+		}
+
+		if (FmLocalElement.class.isInstance(function) || FmRowId.class.isInstance(function) || FmRow.class.isInstance(function)) {
+			addReadTable(defaultDs, defaultTableId, readTables);
+		} else if (FmAbstractLookup.class.isInstance(function)) {
+			FmAbstractLookup lookup = (FmAbstractLookup) function;
+			addReadTable(defaultDs, defaultTableId, readTables);
+			if (!addReadTable(lookup.getDatastoreIndex(), lookup.getOtherTableId(), readTables)) {
+				return false;
+			}
+		} else if (function.getClass().getEnclosingClass() != Functions.class && !SharedFunction.class.isInstance(function)) {
+			// unknown function
+			return false;
+		}
+
+		// use the formula rather than its source here so we see compiled children
+		int n = formula.nbChildren();
+		for (int i = 0; i < n; i++) {
+			if (!getFormulaReadTables(formula.child(i), defaultDs, defaultTableId, readTables)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean addReadTable(int ds, int tableId, DataDependencies[] readTables) {
+		if (ds < 0 || ds >= readTables.length) {
+			return false;
+		}
+		if (readTables[ds] == null) {
+			readTables[ds] = new DataDependencies();
+		}
+		readTables[ds].addReadTableId(tableId);
+		return true;
+	}
+
 	@Override
 	public int getTableCount() {
 		return mapping.getDestinationModel().getTableCount();
@@ -290,10 +757,25 @@ final public class AdaptedDecorator<T extends ODLTableDefinition> extends Abstra
 				rowId = ((ODLTableReadOnly) src).getRowId(rowIndex);
 			}
 
-			ArrayList<ODLDatastore<? extends ODLTableDefinition>> tmpList = new ArrayList<>(sources.size());
-			tmpList.addAll(sources);
-			FunctionParameters parameters = new TableParameters(tmpList, mapping.getSourceDatasourceIndx(tableId), mapping.getSourceTableId(tableId), rowId, rowIndex);
-			ret = formula.execute(parameters);
+			ValueCache cache = valueCache;
+			long generation = 0;
+			if (cache != null) {
+				Object cached = cache.get(tableId, rowId, columnIndex);
+				if (cached != null) {
+					return cached != CACHED_NULL ? cached : null;
+				}
+				generation = cache.getGeneration();
+			}
+
+			FunctionParameters parameters = new TableParameters(sources, mapping.getSourceDatasourceIndx(tableId), mapping.getSourceTableId(tableId), rowId, rowIndex);
+			if (mapping.isFieldFormulaThreadSafe(tableId, columnIndex)) {
+				ret = formula.execute(parameters);
+			} else {
+				// the table may be read by several threads (e.g. a parallel filter), so only let one execute the formula at a time
+				synchronized (formula) {
+					ret = formula.execute(parameters);
+				}
+			}
 			if (ret == Functions.EXECUTION_ERROR) {
 				ret = null;
 			}
@@ -302,6 +784,10 @@ final public class AdaptedDecorator<T extends ODLTableDefinition> extends Abstra
 			if (ret != null) {
 				ret = getConvertedType(ret, null, destTable, columnIndex);
 			}
+
+			if (cache != null) {
+				cache.put(tableId, rowId, columnIndex, ret, generation);
+			}
 		} else if (src != null && srcCol != -1) {
 			if (rowId != -1) {
 				ret = ((ODLTableReadOnly) src).getValueById(rowId, srcCol);
@@ -318,6 +804,13 @@ final public class AdaptedDecorator<T extends ODLTableDefinition> extends Abstra
 		return ret;
 	}
 
+	private void clearValueCache(int tableId) {
+		ValueCache cache = valueCache;
+		if (cache != null) {
+			cache.clear(tableId);
+		}
+	}
+
 	private Object getConvertedType(Object original, ODLColumnType srcColumnType, ODLTableDefinition destTable, int destCol) {
 		ODLColumnType destColType = destTable.getColumnType(destCol);
 		if (original == null) {
@@ -454,6 +947,9 @@ final public class AdaptedDecorator<T extends ODLTableDefinition> extends Abstra
 			} else if (rowIndex != -1) {
 				((ODLTable) decoratedTable).setValueAt(aValue, rowIndex, decoratedCol);
 			}
+
+			// formulae may read the changed value
+			clearValueCache(tableId);
 		}
 	}
 
@@ -477,6 +973,9 @@ final public class AdaptedDecorator<T extends ODLTableDefinition> extends Abstra
 		if (src != null) {
 			((ODLTable) src).insertEmptyRow(insertAtRowNb, rowId);
 		}
+
+		// row numbers have changed
+		clearValueCache(tableId);
 	}
 
 	@Override
@@ -485,6 +984,7 @@ final public class AdaptedDecorator<T extends ODLTableDefinition> extends Abstra
 		if (src != null) {
 			((ODLTable) src).deleteRow(rowNumber);
 		}
+		clearValueCache(tableId);
 	}
 
 	@Override
@@ -27,11 +27,16 @@ final public class DataDependenciesRecorder<T extends ODLTableDefinition> extend
 	private static final long serialVersionUID = -2607725279850643297L;
 	
 	public static class DataDependencies{
-		private final TIntHashSet readTableIds = new TIntHashSet();
-		private boolean readTableSet;
+		/**
+		 * Reads are recorded on every table access and can come from several threads at once
+		 * (e.g. a filter formula evaluated in parallel), so the read set is copied on write 
+		 * and can be checked without locking.
+		 */
+		private volatile TIntHashSet readTableIds = new TIntHashSet();
+		private volatile boolean readTableSet;
 		private final TIntHashSet writtenTableIds = new TIntHashSet();
 		private boolean writtenTableSet;
-		private boolean readRowFlags;
+		private volatile boolean readRowFlags;
 		
 		public DataDependencies(){}
 		
@@ -39,8 +44,10 @@ final public class DataDependenciesRecorder<T extends ODLTableDefinition> extend
 			add(copyThis);
 		}
 		
-		public void add(DataDependencies addThis){
-			readTableIds.addAll(addThis.readTableIds);
+		public synchronized void add(DataDependencies addThis){
+			TIntHashSet readCopy = new TIntHashSet(readTableIds);
+			readCopy.addAll(addThis.readTableIds);
+			readTableIds = readCopy;
 			if(addThis.readTableSet){
 				readTableSet = true;
 			}
@@ -91,7 +98,17 @@ final public class DataDependenciesRecorder<T extends ODLTableDefinition> extend
 		}
 		
 		public void addReadTableId(int tableId) {
-			this.readTableIds.add(tableId);
+			if(!readTableIds.contains(tableId)){
+				addReadTableIdSync(tableId);
+			}
+		}
+		
+		private synchronized void addReadTableIdSync(int tableId){
+			if(!readTableIds.contains(tableId)){
+				TIntHashSet readCopy = new TIntHashSet(readTableIds);
+				readCopy.add(tableId);
+				readTableIds = readCopy;
+			}
 		}
 		
 		public boolean isReadTableSet() {
@@ -256,6 +273,31 @@ final public class DataDependenciesRecorder<T extends ODLTableDefinition> extend
 		return super.getRowCount(tableId);
 	}
 
+	@Override
+	protected long getModificationCount(int tableId) {
+		// a result cached against the modification count depends on the table's contents
+		getDependencies().addReadTableId(tableId);
+		return super.getModificationCount(tableId);
+	}
+
+	@Override
+	protected long getColumnModificationCount(int tableId, int col) {
+		getDependencies().addReadTableId(tableId);
+		return super.getColumnModificationCount(tableId, col);
+	}
+
+	@Override
+	protected long getRowBlockModificationCount(int tableId, int block) {
+		getDependencies().addReadTableId(tableId);
+		return super.getRowBlockModificationCount(tableId, block);
+	}
+
+	@Override
+	protected long getRowModificationCount(int tableId, long rowId) {
+		getDependencies().addReadTableId(tableId);
+		return super.getRowModificationCount(tableId, rowId);
+	}
+
 	@Override
 	protected long getRowGlobalId(int tableId, int rowIndex) {
 		getDependencies().addReadTableId(tableId);
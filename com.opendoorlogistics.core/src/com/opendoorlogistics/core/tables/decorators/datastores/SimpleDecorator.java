@@ -16,6 +16,7 @@ import com.opendoorlogistics.api.tables.ODLTable;
 import com.opendoorlogistics.api.tables.ODLTableAlterable;
 import com.opendoorlogistics.api.tables.ODLTableDefinition;
 import com.opendoorlogistics.api.tables.ODLTableReadOnly;
+import com.opendoorlogistics.core.tables.utils.HasModificationCount;
 
 /**
  * Base class for other decorators. Also allows replacing of the decorated datastore
@@ -90,6 +91,42 @@ public class SimpleDecorator<T extends ODLTableDefinition> extends AbstractDecor
 		return readOnlyTable(tableId)!=null?readOnlyTable(tableId).getRowCount():0;
 	}
 
+	@Override
+	protected long getModificationCount(int tableId) {
+		ODLTableDefinition table = decorated.getTableByImmutableId(tableId);
+		if (table != null && HasModificationCount.class.isInstance(table)) {
+			return ((HasModificationCount) table).getModificationCount();
+		}
+		return -1;
+	}
+
+	@Override
+	protected long getColumnModificationCount(int tableId, int col) {
+		ODLTableDefinition table = decorated.getTableByImmutableId(tableId);
+		if (table != null && HasModificationCount.class.isInstance(table)) {
+			return ((HasModificationCount) table).getColumnModificationCount(col);
+		}
+		return -1;
+	}
+
+	@Override
+	protected long getRowBlockModificationCount(int tableId, int block) {
+		ODLTableDefinition table = decorated.getTableByImmutableId(tableId);
+		if (table != null && HasModificationCount.class.isInstance(table)) {
+			return ((HasModificationCount) table).getRowBlockModificationCount(block);
+		}
+		return -1;
+	}
+
+	@Override
+	protected long getRowModificationCount(int tableId, long rowId) {
+		ODLTableDefinition table = decorated.getTableByImmutableId(tableId);
+		if (table != null && HasModificationCount.class.isInstance(table)) {
+			return ((HasModificationCount) table).getRowModificationCount(rowId);
+		}
+		return -1;
+	}
+
 	protected ODLTableReadOnly readOnlyTable(int tableId) {
 		return (ODLTableReadOnly)decorated.getTableByImmutableId(tableId);
 	}
@@ -15,6 +15,7 @@ final public class ODLRowImpl implements ODLRow {
 	private final ArrayList<Object> rowInternal;
 	private final int tableInternalId;
 	private long flags;
+	private long modificationCount;
 	// private TreeList<ODLRowImpl>.TreeListNode treeListNode;
 
 	/**
@@ -89,6 +90,19 @@ final public class ODLRowImpl implements ODLRow {
 		this.flags = flags;
 	}
 
+	/**
+	 * Get the row's modification count. This is maintained by the table, under the table's lock.
+	 * 
+	 * @return
+	 */
+	long getModificationCount() {
+		return modificationCount;
+	}
+
+	void setModificationCount(long modificationCount) {
+		this.modificationCount = modificationCount;
+	}
+
 	// TreeList<ODLRowImpl>.TreeListNode getTreeListNode() {
 	// return treeListNode;
 	// }
@@ -8,6 +8,8 @@ package com.opendoorlogistics.core.tables.memory;
 
 import gnu.trove.list.array.TLongArrayList;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import com.opendoorlogistics.api.tables.ODLColumnType;
 import com.opendoorlogistics.api.tables.ODLDatastore;
 import com.opendoorlogistics.api.tables.ODLTableAlterable;
@@ -15,17 +17,23 @@ import com.opendoorlogistics.api.tables.ODLTableDefinition;
 import com.opendoorlogistics.api.tables.ODLTableDefinitionAlterable;
 import com.opendoorlogistics.core.tables.ODLTableFactory;
 import com.opendoorlogistics.core.tables.ColumnValueProcessor;
+import com.opendoorlogistics.core.tables.utils.HasModificationCount;
 import com.opendoorlogistics.core.tables.utils.TableUtils;
 import com.opendoorlogistics.core.utils.DeepCopyable;
 import com.opendoorlogistics.core.utils.IntIDGenerator;
 import com.opendoorlogistics.core.utils.IntIDGenerator.IsExistingId;
 import com.opendoorlogistics.core.utils.MapList;
 
-final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTableAlterable, DeepCopyable<ODLTableImpl> {
+final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTableAlterable, DeepCopyable<ODLTableImpl>, HasModificationCount {
 	/**
 	 * 
 	 */
 	private static final long serialVersionUID = 3487573687352027587L;
+	private static final AtomicLong LAST_MODIFICATION_COUNT = new AtomicLong();
+	private volatile long modificationCount = LAST_MODIFICATION_COUNT.incrementAndGet();
+	private final TLongArrayList columnModificationCounts = new TLongArrayList();
+	private final TLongArrayList rowBlockModificationCounts = new TLongArrayList();
+	private boolean rowBlocksStale;
 	private final MapList<ODLRowImpl> list = new MapList<>();
 	private IntIDGenerator rowIdGenerator = new IntIDGenerator(new IsExistingId() {
 
@@ -48,6 +56,7 @@ final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTab
 			int n = row.getColumnCount();
 			ODLRowImpl copy = new ODLRowImpl(row.getTableInternalId(), n);
 			copy.setFlags(row.getFlags());
+			copy.setModificationCount(row.getModificationCount());
 			for (int i = 0; i < n; i++) {
 				// values in rows should be treated as immutable, copying ref should be safe
 				copy.add(row.get(i));
@@ -58,6 +67,12 @@ final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTab
 
 		// ensure the next ids match as well ... needed when we merge modified tables
 		rowIdGenerator.setNextId(copyThis.rowIdGenerator.getNextId());
+		
+		// the copy has the same contents
+		modificationCount = copyThis.modificationCount;
+		columnModificationCounts.addAll(copyThis.columnModificationCounts);
+		rowBlockModificationCounts.addAll(copyThis.rowBlockModificationCounts);
+		rowBlocksStale = copyThis.rowBlocksStale;
 	}
 
 	@Override
@@ -81,11 +96,143 @@ final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTab
 			for (ODLRowImpl node : list) {
 				node.add(null);
 			}
+			modifiedColumns();
 			return index;
 		}
 		return index;
 	}
 
+	@Override
+	public synchronized void setColumnFlags(int i, long flags) {
+		// flags control column indexing, which affects lookups
+		super.setColumnFlags(i, flags);
+		long count = modified();
+		if (i < columnModificationCounts.size()) {
+			columnModificationCounts.set(i, count);
+		}
+	}
+
+	@Override
+	public long getModificationCount() {
+		return modificationCount;
+	}
+
+	@Override
+	public synchronized long getColumnModificationCount(int col) {
+		if (col < 0 || col >= columnModificationCounts.size()) {
+			return -1;
+		}
+		return columnModificationCounts.get(col);
+	}
+
+	@Override
+	public synchronized long getRowBlockModificationCount(int block) {
+		if (block < 0 || block >= rowBlockModificationCounts.size()) {
+			return -1;
+		}
+		if (rowBlocksStale) {
+			updateRowBlocks();
+		}
+		return rowBlockModificationCounts.get(block);
+	}
+
+	@Override
+	public synchronized long getRowModificationCount(long rowId) {
+		if (TableUtils.getTableId(rowId) != getImmutableId()) {
+			return -1;
+		}
+		ODLRowImpl row = list.getByID(TableUtils.getLocalRowId(rowId));
+		return row != null ? row.getModificationCount() : -1;
+	}
+
+	/**
+	 * Give the table a new modification count. Called from within synchronised methods.
+	 * 
+	 * @return The new count
+	 */
+	private long modified() {
+		long count = LAST_MODIFICATION_COUNT.incrementAndGet();
+		modificationCount = count;
+		return count;
+	}
+
+	/**
+	 * A value was set in the row and column
+	 * 
+	 * @param row
+	 * @param rowIndex
+	 *            The row's index or -1 if it isn't known
+	 * @param col
+	 */
+	private void modifiedValue(ODLRowImpl row, int rowIndex, int col) {
+		long count = modified();
+		row.setModificationCount(count);
+		if (col < columnModificationCounts.size()) {
+			columnModificationCounts.set(col, count);
+		}
+		if (rowIndex != -1) {
+			rowBlockModificationCounts.set(rowIndex / ROW_BLOCK_SIZE, count);
+		} else {
+			// finding the row's index needs a scan, so leave it until the block counts are next read
+			rowBlocksStale = true;
+		}
+	}
+
+	/**
+	 * Rows were inserted or deleted at the index, shifting every column's values and the rows after the index
+	 * 
+	 * @param rowIndex
+	 * @return The new count
+	 */
+	private long modifiedRows(int rowIndex) {
+		long count = modified();
+		columnModificationCounts.fill(count);
+
+		int nbBlocks = (list.size() + ROW_BLOCK_SIZE - 1) / ROW_BLOCK_SIZE;
+		if (rowBlockModificationCounts.size() > nbBlocks) {
+			rowBlockModificationCounts.remove(nbBlocks, rowBlockModificationCounts.size() - nbBlocks);
+		}
+		while (rowBlockModificationCounts.size() < nbBlocks) {
+			rowBlockModificationCounts.add(count);
+		}
+		for (int block = rowIndex / ROW_BLOCK_SIZE; block < nbBlocks; block++) {
+			rowBlockModificationCounts.set(block, count);
+		}
+		return count;
+	}
+
+	/**
+	 * Columns were added, inserted or deleted, possibly shifting the values in every row
+	 */
+	private void modifiedColumns() {
+		long count = modified();
+		columnModificationCounts.clear();
+		int nc = getColumnCount();
+		for (int col = 0; col < nc; col++) {
+			columnModificationCounts.add(count);
+		}
+		rowBlockModificationCounts.fill(count);
+		rowBlocksStale = false;
+		for (ODLRowImpl row : list) {
+			row.setModificationCount(count);
+		}
+	}
+
+	/**
+	 * Bring the block counts up to date with rows whose values were set by id
+	 */
+	private void updateRowBlocks() {
+		int n = list.size();
+		for (int row = 0; row < n; row++) {
+			int block = row / ROW_BLOCK_SIZE;
+			long count = list.getAt(row).getModificationCount();
+			if (count > rowBlockModificationCounts.get(block)) {
+				rowBlockModificationCounts.set(block, count);
+			}
+		}
+		rowBlocksStale = false;
+	}
+
 	@Override
 	public synchronized int getRowCount() {
 		return list.size();
@@ -113,7 +260,9 @@ final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTab
 		getIndex(columnIndex).set(getRowId(rowIndex), getValueAt(rowIndex, columnIndex), aValue, this, columnIndex);
 
 		// set the value
-		list.getAt(rowIndex).set(columnIndex, aValue);
+		ODLRowImpl row = list.getAt(rowIndex);
+		row.set(columnIndex, aValue);
+		modifiedValue(row, rowIndex, columnIndex);
 	}
 
 	/**
@@ -177,6 +326,7 @@ final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTab
 		for (int col = 0; col < nc; col++) {
 			getIndex(col).insert(rowid, newRow.get(col), this, col);
 		}
+		newRow.setModificationCount(modifiedRows(insertAtRowNb));
 
 	}
 
@@ -194,6 +344,7 @@ final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTab
 
 			// remove row
 			list.removeAt(rowNumber);
+			modifiedRows(rowNumber);
 		}
 	}
 
@@ -206,6 +357,7 @@ final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTab
 		for (ODLRowImpl row : list) {
 			row.remove(col);
 		}
+		modifiedColumns();
 	}
 
 	@Override
@@ -221,6 +373,7 @@ final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTab
 					row.add(null);
 				}
 			}
+			modifiedColumns();
 			return true;
 		}
 		return false;
@@ -297,6 +450,7 @@ final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTab
 
 				// set the value
 				row.set(columnIndex, aValue);
+				modifiedValue(row, -1, columnIndex);
 			}
 		}
 	}
@@ -317,7 +471,7 @@ final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTab
 	}
 
 	@Override
-	public long[] find(int col, Object value) {
+	public synchronized long[] find(int col, Object value) {
 		return getIndex(col).find(this, col, value);
 	}
 
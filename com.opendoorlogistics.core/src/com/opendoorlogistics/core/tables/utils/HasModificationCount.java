@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.tables.utils;
+
+/**
+ * A table which can report when its contents last changed, so cached calculations based on it can be checked for freshness without reading
+ * the table.<br>
+ * As well as the count for the whole table, counts are kept for each column, each row and each block of {@link #ROW_BLOCK_SIZE} rows, so a
+ * calculation which only reads some columns can ignore changes to the others and one which processes rows can find the blocks that changed
+ * since it last ran without comparing their values. All counts are taken from the same increasing sequence, so a count changed after another
+ * was read is always greater than it, and the greatest of several counts changes whenever any of them do.
+ * 
+ * @author Phil
+ *
+ */
+public interface HasModificationCount {
+	/**
+	 * Get a number which changes every time rows, values or columns in the table change. Different tables never share a number unless one is a
+	 * copy of the other with the same contents.
+	 * 
+	 * @return The modification count or -1 if it is not known (e.g. for a decorator which transforms its source)
+	 */
+	long getModificationCount();
+
+	/**
+	 * Number of consecutive rows sharing a row block modification count
+	 */
+	int ROW_BLOCK_SIZE = 256;
+
+	/**
+	 * Get a number which changes every time a value in the column changes, or the rows or columns are inserted or deleted (shifting the
+	 * column's values or the column itself).
+	 * 
+	 * @param col
+	 * @return The modification count or -1 if it is not known
+	 */
+	long getColumnModificationCount(int col);
+
+	/**
+	 * Get a number which changes every time a value in the rows from block * {@link #ROW_BLOCK_SIZE} to (block + 1) *
+	 * {@link #ROW_BLOCK_SIZE} - 1 changes, or a row is inserted or deleted at or before the block (shifting its rows).
+	 * 
+	 * @param block
+	 * @return The modification count or -1 if it is not known or the block is past the end of the table
+	 */
+	long getRowBlockModificationCount(int block);
+
+	/**
+	 * Get a number which changes every time a value in the row changes
+	 * 
+	 * @param rowId
+	 * @return The modification count or -1 if it is not known or the row doesn't exist
+	 */
+	long getRowModificationCount(long rowId);
+}
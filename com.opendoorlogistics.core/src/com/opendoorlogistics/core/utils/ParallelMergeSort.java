@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.utils;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Stable merge sort of the indices 0 to n-1, using a comparator which compares two indices (typically into precomputed key arrays). Indices
+ * which compare as equal keep their original order. Large sorts can be split and run in parallel on a fork-join pool.
+ *
+ * @author Phil
+ *
+ */
+public final class ParallelMergeSort {
+	/**
+	 * Ranges smaller than this are sorted by insertion sort
+	 */
+	private static final int INSERTION_SORT_SIZE = 16;
+
+	/**
+	 * Ranges smaller than this are not split into parallel tasks
+	 */
+	private static final int PARALLEL_TASK_SIZE = 8192;
+
+	private ParallelMergeSort() {
+	}
+
+	public interface IndexComparator {
+		int compare(int indexA, int indexB);
+	}
+
+	/**
+	 * Sort the indices 0 to n-1
+	 *
+	 * @param n
+	 * @param comparator
+	 *            Must be safe to call from several threads at once if a pool is given
+	 * @param pool
+	 *            Pool to run the sort on in parallel, or null to sort on the calling thread
+	 * @return Sorted indices
+	 */
+	public static int[] sort(int n, IndexComparator comparator, ForkJoinPool pool) {
+		int[] indices = new int[n];
+		for (int i = 0; i < n; i++) {
+			indices[i] = i;
+		}
+
+		int[] buffer = new int[n];
+		if (pool != null && n > PARALLEL_TASK_SIZE) {
+			pool.invoke(new SortTask(indices, buffer, 0, n, comparator));
+		} else {
+			mergeSort(indices, buffer, 0, n, comparator);
+		}
+		return indices;
+	}
+
+	private static class SortTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final int[] indices;
+		final int[] buffer;
+		final int from;
+		final int to;
+		final IndexComparator comparator;
+
+		SortTask(int[] indices, int[] buffer, int from, int to, IndexComparator comparator) {
+			this.indices = indices;
+			this.buffer = buffer;
+			this.from = from;
+			this.to = to;
+			this.comparator = comparator;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= PARALLEL_TASK_SIZE) {
+				mergeSort(indices, buffer, from, to, comparator);
+				return;
+			}
+
+			int mid = (from + to) >>> 1;
+			invokeAll(new SortTask(indices, buffer, from, mid, comparator), new SortTask(indices, buffer, mid, to, comparator));
+			merge(indices, buffer, from, mid, to, comparator);
+		}
+	}
+
+	private static void mergeSort(int[] indices, int[] buffer, int from, int to, IndexComparator comparator) {
+		if (to - from <= INSERTION_SORT_SIZE) {
+			insertionSort(indices, from, to, comparator);
+			return;
+		}
+
+		int mid = (from + to) >>> 1;
+		mergeSort(indices, buffer, from, mid, comparator);
+		mergeSort(indices, buffer, mid, to, comparator);
+		merge(indices, buffer, from, mid, to, comparator);
+	}
+
+	private static void insertionSort(int[] indices, int from, int to, IndexComparator comparator) {
+		for (int i = from + 1; i < to; i++) {
+			int index = indices[i];
+			int j = i;
+			while (j > from && comparator.compare(indices[j - 1], index) > 0) {
+				indices[j] = indices[j - 1];
+				j--;
+			}
+			indices[j] = index;
+		}
+	}
+
+	/**
+	 * Merge the sorted ranges [from,mid) and [mid,to). The left element is taken on ties so the sort is stable.
+	 */
+	private static void merge(int[] indices, int[] buffer, int from, int mid, int to, IndexComparator comparator) {
+		// nothing to do if the ranges are already in order
+		if (comparator.compare(indices[mid - 1], indices[mid]) <= 0) {
+			return;
+		}
+
+		System.arraycopy(indices, from, buffer, from, to - from);
+		int i = from;
+		int j = mid;
+		int k = from;
+		while (i < mid && j < to) {
+			if (comparator.compare(buffer[j], buffer[i]) < 0) {
+				indices[k++] = buffer[j++];
+			} else {
+				indices[k++] = buffer[i++];
+			}
+		}
+		while (i < mid) {
+			indices[k++] = buffer[i++];
+		}
+		while (j < to) {
+			indices[k++] = buffer[j++];
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package debugging;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import com.opendoorlogistics.api.tables.ODLColumnType;
+import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
+import com.opendoorlogistics.api.tables.ODLTableAlterable;
+import com.opendoorlogistics.core.formulae.FormulaCompiler;
+import com.opendoorlogistics.core.formulae.FormulaOptimiser;
+import com.opendoorlogistics.core.formulae.FormulaOptimiser.OptimisedFunction;
+import com.opendoorlogistics.core.formulae.FormulaParser;
+import com.opendoorlogistics.core.formulae.Function;
+import com.opendoorlogistics.core.formulae.UserVariableProvider;
+import com.opendoorlogistics.core.scripts.formulae.FmLocalElement;
+import com.opendoorlogistics.core.scripts.formulae.TableParameters;
+import com.opendoorlogistics.core.tables.ODLFactory;
+import com.opendoorlogistics.core.tables.utils.TableUtils;
+
+/**
+ * Compare the interpreted and the optimised and compiled versions of formulae from the functions library, evaluated against every row of a
+ * test table. Each formula is checked to give identical results before it is timed.
+ */
+public class BenchmarkFormulaCompiler {
+	private static final int NB_ROWS = 100000;
+	private static final int WARMUP_RUNS = 5;
+	private static final int TIMED_RUNS = 10;
+
+	private static final String[] FORMULAE = new String[] { "a + b", "a * b + c - 2", "(a + b) / (c + 1)", "a % 7", "i % 3 + i * 2",
+			"a > b", "a >= b && c < 50", "a < 10 || b > 90 || c == 5", "if(a > b, a - b, b - a)", "if(i % 2 == 0, i, -i)",
+			"if(a > 50, \"big\", \"small\")", "abs(a - b)", "abs(i - 500)", "round(a / 3)", "floor(a) + ceil(b)", "sqrt(a * a + b * b)",
+			"sin(a) * cos(b) + tan(c / 100)", "ln(a + 1) + log10(b + 1)", "max(a, b, c)", "min(i, 100)", "-a + b",
+			"lerp(a, b, 0.5) + 1", "len(s) + a", "upper(s)", "s & \"-\" & i", "if(a + b > 100, (a + b) * 2, (a + b) / 2)",
+			"a * (sqrt(2) + 3 * 4)", "colourmultiply(colour(0.5, 0.2 * 2, 1 - 0.3), a / 100)", "if(len(s & i) > 6, len(s & i), -len(s & i))" };
+
+	public static void main(String[] args) {
+		ODLDatastoreAlterable<ODLTableAlterable> ds = ODLFactory.createAlterable();
+		final ODLTableAlterable table = ds.createTable("Test", -1);
+		table.addColumn(-1, "a", ODLColumnType.DOUBLE, 0);
+		table.addColumn(-1, "b", ODLColumnType.DOUBLE, 0);
+		table.addColumn(-1, "c", ODLColumnType.DOUBLE, 0);
+		table.addColumn(-1, "i", ODLColumnType.LONG, 0);
+		table.addColumn(-1, "s", ODLColumnType.STRING, 0);
+
+		Random random = new Random(123);
+		for (int i = 0; i < NB_ROWS; i++) {
+			TableUtils.addRow(table, random.nextDouble() * 100, random.nextDouble() * 100, (double) random.nextInt(100), (long) random.nextInt(1000),
+					"row" + i);
+		}
+
+		UserVariableProvider uvp = new UserVariableProvider() {
+			@Override
+			public Function getVariable(String name) {
+				int colIndx = TableUtils.findColumnIndx(table, name, true);
+				if (colIndx == -1) {
+					return null;
+				}
+				return new FmLocalElement(colIndx, name);
+			}
+		};
+
+		ArrayList<ODLDatastoreAlterable<ODLTableAlterable>> datastores = new ArrayList<>();
+		datastores.add(ds);
+		TableParameters[] parameters = new TableParameters[NB_ROWS];
+		for (int i = 0; i < NB_ROWS; i++) {
+			parameters[i] = new TableParameters(datastores, 0, table.getImmutableId(), table.getRowId(i), i);
+		}
+
+		double totalInterpreted = 0;
+		double totalCompiled = 0;
+		for (String formulaText : FORMULAE) {
+			Function interpreted = new FormulaParser(uvp).parse(formulaText);
+			OptimisedFunction optimised = FormulaOptimiser.optimise(new FormulaParser(uvp).parse(formulaText));
+			Function compiled = FormulaCompiler.compile(optimised.getFunction());
+
+			// check identical results
+			for (int i = 0; i < NB_ROWS; i++) {
+				Object expected = interpreted.execute(parameters[i]);
+				Object actual = compiled.execute(parameters[i]);
+				if ((expected == null && actual != null) || (expected != null && !expected.equals(actual))) {
+					throw new RuntimeException("Mismatch for formula " + formulaText + " on row " + i + ", expected " + expected + " got " + actual);
+				}
+			}
+
+			double msInterpreted = time(interpreted, parameters);
+			double msCompiled = time(compiled, parameters);
+			totalInterpreted += msInterpreted;
+			totalCompiled += msCompiled;
+			System.out.println(String.format("%-35s size=%2d->%2d nodes compiled=%2d interpreted=%8.2fms compiled=%8.2fms speedup=%5.2fx",
+					formulaText, optimised.getSizeBefore(), optimised.getSizeAfter(), FormulaCompiler.countCompiledNodes(compiled), msInterpreted,
+					msCompiled, msInterpreted / msCompiled));
+		}
+
+		System.out.println(String.format("Total interpreted=%.2fms compiled=%.2fms speedup=%.2fx", totalInterpreted, totalCompiled, totalInterpreted
+				/ totalCompiled));
+	}
+
+	/**
+	 * Get the average time in milliseconds to execute the function over all rows
+	 *
+	 * @param function
+	 * @param parameters
+	 * @return
+	 */
+	private static double time(Function function, TableParameters[] parameters) {
+		int hash = 0;
+		for (int run = 0; run < WARMUP_RUNS; run++) {
+			for (TableParameters p : parameters) {
+				Object o = function.execute(p);
+				if (o != null) {
+					hash += o.hashCode();
+				}
+			}
+		}
+
+		long start = System.nanoTime();
+		for (int run = 0; run < TIMED_RUNS; run++) {
+			for (TableParameters p : parameters) {
+				Object o = function.execute(p);
+				if (o != null) {
+					hash += o.hashCode();
+				}
+			}
+		}
+		long end = System.nanoTime();
+
+		// print the hash so the JIT cannot remove the calls
+		if (hash == 42) {
+			System.out.println(hash);
+		}
+		return (end - start) / (1000000.0 * TIMED_RUNS);
+	}
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package tests.com.opendoorlogistics.core.formulae;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.opendoorlogistics.core.formulae.FormulaCompiler;
+import com.opendoorlogistics.core.formulae.Function;
+
+/**
+ * Test the compiled formulae give exactly the same results as the interpreted ones
+ * 
+ * @author Phil
+ *
+ */
+public class FormulaCompilerTest {
+	private static final String[] FORMULAE = new String[] { "a + b * c", "a - b / c", "(a + 1) * (a + 1) - b", "a % 3 + c", "if(a > b, a - b, b - a)",
+			"if(a >= 0 && b < 10, 1.5, 2)", "if(a = b || c <= 0, a, c)", "abs(a - b) + round(c)", "sqrt(abs(a)) * 2", "max(a, b, c) - min(a, b)",
+			"floor(a / 3) + ceil(b)", "2 * 3 + a", "a + b + c + 1 + 2.5" };
+
+	private static Object randomValue(Random random) {
+		switch (random.nextInt(8)) {
+		case 0:
+			return null;
+		case 1:
+			return "text";
+		case 2:
+			return Long.toString(random.nextInt(20) - 5);
+		case 3:
+		case 4:
+			return Long.valueOf(random.nextInt(20) - 5);
+		default:
+			return Double.valueOf(20 * random.nextDouble() - 5);
+		}
+	}
+
+	@Test
+	public void testSameResultsAsInterpreter() {
+		Random random = new Random(123);
+		for (String formula : FORMULAE) {
+			// the compiler adopts the tree it's given, so compile a separate parse
+			Function interpreted = VariableRow.parse(formula);
+			Function compiled = FormulaCompiler.compile(VariableRow.parse(formula));
+
+			for (int i = 0; i < 500; i++) {
+				VariableRow row = new VariableRow();
+				for (int j = 0; j < row.values.length; j++) {
+					row.values[j] = randomValue(random);
+				}
+				assertEquals(formula + " with " + row.values[0] + ", " + row.values[1] + ", " + row.values[2], interpreted.execute(row),
+						compiled.execute(row));
+			}
+		}
+	}
+
+	@Test
+	public void testNumericFormulaeAreCompiled() {
+		for (String formula : FORMULAE) {
+			Function compiled = FormulaCompiler.compile(VariableRow.parse(formula));
+			assertTrue(formula, FormulaCompiler.countCompiledNodes(compiled) > 0);
+		}
+	}
+
+	@Test
+	public void testKnownValues() {
+		VariableRow row = new VariableRow();
+		row.values[0] = 7L;
+		row.values[1] = 2L;
+		row.values[2] = 3L;
+		assertEquals(13.0, ((Number) FormulaCompiler.compile(VariableRow.parse("a + b * c")).execute(row)).doubleValue(), 0.0);
+		assertEquals(1.0, ((Number) FormulaCompiler.compile(VariableRow.parse("a % 3")).execute(row)).doubleValue(), 0.0);
+		assertEquals(3.5, ((Number) FormulaCompiler.compile(VariableRow.parse("a / b")).execute(row)).doubleValue(), 0.0);
+		assertEquals(5.0, ((Number) FormulaCompiler.compile(VariableRow.parse("if(a > b, a - b, b - a)")).execute(row)).doubleValue(), 0.0);
+	}
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package tests.com.opendoorlogistics.core.formulae;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.opendoorlogistics.core.formulae.FormulaCompiler;
+import com.opendoorlogistics.core.formulae.FormulaOptimiser;
+import com.opendoorlogistics.core.formulae.FormulaOptimiser.OptimisedFunction;
+import com.opendoorlogistics.core.formulae.Function;
+import com.opendoorlogistics.core.formulae.Functions.FmConst;
+
+/**
+ * Test constant folding and sub-expression sharing don't change the results of formulae
+ * 
+ * @author Phil
+ *
+ */
+public class FormulaOptimiserTest {
+	private static final String[] FORMULAE = new String[] { "(a + b) * (a + b)", "if(a + b > 10, a + b, 0)", "2 * 3 + a", "a * (1 + 2) - b / (4 - 2)",
+			"if(abs(a - b) > 1, abs(a - b) * c, abs(a - b) + c)", "max(a, b) + max(a, b) * max(a, b)", "\"x\" & \"y\" & a" };
+
+	private static VariableRow randomRow(Random random) {
+		VariableRow row = new VariableRow();
+		for (int j = 0; j < row.values.length; j++) {
+			switch (random.nextInt(6)) {
+			case 0:
+				row.values[j] = null;
+				break;
+			case 1:
+				row.values[j] = "text";
+				break;
+			case 2:
+				row.values[j] = Long.valueOf(random.nextInt(20) - 5);
+				break;
+			default:
+				row.values[j] = Double.valueOf(20 * random.nextDouble() - 5);
+				break;
+			}
+		}
+		return row;
+	}
+
+	@Test
+	public void testSameResultsAsInterpreter() {
+		Random random = new Random(123);
+		for (String formula : FORMULAE) {
+			Function interpreted = VariableRow.parse(formula);
+			Function optimised = FormulaOptimiser.optimise(VariableRow.parse(formula)).getFunction();
+			Function optimisedAndCompiled = FormulaCompiler.compile(FormulaOptimiser.optimise(VariableRow.parse(formula)).getFunction());
+			for (int i = 0; i < 500; i++) {
+				VariableRow row = randomRow(random);
+				Object expected = interpreted.execute(row);
+				assertEquals(formula, expected, optimised.execute(row));
+				assertEquals(formula, expected, optimisedAndCompiled.execute(row));
+			}
+		}
+	}
+
+	@Test
+	public void testConstantFolding() {
+		OptimisedFunction result = FormulaOptimiser.optimise(VariableRow.parse("1 + 2 * 3"));
+		assertTrue(FmConst.class.isInstance(result.getFunction()));
+		assertEquals(7.0, ((Number) result.getFunction().execute(null)).doubleValue(), 0.0);
+		assertEquals(1, result.getSizeAfter());
+
+		// only the constant part is folded
+		result = FormulaOptimiser.optimise(VariableRow.parse("a * (1 + 2)"));
+		assertEquals(1, result.getNbFolded());
+		assertEquals(3, result.getSizeAfter());
+	}
+
+	@Test
+	public void testSharing() {
+		OptimisedFunction result = FormulaOptimiser.optimise(VariableRow.parse("(a + b) * (a + b)"));
+		assertEquals(1, result.getNbShared());
+		assertTrue(result.getSizeAfter() < result.getSizeBefore());
+
+		// the shared sum reads its variables once per row
+		VariableRow row = new VariableRow();
+		row.values[0] = 2.0;
+		row.values[1] = 3.0;
+		assertEquals(25.0, ((Number) result.getFunction().execute(row)).doubleValue(), 0.0);
+		assertEquals(2, row.nbReads);
+
+		// and is recalculated for the next row
+		VariableRow next = new VariableRow();
+		next.values[0] = 1.0;
+		next.values[1] = 1.0;
+		assertEquals(4.0, ((Number) result.getFunction().execute(next)).doubleValue(), 0.0);
+		assertEquals(2, next.nbReads);
+	}
+
+	@Test
+	public void testImpureFunctionsNotFoldedOrShared() {
+		OptimisedFunction result = FormulaOptimiser.optimise(VariableRow.parse("rand() + rand()"));
+		assertEquals(0, result.getNbFolded());
+		assertEquals(0, result.getNbShared());
+
+		result = FormulaOptimiser.optimise(VariableRow.parse("(a + rand()) * (a + rand())"));
+		assertEquals(0, result.getNbShared());
+	}
+}
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package tests.com.opendoorlogistics.core.formulae;
+
+import com.opendoorlogistics.core.formulae.FormulaParser;
+import com.opendoorlogistics.core.formulae.Function;
+import com.opendoorlogistics.core.formulae.FunctionImpl;
+import com.opendoorlogistics.core.formulae.FunctionParameters;
+import com.opendoorlogistics.core.formulae.UserVariableProvider;
+import com.opendoorlogistics.core.formulae.definitions.FunctionDefinitionLibrary;
+
+/**
+ * A row of values for the variables a, b and c in formula tests, counting how often they're read
+ * 
+ * @author Phil
+ *
+ */
+class VariableRow implements FunctionParameters {
+	final Object[] values = new Object[3];
+	int nbReads;
+
+	private static class Variable extends FunctionImpl {
+		private final int index;
+
+		Variable(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public Object execute(FunctionParameters parameters) {
+			VariableRow row = (VariableRow) parameters;
+			row.nbReads++;
+			return row.values[index];
+		}
+
+		@Override
+		public Function deepCopy() {
+			return new Variable(index);
+		}
+
+		@Override
+		public String toString() {
+			return Character.toString((char) ('a' + index));
+		}
+	}
+
+	/**
+	 * Parse the formula, reading the variables a, b and c from a {@link VariableRow}
+	 * 
+	 * @param formula
+	 * @return
+	 */
+	static Function parse(String formula) {
+		FormulaParser parser = new FormulaParser(new UserVariableProvider() {
+
+			@Override
+			public Function getVariable(String name) {
+				if (name.length() == 1 && name.charAt(0) >= 'a' && name.charAt(0) <= 'c') {
+					return new Variable(name.charAt(0) - 'a');
+				}
+				return null;
+			}
+		}, new FunctionDefinitionLibrary().build());
+		return parser.parse(formula);
+	}
+}
@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package tests.com.opendoorlogistics.core.scripts;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.opendoorlogistics.api.tables.ODLColumnType;
+import com.opendoorlogistics.api.tables.ODLDatastore;
+import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
+import com.opendoorlogistics.api.tables.ODLTable;
+import com.opendoorlogistics.api.tables.ODLTableAlterable;
+import com.opendoorlogistics.api.tables.ODLTableReadOnly;
+import com.opendoorlogistics.core.scripts.ScriptConstants;
+import com.opendoorlogistics.core.scripts.elements.AdaptedTableConfig;
+import com.opendoorlogistics.core.scripts.elements.AdapterColumnConfig.SortField;
+import com.opendoorlogistics.core.scripts.elements.AdapterConfig;
+import com.opendoorlogistics.core.scripts.execution.ScriptExecutionBlackboard;
+import com.opendoorlogistics.core.scripts.execution.adapters.AdapterBuilder;
+import com.opendoorlogistics.core.scripts.execution.adapters.BuiltAdapters;
+import com.opendoorlogistics.core.tables.ColumnValueProcessor;
+import com.opendoorlogistics.core.tables.ODLFactory;
+import com.opendoorlogistics.core.tables.utils.TableUtils;
+import com.opendoorlogistics.core.utils.strings.StandardisedStringSet;
+
+/**
+ * Test sorting adapter rows on precomputed keys gives the same order as comparing the rows' values directly, as the adapter used to
+ * 
+ * @author Phil
+ *
+ */
+public class AdapterSortTest {
+	private static final String[] NAMES = new String[] { "alpha", "Alpha", "beta", "BETA", "gamma", "", null, "10", "9" };
+
+	private static ODLTableAlterable createSource(ODLDatastoreAlterable<ODLTableAlterable> ds, int nbRows, long seed) {
+		ODLTableAlterable table = ds.createTable("Source", -1);
+		table.addColumn(-1, "id", ODLColumnType.LONG, 0);
+		table.addColumn(-1, "name", ODLColumnType.STRING, 0);
+		table.addColumn(-1, "value", ODLColumnType.DOUBLE, 0);
+		table.addColumn(-1, "count", ODLColumnType.LONG, 0);
+
+		Random random = new Random(seed);
+		for (int i = 0; i < nbRows; i++) {
+			Double value = random.nextInt(10) == 0 ? null : (double) random.nextInt(20) - 10;
+			TableUtils.addRow(table, (long) i, NAMES[random.nextInt(NAMES.length)], value, (long) random.nextInt(5));
+		}
+		return table;
+	}
+
+	/**
+	 * Build an adapter over the source table sorted by the fields, with the id as the first output column
+	 * 
+	 * @param ds
+	 * @param sortFields
+	 * @param sortTypes
+	 * @return
+	 */
+	private static ODLTableReadOnly buildSorted(ODLDatastoreAlterable<ODLTableAlterable> ds, String[] sortFields, SortField[] sortTypes) {
+		AdapterConfig config = new AdapterConfig("Sorted");
+		AdaptedTableConfig table = config.createTable("Source", "Sorted");
+		table.setFromDatastore(ScriptConstants.EXTERNAL_DS_NAME);
+		table.addMappedColumn("id", "id", ODLColumnType.LONG, 0);
+		for (int i = 0; i < sortFields.length; i++) {
+			table.addMappedColumn(sortFields[i], "sort" + i, ds.getTableAt(0).getColumnType(TableUtils.findColumnIndx(ds.getTableAt(0), sortFields[i])), 0)
+					.setSortField(sortTypes[i]);
+		}
+
+		ScriptExecutionBlackboard env = new ScriptExecutionBlackboard(false);
+		env.addDatastore(ScriptConstants.EXTERNAL_DS_NAME, null, ds);
+		ODLDatastore<? extends ODLTable> built = new AdapterBuilder(config, new StandardisedStringSet(), env, null, new BuiltAdapters()).build();
+		assertFalse(env.isFailed());
+		assertNotNull(built);
+		return built.getTableAt(0);
+	}
+
+	private static boolean isEmpty(Object value) {
+		return value == null || value.toString().length() == 0;
+	}
+
+	/**
+	 * Sort the source row ids by comparing the values directly with a stable sort
+	 * 
+	 * @param source
+	 * @param sortFields
+	 * @param sortTypes
+	 * @return
+	 */
+	private static ArrayList<Long> referenceSort(final ODLTableReadOnly source, String[] sortFields, final SortField[] sortTypes) {
+		final int[] cols = new int[sortFields.length];
+		for (int i = 0; i < cols.length; i++) {
+			cols[i] = TableUtils.findColumnIndx(source, sortFields[i]);
+		}
+
+		ArrayList<Integer> rows = new ArrayList<>();
+		for (int row = 0; row < source.getRowCount(); row++) {
+			rows.add(row);
+		}
+		Collections.sort(rows, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer a, Integer b) {
+				int diff = 0;
+				for (int j = 0; j < cols.length && diff == 0; j++) {
+					Object va = source.getValueAt(a, cols[j]);
+					Object vb = source.getValueAt(b, cols[j]);
+					if (isEmpty(va) && isEmpty(vb)) {
+						// compareValues can't compare an empty string to null
+						continue;
+					}
+					diff = ColumnValueProcessor.compareValues(va, vb, ColumnValueProcessor.isNumeric(source.getColumnType(cols[j])));
+					if (sortTypes[j] != SortField.ASCENDING) {
+						diff = -diff;
+					}
+				}
+				return diff;
+			}
+		});
+
+		ArrayList<Long> ret = new ArrayList<>();
+		for (int row : rows) {
+			ret.add((Long) source.getValueAt(row, 0));
+		}
+		return ret;
+	}
+
+	private static void assertSameOrder(int nbRows, String[] sortFields, SortField[] sortTypes) {
+		ODLDatastoreAlterable<ODLTableAlterable> ds = ODLFactory.createAlterable();
+		ODLTableAlterable source = createSource(ds, nbRows, nbRows);
+		ODLTableReadOnly sorted = buildSorted(ds, sortFields, sortTypes);
+		ArrayList<Long> expected = referenceSort(source, sortFields, sortTypes);
+
+		assertEquals(nbRows, sorted.getRowCount());
+		for (int i = 0; i < nbRows; i++) {
+			assertEquals(expected.get(i), sorted.getValueAt(i, 0));
+		}
+	}
+
+	@Test
+	public void testStrings() {
+		// mixed case, empty and null strings, with ties kept in their original order
+		assertSameOrder(200, new String[] { "name" }, new SortField[] { SortField.ASCENDING });
+		assertSameOrder(200, new String[] { "name" }, new SortField[] { SortField.DESCENDING });
+	}
+
+	@Test
+	public void testNumbers() {
+		assertSameOrder(200, new String[] { "value" }, new SortField[] { SortField.ASCENDING });
+		assertSameOrder(200, new String[] { "value" }, new SortField[] { SortField.DESCENDING });
+	}
+
+	@Test
+	public void testSeveralColumns() {
+		assertSameOrder(500, new String[] { "count", "name", "value" }, new SortField[] { SortField.DESCENDING, SortField.ASCENDING,
+				SortField.DESCENDING });
+	}
+
+	@Test
+	public void testLargeTable() {
+		// large enough to evaluate the keys and merge sort in parallel
+		assertSameOrder(30000, new String[] { "name", "count" }, new SortField[] { SortField.ASCENDING, SortField.DESCENDING });
+	}
+}
@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package tests.com.opendoorlogistics.core.scripts;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import com.opendoorlogistics.api.ExecutionReport;
+import com.opendoorlogistics.api.components.ComponentExecutionApi;
+import com.opendoorlogistics.api.components.ODLComponent;
+import com.opendoorlogistics.api.tables.ODLColumnType;
+import com.opendoorlogistics.api.tables.ODLDatastore;
+import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
+import com.opendoorlogistics.api.tables.ODLTable;
+import com.opendoorlogistics.api.tables.ODLTableAlterable;
+import com.opendoorlogistics.api.tables.ODLTableReadOnly;
+import com.opendoorlogistics.core.api.impl.ODLApiImpl;
+import com.opendoorlogistics.core.scripts.elements.Script;
+import com.opendoorlogistics.core.scripts.execution.ScriptExecutor;
+import com.opendoorlogistics.core.tables.ODLFactory;
+import com.opendoorlogistics.core.tables.utils.TableUtils;
+import com.opendoorlogistics.core.utils.strings.Strings;
+
+/**
+ * Test batched instructions give each batch key the same rows, in the same order, as filtering the whole table for every key, whether the
+ * batches run one after another or in parallel
+ * 
+ * @author Phil
+ *
+ */
+public class BatchKeyExecutionTest {
+	private static final String[] KEYS = new String[] { "north", "North", "south", " east", "west ", "1", "01", null };
+
+	private static final RowCopyingComponent SERIAL = new RowCopyingComponent("tests.batchkeys.serial", 0, 0);
+	private static final RowCopyingComponent PARALLEL = new RowCopyingComponent("tests.batchkeys.parallel", ODLComponent.FLAG_CAN_RUN_IN_PARALLEL, 20);
+	private static final RowCopyingComponent WRITES_INPUT = new RowCopyingComponent("tests.batchkeys.writesinput",
+			ODLComponent.FLAG_CAN_RUN_IN_PARALLEL | ODLComponent.FLAG_WRITES_TO_INPUT, 20);
+	private static final RowCopyingComponent CHANGES_INPUT = new InputChangingComponent("tests.batchkeys.changesinput");
+
+	/**
+	 * Key of the rows inserted by {@link InputChangingComponent}, which is the last batch
+	 */
+	private static final String INSERTED_KEY = "west";
+
+	/**
+	 * Copies its input rows like {@link RowCopyingComponent} then deletes the first of them and inserts a row for the last batch, so later
+	 * batches only get the right rows if they are filtered from the input as it is when they run
+	 */
+	private static class InputChangingComponent extends RowCopyingComponent {
+
+		InputChangingComponent(String id) {
+			super(id, ODLComponent.FLAG_WRITES_TO_INPUT, 0);
+		}
+
+		@Override
+		public void execute(ComponentExecutionApi api, int mode, Object configuration, ODLDatastore<? extends ODLTable> ioDs,
+				ODLDatastoreAlterable<? extends ODLTableAlterable> outputDs) {
+			super.execute(api, mode, configuration, ioDs, outputDs);
+
+			ODLTable table = ioDs.getTableAt(0);
+			int nbRows = table.getRowCount();
+			if (nbRows > 0) {
+				table.deleteRow(0);
+			}
+			int row = table.createEmptyRow(-1);
+			table.setValueAt(INSERTED_KEY, row, 0);
+			table.setValueAt(-(long) nbRows, row, 1);
+		}
+	}
+
+	private static ODLDatastoreAlterable<ODLTableAlterable> createExternal(int nbRows) {
+		ODLDatastoreAlterable<ODLTableAlterable> ret = ODLFactory.createAlterable();
+		ODLTableAlterable table = ret.createTable("Source", -1);
+		table.addColumn(-1, "key", ODLColumnType.STRING, 0);
+		table.addColumn(-1, "value", ODLColumnType.LONG, 0);
+		Random random = new Random(nbRows);
+		for (int i = 0; i < nbRows; i++) {
+			TableUtils.addRow(table, KEYS[random.nextInt(KEYS.length)], (long) i);
+		}
+		return ret;
+	}
+
+	/**
+	 * Get the rows each batch should receive by filtering the whole table for each standardised key in turn; rows without a key go in
+	 * every batch
+	 * 
+	 * @param source
+	 * @return Rows of batch key, key and value
+	 */
+	private static List<Object[]> expectedRows(ODLTableReadOnly source) {
+		TreeSet<String> batchKeys = new TreeSet<>();
+		for (int row = 0; row < source.getRowCount(); row++) {
+			Object key = source.getValueAt(row, 0);
+			if (key != null) {
+				batchKeys.add(Strings.std(key.toString()));
+			}
+		}
+
+		List<Object[]> ret = new ArrayList<>();
+		for (String batchKey : batchKeys) {
+			for (int row = 0; row < source.getRowCount(); row++) {
+				Object key = source.getValueAt(row, 0);
+				if (isInBatch(key, batchKey)) {
+					ret.add(new Object[] { batchKey, key, source.getValueAt(row, 1) });
+				}
+			}
+		}
+		return ret;
+	}
+
+	private static boolean isInBatch(Object key, String batchKey) {
+		return key == null || Strings.std(key.toString()).equals(batchKey);
+	}
+
+	private static ODLTableReadOnly execute(RowCopyingComponent component, ODLDatastoreAlterable<ODLTableAlterable> external) {
+		Script script = new Script();
+		RowCopyingComponent.addInputAdapter(script, "Input", "Source", true);
+		RowCopyingComponent.addInstruction(script, "Input", "Output", component.getId());
+		RowCopyingComponent.addCopyToExternal(script, "Output", "Result");
+
+		ExecutionReport report = new ScriptExecutor(new ODLApiImpl(), false, null).execute(script, external);
+		assertFalse(report.getReportString(true, true), report.isFailed());
+		ODLTableReadOnly ret = TableUtils.findTable(external, "Result");
+		assertNotNull(ret);
+		return ret;
+	}
+
+	private static void assertBatches(RowCopyingComponent component, int nbRows) {
+		ODLDatastoreAlterable<ODLTableAlterable> external = createExternal(nbRows);
+		List<Object[]> expected = expectedRows(external.getTableAt(0));
+		ODLTableReadOnly result = execute(component, external);
+
+		assertEquals(expected.size(), result.getRowCount());
+		for (int row = 0; row < expected.size(); row++) {
+			for (int col = 0; col < 3; col++) {
+				assertEquals("Row " + row, expected.get(row)[col], result.getValueAt(row, col));
+			}
+		}
+	}
+
+	@Test
+	public void testSerialBatches() {
+		assertBatches(SERIAL, 500);
+	}
+
+	@Test
+	public void testParallelBatches() {
+		int before = PARALLEL.getNbExecutions();
+		assertBatches(PARALLEL, 500);
+
+		// one execution per distinct standardised key
+		assertEquals(6, PARALLEL.getNbExecutions() - before);
+		if (Runtime.getRuntime().availableProcessors() > 1) {
+			assertTrue(PARALLEL.getMaxRunning() > 1);
+		}
+	}
+
+	@Test
+	public void testComponentWritingInputRunsSerially() {
+		assertBatches(WRITES_INPUT, 200);
+		assertEquals(1, WRITES_INPUT.getMaxRunning());
+	}
+
+	@Test
+	public void testComponentChangingInputRows() {
+		ODLDatastoreAlterable<ODLTableAlterable> external = createExternal(300);
+		ODLTableReadOnly source = external.getTableAt(0);
+
+		// run the batches on a copy of the rows, deleting and inserting rows after each batch as the component does
+		ArrayList<Object[]> rows = new ArrayList<>();
+		TreeSet<String> batchKeys = new TreeSet<>();
+		for (int row = 0; row < source.getRowCount(); row++) {
+			Object key = source.getValueAt(row, 0);
+			rows.add(new Object[] { key, source.getValueAt(row, 1) });
+			if (key != null) {
+				batchKeys.add(Strings.std(key.toString()));
+			}
+		}
+		assertTrue(batchKeys.contains(INSERTED_KEY));
+
+		List<Object[]> expected = new ArrayList<>();
+		for (String batchKey : batchKeys) {
+			Object[] first = null;
+			long nbRows = 0;
+			for (Object[] row : rows) {
+				if (isInBatch(row[0], batchKey)) {
+					expected.add(new Object[] { batchKey, row[0], row[1] });
+					if (first == null) {
+						first = row;
+					}
+					nbRows++;
+				}
+			}
+
+			if (first != null) {
+				rows.remove(first);
+			}
+			rows.add(new Object[] { INSERTED_KEY, -nbRows });
+		}
+
+		ODLTableReadOnly result = execute(CHANGES_INPUT, external);
+		assertEquals(expected.size(), result.getRowCount());
+		for (int row = 0; row < expected.size(); row++) {
+			for (int col = 0; col < 3; col++) {
+				assertEquals("Row " + row, expected.get(row)[col], result.getValueAt(row, col));
+			}
+		}
+
+		// the changes were written back to the source table
+		assertEquals(rows.size(), source.getRowCount());
+		for (int row = 0; row < rows.size(); row++) {
+			assertEquals(rows.get(row)[0], source.getValueAt(row, 0));
+			assertEquals(rows.get(row)[1], source.getValueAt(row, 1));
+		}
+	}
+
+	@Test
+	public void testNoKeyedRows() {
+		ODLDatastoreAlterable<ODLTableAlterable> external = ODLFactory.createAlterable();
+		ODLTableAlterable table = external.createTable("Source", -1);
+		table.addColumn(-1, "key", ODLColumnType.STRING, 0);
+		table.addColumn(-1, "value", ODLColumnType.LONG, 0);
+		TableUtils.addRow(table, null, 1L);
+
+		// with no batch key values the instruction runs once over all the rows
+		int before = SERIAL.getNbExecutions();
+		assertEquals(1, execute(SERIAL, external).getRowCount());
+		assertEquals(1, SERIAL.getNbExecutions() - before);
+	}
+}
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package tests.com.opendoorlogistics.core.scripts;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.opendoorlogistics.api.ExecutionReport;
+import com.opendoorlogistics.api.components.ODLComponent;
+import com.opendoorlogistics.api.tables.ODLColumnType;
+import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
+import com.opendoorlogistics.api.tables.ODLTableAlterable;
+import com.opendoorlogistics.api.tables.ODLTableReadOnly;
+import com.opendoorlogistics.core.api.impl.ODLApiImpl;
+import com.opendoorlogistics.core.scripts.elements.Script;
+import com.opendoorlogistics.core.scripts.execution.InstructionOutputCache;
+import com.opendoorlogistics.core.scripts.execution.ScriptExecutor;
+import com.opendoorlogistics.core.tables.ODLFactory;
+import com.opendoorlogistics.core.tables.utils.TableUtils;
+
+/**
+ * Test instruction outputs are reused on a refresh only whilst the tables they read keep the same stamps, in the same way the script
+ * runner uses the output cache
+ * 
+ * @author Phil
+ *
+ */
+public class InstructionOutputReuseTest {
+	private static final RowCopyingComponent PURE = new RowCopyingComponent("tests.reuse.pure", ODLComponent.FLAG_OUTPUT_DEPENDS_ONLY_ON_INPUTS, 0);
+	private static final RowCopyingComponent PURE_READING_OUTPUT = new RowCopyingComponent("tests.reuse.purereadingoutput",
+			ODLComponent.FLAG_OUTPUT_DEPENDS_ONLY_ON_INPUTS, 0);
+	private static final RowCopyingComponent NOT_PURE = new RowCopyingComponent("tests.reuse.notpure", 0, 0);
+
+	private ODLDatastoreAlterable<ODLTableAlterable> external;
+	private InstructionOutputCache cache;
+	private ODLDatastoreAlterable<ODLTableAlterable> lastWorkingCopy;
+
+	@Before
+	public void setUp() {
+		external = ODLFactory.createAlterable();
+		ODLTableAlterable source = external.createTable("Source", -1);
+		source.addColumn(-1, "key", ODLColumnType.STRING, 0);
+		source.addColumn(-1, "value", ODLColumnType.LONG, 0);
+		for (int i = 0; i < 10; i++) {
+			TableUtils.addRow(source, "key" + i, (long) i);
+		}
+
+		ODLTableAlterable other = external.createTable("Other", -1);
+		other.addColumn(-1, "key", ODLColumnType.STRING, 0);
+		other.addColumn(-1, "value", ODLColumnType.LONG, 0);
+		TableUtils.addRow(other, "other", 0L);
+
+		cache = new InstructionOutputCache("script");
+	}
+
+	private static Script createScript(RowCopyingComponent component) {
+		Script script = new Script();
+		RowCopyingComponent.addInputAdapter(script, "Input", "Source", false);
+		RowCopyingComponent.addInstruction(script, "Input", "Out1", component.getId());
+		RowCopyingComponent.addCopyToExternal(script, "Out1", "Result");
+		return script;
+	}
+
+	/**
+	 * Execute the script on a copy of the external datastore, stamping the tables when the copy is taken as the script runner does
+	 * 
+	 * @param script
+	 * @param refresh
+	 *            True if outputs can be reused
+	 */
+	@SuppressWarnings("unchecked")
+	private void execute(Script script, boolean refresh) {
+		lastWorkingCopy = (ODLDatastoreAlterable<ODLTableAlterable>) external.deepCopyDataOnly();
+		InstructionOutputCache.Run run = cache.startRun(external, refresh);
+
+		ScriptExecutor executor = new ScriptExecutor(new ODLApiImpl(), false, null);
+		executor.setOutputCache(run);
+		ExecutionReport report = executor.execute(script, lastWorkingCopy);
+		assertFalse(report.getReportString(true, true), report.isFailed());
+	}
+
+	/**
+	 * Check the result of the last execution holds the source table's current rows
+	 */
+	private void assertResultIsSource() {
+		ODLTableReadOnly source = TableUtils.findTable(external, "Source");
+		ODLTableReadOnly result = TableUtils.findTable(lastWorkingCopy, "Result");
+		assertNotNull(result);
+		assertEquals(source.getRowCount(), result.getRowCount());
+		for (int row = 0; row < source.getRowCount(); row++) {
+			assertEquals(source.getValueAt(row, 0), result.getValueAt(row, 1));
+			assertEquals(source.getValueAt(row, 1), result.getValueAt(row, 2));
+		}
+	}
+
+	@Test
+	public void testUnchangedInputsReused() {
+		Script script = createScript(PURE);
+		int before = PURE.getNbExecutions();
+		execute(script, true);
+		execute(script, true);
+		assertEquals(1, PURE.getNbExecutions() - before);
+		assertResultIsSource();
+	}
+
+	@Test
+	public void testUnrelatedEditReused() {
+		Script script = createScript(PURE);
+		int before = PURE.getNbExecutions();
+		execute(script, true);
+		TableUtils.findTable(external, "Other").setValueAt(1L, 0, 1);
+		execute(script, true);
+		assertEquals(1, PURE.getNbExecutions() - before);
+		assertResultIsSource();
+	}
+
+	@Test
+	public void testEditedInputReexecuted() {
+		Script script = createScript(PURE);
+		int before = PURE.getNbExecutions();
+		execute(script, true);
+
+		ODLTableAlterable source = TableUtils.findTable(external, "Source");
+		source.setValueAt(100L, 3, 1);
+		execute(script, true);
+		assertEquals(2, PURE.getNbExecutions() - before);
+		assertResultIsSource();
+
+		TableUtils.addRow(source, "new", 11L);
+		execute(script, true);
+		assertEquals(3, PURE.getNbExecutions() - before);
+		assertResultIsSource();
+
+		// the new output is saved and reused in turn
+		execute(script, true);
+		assertEquals(3, PURE.getNbExecutions() - before);
+		assertResultIsSource();
+	}
+
+	@Test
+	public void testExplicitRunNotReused() {
+		Script script = createScript(PURE);
+		int before = PURE.getNbExecutions();
+		execute(script, false);
+		execute(script, false);
+		assertEquals(2, PURE.getNbExecutions() - before);
+
+		// but the output is still saved for refreshes
+		execute(script, true);
+		assertEquals(2, PURE.getNbExecutions() - before);
+	}
+
+	@Test
+	public void testUnflaggedComponentAlwaysExecutes() {
+		Script script = createScript(NOT_PURE);
+		int before = NOT_PURE.getNbExecutions();
+		execute(script, true);
+		execute(script, true);
+		assertEquals(2, NOT_PURE.getNbExecutions() - before);
+	}
+
+	@Test
+	public void testReadingExecutedOutputReexecutes() {
+		// the second instruction reads the output of one which always executes
+		Script script = new Script();
+		RowCopyingComponent.addInputAdapter(script, "Input", "Source", false);
+		RowCopyingComponent.addInstruction(script, "Input", "Out1", NOT_PURE.getId());
+		RowCopyingComponent.addInputAdapter(script, "FromOut1", "Out1", RowCopyingComponent.OUTPUT_TABLE, false);
+		RowCopyingComponent.addInstruction(script, "FromOut1", "Out2", PURE_READING_OUTPUT.getId());
+		RowCopyingComponent.addCopyToExternal(script, "Out2", "Result");
+
+		int before = PURE_READING_OUTPUT.getNbExecutions();
+		execute(script, true);
+		execute(script, true);
+		assertEquals(2, PURE_READING_OUTPUT.getNbExecutions() - before);
+		assertResultIsSource();
+	}
+}
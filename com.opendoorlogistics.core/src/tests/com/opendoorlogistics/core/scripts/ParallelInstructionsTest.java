@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package tests.com.opendoorlogistics.core.scripts;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.opendoorlogistics.api.ExecutionReport;
+import com.opendoorlogistics.api.components.ODLComponent;
+import com.opendoorlogistics.api.tables.ODLColumnType;
+import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
+import com.opendoorlogistics.api.tables.ODLTableAlterable;
+import com.opendoorlogistics.api.tables.ODLTableReadOnly;
+import com.opendoorlogistics.core.api.impl.ODLApiImpl;
+import com.opendoorlogistics.core.scripts.ScriptConstants;
+import com.opendoorlogistics.core.scripts.elements.AdaptedTableConfig;
+import com.opendoorlogistics.core.scripts.elements.AdapterConfig;
+import com.opendoorlogistics.core.scripts.elements.Script;
+import com.opendoorlogistics.core.scripts.execution.ScriptExecutor;
+import com.opendoorlogistics.core.tables.ODLFactory;
+import com.opendoorlogistics.core.tables.utils.TableUtils;
+import com.opendoorlogistics.core.utils.strings.Strings;
+
+/**
+ * Test instructions which don't depend on each other can run at the same time, and that instructions wait for any earlier instruction
+ * whose output they read, directly, through an adapter or from a formula
+ * 
+ * @author Phil
+ *
+ */
+public class ParallelInstructionsTest {
+	private static final String[] KEYS = new String[] { "a", "B", "b", "c" };
+	private static final int NB_ROWS = 50;
+
+	private static final RowCopyingComponent PARALLEL_1 = new RowCopyingComponent("tests.instructions.parallel1", ODLComponent.FLAG_CAN_RUN_IN_PARALLEL,
+			200);
+	private static final RowCopyingComponent PARALLEL_2 = new RowCopyingComponent("tests.instructions.parallel2", ODLComponent.FLAG_CAN_RUN_IN_PARALLEL,
+			200);
+	private static final RowCopyingComponent SERIAL_1 = new RowCopyingComponent("tests.instructions.serial1", 0, 50);
+	private static final RowCopyingComponent SERIAL_2 = new RowCopyingComponent("tests.instructions.serial2", 0, 50);
+
+	private ODLDatastoreAlterable<ODLTableAlterable> external;
+
+	@Before
+	public void setUp() {
+		external = ODLFactory.createAlterable();
+		ODLTableAlterable table = external.createTable("Source", -1);
+		table.addColumn(-1, "key", ODLColumnType.STRING, 0);
+		table.addColumn(-1, "value", ODLColumnType.LONG, 0);
+		for (int i = 0; i < NB_ROWS; i++) {
+			TableUtils.addRow(table, KEYS[i % KEYS.length], (long) i);
+		}
+		RowCopyingComponent.resetMaxRunningAll();
+	}
+
+	private void execute(Script script) {
+		ExecutionReport report = new ScriptExecutor(new ODLApiImpl(), false, null).execute(script, external);
+		assertFalse(report.getReportString(true, true), report.isFailed());
+	}
+
+	/**
+	 * Check the result table holds a copy of the source table's rows
+	 * 
+	 * @param resultTable
+	 */
+	private void assertCopiedSource(String resultTable) {
+		ODLTableReadOnly source = external.getTableAt(0);
+		ODLTableReadOnly result = TableUtils.findTable(external, resultTable);
+		assertNotNull(result);
+		assertEquals(source.getRowCount(), result.getRowCount());
+		for (int row = 0; row < source.getRowCount(); row++) {
+			assertEquals(source.getValueAt(row, 0), result.getValueAt(row, 1));
+			assertEquals(source.getValueAt(row, 1), result.getValueAt(row, 2));
+		}
+	}
+
+	@Test
+	public void testIndependentInstructions() {
+		Script script = new Script();
+		RowCopyingComponent.addInputAdapter(script, "Input", "Source", false);
+		RowCopyingComponent.addInstruction(script, "Input", "Out1", PARALLEL_1.getId());
+		RowCopyingComponent.addInstruction(script, "Input", "Out2", PARALLEL_2.getId());
+		RowCopyingComponent.addCopyToExternal(script, "Out1", "Result1");
+		RowCopyingComponent.addCopyToExternal(script, "Out2", "Result2");
+		execute(script);
+
+		assertCopiedSource("Result1");
+		assertCopiedSource("Result2");
+		if (Runtime.getRuntime().availableProcessors() > 1) {
+			assertEquals(2, RowCopyingComponent.getMaxRunningAll());
+		}
+	}
+
+	@Test
+	public void testReadingOutputWaits() {
+		// the second instruction reads the first's output through an adapter
+		Script script = new Script();
+		RowCopyingComponent.addInputAdapter(script, "Input", "Source", false);
+		RowCopyingComponent.addInstruction(script, "Input", "Out1", PARALLEL_1.getId());
+		RowCopyingComponent.addInputAdapter(script, "FromOut1", "Out1", RowCopyingComponent.OUTPUT_TABLE, false);
+		RowCopyingComponent.addInstruction(script, "FromOut1", "Out2", PARALLEL_2.getId());
+		RowCopyingComponent.addCopyToExternal(script, "Out2", "Result2");
+		execute(script);
+
+		assertCopiedSource("Result2");
+		assertEquals(1, RowCopyingComponent.getMaxRunningAll());
+	}
+
+	@Test
+	public void testFormulaReadingOutputWaits() {
+		// the second instruction's adapter reads the source table but counts matching rows in the first's output
+		Script script = new Script();
+		RowCopyingComponent.addInputAdapter(script, "Input", "Source", false);
+		RowCopyingComponent.addInstruction(script, "Input", "Out1", PARALLEL_1.getId());
+
+		AdapterConfig adapter = new AdapterConfig("Counts");
+		AdaptedTableConfig table = adapter.createTable("Source", RowCopyingComponent.INPUT_TABLE);
+		table.setFromDatastore(ScriptConstants.EXTERNAL_DS_NAME);
+		table.addMappedColumn("key", "key", ODLColumnType.STRING, 0);
+		table.addMappedFormulaColumn("lookupcount(key, \"Out1," + RowCopyingComponent.OUTPUT_TABLE + "\", \"key\")", "value", ODLColumnType.LONG, 0);
+		script.getAdapters().add(adapter);
+
+		RowCopyingComponent.addInstruction(script, "Counts", "Out2", PARALLEL_2.getId());
+		RowCopyingComponent.addCopyToExternal(script, "Out2", "Result2");
+		execute(script);
+
+		ODLTableReadOnly source = external.getTableAt(0);
+		ODLTableReadOnly result = TableUtils.findTable(external, "Result2");
+		assertEquals(NB_ROWS, result.getRowCount());
+		for (int row = 0; row < NB_ROWS; row++) {
+			long expected = 0;
+			for (int other = 0; other < NB_ROWS; other++) {
+				if (Strings.equalsStd((String) source.getValueAt(row, 0), (String) source.getValueAt(other, 0))) {
+					expected++;
+				}
+			}
+			assertEquals(expected, result.getValueAt(row, 2));
+		}
+		assertEquals(1, RowCopyingComponent.getMaxRunningAll());
+	}
+
+	@Test
+	public void testUnflaggedInstructionsRunInOrder() {
+		Script script = new Script();
+		RowCopyingComponent.addInputAdapter(script, "Input", "Source", false);
+		RowCopyingComponent.addInstruction(script, "Input", "Out1", SERIAL_1.getId());
+		RowCopyingComponent.addInstruction(script, "Input", "Out2", SERIAL_2.getId());
+		RowCopyingComponent.addCopyToExternal(script, "Out1", "Result1");
+		RowCopyingComponent.addCopyToExternal(script, "Out2", "Result2");
+		execute(script);
+
+		assertCopiedSource("Result1");
+		assertCopiedSource("Result2");
+		assertEquals(1, RowCopyingComponent.getMaxRunningAll());
+	}
+}
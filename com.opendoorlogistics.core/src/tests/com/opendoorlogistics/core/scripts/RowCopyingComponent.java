@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package tests.com.opendoorlogistics.core.scripts;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.Icon;
+import javax.swing.JPanel;
+
+import com.opendoorlogistics.api.ODLApi;
+import com.opendoorlogistics.api.components.ComponentConfigurationEditorAPI;
+import com.opendoorlogistics.api.components.ComponentExecutionApi;
+import com.opendoorlogistics.api.components.ODLComponent;
+import com.opendoorlogistics.api.scripts.ScriptOption.OutputType;
+import com.opendoorlogistics.api.scripts.ScriptTemplatesBuilder;
+import com.opendoorlogistics.api.tables.ODLColumnType;
+import com.opendoorlogistics.api.tables.ODLDatastore;
+import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
+import com.opendoorlogistics.api.tables.ODLTable;
+import com.opendoorlogistics.api.tables.ODLTableAlterable;
+import com.opendoorlogistics.api.tables.ODLTableDefinition;
+import com.opendoorlogistics.api.tables.ODLTableDefinitionAlterable;
+import com.opendoorlogistics.api.tables.ODLTableReadOnly;
+import com.opendoorlogistics.api.tables.TableFlags;
+import com.opendoorlogistics.core.components.ODLGlobalComponents;
+import com.opendoorlogistics.core.scripts.ScriptConstants;
+import com.opendoorlogistics.core.scripts.elements.AdaptedTableConfig;
+import com.opendoorlogistics.core.scripts.elements.AdapterConfig;
+import com.opendoorlogistics.core.scripts.elements.InstructionConfig;
+import com.opendoorlogistics.core.scripts.elements.OutputConfig;
+import com.opendoorlogistics.core.scripts.elements.Script;
+import com.opendoorlogistics.core.tables.memory.ODLDatastoreImpl;
+import com.opendoorlogistics.core.tables.utils.TableUtils;
+
+/**
+ * Component for script execution tests. It copies the key and value of each row of its input table to its output table, along with the
+ * batch key it was run for, and counts how many times it runs and how many of its executions overlap.
+ * 
+ * @author Phil
+ *
+ */
+public class RowCopyingComponent implements ODLComponent {
+	public static final String INPUT_TABLE = "Rows";
+	public static final String OUTPUT_TABLE = "Out";
+
+	private final String id;
+	private final long flags;
+	private final long sleepMillis;
+	private final AtomicInteger nbExecutions = new AtomicInteger();
+	private final AtomicInteger nbRunning = new AtomicInteger();
+	private final AtomicInteger maxRunning = new AtomicInteger();
+	private static final AtomicInteger nbRunningAll = new AtomicInteger();
+	private static final AtomicInteger maxRunningAll = new AtomicInteger();
+
+	/**
+	 * Create and register the component
+	 * 
+	 * @param id
+	 * @param flags
+	 * @param sleepMillis
+	 *            Time to sleep during each execution, so executions which can overlap do
+	 */
+	public RowCopyingComponent(String id, long flags, long sleepMillis) {
+		this.id = id;
+		this.flags = flags;
+		this.sleepMillis = sleepMillis;
+		ODLGlobalComponents.register(this);
+	}
+
+	public int getNbExecutions() {
+		return nbExecutions.get();
+	}
+
+	/**
+	 * @return The largest number of executions which were running at once
+	 */
+	public int getMaxRunning() {
+		return maxRunning.get();
+	}
+
+	/**
+	 * @return The largest number of executions of any of these components which were running at once, since the last reset
+	 */
+	public static int getMaxRunningAll() {
+		return maxRunningAll.get();
+	}
+
+	public static void resetMaxRunningAll() {
+		maxRunningAll.set(0);
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+	@Override
+	public String getName() {
+		return id;
+	}
+
+	@Override
+	public ODLDatastore<? extends ODLTableDefinition> getIODsDefinition(ODLApi api, Serializable configuration) {
+		ODLDatastoreAlterable<? extends ODLTableDefinitionAlterable> ret = ODLDatastoreImpl.alterableFactory.create();
+		ODLTableDefinitionAlterable table = ret.createTable(INPUT_TABLE, -1);
+		table.addColumn(-1, "key", ODLColumnType.STRING, 0);
+		table.addColumn(-1, "value", ODLColumnType.LONG, 0);
+		return ret;
+	}
+
+	@Override
+	public ODLDatastore<? extends ODLTableDefinition> getOutputDsDefinition(ODLApi api, int mode, Serializable configuration) {
+		ODLDatastoreAlterable<? extends ODLTableDefinitionAlterable> ret = ODLDatastoreImpl.alterableFactory.create();
+		ODLTableDefinitionAlterable table = ret.createTable(OUTPUT_TABLE, -1);
+		table.addColumn(-1, "batch", ODLColumnType.STRING, 0);
+		table.addColumn(-1, "key", ODLColumnType.STRING, 0);
+		table.addColumn(-1, "value", ODLColumnType.LONG, 0);
+		return ret;
+	}
+
+	@Override
+	public void execute(ComponentExecutionApi api, int mode, Object configuration, ODLDatastore<? extends ODLTable> ioDs,
+			ODLDatastoreAlterable<? extends ODLTableAlterable> outputDs) {
+		nbExecutions.incrementAndGet();
+		int running = nbRunning.incrementAndGet();
+		int runningAll = nbRunningAll.incrementAndGet();
+		try {
+			synchronized (maxRunning) {
+				maxRunning.set(Math.max(maxRunning.get(), running));
+			}
+			synchronized (maxRunningAll) {
+				maxRunningAll.set(Math.max(maxRunningAll.get(), runningAll));
+			}
+
+			if (sleepMillis > 0) {
+				try {
+					Thread.sleep(sleepMillis);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+			ODLTableReadOnly in = ioDs.getTableAt(0);
+			ODLTable out = outputDs.getTableAt(0);
+			for (int row = 0; row < in.getRowCount(); row++) {
+				TableUtils.addRow(out, api.getBatchKey(), in.getValueAt(row, 0), in.getValueAt(row, 1));
+			}
+		} finally {
+			nbRunning.decrementAndGet();
+			nbRunningAll.decrementAndGet();
+		}
+	}
+
+	@Override
+	public Class<? extends Serializable> getConfigClass() {
+		return null;
+	}
+
+	@Override
+	public JPanel createConfigEditorPanel(ComponentConfigurationEditorAPI api, int mode, Serializable config, boolean isFixedIO) {
+		return null;
+	}
+
+	@Override
+	public long getFlags(ODLApi api, int mode) {
+		return flags;
+	}
+
+	@Override
+	public Icon getIcon(ODLApi api, int mode) {
+		return null;
+	}
+
+	@Override
+	public boolean isModeSupported(ODLApi api, int mode) {
+		return mode == ODLComponent.MODE_DEFAULT;
+	}
+
+	@Override
+	public void registerScriptTemplates(ScriptTemplatesBuilder templatesApi) {
+	}
+
+	/**
+	 * Add an adapter reading the key and value columns of an external table into the component's input table
+	 * 
+	 * @param script
+	 * @param adapterId
+	 * @param externalTable
+	 * @param batchKey
+	 *            True if the key is the batch key
+	 */
+	public static void addInputAdapter(Script script, String adapterId, String externalTable, boolean batchKey) {
+		addInputAdapter(script, adapterId, ScriptConstants.EXTERNAL_DS_NAME, externalTable, batchKey);
+	}
+
+	/**
+	 * Add an adapter reading the key and value columns of a table in any datastore, e.g. another instruction's output
+	 * 
+	 * @param script
+	 * @param adapterId
+	 * @param fromDatastore
+	 * @param fromTable
+	 * @param batchKey
+	 */
+	public static void addInputAdapter(Script script, String adapterId, String fromDatastore, String fromTable, boolean batchKey) {
+		AdapterConfig adapter = new AdapterConfig(adapterId);
+		AdaptedTableConfig table = adapter.createTable(fromTable, INPUT_TABLE);
+		table.setFromDatastore(fromDatastore);
+		table.addMappedColumn("key", "key", ODLColumnType.STRING, batchKey ? TableFlags.FLAG_IS_BATCH_KEY : 0);
+		table.addMappedColumn("value", "value", ODLColumnType.LONG, 0);
+		script.getAdapters().add(adapter);
+	}
+
+	/**
+	 * Add an instruction running the component
+	 * 
+	 * @param script
+	 * @param inputId
+	 * @param outputId
+	 * @param componentId
+	 * @return
+	 */
+	public static InstructionConfig addInstruction(Script script, String inputId, String outputId, String componentId) {
+		InstructionConfig instruction = new InstructionConfig(inputId, outputId, componentId, null);
+		instruction.setUuid(outputId);
+		script.getInstructions().add(instruction);
+		return instruction;
+	}
+
+	/**
+	 * Copy the output table of an instruction to a new external table
+	 * 
+	 * @param script
+	 * @param outputId
+	 * @param externalTable
+	 */
+	public static void addCopyToExternal(Script script, String outputId, String externalTable) {
+		OutputConfig output = new OutputConfig();
+		output.setDatastore(outputId);
+		output.setInputTable(OUTPUT_TABLE);
+		output.setType(OutputType.COPY_TO_NEW_TABLE);
+		output.setDestinationTable(externalTable);
+		script.getOutputs().add(output);
+	}
+}
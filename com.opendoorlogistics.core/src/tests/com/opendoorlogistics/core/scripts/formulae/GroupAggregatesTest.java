@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package tests.com.opendoorlogistics.core.scripts.formulae;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.opendoorlogistics.api.tables.ODLColumnType;
+import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
+import com.opendoorlogistics.api.tables.ODLTableAlterable;
+import com.opendoorlogistics.core.formulae.Function;
+import com.opendoorlogistics.core.formulae.Functions.FmConst;
+import com.opendoorlogistics.core.formulae.Functions.FmMultiply;
+import com.opendoorlogistics.core.scripts.formulae.FmAggregate;
+import com.opendoorlogistics.core.scripts.formulae.FmAggregate.AggregateType;
+import com.opendoorlogistics.core.scripts.formulae.FmLocalElement;
+import com.opendoorlogistics.core.scripts.formulae.GroupAggregates;
+import com.opendoorlogistics.core.scripts.formulae.TableParameters;
+import com.opendoorlogistics.core.tables.ODLFactory;
+import com.opendoorlogistics.core.tables.utils.TableUtils;
+
+/**
+ * Test calculating all group-by aggregates in one pass gives the same results as each aggregate executing itself over its group's rows
+ * 
+ * @author Phil
+ *
+ */
+public class GroupAggregatesTest {
+	private static final int NB_GROUPS = 20;
+	private static final String[] STRINGS = new String[] { "x", "X", "y", "z", "", null };
+
+	private ODLDatastoreAlterable<ODLTableAlterable> ds;
+	private ODLTableAlterable source;
+	private ODLTableAlterable grouped;
+	private TLongObjectHashMap<TLongArrayList> groupRowIdToSourceRowIds;
+	private List<ODLDatastoreAlterable<ODLTableAlterable>> datastores;
+
+	@Before
+	public void setUp() {
+		ds = ODLFactory.createAlterable();
+		source = ds.createTable("Source", -1);
+		source.addColumn(-1, "double", ODLColumnType.DOUBLE, 0);
+		source.addColumn(-1, "long", ODLColumnType.LONG, 0);
+		source.addColumn(-1, "string", ODLColumnType.STRING, 0);
+		grouped = ds.createTable("Grouped", -1);
+		grouped.addColumn(-1, "group", ODLColumnType.LONG, 0);
+
+		// the last group has no source rows
+		for (int i = 0; i < NB_GROUPS; i++) {
+			TableUtils.addRow(grouped, (long) i);
+		}
+
+		// values are multiples of a half so sums are exact
+		groupRowIdToSourceRowIds = new TLongObjectHashMap<>();
+		Random random = new Random(123);
+		for (int i = 0; i < 1000; i++) {
+			Double d = random.nextInt(8) == 0 ? null : random.nextInt(100) / 2.0 - 20;
+			Long l = random.nextInt(8) == 0 ? null : (long) random.nextInt(100);
+			int row = TableUtils.addRow(source, d, l, STRINGS[random.nextInt(STRINGS.length)]);
+
+			long groupRowId = grouped.getRowId(random.nextInt(NB_GROUPS - 1));
+			TLongArrayList srcRowIds = groupRowIdToSourceRowIds.get(groupRowId);
+			if (srcRowIds == null) {
+				srcRowIds = new TLongArrayList();
+				groupRowIdToSourceRowIds.put(groupRowId, srcRowIds);
+			}
+			srcRowIds.add(source.getRowId(row));
+		}
+
+		datastores = new ArrayList<>();
+		datastores.add(ds);
+	}
+
+	private FmAggregate create(GroupAggregates groupAggregates, AggregateType type, Function child) {
+		FmAggregate ret = new FmAggregate(groupRowIdToSourceRowIds, 0, source.getImmutableId(), groupAggregates, type, child);
+		if (groupAggregates != null) {
+			groupAggregates.register(ret);
+		}
+		return ret;
+	}
+
+	private Function[] children() {
+		return new Function[] { new FmLocalElement(0, "double"), new FmLocalElement(1, "long"), new FmLocalElement(2, "string"),
+				new FmMultiply(new FmLocalElement(0, "double"), new FmConst(2.0)) };
+	}
+
+	/**
+	 * Check each aggregate type over each child formula gives the same result for every group, whether executed alone or from the shared
+	 * pass
+	 * 
+	 * @param types
+	 */
+	private void assertSameAsPerGroup(AggregateType... types) {
+		GroupAggregates groupAggregates = new GroupAggregates(groupRowIdToSourceRowIds, 0, source.getImmutableId());
+		ArrayList<FmAggregate> alone = new ArrayList<>();
+		ArrayList<FmAggregate> shared = new ArrayList<>();
+		for (AggregateType type : types) {
+			for (Function child : children()) {
+				alone.add(create(null, type, child));
+				shared.add(create(groupAggregates, type, child.deepCopy()));
+			}
+		}
+
+		for (int row = 0; row < NB_GROUPS; row++) {
+			TableParameters parameters = new TableParameters(datastores, 0, grouped.getImmutableId(), grouped.getRowId(row), row);
+			for (int i = 0; i < alone.size(); i++) {
+				String message = alone.get(i) + " for group " + row;
+				assertEquals(message, alone.get(i).execute(parameters), shared.get(i).execute(parameters));
+			}
+		}
+	}
+
+	@Test
+	public void testNumericAggregates() {
+		assertSameAsPerGroup(AggregateType.GROUPSUM, AggregateType.GROUPAVG, AggregateType.GROUPMIN, AggregateType.GROUPMAX);
+	}
+
+	@Test
+	public void testOtherAggregates() {
+		assertSameAsPerGroup(AggregateType.GROUPCOUNT, AggregateType.GROUPFIRST, AggregateType.GROUPLAST, AggregateType.GROUPMODALAVG);
+	}
+
+	@Test
+	public void testAllTogether() {
+		assertSameAsPerGroup(AggregateType.GROUPSUM, AggregateType.GROUPAVG, AggregateType.GROUPMIN, AggregateType.GROUPMAX,
+				AggregateType.GROUPCOUNT, AggregateType.GROUPFIRST, AggregateType.GROUPLAST, AggregateType.GROUPMODALAVG);
+	}
+
+	@Test
+	public void testResultsFromSharedPass() {
+		GroupAggregates groupAggregates = new GroupAggregates(groupRowIdToSourceRowIds, 0, source.getImmutableId());
+		FmAggregate sum = create(groupAggregates, AggregateType.GROUPSUM, new FmLocalElement(1, "long"));
+		create(groupAggregates, AggregateType.GROUPMAX, new FmLocalElement(0, "double"));
+		TableParameters parameters = new TableParameters(datastores, 0, grouped.getImmutableId(), grouped.getRowId(0), 0);
+		assertNotSame(GroupAggregates.NOT_AVAILABLE, groupAggregates.get(sum, parameters));
+	}
+}
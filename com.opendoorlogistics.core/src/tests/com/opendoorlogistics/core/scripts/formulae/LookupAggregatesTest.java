@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package tests.com.opendoorlogistics.core.scripts.formulae;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.opendoorlogistics.api.tables.ODLColumnType;
+import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
+import com.opendoorlogistics.api.tables.ODLTableAlterable;
+import com.opendoorlogistics.core.formulae.Function;
+import com.opendoorlogistics.core.formulae.Functions.FmConst;
+import com.opendoorlogistics.core.scripts.formulae.FmLookup;
+import com.opendoorlogistics.core.scripts.formulae.FmLookup.LookupType;
+import com.opendoorlogistics.core.scripts.formulae.LookupAggregates;
+import com.opendoorlogistics.core.scripts.formulae.TableParameters;
+import com.opendoorlogistics.core.tables.ODLFactory;
+import com.opendoorlogistics.core.tables.utils.TableUtils;
+
+/**
+ * Test the pre-aggregated numeric lookups give the same results as searching the table for every lookup
+ * 
+ * @author Phil
+ *
+ */
+public class LookupAggregatesTest {
+	private static final LookupType[] TYPES = new LookupType[] { LookupType.COUNT, LookupType.SUM, LookupType.AVG, LookupType.MIN,
+			LookupType.MAX };
+	private static final String[] KEYS = new String[] { "a", "A", "b", " B ", "c", "1", null };
+	private static final Object[] SEARCH_VALUES = new Object[] { "a", "A", "b", "B", "c", "1", 1L, 1.0, "missing" };
+	private static final int KEY_COL = 0;
+	private static final int[] VALUE_COLS = new int[] { 1, 2, 3 };
+
+	private ODLDatastoreAlterable<ODLTableAlterable> ds;
+	private ODLTableAlterable table;
+	private List<ODLDatastoreAlterable<ODLTableAlterable>> datastores;
+
+	@Before
+	public void setUp() {
+		ds = ODLFactory.createAlterable();
+		table = ds.createTable("Other", -1);
+		table.addColumn(-1, "key", ODLColumnType.STRING, 0);
+		table.addColumn(-1, "double", ODLColumnType.DOUBLE, 0);
+		table.addColumn(-1, "long", ODLColumnType.LONG, 0);
+		table.addColumn(-1, "string", ODLColumnType.STRING, 0);
+
+		// values are multiples of a half so sums are exact whatever order the rows are added in
+		Random random = new Random(123);
+		for (int i = 0; i < 500; i++) {
+			Double d = random.nextInt(8) == 0 ? null : random.nextInt(100) / 2.0 - 20;
+			Long l = random.nextInt(8) == 0 ? null : (long) random.nextInt(100);
+			TableUtils.addRow(table, KEYS[random.nextInt(KEYS.length)], d, l, Integer.toString(random.nextInt(10)));
+		}
+
+		datastores = new ArrayList<>();
+		datastores.add(ds);
+	}
+
+	private Object execute(Function lookup) {
+		return lookup.execute(new TableParameters(datastores, 0, -1, -1, -1));
+	}
+
+	/**
+	 * Check every lookup type, value column and search value gives the same result with and without the aggregates
+	 * 
+	 * @param registry
+	 */
+	private void assertSameAsSearching(LookupAggregates.Registry registry) {
+		int tableId = table.getImmutableId();
+		for (LookupType type : TYPES) {
+			for (int valueCol : VALUE_COLS) {
+				int returnCol = type == LookupType.COUNT ? -1 : valueCol;
+				LookupAggregates aggregates = registry.get(0, tableId, KEY_COL, returnCol);
+				for (Object search : SEARCH_VALUES) {
+					FmLookup searching = new FmLookup(new FmConst(search), 0, tableId, KEY_COL, returnCol, type);
+					FmLookup aggregated = new FmLookup(new FmConst(search), 0, tableId, KEY_COL, returnCol, type, aggregates);
+					String message = type + " of column " + valueCol + " for " + search;
+					assertEquals(message, execute(searching), execute(aggregated));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create a registry with every value column registered, as an adapter would when building its formulae
+	 * 
+	 * @return
+	 */
+	private LookupAggregates.Registry createRegistry() {
+		LookupAggregates.Registry registry = new LookupAggregates.Registry();
+		for (int valueCol : VALUE_COLS) {
+			registry.get(0, table.getImmutableId(), KEY_COL, valueCol);
+		}
+		return registry;
+	}
+
+	@Test
+	public void testSameResultsAsSearching() {
+		LookupAggregates.Registry registry = createRegistry();
+
+		// the first pass searches while the table is seen for the first time, the second uses the aggregates
+		assertSameAsSearching(registry);
+		assertSameAsSearching(registry);
+
+		LookupAggregates aggregates = registry.get(0, table.getImmutableId(), KEY_COL, 1);
+		assertNotSame(LookupAggregates.NOT_AVAILABLE, aggregates.get(table, "a", LookupType.SUM, 1));
+	}
+
+	@Test
+	public void testNonNumericValuesGiveError() {
+		table.setValueAt("not a number", 0, 3);
+		LookupAggregates.Registry registry = createRegistry();
+		assertSameAsSearching(registry);
+		assertSameAsSearching(registry);
+	}
+
+	@Test
+	public void testTableChanges() {
+		LookupAggregates.Registry registry = createRegistry();
+		assertSameAsSearching(registry);
+		assertSameAsSearching(registry);
+
+		// change keys and values; the aggregates must not return stale results
+		for (int row = 0; row < 50; row++) {
+			table.setValueAt(KEYS[row % KEYS.length], row, KEY_COL);
+			table.setValueAt(row * 1.5, row, 1);
+		}
+		TableUtils.addRow(table, "c", 1000.0, 1000L, "1000");
+		table.deleteRow(10);
+		assertSameAsSearching(registry);
+		assertSameAsSearching(registry);
+	}
+
+	@Test
+	public void testUnregisteredColumnNotAggregated() {
+		LookupAggregates.Registry registry = new LookupAggregates.Registry();
+		LookupAggregates aggregates = registry.get(0, table.getImmutableId(), KEY_COL, 1);
+		aggregates.get(table, "a", LookupType.SUM, 1);
+		aggregates.get(table, "a", LookupType.SUM, 1);
+		assertSame(LookupAggregates.NOT_AVAILABLE, aggregates.get(table, "a", LookupType.SUM, 2));
+	}
+}
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package tests.com.opendoorlogistics.core.tables;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.opendoorlogistics.api.tables.ODLColumnType;
+import com.opendoorlogistics.api.tables.ODLDatastore;
+import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
+import com.opendoorlogistics.api.tables.ODLTable;
+import com.opendoorlogistics.api.tables.ODLTableAlterable;
+import com.opendoorlogistics.core.formulae.Functions.FmConst;
+import com.opendoorlogistics.core.formulae.Functions.FmMultiply;
+import com.opendoorlogistics.core.scripts.formulae.FmLocalElement;
+import com.opendoorlogistics.core.tables.ODLFactory;
+import com.opendoorlogistics.core.tables.decorators.datastores.AdaptedDecorator;
+import com.opendoorlogistics.core.tables.decorators.datastores.AdaptedDecorator.AdapterMapping;
+import com.opendoorlogistics.core.tables.decorators.datastores.ListenerDecorator;
+import com.opendoorlogistics.core.tables.utils.TableUtils;
+
+/**
+ * Test the adapter value cache gives the same values as an uncached adapter and is cleared when the data changes
+ * 
+ * @author Phil
+ *
+ */
+public class AdaptedDecoratorValueCacheTest {
+	private static final int NB_ROWS = 5;
+
+	private ODLDatastoreAlterable<ODLTableAlterable> raw;
+	private ListenerDecorator<ODLTableAlterable> source;
+	private AdaptedDecorator<ODLTableAlterable> adapted;
+
+	@Before
+	public void setUp() {
+		raw = ODLFactory.createAlterable();
+		ODLTableAlterable table = raw.createTable("Source", -1);
+		table.addColumn(-1, "a", ODLColumnType.LONG, 0);
+		for (int i = 0; i < NB_ROWS; i++) {
+			TableUtils.addRow(table, (long) i);
+		}
+
+		source = new ListenerDecorator<ODLTableAlterable>(ODLTableAlterable.class, raw);
+		adapted = createAdapter(source);
+	}
+
+	/**
+	 * Adapt the source table to columns a and a * 2
+	 * 
+	 * @param ds
+	 * @return
+	 */
+	private static AdaptedDecorator<ODLTableAlterable> createAdapter(ODLDatastore<? extends ODLTableAlterable> ds) {
+		ODLDatastoreAlterable<ODLTableAlterable> destination = ODLFactory.createAlterable();
+		ODLTableAlterable destTable = destination.createTable("Adapted", -1);
+		destTable.addColumn(-1, "a", ODLColumnType.LONG, 0);
+		destTable.addColumn(-1, "double a", ODLColumnType.DOUBLE, 0);
+
+		int destTableId = destTable.getImmutableId();
+		AdapterMapping mapping = AdapterMapping.createUnassignedMapping(destination);
+		mapping.setTableSourceId(destTableId, 0, ds.getTableAt(0).getImmutableId());
+		mapping.setFieldSourceIndx(destTableId, 0, 0);
+		mapping.setFieldFormula(destTableId, 1, new FmMultiply(new FmLocalElement(0, "a"), new FmConst(2L)));
+
+		List<ODLDatastore<? extends ODLTableAlterable>> sources = new ArrayList<>();
+		sources.add(ds);
+		return new AdaptedDecorator<ODLTableAlterable>(mapping, sources);
+	}
+
+	private double readDoubled(int row) {
+		return ((Number) adapted.getTableAt(0).getValueAt(row, 1)).doubleValue();
+	}
+
+	@Test
+	public void testOnlySupportedOverListeningDatastores() {
+		assertTrue(adapted.isValueCacheSupported());
+
+		// plain datastores and other adapters never fire their listeners
+		assertFalse(createAdapter(raw).isValueCacheSupported());
+		assertFalse(createAdapter(adapted).isValueCacheSupported());
+	}
+
+	@Test
+	public void testRepeatedReadsHitCache() {
+		adapted.enableValueCache(100);
+		assertTrue(adapted.isValueCacheEnabled());
+		for (int i = 0; i < NB_ROWS; i++) {
+			assertEquals(2.0 * i, readDoubled(i), 0);
+		}
+		assertEquals(0, adapted.getValueCacheHits());
+
+		for (int i = 0; i < NB_ROWS; i++) {
+			assertEquals(2.0 * i, readDoubled(i), 0);
+		}
+		assertEquals(NB_ROWS, adapted.getValueCacheHits());
+	}
+
+	@Test
+	public void testSourceChangeClearsCache() {
+		adapted.enableValueCache(100);
+		readDoubled(1);
+		readDoubled(1);
+		assertEquals(1, adapted.getValueCacheHits());
+
+		((ODLTable) source.getTableAt(0)).setValueAt(10L, 1, 0);
+		assertEquals(20.0, readDoubled(1), 0);
+		assertEquals(1, adapted.getValueCacheHits());
+	}
+
+	@Test
+	public void testWriteThroughAdapterClearsCache() {
+		adapted.enableValueCache(100);
+		readDoubled(2);
+
+		((ODLTable) adapted.getTableAt(0)).setValueAt(7L, 2, 0);
+		assertEquals(14.0, readDoubled(2), 0);
+		assertEquals(7L, raw.getTableAt(0).getValueAt(2, 0));
+	}
+
+	@Test
+	public void testStructureChangeClearsCache() {
+		adapted.enableValueCache(100);
+		readDoubled(3);
+
+		source.createTable("Other", -1);
+		((ODLTable) raw.getTableAt(0)).setValueAt(5L, 3, 0);
+		assertEquals(10.0, readDoubled(3), 0);
+	}
+
+	@Test
+	public void testDisableRemovesListeners() {
+		adapted.enableValueCache(100);
+		readDoubled(4);
+		adapted.disableValueCache();
+		assertFalse(adapted.isValueCacheEnabled());
+
+		((ODLTable) source.getTableAt(0)).setValueAt(8L, 4, 0);
+		assertEquals(16.0, readDoubled(4), 0);
+		assertEquals(0, adapted.getValueCacheHits());
+	}
+}
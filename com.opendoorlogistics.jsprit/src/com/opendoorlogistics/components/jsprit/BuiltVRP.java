@@ -9,6 +9,9 @@ package com.opendoorlogistics.components.jsprit;
 import gnu.trove.map.hash.TObjectIntHashMap;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -58,7 +61,9 @@ public class BuiltVRP implements TravelCostAccessor {
 	private LocationsList locs;
 	private double maxFixedVehicleCost = 0;
 	private VehicleRoutingTransportCostsImpl matrix;
+	private List<Vehicle> vehicles;
 	private final Map<String,List<Integer>> jspritJobIdToRows;
+	private final Map<String,Job> jobsById;
 	private InputTablesDfn dfn;
 	private VRPConfig config;
 	private ODLDatastore<? extends ODLTable> ioDb;
@@ -67,12 +72,25 @@ public class BuiltVRP implements TravelCostAccessor {
 	private BuiltVRP(ComponentExecutionApi api){
 		this.api = api;
 		jspritJobIdToRows = api.getApi().stringConventions().createStandardisedMap();
+		jobsById = api.getApi().stringConventions().createStandardisedMap();
 	}
 	
+	/**
+	 * Result of checking whether a single job can be served on its own
+	 */
+	public enum JobFeasibility {
+		FEASIBLE, INFEASIBLE, UNKNOWN
+	}
+
+	/**
+	 * Margin on the time window checks within which {@link #checkFeasibility(String)} leaves the job to the solver
+	 */
+	private static final double FEASIBILITY_MARGIN_MILLISECONDS = 1000;
+
 	public enum TravelCostType {
 		COST(0), DISTANCE_KM(1), TIME(2);
 
-		private final int matrixIndex;
+		final int matrixIndex;
 
 		private TravelCostType(int matrixIndex) {
 			this.matrixIndex = matrixIndex;
@@ -118,9 +136,37 @@ public class BuiltVRP implements TravelCostAccessor {
 
 	}
 
+	/**
+	 * Travel costs for jsprit. Location ids are resolved to dense indices once per query and the times and distances are held in flat
+	 * arrays, row-major by from index. Travel costs are precomputed for the first few vehicle cost profiles (i.e. distinct cost per metre
+	 * and cost per millisecond), so the common query is a single array read; further profiles calculate the cost from the time and distance.
+	 * A location id which isn't in the matrix (i.e. {@link VRPConstants#NOWHERE}) has zero travel to and from it.
+	 */
 	private class VehicleRoutingTransportCostsImpl implements VehicleRoutingTransportCosts {
-		final private ODLCostMatrix distances;
-		final private TObjectIntHashMap<String> idToIndex;
+		private static final int MAX_COST_PROFILES = 4;
+		private final TObjectIntHashMap<String> idToIndex;
+		private final int nbLocations;
+		private final float[] times;
+		private final float[] distances;
+		private volatile CostProfile[] profiles = new CostProfile[0];
+
+		/**
+		 * Travel costs for one combination of cost per metre and cost per millisecond
+		 */
+		private class CostProfile {
+			final double costPerMillisecond;
+			final double costPerMetre;
+			final float[] costs;
+
+			CostProfile(double costPerMillisecond, double costPerMetre) {
+				this.costPerMillisecond = costPerMillisecond;
+				this.costPerMetre = costPerMetre;
+				costs = new float[times.length];
+				for (int i = 0; i < costs.length; i++) {
+					costs[i] = calculateCost(i, costPerMillisecond, costPerMetre);
+				}
+			}
+		}
 
 		VehicleRoutingTransportCostsImpl(DistancesConfiguration distancesConfig, ComponentExecutionApi api) {
 			// take copy of the distances and ensure in correct output units
@@ -138,21 +184,93 @@ public class BuiltVRP implements TravelCostAccessor {
 			}
 
 			// call the api
-			distances = api.calculateDistances(distancesConfig, table);
+			ODLCostMatrix matrix = api.calculateDistances(distancesConfig, table);
 
-			// read indices out
-			idToIndex = new TObjectIntHashMap<>();
+			// give each location a dense index and map it to its index in the matrix
+			nbLocations = locs.ids.size();
+			if ((long) nbLocations * nbLocations > Integer.MAX_VALUE) {
+				throw new RuntimeException("Too many locations for the travel matrix: " + nbLocations);
+			}
+			idToIndex = new TObjectIntHashMap<>(Math.max(10, nbLocations * 2), 0.5f, -1);
+			int[] matrixIndices = new int[nbLocations];
+			int index = 0;
 			for (String id : locs.ids.values()) {
-				int indx = distances.getIndex(id);
-				idToIndex.put(id, indx);
+				matrixIndices[index] = matrix.getIndex(id);
+				if (matrixIndices[index] == -1) {
+					throw new RuntimeException("Location missing from the travel matrix: " + id);
+				}
+				idToIndex.put(id, index++);
+			}
+
+			// copy the times and distances out
+			times = new float[nbLocations * nbLocations];
+			distances = new float[nbLocations * nbLocations];
+			for (int from = 0; from < nbLocations; from++) {
+				for (int to = 0; to < nbLocations; to++) {
+					int i = from * nbLocations + to;
+					times[i] = (float) matrix.get(matrixIndices[from], matrixIndices[to], TravelCostType.TIME.matrixIndex);
+					distances[i] = (float) matrix.get(matrixIndices[from], matrixIndices[to], TravelCostType.DISTANCE_KM.matrixIndex);
+				}
 			}
 		}
 
-		float getTime(String fromId, String toId) {
-			if(fromId == VRPConstants.NOWHERE || toId == VRPConstants.NOWHERE){
-				return 0;
+		/**
+		 * @param fromId
+		 * @param toId
+		 * @return The index into the flat arrays or -1 if either location is nowhere
+		 */
+		private int getIndex(String fromId, String toId) {
+			int from = idToIndex.get(fromId);
+			if (from == -1) {
+				return -1;
+			}
+			int to = idToIndex.get(toId);
+			if (to == -1) {
+				return -1;
+			}
+			return from * nbLocations + to;
+		}
+
+		private float calculateCost(int index, double costPerMillisecond, double costPerMetre) {
+			double cost = distances[index] * costPerMetre + times[index] * costPerMillisecond;
+			return (float) cost;
+		}
+
+		private CostProfile getProfile(double costPerMillisecond, double costPerMetre) {
+			CostProfile[] current = profiles;
+			for (CostProfile profile : current) {
+				if (profile.costPerMillisecond == costPerMillisecond && profile.costPerMetre == costPerMetre) {
+					return profile;
+				}
 			}
-			return (float)distances.get(idToIndex.get(fromId), idToIndex.get(toId), TravelCostType.TIME.matrixIndex);
+
+			if (current.length >= MAX_COST_PROFILES) {
+				return null;
+			}
+
+			synchronized (this) {
+				// another thread may have added it
+				for (CostProfile profile : profiles) {
+					if (profile.costPerMillisecond == costPerMillisecond && profile.costPerMetre == costPerMetre) {
+						return profile;
+					}
+				}
+				if (profiles.length >= MAX_COST_PROFILES) {
+					return null;
+				}
+
+				// copy on write so queries can read the profiles without locking
+				CostProfile profile = new CostProfile(costPerMillisecond, costPerMetre);
+				CostProfile[] copy = Arrays.copyOf(profiles, profiles.length + 1);
+				copy[profiles.length] = profile;
+				profiles = copy;
+				return profile;
+			}
+		}
+
+		float getTime(String fromId, String toId) {
+			int index = getIndex(fromId, toId);
+			return index != -1 ? times[index] : 0;
 		}
 		
 		private float getCost(String fromId, String toId, Vehicle vehicle) {
@@ -166,16 +284,6 @@ public class BuiltVRP implements TravelCostAccessor {
 			}
 			
 			return getCost(fromId, toId, costPerMillisecond, costPerMetre);
-//			if(vehicle != null){
-//				if(vehicle.getType() != null){
-//					costs = distance * vehicle.getType().getVehicleCostParams().perDistanceUnit;
-//				}
-//			}
-			
-//			if(vehicle == null) return getDistance(fromId, toId);
-//			VehicleCostParams costParams = vehicle.getType().getVehicleCostParams();
-//			return costParams.perDistanceUnit*getDistance(fromId, toId) + costParams.perTimeUnit*getTime(fromId, toId);
-			
 		}
 
 		/**
@@ -186,13 +294,15 @@ public class BuiltVRP implements TravelCostAccessor {
 		 * @return
 		 */
 		float getCost(String fromId, String toId, double costPerMillisecond, double costPerMetre) {
-			if(fromId == VRPConstants.NOWHERE || toId == VRPConstants.NOWHERE){
+			int index = getIndex(fromId, toId);
+			if (index == -1) {
 				return 0;
 			}
-			double distance= getDistance(fromId, toId);
-			double time = getTime(fromId, toId);
-			double cost = distance * costPerMetre + time * costPerMillisecond;
-			return (float)cost;
+			CostProfile profile = getProfile(costPerMillisecond, costPerMetre);
+			if (profile != null) {
+				return profile.costs[index];
+			}
+			return calculateCost(index, costPerMillisecond, costPerMetre);
 		}
 
 		/**
@@ -201,23 +311,8 @@ public class BuiltVRP implements TravelCostAccessor {
 		 * @return
 		 */
 		float getDistance(String fromId, String toId) {
-			return (float)distances.get(idToIndex.get(fromId), idToIndex.get(toId), TravelCostType.DISTANCE_KM.matrixIndex);
-		}
-		
-		private float get(String fromId, String toId, Vehicle vehicle, TravelCostType type) {
-			switch(type){
-			case TIME:
-				return getTime(fromId, toId);
-				
-			case DISTANCE_KM:
-				return getDistance(fromId, toId);
-				
-			case COST:
-				return 0f;
-				
-			default:
-				return 0f;
-			}
+			int index = getIndex(fromId, toId);
+			return index != -1 ? distances[index] : 0;
 		}
 
 		@Override
@@ -491,6 +586,35 @@ public class BuiltVRP implements TravelCostAccessor {
 		this.ioDb = ioDb;
 		this.dfn = new InputTablesDfn(api.getApi(), config);
 		this.config = config;
+
+		// build vehicles
+		vehicles = buildVehicles();
+
+		// build stops
+		List<Job> jobs = buildJobs(jobIdFilter);
+
+		// index the jobs by the same standardised ids as getJobIds returns
+		for(Job job : jobs){
+			jobsById.put(job.getId(), job);
+		}
+
+		// build travel matrix or use input matrix
+		if(preCalculatedMatrix!=null){
+			matrix = preCalculatedMatrix;
+		}else{
+			matrix = new VehicleRoutingTransportCostsImpl(config.getDistances(), api);			
+		}
+
+		vrpProblem = createProblem(jobs);
+	}
+
+	/**
+	 * Create a jsprit problem with the built vehicles and travel matrix and the input jobs
+	 * 
+	 * @param jobs
+	 * @return
+	 */
+	private VehicleRoutingProblem createProblem(Collection<Job> jobs) {
 		VehicleRoutingProblem.Builder vrpBuilder = VehicleRoutingProblem.Builder.newInstance();
 		
 		if (config.isDeliveriesBeforePickups()) {
@@ -503,19 +627,9 @@ public class BuiltVRP implements TravelCostAccessor {
 			vrpBuilder.setFleetSize(FleetSize.FINITE);
 		}
 
-		// build vehicles
-		vrpBuilder.addAllVehicles(buildVehicles());
+		vrpBuilder.addAllVehicles(vehicles);
 		vrpBuilder.setFleetSize(config.isInfiniteFleetSize() ? FleetSize.INFINITE : FleetSize.FINITE);
-
-		// build stops
-		vrpBuilder.addAllJobs(buildJobs(jobIdFilter));
-
-		// build travel matrix or use input matrix
-		if(preCalculatedMatrix!=null){
-			matrix = preCalculatedMatrix;
-		}else{
-			matrix = new VehicleRoutingTransportCostsImpl(config.getDistances(), api);			
-		}
+		vrpBuilder.addAllJobs(jobs);
 		vrpBuilder.setRoutingCost(matrix);
 
 		/*
@@ -528,7 +642,7 @@ public class BuiltVRP implements TravelCostAccessor {
 			vrpBuilder.addPenaltyVehicles(5.0, penaltyCost);			
 		}
 
-		vrpProblem = vrpBuilder.build();
+		return vrpBuilder.build();
 	}
 
 	public static BuiltVRP build(ODLDatastore<? extends ODLTable> ioDb, VRPConfig config, ComponentExecutionApi api) {
@@ -578,6 +692,97 @@ public class BuiltVRP implements TravelCostAccessor {
 		return jspritJobIdToRows.keySet();
 	}
 	
+	/**
+	 * Build a problem with the same vehicles and travel matrix but only the single job. Unlike {@link #buildFilteredJobSubset(Set)} this doesn't
+	 * read the input tables again, so it can be called from several threads at once.
+	 * 
+	 * @param jobId
+	 * @return
+	 */
+	public VehicleRoutingProblem buildSingleJobProblem(String jobId) {
+		Job job = jobsById.get(jobId);
+		if (job == null) {
+			throw new RuntimeException("Unknown " + PredefinedTags.STOP_ID + " or " + PredefinedTags.JOB_ID + ": " + jobId);
+		}
+		return createProblem(Collections.singletonList(job));
+	}
+
+	/**
+	 * Check whether the job can be served on its own by any vehicle, from its quantities and the vehicle capacities and by timing the direct
+	 * route from the vehicle's start, through the job's stops, to its end. The check is on the same travel times and time windows jsprit uses
+	 * but it doesn't build an algorithm, so it is much quicker than solving. Jobs whose time windows are only just met or missed are reported
+	 * as unknown and should be solved instead.
+	 * 
+	 * @param jobId
+	 * @return
+	 */
+	public JobFeasibility checkFeasibility(String jobId) {
+		Job job = jobsById.get(jobId);
+		if (job == null || (!Service.class.isInstance(job) && !Shipment.class.isInstance(job))) {
+			return JobFeasibility.UNKNOWN;
+		}
+
+		boolean unknown = false;
+		for (Vehicle vehicle : vehicles) {
+			if (!job.getSize().isLessOrEqual(vehicle.getType().getCapacityDimensions())) {
+				continue;
+			}
+
+			double slack = getDirectRouteSlack(job, vehicle);
+			if (slack >= FEASIBILITY_MARGIN_MILLISECONDS) {
+				return JobFeasibility.FEASIBLE;
+			}
+			if (slack > -FEASIBILITY_MARGIN_MILLISECONDS || Double.isNaN(slack)) {
+				unknown = true;
+			}
+		}
+		return unknown ? JobFeasibility.UNKNOWN : JobFeasibility.INFEASIBLE;
+	}
+
+	/**
+	 * Get the smallest margin by which the direct route meets the time windows of the job's stops and the vehicle's latest arrival, including
+	 * the vehicle's latest arrival when going straight to its end from any point on the route
+	 * 
+	 * @param job
+	 * @param vehicle
+	 * @return Margin in milliseconds, negative if a time window is missed
+	 */
+	private double getDirectRouteSlack(Job job, Vehicle vehicle) {
+		String[] locationIds;
+		TimeWindow[] timeWindows;
+		double[] serviceTimes;
+		if (Shipment.class.isInstance(job)) {
+			Shipment shipment = (Shipment) job;
+			locationIds = new String[] { shipment.getPickupLocation(), shipment.getDeliveryLocation() };
+			timeWindows = new TimeWindow[] { shipment.getPickupTimeWindow(), shipment.getDeliveryTimeWindow() };
+			serviceTimes = new double[] { shipment.getPickupServiceTime(), shipment.getDeliveryServiceTime() };
+		} else {
+			Service service = (Service) job;
+			locationIds = new String[] { service.getLocationId() };
+			timeWindows = new TimeWindow[] { service.getTimeWindow() };
+			serviceTimes = new double[] { service.getServiceDuration() };
+		}
+
+		double slack = Double.POSITIVE_INFINITY;
+		double time = vehicle.getEarliestDeparture();
+		String previous = vehicle.getStartLocationId();
+		for (int i = 0; i < locationIds.length; i++) {
+			// jsprit inserts each stop in front of the route's end, so checks the vehicle could go straight to the end instead
+			slack = Math.min(slack, vehicle.getLatestArrival() - (time + matrix.getTime(previous, vehicle.getEndLocationId())));
+
+			double arrival = time + matrix.getTime(previous, locationIds[i]);
+			slack = Math.min(slack, timeWindows[i].getEnd() - arrival);
+			time = Math.max(arrival, timeWindows[i].getStart()) + serviceTimes[i];
+			previous = locationIds[i];
+		}
+
+		if (vehicle.isReturnToDepot()) {
+			double arrival = time + matrix.getTime(previous, vehicle.getEndLocationId());
+			slack = Math.min(slack, vehicle.getLatestArrival() - arrival);
+		}
+		return slack;
+	}
+
 	/**
 	 * Build a subset problem containing only the single job
 	 * @param jobid
@@ -9,10 +9,17 @@ package com.opendoorlogistics.components.jsprit;
 import java.io.Serializable;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
@@ -344,58 +351,127 @@ public class VRPComponent implements ODLComponent {
 		
 		api.postStatusMessage("Starting optimisation");
 		
-		// store the best every solution found and it isn't always the one returned...
+		// store the best every solution found by any of the runs and it isn't always the one returned...
+		final int nbRuns = Math.max(conf.getNbParallelRuns(), 1);
 		class BestEver{
 			VehicleRoutingProblemSolution solution;
 			double cost = Double.POSITIVE_INFINITY;
+			final int [] runSteps = new int[nbRuns];
+			final double [] runCosts = new double[nbRuns];
+			long lastTime = System.currentTimeMillis();
+			volatile boolean runFailed;
 		}
 		final BestEver bestEver = new BestEver();
+		Arrays.fill(bestEver.runCosts, Double.POSITIVE_INFINITY);
 		
-		// get the algorithm out-of-the-box.
-		VehicleRoutingAlgorithm algorithm = new SchrimpfFactory().createAlgorithm(built.getVrpProblem());
-		algorithm.setNuOfIterations(Math.max(conf.getNbIterations(),1));
-		class LastUpdate {
-			long lastTime = System.currentTimeMillis();
-		}
-		final LastUpdate lastUpdate = new LastUpdate();
-		algorithm.addListener(new IterationEndsListener() {
-
-			@Override
-			public void informIterationEnds(int i, VehicleRoutingProblem problem, Collection<VehicleRoutingProblemSolution> solutions) {
-				VehicleRoutingProblemSolution bestSolution = Solutions.bestOf(solutions);
-				if(bestSolution!=null){
-					if(bestSolution.getCost() < bestEver.cost){
-						bestEver.solution = VehicleRoutingProblemSolution.copyOf(bestSolution);
-						bestEver.cost = bestSolution.getCost();
+		// get the algorithms out-of-the-box. They share the problem and travel matrix, which the search only reads.
+		final ArrayList<VehicleRoutingAlgorithm> algorithms = new ArrayList<>(nbRuns);
+		for(int run = 0 ; run < nbRuns ; run++){
+			final int runIndex = run;
+			VehicleRoutingAlgorithm algorithm = new SchrimpfFactory().createAlgorithm(built.getVrpProblem());
+			algorithm.setNuOfIterations(Math.max(conf.getNbIterations(),1));
+			
+			// give the other runs their own seed for choosing search strategies so they explore differently
+			if(run > 0){
+				algorithm.getSearchStrategyManager().setRandom(new Random(run));
+			}
+			
+			algorithm.addListener(new IterationEndsListener() {
+	
+				@Override
+				public void informIterationEnds(int i, VehicleRoutingProblem problem, Collection<VehicleRoutingProblemSolution> solutions) {
+					VehicleRoutingProblemSolution bestSolution = Solutions.bestOf(solutions);
+					synchronized (bestEver) {
+						bestEver.runSteps[runIndex] = i;
+						if(bestSolution!=null){
+							bestEver.runCosts[runIndex] = Math.min(bestEver.runCosts[runIndex], bestSolution.getCost());
+							if(bestSolution.getCost() < bestEver.cost){
+								bestEver.solution = VehicleRoutingProblemSolution.copyOf(bestSolution);
+								bestEver.cost = bestSolution.getCost();
+							}
+						}
+						
+						// report costs etc every once in a while
+						long time = System.currentTimeMillis();
+						if (time - bestEver.lastTime > 250) {
+							bestEver.lastTime = time;
+							StringBuilder builder = new StringBuilder();
+							if(nbRuns==1){
+								builder.append("Solving VRP, step " + i);
+							}else{
+								builder.append("Solving VRP with " + nbRuns + " runs");
+							}
+							if(bestEver.cost != Double.POSITIVE_INFINITY){
+								builder.append(" best cost " + DecimalFormat.getInstance().format(bestEver.cost) );
+							}
+							
+							// show how each run is converging
+							for(int run = 0 ; run < nbRuns && nbRuns > 1 ; run++){
+								builder.append(run == 0 ? " - " : ", ");
+								builder.append("run " + (run + 1) + " step " + bestEver.runSteps[run]);
+								if(bestEver.runCosts[run] != Double.POSITIVE_INFINITY){
+									builder.append(" cost " + DecimalFormat.getInstance().format(bestEver.runCosts[run]));
+								}
+							}
+							
+							api.postStatusMessage(builder.toString());
+						}
 					}
 				}
-				
-				// report costs etc every once in a while
-				long time = System.currentTimeMillis();
-				if (time - lastUpdate.lastTime > 250) {
-					lastUpdate.lastTime = time;
-					StringBuilder builder = new StringBuilder();
-					builder.append("Solving VRP, step " + i);
-					if(bestEver.cost != Double.POSITIVE_INFINITY){
-						builder.append(" best cost " + DecimalFormat.getInstance().format(bestEver.cost) );
-					}
-					
-					api.postStatusMessage(builder.toString());
+	
+			});
+	
+			// all runs stop together, including when one of them fails
+			algorithm.setPrematureAlgorithmTermination(new PrematureAlgorithmTermination() {
+	
+				@Override
+				public boolean isPrematureBreak(DiscoveredSolution discoveredSolution) {
+					return api.isCancelled() || api.isFinishNow() || bestEver.runFailed;
 				}
-			}
-
-		});
+			});
+			
+			algorithms.add(algorithm);
+		}
 
-		algorithm.setPrematureAlgorithmTermination(new PrematureAlgorithmTermination() {
+		// and search a solution which returns a collection of solutions (here only one solution is constructed)
+		if(nbRuns==1){
+			algorithms.get(0).searchSolutions();
+		}else{
+			ExecutorService executor = Executors.newFixedThreadPool(nbRuns);
+			try {
+				ArrayList<Future<Void>> futures = new ArrayList<>(nbRuns);
+				for (final VehicleRoutingAlgorithm algorithm : algorithms) {
+					futures.add(executor.submit(new Callable<Void>() {
+
+						@Override
+						public Void call() throws Exception {
+							try {
+								algorithm.searchSolutions();
+								return null;
+							} catch (RuntimeException | Error e) {
+								bestEver.runFailed = true;
+								throw e;
+							}
+						}
+					}));
+				}
 
-			@Override
-			public boolean isPrematureBreak(DiscoveredSolution discoveredSolution) {
-				return api.isCancelled() || api.isFinishNow();
+				for (Future<Void> future : futures) {
+					try {
+						future.get();
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					} catch (ExecutionException e) {
+						if (RuntimeException.class.isInstance(e.getCause())) {
+							throw (RuntimeException) e.getCause();
+						}
+						throw new RuntimeException(e.getCause());
+					}
+				}
+			} finally {
+				executor.shutdownNow();
 			}
-		});
-
-		// and search a solution which returns a collection of solutions (here only one solution is constructed)
-		algorithm.searchSolutions();
+		}
 
 		// use the static helper-method in the utility class Solutions to get the best solution (in terms of least costs)
 	//	VehicleRoutingProblemSolution bestSolution =be
@@ -413,41 +489,84 @@ public class VRPComponent implements ODLComponent {
 	}
 
 	/**
-	 * Filter the problem by solving the VRP individually for each job and
-	 * removing any job which causes an issue.
+	 * Filter the problem by checking each job on its own and removing any job which causes an issue. Jobs which are obviously feasible or
+	 * infeasible (see {@link BuiltVRP#checkFeasibility(String)}) are decided straight away; the VRP is solved individually for the others,
+	 * on a thread per processor.
 	 * @param api
 	 * @param allJobs
 	 * @return
 	 */
-	private BuiltVRP filterInvalidJobs(ComponentExecutionApi api,BuiltVRP allJobs){
+	private BuiltVRP filterInvalidJobs(ComponentExecutionApi api,final BuiltVRP allJobs){
 		api.postStatusMessage("Analysing jobs");
 		
 		Set<String> passed = api.getApi().stringConventions().createStandardisedSet();
-		
+		ArrayList<String> toSolve = new ArrayList<>();
 		for(String jobId : allJobs.getJobIds()){
-			Set<String> set = api.getApi().stringConventions().createStandardisedSet();
-			set.add(jobId);
-			
-			boolean ok = true;
-			try{
-				BuiltVRP filtered = allJobs.buildFilteredJobSubset(set);
-				VehicleRoutingAlgorithm algorithm = new SchrimpfFactory().createAlgorithm(filtered.getVrpProblem());
-				algorithm.setNuOfIterations(0);
-				Collection<VehicleRoutingProblemSolution> solutions = algorithm.searchSolutions();
-				VehicleRoutingProblemSolution bestSolution = Solutions.bestOf(solutions);
-				ok = bestSolution!=null;
+			switch(allJobs.checkFeasibility(jobId)){
+			case FEASIBLE:
+				passed.add(jobId);
+				break;
 				
-			}catch(Exception e){
-				ok = false;
+			case INFEASIBLE:
+				break;
+				
+			default:
+				toSolve.add(jobId);
+				break;
 			}
-			
-			if(ok){
-				passed.add(jobId);
+		}
+		
+		if(toSolve.size()>0){
+			ExecutorService executor = Executors.newFixedThreadPool(Math.min(Runtime.getRuntime().availableProcessors(), toSolve.size()));
+			try {
+				ArrayList<Future<Boolean>> futures = new ArrayList<>(toSolve.size());
+				for (final String jobId : toSolve) {
+					futures.add(executor.submit(new Callable<Boolean>() {
+
+						@Override
+						public Boolean call() throws Exception {
+							return isSolvable(allJobs, jobId);
+						}
+					}));
+				}
+
+				for (int i = 0; i < futures.size(); i++) {
+					try {
+						if (futures.get(i).get()) {
+							passed.add(toSolve.get(i));
+						}
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					} catch (ExecutionException e) {
+						// treat the same as failing to solve
+					}
+				}
+			} finally {
+				executor.shutdownNow();
 			}
 		}
 		
 		return allJobs.buildFilteredJobSubset(passed);
 	}
+
+	/**
+	 * Solve the VRP for the single job
+	 * @param allJobs
+	 * @param jobId
+	 * @return True if a solution was found
+	 */
+	static boolean isSolvable(BuiltVRP allJobs, String jobId){
+		try{
+			VehicleRoutingAlgorithm algorithm = new SchrimpfFactory().createAlgorithm(allJobs.buildSingleJobProblem(jobId));
+			algorithm.setNuOfIterations(0);
+			Collection<VehicleRoutingProblemSolution> solutions = algorithm.searchSolutions();
+			VehicleRoutingProblemSolution bestSolution = Solutions.bestOf(solutions);
+			return bestSolution!=null;
+			
+		}catch(Exception e){
+			return false;
+		}
+	}
 	
 	private static List<StopOrder> getStopOrder(ODLApi api, ODLDatastore<? extends ODLTable> ioDb, VRPConfig conf, BuiltVRP built, VehicleRoutingProblemSolution bestSolution) {
 		ArrayList<StopOrder> ret = new ArrayList<>();
@@ -527,7 +646,9 @@ public class VRPComponent implements ODLComponent {
 	@Override
 	public long getFlags(ODLApi api, int mode) {
 		if (mode == VRPConstants.SOLUTION_DETAILS_MODE) {
-			return ODLComponent.FLAG_OUTPUT_WINDOWS_CAN_BE_SYNCHRONISED | ODLComponent.FLAG_ALLOW_USER_INTERACTION_WHEN_RUNNING;
+			// details only read the input tables and write to the output tables, so can run in parallel and be reused
+			return ODLComponent.FLAG_OUTPUT_WINDOWS_CAN_BE_SYNCHRONISED | ODLComponent.FLAG_ALLOW_USER_INTERACTION_WHEN_RUNNING
+					| ODLComponent.FLAG_CAN_RUN_IN_PARALLEL | ODLComponent.FLAG_OUTPUT_DEPENDS_ONLY_ON_INPUTS;
 		}
 		return 0;
 	}
@@ -39,6 +39,7 @@ final public class VRPConfig implements Serializable {
 	private final boolean [] booleans = new boolean[BooleanOptions.values().length];
 	private DistancesConfiguration distances = new DistancesConfiguration();
 	private int nbIterations=VRPConstants.DEFAULT_NB_ITERATIONS;
+	private int nbParallelRuns=1;
 	private int nbQuantities=1;
 	
 //	public boolean isStopTimeWindows() {
@@ -147,6 +148,19 @@ final public class VRPConfig implements Serializable {
 	public void setNbIterations(int nbIterations) {
 		this.nbIterations = nbIterations;
 	}
+
+	public int getNbParallelRuns() {
+		return nbParallelRuns;
+	}
+
+	/**
+	 * Set the number of independent optimisations run at once, each on its own thread. The best solution found by any of them is used.
+	 * @param nbParallelRuns
+	 */
+	@XmlElement
+	public void setNbParallelRuns(int nbParallelRuns) {
+		this.nbParallelRuns = nbParallelRuns;
+	}
 	
 	
 }
@@ -46,6 +46,14 @@ final class VRPConfigPanel extends JPanel {
 		});
 
 
+		JPanel parallelRuns = editorAPI.getApi().uiFactory().createIntegerEntryPane("Number of parallel runs  ", conf.getNbParallelRuns(), "How many independent optimisations should run at once, each on its own processor? The best solution from all of them is kept.", new IntChangedListener() {
+
+			@Override
+			public void intChange(int newInt) {
+				conf.setNbParallelRuns(newInt);
+			}
+		});
+
 		JPanel quantities = editorAPI.getApi().uiFactory().createIntegerEntryPane("Number of quantities  ", conf.getNbQuantities(), "How many quantity dimensions in the VRP model (e.g. size, weight, etc...)?", new IntChangedListener() {
 
 			@Override
@@ -63,11 +71,12 @@ final class VRPConfigPanel extends JPanel {
 		};
 
 		int nbPerLine = 2;
-		int nbLines = (int) Math.ceil((double) (boxes.length +2)/ nbPerLine);
+		int nbLines = (int) Math.ceil((double) (boxes.length +3)/ nbPerLine);
 		JPanel optPanel = new JPanel();
 		optPanel.setLayout(new GridLayout(nbLines, nbPerLine, 8, 2));
 
 		optPanel.add(iterations);
+		optPanel.add(parallelRuns);
 		optPanel.add(quantities);
 		for (BooleanOptions opt : BooleanOptions.values()) {
 			if(VRPConstants.ENABLE_PD==false && opt == BooleanOptions.FORCE_ALL_DELIVERIES_BEFORE_PICKUPS){
@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.components.jsprit;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.opendoorlogistics.components.jsprit.BuiltVRP.JobFeasibility;
+
+/**
+ * Test the analytical feasibility check on each job never contradicts solving the job on its own
+ * 
+ * @author Phil
+ *
+ */
+public class BuiltVRPFeasibilityTest {
+	@Test
+	public void testCheckAgreesWithSolving() {
+		ExampleVRPData.ExecutionApi api = new ExampleVRPData.ExecutionApi();
+		VRPConfig config = new VRPConfig();
+
+		int nbFeasible = 0;
+		int nbInfeasible = 0;
+		for (int seed = 0; seed < 3; seed++) {
+			BuiltVRP built = BuiltVRP.build(ExampleVRPData.createProblem(api.getApi(), config, 60, seed), config, api);
+			for (String jobId : built.getJobIds()) {
+				JobFeasibility feasibility = built.checkFeasibility(jobId);
+				if (feasibility == JobFeasibility.UNKNOWN) {
+					continue;
+				}
+
+				boolean solvable = VRPComponent.isSolvable(built, jobId);
+				if (feasibility == JobFeasibility.FEASIBLE) {
+					assertTrue("Job " + jobId + " was checked as feasible but couldn't be solved", solvable);
+					nbFeasible++;
+				} else {
+					assertFalse("Job " + jobId + " was checked as infeasible but was solved", solvable);
+					nbInfeasible++;
+				}
+			}
+		}
+
+		// the problems should exercise both verdicts
+		assertTrue(nbFeasible > 0);
+		assertTrue(nbInfeasible > 0);
+	}
+}
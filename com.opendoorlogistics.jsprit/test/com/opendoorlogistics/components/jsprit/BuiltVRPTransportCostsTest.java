@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.components.jsprit;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import jsprit.core.problem.cost.VehicleRoutingTransportCosts;
+import jsprit.core.problem.vehicle.Vehicle;
+
+import org.junit.Test;
+
+import com.opendoorlogistics.api.components.PredefinedTags;
+import com.opendoorlogistics.api.distances.DistancesConfiguration;
+import com.opendoorlogistics.api.distances.DistancesOutputConfiguration.OutputDistanceUnit;
+import com.opendoorlogistics.api.distances.DistancesOutputConfiguration.OutputTimeUnit;
+import com.opendoorlogistics.api.distances.ODLCostMatrix;
+import com.opendoorlogistics.api.geometry.LatLong;
+import com.opendoorlogistics.api.tables.ODLColumnType;
+import com.opendoorlogistics.api.tables.ODLDatastore;
+import com.opendoorlogistics.api.tables.ODLTable;
+import com.opendoorlogistics.api.tables.ODLTableAlterable;
+import com.opendoorlogistics.api.tables.ODLTableReadOnly;
+import com.opendoorlogistics.components.jsprit.BuiltVRP.TravelCostType;
+import com.opendoorlogistics.components.jsprit.tabledefinitions.InputTablesDfn;
+import com.opendoorlogistics.components.jsprit.tabledefinitions.LatLongDfn;
+
+/**
+ * Test the travel times, distances and costs read from the built problem's indexed arrays equal those calculated from the
+ * {@link ODLCostMatrix}, for random pairs of locations, each vehicle and more cost profiles than are precalculated
+ * 
+ * @author Phil
+ *
+ */
+public class BuiltVRPTransportCostsTest {
+	private static final int NB_PAIRS = 2000;
+	private static final int NB_EXTRA_COST_PROFILES = 6;
+
+	/**
+	 * Collect the locations of the stops and the vehicle starts and ends by their id in the built problem
+	 */
+	private static Map<String, LatLong> getLocations(ODLDatastore<? extends ODLTable> ioDb, InputTablesDfn dfn) {
+		Map<String, LatLong> ret = new LinkedHashMap<>();
+		ODLTableReadOnly stops = ioDb.getTableAt(dfn.stops.tableIndex);
+		for (int row = 0; row < stops.getRowCount(); row++) {
+			addLocation(stops, row, dfn.stops.latLong, ret);
+		}
+		ODLTableReadOnly vehicles = ioDb.getTableAt(dfn.vehicles.tableIndex);
+		for (int row = 0; row < vehicles.getRowCount(); row++) {
+			addLocation(vehicles, row, dfn.vehicles.start, ret);
+			addLocation(vehicles, row, dfn.vehicles.end, ret);
+		}
+		return ret;
+	}
+
+	private static void addLocation(ODLTableReadOnly table, int row, LatLongDfn latLong, Map<String, LatLong> locations) {
+		LatLong ll = latLong.getLatLong(table, row, false);
+		locations.put(BuiltVRP.LocationsList.toId(ll), ll);
+	}
+
+	/**
+	 * Calculate the matrix directly in the units the built problem uses
+	 */
+	private static ODLCostMatrix calculateMatrix(ExampleVRPData.ExecutionApi api, VRPConfig config, Map<String, LatLong> locations) {
+		DistancesConfiguration distancesConfig = config.getDistances().deepCopy();
+		distancesConfig.getOutputConfig().setOutputDistanceUnit(OutputDistanceUnit.METRES);
+		distancesConfig.getOutputConfig().setOutputTimeUnit(OutputTimeUnit.MILLISECONDS);
+
+		ODLTableAlterable table = api.getApi().tables().createAlterableTable("Locations");
+		table.addColumn(-1, PredefinedTags.LATITUDE, ODLColumnType.DOUBLE, 0);
+		table.addColumn(-1, PredefinedTags.LONGITUDE, ODLColumnType.DOUBLE, 0);
+		table.addColumn(-1, PredefinedTags.LOCATION_KEY, ODLColumnType.STRING, 0);
+		for (Map.Entry<String, LatLong> entry : locations.entrySet()) {
+			api.getApi().tables().addRow(table, entry.getValue().getLatitude(), entry.getValue().getLongitude(), entry.getKey());
+		}
+		return api.calculateDistances(distancesConfig, table);
+	}
+
+	private static float get(ODLCostMatrix matrix, String fromId, String toId, TravelCostType type) {
+		if (fromId == VRPConstants.NOWHERE || toId == VRPConstants.NOWHERE) {
+			return 0;
+		}
+		return (float) matrix.get(matrix.getIndex(fromId), matrix.getIndex(toId), type.matrixIndex);
+	}
+
+	private static float getCost(ODLCostMatrix matrix, String fromId, String toId, double costPerMillisecond, double costPerMetre) {
+		double cost = get(matrix, fromId, toId, TravelCostType.DISTANCE_KM) * costPerMetre + get(matrix, fromId, toId, TravelCostType.TIME)
+				* costPerMillisecond;
+		return (float) cost;
+	}
+
+	@Test
+	public void testIndexedCostsEqualMatrix() {
+		ExampleVRPData.ExecutionApi api = new ExampleVRPData.ExecutionApi();
+		VRPConfig config = new VRPConfig();
+		InputTablesDfn dfn = new InputTablesDfn(api.getApi(), config);
+		Random random = new Random(123);
+
+		for (int seed = 0; seed < 2; seed++) {
+			ODLDatastore<? extends ODLTable> ioDb = ExampleVRPData.createProblem(api.getApi(), config, 40, seed);
+			BuiltVRP built = BuiltVRP.build(ioDb, config, api);
+			VehicleRoutingTransportCosts costs = built.getVrpProblem().getTransportCosts();
+			List<Vehicle> vehicles = new ArrayList<>(built.getVrpProblem().getVehicles());
+
+			Map<String, LatLong> locations = getLocations(ioDb, dfn);
+			ODLCostMatrix matrix = calculateMatrix(api, config, locations);
+			List<String> ids = new ArrayList<>(locations.keySet());
+			ids.add(VRPConstants.NOWHERE);
+
+			// the vehicles' profiles and the default profile for no vehicle come first, then enough random profiles
+			// that some aren't precalculated
+			double[][] profiles = new double[NB_EXTRA_COST_PROFILES][];
+			for (int i = 0; i < profiles.length; i++) {
+				profiles[i] = new double[] { random.nextDouble() / 1000, random.nextDouble() / 100 };
+			}
+
+			for (int i = 0; i < NB_PAIRS; i++) {
+				String from = ids.get(random.nextInt(ids.size()));
+				String to = ids.get(random.nextInt(ids.size()));
+				String message = from + " to " + to;
+
+				float time = get(matrix, from, to, TravelCostType.TIME);
+				assertEquals(message, time, costs.getTransportTime(from, to, 0, null, null), 0);
+				assertEquals(message, time, costs.getBackwardTransportTime(from, to, 0, null, null), 0);
+
+				for (Vehicle vehicle : vehicles) {
+					float cost = getCost(matrix, from, to, vehicle.getType().getVehicleCostParams().perTimeUnit, vehicle.getType()
+							.getVehicleCostParams().perDistanceUnit);
+					assertEquals(message, cost, costs.getTransportCost(from, to, 0, null, vehicle), 0);
+					assertEquals(message, cost, costs.getBackwardTransportCost(from, to, 0, null, vehicle), 0);
+				}
+				assertEquals(message, getCost(matrix, from, to, 1, 0), costs.getTransportCost(from, to, 0, null, null), 0);
+
+				// the accessor takes positions, so nowhere doesn't apply
+				if (from != VRPConstants.NOWHERE && to != VRPConstants.NOWHERE) {
+					LatLong fromLL = locations.get(from);
+					LatLong toLL = locations.get(to);
+					assertEquals(message, get(matrix, from, to, TravelCostType.DISTANCE_KM), built.getTravelDistance(fromLL, toLL), 0);
+					assertEquals(message, time, built.getTravelTime(fromLL, toLL), 0);
+					for (double[] profile : profiles) {
+						assertEquals(message, getCost(matrix, from, to, profile[0], profile[1]),
+								built.getTravelCost(fromLL, toLL, profile[0], profile[1]), 0);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.components.jsprit;
+
+import java.util.Random;
+
+import javax.swing.JPanel;
+
+import com.opendoorlogistics.api.ODLApi;
+import com.opendoorlogistics.api.components.ComponentControlLauncherApi.ControlLauncherCallback;
+import com.opendoorlogistics.api.components.ComponentExecutionApi;
+import com.opendoorlogistics.api.distances.DistancesConfiguration;
+import com.opendoorlogistics.api.distances.ODLCostMatrix;
+import com.opendoorlogistics.api.geometry.LatLong;
+import com.opendoorlogistics.api.geometry.ODLGeom;
+import com.opendoorlogistics.api.tables.ODLDatastore;
+import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
+import com.opendoorlogistics.api.tables.ODLTable;
+import com.opendoorlogistics.api.tables.ODLTableAlterable;
+import com.opendoorlogistics.api.tables.ODLTableReadOnly;
+import com.opendoorlogistics.api.tables.ODLTime;
+import com.opendoorlogistics.components.jsprit.tabledefinitions.InputTablesDfn;
+import com.opendoorlogistics.components.jsprit.tabledefinitions.LatLongDfn;
+import com.opendoorlogistics.components.jsprit.tabledefinitions.VehiclesTableDfn.CostType;
+import com.opendoorlogistics.core.api.impl.ODLApiImpl;
+import com.opendoorlogistics.core.distances.DistancesSingleton;
+
+/**
+ * Random vehicle routing problems and a component execution api to build them with, for the tests
+ * 
+ * @author Phil
+ *
+ */
+final class ExampleVRPData {
+	private static final long HOUR = 60 * 60 * 1000;
+
+	static class ExecutionApi implements ComponentExecutionApi {
+		private final ODLApi api = new ODLApiImpl();
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isFinishNow() {
+			return false;
+		}
+
+		@Override
+		public ODLApi getApi() {
+			return api;
+		}
+
+		@Override
+		public void postStatusMessage(String s) {
+		}
+
+		@Override
+		public void logWarning(String warning) {
+		}
+
+		@Override
+		public String getBatchKey() {
+			return null;
+		}
+
+		@Override
+		public ModalDialogResult showModalPanel(JPanel panel, String title, ModalDialogResult... buttons) {
+			return null;
+		}
+
+		@Override
+		public <T extends JPanel & ClosedStatusObservable> void showModalPanel(T panel, String title) {
+		}
+
+		@Override
+		public ODLCostMatrix calculateDistances(DistancesConfiguration request, ODLTableReadOnly... tables) {
+			return DistancesSingleton.singleton().calculate(request, this, tables);
+		}
+
+		@Override
+		public ODLGeom calculateRouteGeom(DistancesConfiguration request, LatLong from, LatLong to) {
+			return null;
+		}
+
+		@Override
+		public void submitControlLauncher(ControlLauncherCallback cb) {
+		}
+	}
+
+	/**
+	 * Create stops and vehicles at random positions with random time windows, service durations, quantities and capacities, so some
+	 * jobs can only just be served and some can't be served at all
+	 */
+	static ODLDatastore<? extends ODLTable> createProblem(ODLApi api, VRPConfig config, int nbStops, long seed) {
+		InputTablesDfn dfn = new InputTablesDfn(api, config);
+		ODLDatastoreAlterable<? extends ODLTableAlterable> ioDb = api.tables().createAlterableDs();
+		for (int i = 0; i < dfn.ds.getTableCount(); i++) {
+			api.tables().copyTableDefinition(dfn.ds.getTableAt(i), ioDb);
+		}
+
+		Random random = new Random(seed);
+		ODLTable vehicles = ioDb.getTableAt(dfn.vehicles.tableIndex);
+		for (int i = 0; i < 3; i++) {
+			int row = vehicles.createEmptyRow(-1);
+			vehicles.setValueAt("Vehicle" + (i + 1), row, dfn.vehicles.id);
+			vehicles.setValueAt("Vehicle" + (i + 1), row, dfn.vehicles.vehicleName);
+			setLatLong(vehicles, row, dfn.vehicles.start, random);
+			setLatLong(vehicles, row, dfn.vehicles.end, random);
+
+			long start = (6 + random.nextInt(6)) * HOUR;
+			vehicles.setValueAt(new ODLTime(start), row, dfn.vehicles.tw.earliest);
+			vehicles.setValueAt(new ODLTime(start + (2 + random.nextInt(6)) * HOUR), row, dfn.vehicles.tw.latest);
+			vehicles.setValueAt((long) (50 + 50 * i), row, dfn.vehicles.capacities[0]);
+			vehicles.setValueAt(1L, row, dfn.vehicles.number);
+			vehicles.setValueAt(0.25, row, dfn.vehicles.costs[CostType.COST_PER_KM.ordinal()]);
+		}
+
+		ODLTable stops = ioDb.getTableAt(dfn.stops.tableIndex);
+		for (int i = 0; i < nbStops; i++) {
+			int row = stops.createEmptyRow(-1);
+			stops.setValueAt("Stop" + (i + 1), row, dfn.stops.id);
+			setLatLong(stops, row, dfn.stops.latLong, random);
+
+			long start = random.nextInt(20) * HOUR / 2;
+			stops.setValueAt(new ODLTime(start), row, dfn.stops.tw.earliest);
+			stops.setValueAt(new ODLTime(start + (long) (random.nextDouble() * HOUR)), row, dfn.stops.tw.latest);
+			stops.setValueAt(new ODLTime((long) (random.nextDouble() * 2 * HOUR)), row, dfn.stops.serviceDuration);
+			stops.setValueAt((long) random.nextInt(200), row, dfn.stops.quantityIndices[0]);
+		}
+		return ioDb;
+	}
+
+	/**
+	 * Set a random position within a couple of hours' drive of the others
+	 */
+	private static void setLatLong(ODLTable table, int row, LatLongDfn latLong, Random random) {
+		table.setValueAt(51 + random.nextDouble() * 2, row, latLong.latitude);
+		table.setValueAt(-2 + random.nextDouble() * 2, row, latLong.longitude);
+	}
+}
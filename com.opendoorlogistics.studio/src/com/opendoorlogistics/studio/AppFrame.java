@@ -19,6 +19,7 @@ import java.awt.Image;
 import java.awt.Rectangle;
 import java.awt.TexturePaint;
 import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
@@ -35,6 +36,7 @@ import javax.swing.AbstractAction;
 import javax.swing.Action;
 import javax.swing.Icon;
 import javax.swing.JButton;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JComponent;
 import javax.swing.JDesktopPane;
 import javax.swing.JFileChooser;
@@ -78,6 +80,7 @@ import com.opendoorlogistics.core.scripts.elements.Script;
 import com.opendoorlogistics.core.scripts.execution.ExecutionReportImpl;
 import com.opendoorlogistics.core.tables.ODLDatastoreUndoable;
 import com.opendoorlogistics.core.tables.ODLDatastoreUndoable.UndoStateChangedListener;
+import com.opendoorlogistics.core.tables.decorators.datastores.AdaptedDecorator;
 import com.opendoorlogistics.core.tables.io.PoiIO;
 import com.opendoorlogistics.core.tables.io.SupportedFileType;
 import com.opendoorlogistics.core.tables.io.TableIOUtils;
@@ -470,6 +473,10 @@ public final class AppFrame extends JFrame implements HasInternalFrames, HasScri
 		addSpace.add();
 		initWindowMenus(mnWindow);
 
+		// add options menu
+		menuBar.add(initOptionsMenu());
+		addSpace.add();
+
 		menuBar.add(initHelpMenu());
 
 		addSpace.add();
@@ -491,6 +498,37 @@ public final class AppFrame extends JFrame implements HasInternalFrames, HasScri
 		return mnCreateScript;
 	}
 
+	private JMenu initOptionsMenu() {
+		JMenu mnOptions = new JMenu("Options");
+		mnOptions.setMnemonic('O');
+
+		AdaptedDecorator.setViewValueCacheEnabled(Boolean.parseBoolean(PreferencesManager.getSingleton().get(PrefKey.VIEW_VALUE_CACHE)));
+		final JCheckBoxMenuItem viewCache = new JCheckBoxMenuItem("Cache adapter formula values in open tables, maps and reports");
+		viewCache.setSelected(AdaptedDecorator.isViewValueCacheEnabled());
+		viewCache.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				AdaptedDecorator.setViewValueCacheEnabled(viewCache.isSelected());
+				PreferencesManager.getSingleton().set(PrefKey.VIEW_VALUE_CACHE, Boolean.toString(viewCache.isSelected()));
+			}
+		});
+		mnOptions.add(viewCache);
+
+		final JCheckBoxMenuItem showTrace = new JCheckBoxMenuItem("Show execution trace after running a script");
+		showTrace.setSelected(Boolean.parseBoolean(PreferencesManager.getSingleton().get(PrefKey.SHOW_EXECUTION_TRACE)));
+		showTrace.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				PreferencesManager.getSingleton().set(PrefKey.SHOW_EXECUTION_TRACE, Boolean.toString(showTrace.isSelected()));
+			}
+		});
+		mnOptions.add(showTrace);
+
+		return mnOptions;
+	}
+
 	private JMenu initHelpMenu() {
 		JMenu mnHelp = new JMenu("Help");
 		mnHelp.setMnemonic('H');
@@ -38,7 +38,7 @@ final public class PreferencesManager {
 	}
 
 	public enum PrefKey {
-		LAST_JRXML_TO_COMPILE(null),SCRIPTS_DIR(null), REPORT_TEMPLATES_DIR(null), LAST_IO_DIR(null), LAST_GRID_VIEW_JRXML(null);
+		LAST_JRXML_TO_COMPILE(null),SCRIPTS_DIR(null), REPORT_TEMPLATES_DIR(null), LAST_IO_DIR(null), LAST_GRID_VIEW_JRXML(null), REPORT_REFRESH_WORKERS(null), SHOW_EXECUTION_TRACE("false"), VIEW_VALUE_CACHE("true");
 		// private final PrefKeyType type;
 		private final String defaultVal;
 
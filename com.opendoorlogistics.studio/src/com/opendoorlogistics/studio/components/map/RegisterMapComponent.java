@@ -39,6 +39,7 @@ import com.opendoorlogistics.core.gis.map.data.LatLongImpl;
 import com.opendoorlogistics.core.tables.ColumnValueProcessor;
 import com.opendoorlogistics.core.tables.ODLDatastoreUndoable;
 import com.opendoorlogistics.core.tables.beans.BeanMapping.BeanTableMapping;
+import com.opendoorlogistics.core.tables.decorators.datastores.AdaptedDecorator;
 import com.opendoorlogistics.core.tables.utils.TableUtils;
 import com.opendoorlogistics.core.utils.strings.Strings;
 import com.opendoorlogistics.studio.AppFrame;
@@ -115,6 +116,9 @@ final public class RegisterMapComponent {
 			this.appFrame = appFrame;
 			this.adaptedDsView = adaptedDsView;
 
+			// the panel re-reads points from the adapter whenever they're edited
+			AdaptedDecorator.enableValueCacheForView(adaptedDsView);
+
 			this.map.setGetToolTipCB(new BasicTooltipCB() {
 
 				@Override
@@ -199,6 +203,7 @@ final public class RegisterMapComponent {
 			if (appFrame.getLoaded() != null) {
 				appFrame.getLoaded().unregisterMapSelectionList(this);
 			}
+			AdaptedDecorator.disableValueCacheForView(adaptedDsView);
 		}
 
 		@Override
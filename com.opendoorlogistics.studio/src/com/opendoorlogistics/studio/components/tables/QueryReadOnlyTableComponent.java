@@ -88,7 +88,8 @@ public abstract class QueryReadOnlyTableComponent implements TableViewer {
 
 	@Override
 	public long getFlags(ODLApi api, int mode) {
-		return ODLComponent.FLAG_OUTPUT_WINDOWS_CAN_BE_SYNCHRONISED | ODLComponent.FLAG_ALLOW_USER_INTERACTION_WHEN_RUNNING;
+		return ODLComponent.FLAG_OUTPUT_WINDOWS_CAN_BE_SYNCHRONISED | ODLComponent.FLAG_ALLOW_USER_INTERACTION_WHEN_RUNNING | ODLComponent.FLAG_CAN_RUN_IN_PARALLEL
+				| ODLComponent.FLAG_OUTPUT_DEPENDS_ONLY_ON_INPUTS;
 	}
 
 	@Override
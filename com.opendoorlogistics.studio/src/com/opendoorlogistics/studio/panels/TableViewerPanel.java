@@ -12,6 +12,7 @@ import com.opendoorlogistics.api.tables.ODLTableAlterable;
 import com.opendoorlogistics.api.tables.ODLTableReadOnly;
 import com.opendoorlogistics.api.ui.Disposable;
 import com.opendoorlogistics.core.tables.ODLDatastoreUndoable;
+import com.opendoorlogistics.core.tables.decorators.datastores.AdaptedDecorator;
 import com.opendoorlogistics.studio.internalframes.HasInternalFrames;
 import com.opendoorlogistics.studio.tables.grid.GridEditPermissions;
 import com.opendoorlogistics.studio.tables.grid.GridTable;
@@ -25,8 +26,12 @@ import com.opendoorlogistics.studio.tables.grid.adapter.RowStyler;
  */
 final public class TableViewerPanel extends JPanel implements Disposable{
 	private ODLGridTable table;
+	private ODLDatastore<? extends ODLTableReadOnly> ds;
 
 	public TableViewerPanel(ODLDatastore<? extends ODLTableReadOnly> ds, int tableId,boolean enableListeners,RowStyler enableRowStyles,ODLDatastoreUndoable<ODLTableAlterable> globalDs, HasInternalFrames owner, GridEditPermissions editPermissions) {
+		// cache adapter formula values as the grid reads the visible cells on every repaint
+		this.ds = ds;
+		AdaptedDecorator.enableValueCacheForView(ds);
 		table = new ODLGridTable(ds, tableId,enableListeners,enableRowStyles,globalDs,editPermissions,owner);
 		GridTable.addToContainer(table, this);
 	}
@@ -34,9 +39,13 @@ final public class TableViewerPanel extends JPanel implements Disposable{
 	@Override
 	public void dispose() {
 		table.dispose();
+		AdaptedDecorator.disableValueCacheForView(ds);
 	}
 	
 	public void replaceData(ODLDatastore<? extends ODLTableReadOnly> ds, int tableId, RowStyler rowStyler){
+		AdaptedDecorator.disableValueCacheForView(this.ds);
+		this.ds = ds;
+		AdaptedDecorator.enableValueCacheForView(ds);
 		table.replaceData(ds, tableId, rowStyler);
 	}
 	
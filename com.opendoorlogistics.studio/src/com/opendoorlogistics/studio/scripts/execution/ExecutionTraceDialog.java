@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.studio.scripts.execution;
+
+import java.awt.Dimension;
+import java.awt.Font;
+
+import javax.swing.JFrame;
+import javax.swing.JTextArea;
+
+import com.opendoorlogistics.core.scripts.execution.ExecutionTrace;
+import com.opendoorlogistics.core.utils.ui.TextInformationDialog;
+
+/**
+ * Non-modal dialog showing where the time went when a script ran. The folded stacks at the bottom can be copied into a flame graph tool.
+ * 
+ * @author Phil
+ *
+ */
+final class ExecutionTraceDialog extends TextInformationDialog {
+	private static final long serialVersionUID = 4709127786362150318L;
+
+	ExecutionTraceDialog(JFrame parent, String scriptName, ExecutionTrace trace) {
+		super(parent, "Execution trace - " + scriptName, getText(trace), true, true, false);
+		setModal(false);
+
+		// keep the summary's columns aligned
+		JTextArea textArea = (JTextArea) textComponent;
+		textArea.setLineWrap(false);
+		textArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, textArea.getFont().getSize()));
+		textArea.setCaretPosition(0);
+		setPreferredSize(new Dimension(900, 400));
+		pack();
+		if (parent != null) {
+			setLocationRelativeTo(parent);
+		}
+	}
+
+	private static String getText(ExecutionTrace trace) {
+		return trace.getSummary() + System.lineSeparator() + "Folded stacks (self time in microseconds):" + System.lineSeparator()
+				+ trace.getFoldedStacks();
+	}
+}
@@ -19,6 +19,8 @@ import com.opendoorlogistics.core.scripts.execution.OptionsSubpath;
 import com.opendoorlogistics.core.tables.ODLDatastoreUndoable;
 import com.opendoorlogistics.core.tables.decorators.datastores.SimpleDecorator;
 import com.opendoorlogistics.core.utils.ui.ExecutionReportDialog;
+import com.opendoorlogistics.studio.PreferencesManager;
+import com.opendoorlogistics.studio.PreferencesManager.PrefKey;
 
 class ExecutionUtils {
 
@@ -36,6 +38,15 @@ class ExecutionUtils {
 		dlg.setVisible(true);
 	}
 
+	/**
+	 * Test if the user wants to see the execution trace after running a script
+	 * 
+	 * @return
+	 */
+	static boolean isShowExecutionTrace() {
+		return Boolean.parseBoolean(PreferencesManager.getSingleton().get(PrefKey.SHOW_EXECUTION_TRACE));
+	}
+
 	/**
 	 * Filters the script for the input options ids or just returns the root option on its own if no option ids provided.
 	 * 
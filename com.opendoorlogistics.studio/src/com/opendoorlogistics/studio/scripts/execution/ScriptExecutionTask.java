@@ -26,6 +26,9 @@ import com.opendoorlogistics.api.tables.ODLTableAlterable;
 import com.opendoorlogistics.api.ui.Disposable;
 import com.opendoorlogistics.core.scripts.elements.Option;
 import com.opendoorlogistics.core.scripts.elements.Script;
+import com.opendoorlogistics.core.scripts.execution.ExecutionReportImpl;
+import com.opendoorlogistics.core.scripts.execution.ExecutionTrace;
+import com.opendoorlogistics.core.scripts.execution.InstructionOutputCache;
 import com.opendoorlogistics.core.scripts.execution.ScriptExecutionBlackboard;
 import com.opendoorlogistics.core.scripts.execution.ScriptExecutor;
 import com.opendoorlogistics.core.scripts.io.ScriptIO;
@@ -60,6 +63,7 @@ class ScriptExecutionTask {
 	private volatile Set<ReporterFrameIdentifier> reporterFrameIds;
 	private volatile ODLDatastore<ODLTableAlterable> workingDatastoreCopy;
 	private volatile DataDependencies wholeScriptDependencies;
+	private volatile InstructionOutputCache.Run outputCacheRun;
 	private volatile boolean showingModalPanel = false;
 
 	ScriptExecutionTask(ScriptsRunner runner, final Script script, String[] optionIds, final String scriptName, boolean isScriptRefresh) {
@@ -78,7 +82,7 @@ class ScriptExecutionTask {
 	 * @param unfilteredScript
 	 * @return
 	 */
-	private String getScriptId() {
+	String getScriptId() {
 		return unfiltered.getUuid().toString();
 	}
 
@@ -97,6 +101,9 @@ class ScriptExecutionTask {
 		// Create the execution api we give to the script executor to allow it interact with the UI
 		initDependencyEjector();
 
+		// Get the saved outputs; refreshes only re-execute instructions whose input data has changed
+		final InstructionOutputCache outputCache = runner.getOutputCache(unfiltered);
+
 		// Execute copy on EDT now
 		try {
 			SwingUtilities.invokeAndWait(new Runnable() {
@@ -105,6 +112,9 @@ class ScriptExecutionTask {
 				public void run() {
 					// Copy the datastore in EDT so we never get a half-written copy
 					workingDatastoreCopy = runner.getDs().deepCopyDataOnly();
+					
+					// Stamp the tables at the same time so the saved outputs can be checked against the copied data
+					outputCacheRun = outputCache.startRun(runner.getDs(), isScriptRefresh);
 				}
 			});
 		} catch (Exception e) {
@@ -144,6 +154,7 @@ class ScriptExecutionTask {
 
 		// Execute and get all dependencies afterwards
 		ScriptExecutor executor = new ScriptExecutor(runner.getAppFrame().getApi(),false, guiFascade);
+		executor.setOutputCache(outputCacheRun);
 		result = executor.execute(filtered, simple);
 		if (!result.isFailed()) {
 			wholeScriptDependencies = executor.extractDependencies((ScriptExecutionBlackboard) result);
@@ -338,6 +349,14 @@ class ScriptExecutionTask {
 			ExecutionUtils.showScriptFailureBox(runner.getAppFrame(), false, scriptName, result);
 		}
 
+		// show the timings if the user asked for them, except when refreshing reports as this happens often
+		if (!isScriptRefresh && ExecutionUtils.isShowExecutionTrace() && ExecutionReportImpl.class.isInstance(result)) {
+			ExecutionTrace trace = ((ExecutionReportImpl) result).getTrace();
+			if (trace != null && !trace.isEmpty()) {
+				new ExecutionTraceDialog(runner.getAppFrame(), scriptName, trace).setVisible(true);
+			}
+		}
+
 	}
 
 	/**
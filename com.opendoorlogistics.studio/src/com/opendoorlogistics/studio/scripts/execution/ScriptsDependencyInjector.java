@@ -86,7 +86,7 @@ abstract class ScriptsDependencyInjector extends AbstractDependencyInjector {
 
 
 	@Override
-	public void addInstructionDependencies(String instructionId,  DataDependencies dependencies) {
+	public synchronized void addInstructionDependencies(String instructionId,  DataDependencies dependencies) {
 		DataDependencies found = dependenciesByInstructionId.get(instructionId);
 		if(found==null){
 			// keep our own copy so we don't rely on it not being modified after calling this method
@@ -98,7 +98,7 @@ abstract class ScriptsDependencyInjector extends AbstractDependencyInjector {
 
 	}
 
-	DataDependencies getDependenciesByInstructionId(String instructionId) {
+	synchronized DataDependencies getDependenciesByInstructionId(String instructionId) {
 		return dependenciesByInstructionId.get(instructionId);
 	}
 	
@@ -126,11 +126,11 @@ abstract class ScriptsDependencyInjector extends AbstractDependencyInjector {
 //	}
 
 	@Override
-	public void submitControlLauncher(String instructionId, ControlLauncherCallback cb) {
+	public synchronized void submitControlLauncher(String instructionId, ControlLauncherCallback cb) {
 		controlLauncherCallbacks.add(new RecordedLauncherCallback(cb, instructionId));
 	}
 
-	public List<RecordedLauncherCallback> getControlLauncherCallbacks() {
+	public synchronized List<RecordedLauncherCallback> getControlLauncherCallbacks() {
 		return controlLauncherCallbacks;
 	}
 
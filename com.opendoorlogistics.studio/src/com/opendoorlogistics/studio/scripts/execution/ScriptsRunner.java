@@ -7,6 +7,8 @@
 package com.opendoorlogistics.studio.scripts.execution;
 
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -23,12 +25,16 @@ import com.opendoorlogistics.api.ExecutionReport;
 import com.opendoorlogistics.api.tables.ODLTableAlterable;
 import com.opendoorlogistics.api.ui.Disposable;
 import com.opendoorlogistics.core.scripts.elements.Script;
+import com.opendoorlogistics.core.scripts.execution.InstructionOutputCache;
 import com.opendoorlogistics.core.scripts.execution.ScriptExecutor;
+import com.opendoorlogistics.core.scripts.io.ScriptIO;
 import com.opendoorlogistics.core.scripts.utils.ScriptUtils;
 import com.opendoorlogistics.core.tables.ODLDatastoreUndoable;
 import com.opendoorlogistics.core.utils.strings.StandardisedStringSet;
 import com.opendoorlogistics.core.utils.strings.Strings;
 import com.opendoorlogistics.studio.AppFrame;
+import com.opendoorlogistics.studio.PreferencesManager;
+import com.opendoorlogistics.studio.PreferencesManager.PrefKey;
 
 /**
  * The script runner exists only whilst the current spreadsheet is open. It is closed when the spreadsheet is closed.
@@ -38,8 +44,16 @@ import com.opendoorlogistics.studio.AppFrame;
  */
 public final class ScriptsRunner implements ReporterFrame.OnRefreshReport, Disposable {
 	
+	/**
+	 * Pending report refreshes. Refreshes of the same frame are coalesced, keeping only the newest request, and all pending refreshes of
+	 * the same script are run together as one task. Different scripts can refresh at the same time on different workers, but a script is
+	 * never refreshed by two workers at once. Frames which were selected or visible when their refresh was posted are refreshed first.
+	 */
 	private static class RefreshQueue{
 		private final LinkedList<RefreshItem> queue = new LinkedList<>();
+		private final HashSet<String> runningScriptIds = new HashSet<>();
+		private final HashSet<String> refreshedScriptIds = new HashSet<>();
+		private final RefreshStatistics statistics = new RefreshStatistics();
 		private final ScriptsRunner runner;
 	
 		public RefreshQueue(ScriptsRunner runner) {
@@ -47,32 +61,52 @@ public final class ScriptsRunner implements ReporterFrame.OnRefreshReport, Dispo
 		}
 		
 		synchronized void post(RefreshItem item){
+			statistics.nbPosted++;
+			
+			// replace any pending refresh of the same frame as it is superseded by this one
+			Iterator<RefreshItem> it = queue.iterator();
+			while(it.hasNext()){
+				RefreshItem other = it.next();
+				if(other.getFrameIdentifier().equals(item.getFrameIdentifier())){
+					it.remove();
+					item = item.supersede(other);
+					statistics.nbCoalesced++;
+				}
+			}
+			
 			queue.addLast(item);
+			statistics.maxQueueDepth = Math.max(statistics.maxQueueDepth, queue.size());
 		}
 		
-//		synchronized int size(){
-//			return queue.size();
-//		}
-		
 		synchronized boolean isEmpty(){
 			return queue.size()==0;
 		}
 		
+		/**
+		 * Get the task for the highest priority item whose script isn't already refreshing, marking its script as refreshing
+		 * @return The task or null if there is nothing to run now
+		 */
 		synchronized ScriptExecutionTask pop(){
 			ArrayList<RefreshItem> itemList = new ArrayList<>();
-			if(queue.size()==0){
+			
+			// get the top item, taking the first with the highest priority
+			RefreshItem top = null;
+			for(RefreshItem item : queue){
+				if(!runningScriptIds.contains(item.getScriptId()) && (top==null || item.getPriority() > top.getPriority())){
+					top = item;
+				}
+			}
+			if(top==null){
 				return null;
 			}
-			
-			// get the top item
-			RefreshItem top = queue.removeFirst();
+			queue.remove(top);
 			itemList.add(top);
 			
 			// get any other items from the same script also in the queue
 			Iterator<RefreshItem> it = queue.iterator();
 			while(it.hasNext()){
 				RefreshItem item = it.next();
-				if(Strings.equalsStd(top.getFrameIdentifier().getScriptId(), item.getFrameIdentifier().getScriptId())){
+				if(Strings.equalsStd(top.getScriptId(), item.getScriptId())){
 					itemList.add(item);
 					it.remove();
 				}
@@ -81,9 +115,13 @@ public final class ScriptsRunner implements ReporterFrame.OnRefreshReport, Dispo
 			// get all instruction ids and all reporter frame ids
 			StandardisedStringSet instructionIdsToRefresh = new StandardisedStringSet();
 			HashSet<ReporterFrameIdentifier> frameIdentifiers = new HashSet<>();
+			long now = System.currentTimeMillis();
 			for(RefreshItem item:itemList){
 				instructionIdsToRefresh.add(item.getFrameIdentifier().getInstructionId());	
 				frameIdentifiers.add(item.getFrameIdentifier());
+				long wait = now - item.getPostedTime();
+				statistics.totalWaitMillis += wait;
+				statistics.maxWaitMillis = Math.max(statistics.maxWaitMillis, wait);
 			}
 			
 			// now get the options to execute these instructions
@@ -93,25 +131,193 @@ public final class ScriptsRunner implements ReporterFrame.OnRefreshReport, Dispo
 			ScriptExecutionTask task = new ScriptExecutionTask(runner,top.getUnfilteredScript(), optionIds, "Refresh open report", true);
 			task.setReporterFrameIds(frameIdentifiers);
 			
+			runningScriptIds.add(top.getScriptId());
+			statistics.nbFramesRefreshed += itemList.size();
 			return task;
 		}
+		
+		synchronized void finished(String scriptId, long runMillis){
+			runningScriptIds.remove(Strings.std(scriptId));
+			statistics.nbTasksRun++;
+			statistics.totalRunMillis += runMillis;
+			statistics.maxRunMillis = Math.max(statistics.maxRunMillis, runMillis);
+
+			// the first refresh of a script compiles its formulae; later refreshes reuse them
+			if (refreshedScriptIds.add(Strings.std(scriptId))) {
+				statistics.nbFirstRuns++;
+				statistics.totalFirstRunMillis += runMillis;
+			} else {
+				statistics.totalRepeatRunMillis += runMillis;
+			}
+		}
+		
+		synchronized RefreshStatistics getStatistics(){
+			RefreshStatistics ret = new RefreshStatistics(statistics);
+			ret.queueDepth = queue.size();
+			ret.nbRunning = runningScriptIds.size();
+			return ret;
+		}
 	}
 	
-	private class RefreshItem{
+	/**
+	 * Statistics on the report refreshes, for monitoring how long refreshes wait and run
+	 */
+	public static class RefreshStatistics{
+		private int queueDepth;
+		private int maxQueueDepth;
+		private int nbRunning;
+		private long nbPosted;
+		private long nbCoalesced;
+		private long nbFramesRefreshed;
+		private long nbTasksRun;
+		private long totalWaitMillis;
+		private long maxWaitMillis;
+		private long totalRunMillis;
+		private long maxRunMillis;
+		private long nbFirstRuns;
+		private long totalFirstRunMillis;
+		private long totalRepeatRunMillis;
+		
+		private RefreshStatistics(){}
+		
+		private RefreshStatistics(RefreshStatistics copyThis){
+			queueDepth = copyThis.queueDepth;
+			maxQueueDepth = copyThis.maxQueueDepth;
+			nbRunning = copyThis.nbRunning;
+			nbPosted = copyThis.nbPosted;
+			nbCoalesced = copyThis.nbCoalesced;
+			nbFramesRefreshed = copyThis.nbFramesRefreshed;
+			nbTasksRun = copyThis.nbTasksRun;
+			totalWaitMillis = copyThis.totalWaitMillis;
+			maxWaitMillis = copyThis.maxWaitMillis;
+			totalRunMillis = copyThis.totalRunMillis;
+			maxRunMillis = copyThis.maxRunMillis;
+			nbFirstRuns = copyThis.nbFirstRuns;
+			totalFirstRunMillis = copyThis.totalFirstRunMillis;
+			totalRepeatRunMillis = copyThis.totalRepeatRunMillis;
+		}
+
+		/**
+		 * @return Number of refreshes currently waiting
+		 */
+		public int getQueueDepth() {
+			return queueDepth;
+		}
+
+		public int getMaxQueueDepth() {
+			return maxQueueDepth;
+		}
+
+		/**
+		 * @return Number of scripts currently refreshing
+		 */
+		public int getNbRunning() {
+			return nbRunning;
+		}
+
+		public long getNbPosted() {
+			return nbPosted;
+		}
+
+		/**
+		 * @return Number of refreshes dropped as a newer refresh of the same frame was posted
+		 */
+		public long getNbCoalesced() {
+			return nbCoalesced;
+		}
+
+		public long getNbFramesRefreshed() {
+			return nbFramesRefreshed;
+		}
+
+		public long getNbTasksRun() {
+			return nbTasksRun;
+		}
+
+		/**
+		 * @return Average time in milliseconds between a refresh being posted and it starting
+		 */
+		public double getAverageWaitMillis() {
+			return nbFramesRefreshed > 0 ? (double) totalWaitMillis / nbFramesRefreshed : 0;
+		}
+
+		public long getMaxWaitMillis() {
+			return maxWaitMillis;
+		}
+
+		/**
+		 * @return Average time in milliseconds to run a refresh task
+		 */
+		public double getAverageRunMillis() {
+			return nbTasksRun > 0 ? (double) totalRunMillis / nbTasksRun : 0;
+		}
+
+		public long getMaxRunMillis() {
+			return maxRunMillis;
+		}
+
+		/**
+		 * @return Average time in milliseconds for the first refresh of each script
+		 */
+		public double getAverageFirstRunMillis() {
+			return nbFirstRuns > 0 ? (double) totalFirstRunMillis / nbFirstRuns : 0;
+		}
+
+		/**
+		 * @return Average time in milliseconds for the refreshes of scripts which had already been refreshed
+		 */
+		public double getAverageRepeatRunMillis() {
+			long nbRepeatRuns = nbTasksRun - nbFirstRuns;
+			return nbRepeatRuns > 0 ? (double) totalRepeatRunMillis / nbRepeatRuns : 0;
+		}
+
+		@Override
+		public String toString() {
+			return "Queue depth=" + queueDepth + " (max " + maxQueueDepth + "), running=" + nbRunning + ", posted=" + nbPosted + ", coalesced="
+					+ nbCoalesced + ", tasks=" + nbTasksRun + ", wait=" + Math.round(getAverageWaitMillis()) + " ms (max " + maxWaitMillis
+					+ " ms), run=" + Math.round(getAverageRunMillis()) + " ms (max " + maxRunMillis + " ms, first " + Math.round(getAverageFirstRunMillis())
+					+ " ms, repeat " + Math.round(getAverageRepeatRunMillis()) + " ms)";
+		}
+	}
+	
+	private static class RefreshItem{
 		private final ReporterFrameIdentifier frameIdentifier;
 		private final boolean isAutomaticRefresh;
 		private final Script unfilteredScript;
+		private final int priority;
+		private final long postedTime;
 		
-		public RefreshItem(Script script, ReporterFrameIdentifier frameIdentifier, boolean isAutomaticRefresh) {
+		public RefreshItem(Script script, ReporterFrameIdentifier frameIdentifier, boolean isAutomaticRefresh, int priority) {
+			this(script, frameIdentifier, isAutomaticRefresh, priority, System.currentTimeMillis());
+		}
+
+		private RefreshItem(Script script, ReporterFrameIdentifier frameIdentifier, boolean isAutomaticRefresh, int priority, long postedTime) {
 			this.unfilteredScript = script;
 			this.frameIdentifier = frameIdentifier;
 			this.isAutomaticRefresh = isAutomaticRefresh;
+			this.priority = priority;
+			this.postedTime = postedTime;
+		}
+		
+		/**
+		 * Create the item which replaces both this and the older item for the same frame, keeping the older item's posted time
+		 * so the wait is measured from the first request 
+		 * @param older
+		 * @return
+		 */
+		RefreshItem supersede(RefreshItem older){
+			return new RefreshItem(unfilteredScript, frameIdentifier, isAutomaticRefresh && older.isAutomaticRefresh, Math.max(priority, older.priority),
+					Math.min(postedTime, older.postedTime));
 		}
 
 		public ReporterFrameIdentifier getFrameIdentifier() {
 			return frameIdentifier;
 		}
 
+		public String getScriptId(){
+			return Strings.std(frameIdentifier.getScriptId());
+		}
+		
 		public Script getUnfilteredScript() {
 			return unfilteredScript;
 		}
@@ -119,12 +325,23 @@ public final class ScriptsRunner implements ReporterFrame.OnRefreshReport, Dispo
 		public boolean isAutomaticRefresh() {
 			return isAutomaticRefresh;
 		}
+
+		public int getPriority() {
+			return priority;
+		}
+
+		public long getPostedTime() {
+			return postedTime;
+		}
 		
 	}
 	private final AppFrame appFrame;
 	private final ExecutorService executorService;
 	private final ODLDatastoreUndoable<ODLTableAlterable> ds;
 	private final RefreshQueue reportRefreshQueue = new RefreshQueue(this);
+	private static final long STATISTICS_LOG_INTERVAL_MILLIS = 60000;
+	private long lastStatisticsLogMillis;
+	private final HashMap<String, InstructionOutputCache> outputCaches = new HashMap<>();
 
 
 //	/**
@@ -161,9 +378,33 @@ public final class ScriptsRunner implements ReporterFrame.OnRefreshReport, Dispo
 
 
 	public ScriptsRunner(AppFrame parentFrame, ODLDatastoreUndoable<ODLTableAlterable> ds) {
+		this(parentFrame, ds, getDefaultNbRefreshWorkers());
+	}
+
+	/**
+	 * @param parentFrame
+	 * @param ds
+	 * @param nbRefreshWorkers Maximum number of reports refreshing at once
+	 */
+	public ScriptsRunner(AppFrame parentFrame, ODLDatastoreUndoable<ODLTableAlterable> ds, int nbRefreshWorkers) {
 		this.appFrame = parentFrame;
 		this.ds = ds;
-		this.executorService = Executors.newFixedThreadPool(1);
+		this.executorService = Executors.newFixedThreadPool(Math.max(1, nbRefreshWorkers));
+	}
+	
+	/**
+	 * Get the number of refresh workers from the preferences, defaulting to one per processor (between two and four)
+	 * @return
+	 */
+	private static int getDefaultNbRefreshWorkers(){
+		String s = PreferencesManager.getSingleton().get(PrefKey.REPORT_REFRESH_WORKERS);
+		if(s!=null){
+			try {
+				return Math.max(1, Integer.parseInt(s.trim()));
+			} catch (NumberFormatException e) {
+			}
+		}
+		return Math.min(4, Math.max(2, Runtime.getRuntime().availableProcessors()));
 	}
 	
 	/**
@@ -292,15 +533,33 @@ public final class ScriptsRunner implements ReporterFrame.OnRefreshReport, Dispo
 		return ds;
 	}
 
+	/**
+	 * Get the saved instruction outputs for the script, so a report refresh only re-executes the instructions whose input data has
+	 * changed. The outputs are discarded if the script has been edited.
+	 * 
+	 * @param unfilteredScript
+	 * @return
+	 */
+	synchronized InstructionOutputCache getOutputCache(Script unfilteredScript) {
+		String scriptId = unfilteredScript.getUuid().toString();
+		String xml = new ScriptIO().toXMLString(unfilteredScript);
+		InstructionOutputCache cache = outputCaches.get(scriptId);
+		if (cache == null || !Strings.equals(cache.getScriptSignature(), xml)) {
+			cache = new InstructionOutputCache(xml);
+			outputCaches.put(scriptId, cache);
+		}
+		return cache;
+	}
+
 	/*
-	 * Post a report refresh to be processed by a separate single report update thread...
+	 * Post a report refresh to be processed by the pool of report update threads...
 	 */
 	@Override
 	public void postReportRefreshRequest(Script unfilteredScript,ReporterFrameIdentifier frameIdentifier, boolean isAutomaticRefresh) {
 		ExecutionUtils.throwIfNotOnEDT();
 		
-		// Post to the queue
-		reportRefreshQueue.post(new RefreshItem(unfilteredScript, frameIdentifier, isAutomaticRefresh));
+		// Post to the queue, refreshing the frame the user is looking at first
+		reportRefreshQueue.post(new RefreshItem(unfilteredScript, frameIdentifier, isAutomaticRefresh, getRefreshPriority(frameIdentifier)));
 
 		// Submit a task to process it (may process more than one item from queue at a time).
 		// We submit the task to the background thread *after* all pending swing events have been processed as:
@@ -311,6 +570,25 @@ public final class ScriptsRunner implements ReporterFrame.OnRefreshReport, Dispo
 
 	}
 
+	/**
+	 * Get the refresh priority for the frame; the selected frame is highest followed by other visible frames
+	 * @param frameIdentifier
+	 * @return
+	 */
+	private int getRefreshPriority(ReporterFrameIdentifier frameIdentifier){
+		ReporterFrame<?> frame = getReporterFrame(frameIdentifier);
+		if(frame==null){
+			return 0;
+		}
+		if(frame.isSelected()){
+			return 2;
+		}
+		if(frame.isVisible() && !frame.isIcon()){
+			return 1;
+		}
+		return 0;
+	}
+	
 	/**
 	 * 
 	 */
@@ -319,11 +597,15 @@ public final class ScriptsRunner implements ReporterFrame.OnRefreshReport, Dispo
 			
 			@Override
 			public void run() {
+				if(executorService.isShutdown()){
+					return;
+				}
+				
 				executorService.submit(new Runnable() {
 					
 					@Override
 					public void run() {
-						// try to get a task
+						// try to get a task; there may be none if all queued scripts are already refreshing
 						ScriptExecutionTask task = reportRefreshQueue.pop();
 						if(task!=null){
 							
@@ -333,7 +615,18 @@ public final class ScriptsRunner implements ReporterFrame.OnRefreshReport, Dispo
 							}
 							
 							// execute the task
-							task.executeNonEDT();
+							long start = System.currentTimeMillis();
+							try {
+								task.executeNonEDT();								
+							} finally {
+								reportRefreshQueue.finished(task.getScriptId(), System.currentTimeMillis() - start);
+								logRefreshStatistics(false);
+								
+								// refreshes of this script posted whilst it was running can start now
+								if(!reportRefreshQueue.isEmpty()){
+									invokeTaskSubmissionLater();
+								}
+							}
 						}
 					}
 				});	
@@ -341,11 +634,43 @@ public final class ScriptsRunner implements ReporterFrame.OnRefreshReport, Dispo
 		});
 	}
 
+	/**
+	 * Get the statistics on the report refreshes so far
+	 * @return
+	 */
+	public RefreshStatistics getRefreshStatistics(){
+		return reportRefreshQueue.getStatistics();
+	}
+
+	/**
+	 * Log the refresh statistics, at most once a minute unless forced
+	 * @param force
+	 */
+	private void logRefreshStatistics(boolean force){
+		long now = System.currentTimeMillis();
+		synchronized (reportRefreshQueue) {
+			if(!force && now - lastStatisticsLogMillis < STATISTICS_LOG_INTERVAL_MILLIS){
+				return;
+			}
+			lastStatisticsLogMillis = now;
+		}
+		
+		RefreshStatistics statistics = getRefreshStatistics();
+		if(statistics.getNbPosted()>0){
+			System.out.println(new Date(now) + " - report refreshes: " + statistics);
+		}
+	}
+
 	@Override
 	public void dispose() {
 		if(!executorService.isShutdown()){
 			executorService.shutdownNow();			
 		}
+		logRefreshStatistics(true);
+		
+		synchronized (this) {
+			outputCaches.clear();
+		}
 	}
 	
 	List<ReporterFrame<?>> getReporterFrames(){